@@ -0,0 +1,20 @@
+package co.javeriana;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/** Utilidades de ficheros temporales compartidas por los benchmarks. */
+final class BenchmarkFiles {
+    private BenchmarkFiles() {}
+
+    /** Borra recursivamente `dir` (si existe). */
+    static void borrar(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) return;
+        try (Stream<Path> s = Files.walk(dir)) {
+            for (Path p : s.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(p);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package co.javeriana;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Punto de entrada de `target/benchmarks.jar`: delega en el Main de JMH y, si no se pasa
+ * `-rf`/`-rff`, guarda además los resultados en JSON en `target/jmh/jmh-<fecha>.json` para
+ * poder comparar ejecuciones (p. ej. con jmh.morethan.io o un diff entre ficheros).
+ *
+ *   java -jar target/benchmarks.jar                        # suite completa
+ *   java -jar target/benchmarks.jar DurableQueue -p backlog=0,10000
+ */
+public final class BenchmarkSuite {
+    private BenchmarkSuite() {}
+
+    public static void main(String[] args) throws Exception {
+        List<String> a = new ArrayList<>(Arrays.asList(args));
+        boolean listar = a.contains("-l") || a.contains("-lp") || a.contains("-h") || a.contains("-help");
+        if (!listar && !a.contains("-rf") && !a.contains("-rff")) {
+            Path salida = Path.of("target", "jmh",
+                    "jmh-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".json");
+            try {
+                Files.createDirectories(salida.getParent());
+                a.addAll(0, List.of("-rf", "json", "-rff", salida.toString()));
+            } catch (IOException e) {
+                System.err.println("No se pudo crear " + salida.getParent() + "; resultados solo por consola");
+            }
+        }
+        org.openjdk.jmh.Main.main(a.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,57 @@
+package co.javeriana;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput y latencia de commit de {@link CommitPipeline} por política de fsync con
+ * escritores concurrentes. Al terminar cada trial se imprime {@link CommitPipeline#report()},
+ * que incluye el tamaño medio de grupo alcanzado.
+ *
+ *   java -jar target/benchmarks.jar CommitPipelineBenchmark -t 8
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class CommitPipelineBenchmark {
+
+    @Param({"NONE", "ALWAYS", "INTERVAL"})
+    public CommitPipeline.SyncPolicy policy;
+
+    private Path dir;
+    private FileChannel channel;
+    private CommitPipeline pipeline;
+    private final byte[] record = ("{\"codigo\":\"L1\",\"titulo\":\"El Quijote\",\"autor\":\"Cervantes\",\"ejemplaresDisponibles\":2}\n")
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("commit-bench");
+        channel = FileChannel.open(dir.resolve("bench.wal"), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        pipeline = new CommitPipeline(policy, 10);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        System.out.println();
+        System.out.println("[CommitPipeline] " + pipeline.report());
+        pipeline.close();
+        channel.close();
+        Files.deleteIfExists(dir.resolve("bench.wal"));
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public void commit() throws Exception {
+        pipeline.commit(channel, record);
+    }
+}
@@ -0,0 +1,69 @@
+package co.javeriana;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DurableQueue} con distintos atrasos (`backlog` elementos pendientes al abrir):
+ * - `enqueue`: coste de encolar un elemento (debe ser independiente del atraso).
+ * - `processAll`: tiempo de drenar la cola completa con un processor que siempre confirma;
+ *   una cola nueva por iteración, medida una sola vez.
+ *
+ * La política de fsync es la del {@link CommitPipeline} compartido, así que se elige por fork:
+ *
+ *   java -jar target/benchmarks.jar DurableQueueBenchmark -jvmArgs -DfsyncPolicy=ALWAYS
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+public class DurableQueueBenchmark {
+
+    private static final String ITEM = "PRESTAMO;usuarioId=U42;libroCodigo=L1001;sede=SEDE1;ts=1700000000000";
+
+    @Param({"0", "10000", "100000"})
+    public int backlog;
+
+    private Path dir;
+    private DurableQueue queue;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("queue-bench");
+        String filePath = dir.resolve("pending.db").toString();
+        // El atraso se escribe directamente como primer segmento: abrirlo es lo que hace el GC al reiniciar
+        Path segments = Files.createDirectories(Path.of(filePath + ".segments"));
+        try (Writer w = Files.newBufferedWriter(segments.resolve(String.format("%020d.seg", 0)), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < backlog; i++) w.write(ITEM + ";n=" + i + "\n");
+        }
+        queue = new DurableQueue(filePath);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        BenchmarkFiles.borrar(dir);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 2, time = 2)
+    @Measurement(iterations = 3, time = 2)
+    public void enqueue() {
+        queue.enqueue(ITEM);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public long processAll() {
+        queue.processAll(s -> true);
+        return queue.size();
+    }
+}
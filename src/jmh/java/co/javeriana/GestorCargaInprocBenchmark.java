@@ -0,0 +1,105 @@
+package co.javeriana;
+
+import org.openjdk.jmh.annotations.*;
+import org.zeromq.SocketType;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ida y vuelta REQ → {@link GestorCarga} con todos los sockets `inproc://` en un mismo
+ * contexto, para medir el bucle del GC sin red:
+ * - `devolucion`: ACK inmediato y publicación por el PUB (sin suscriptores).
+ * - `prestamo`: reenvío por el DEALER a un REP que hace de ActorPrestamo y responde
+ *   `OK;prestamoId=...` sin tocar almacenamiento.
+ *
+ * Cada hilo de JMH es un PS con su propio REQ:
+ *
+ *   java -jar target/benchmarks.jar GestorCargaInprocBenchmark -t 4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class GestorCargaInprocBenchmark {
+
+    private static final String PS = "inproc://gc-ps";
+    private static final String PUB = "inproc://gc-pub";
+    private static final String ACTOR = "inproc://actor-prestamo";
+
+    ZContext ctx;
+    private GestorCarga gc;
+    private Thread hiloGc;
+    private Thread hiloActor;
+    private volatile boolean activo;
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("gc-bench");
+        System.setProperty("gcDataDir", dir.toString());
+        ctx = new ZContext();
+
+        // ActorPrestamo simulado: el REP ya bindeado antes de que el DEALER del GC conecte
+        ZMQ.Socket actor = ctx.createSocket(SocketType.REP);
+        actor.setLinger(0);
+        actor.setReceiveTimeOut(100);
+        actor.bind(ACTOR);
+        activo = true;
+        byte[] ok = MensajeCodec.escribir(new Mensaje("OK").con("prestamoId", "P1"), true);
+        hiloActor = new Thread(() -> {
+            while (activo) {
+                if (actor.recv() != null) actor.send(ok);
+            }
+            actor.close();
+        }, "actor-stub");
+        hiloActor.start();
+
+        gc = new GestorCarga(ctx);
+        gc.iniciarRep(PS);
+        gc.iniciarPub(PUB);
+        gc.iniciarReqPrestamo(ACTOR);
+        hiloGc = new Thread(gc::runLoop, "gc-loop");
+        hiloGc.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        activo = false;
+        hiloActor.join();
+        hiloGc.interrupt();
+        hiloGc.join(10_000);
+        gc.close();
+        BenchmarkFiles.borrar(dir);
+    }
+
+    @State(Scope.Thread)
+    public static class Cliente {
+        ZMQ.Socket req;
+
+        @Setup(Level.Trial)
+        public void conectar(GestorCargaInprocBenchmark b) {
+            req = b.ctx.createSocket(SocketType.REQ);
+            req.setLinger(0);
+            req.connect(PS);
+        }
+    }
+
+    @Benchmark
+    public String devolucion(Cliente c) {
+        c.req.send("DEVOLUCION;prestamoId=P1");
+        return c.req.recvStr();
+    }
+
+    @Benchmark
+    public String prestamo(Cliente c) {
+        c.req.send("PRESTAMO;usuarioId=U1;libroCodigo=L1;inicio=2025-01-01;fin=2025-01-15");
+        return c.req.recvStr();
+    }
+}
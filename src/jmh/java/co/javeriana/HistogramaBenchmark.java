@@ -0,0 +1,33 @@
+package co.javeriana;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coste de registrar una latencia en {@link Histograma} desde varios hilos; con `-prof gc`
+ * debe salir 0 B/op.
+ *
+ *   java -jar target/benchmarks.jar HistogramaBenchmark -t 4 -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class HistogramaBenchmark {
+    private final Histograma h = new Histograma();
+
+    @State(Scope.Thread)
+    public static class Valores {
+        long v = 1;
+    }
+
+    @Benchmark
+    public void registrar(Valores valores) {
+        // Recorre todo el rango de cubetas, de ns a segundos
+        valores.v = valores.v * 6364136223846793005L + 1442695040888963407L;
+        h.registrar((valores.v >>> 1) % 5_000_000_000L);
+    }
+}
@@ -0,0 +1,98 @@
+package co.javeriana;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lectura de una carga de texto con ts: la implementación anterior de
+ * `Utils.parseKeyValues` + `extractTs` (split, substrings, HashMap y una segunda pasada para
+ * el ts) frente a {@link KvParser}. Para ver las asignaciones por operación:
+ *
+ *   java -jar target/benchmarks.jar KvParserBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class KvParserBenchmark {
+
+    private static final String CARGA =
+            "PRESTAMO;usuarioId=U1;libroCodigo=L1;inicio=2025-11-18;fin=2025-11-25;ts=123456";
+
+    private final KvParser kv = new KvParser();
+
+    @Benchmark
+    public void anterior(Blackhole bh) {
+        Map<String,String> m = parseKeyValuesAnterior(CARGA);
+        bh.consume(m.get("usuarioId"));
+        bh.consume(m.get("libroCodigo"));
+        bh.consume(m.get("inicio"));
+        bh.consume(m.get("fin"));
+        bh.consume(extractTsAnterior(CARGA));
+    }
+
+    /** Mismos campos sin materializar los valores: comparación in situ y ts ya leído. */
+    @Benchmark
+    public void kvParser(Blackhole bh) {
+        kv.parse(CARGA);
+        bh.consume(kv.valorEs("usuarioId", "U1"));
+        bh.consume(kv.valorEs("libroCodigo", "L1"));
+        bh.consume(kv.indexOf("inicio"));
+        bh.consume(kv.indexOf("fin"));
+        bh.consume(kv.ts());
+    }
+
+    /** Mismos campos como String (lo que hace falta para pasarlos al repositorio). */
+    @Benchmark
+    public void kvParserGet(Blackhole bh) {
+        kv.parse(CARGA);
+        bh.consume(kv.get("usuarioId"));
+        bh.consume(kv.get("libroCodigo"));
+        bh.consume(kv.get("inicio"));
+        bh.consume(kv.get("fin"));
+        bh.consume(kv.ts());
+    }
+
+    /** La API pública `Utils.parseKeyValues`, que sigue materializando un Map. */
+    @Benchmark
+    public void utilsParseKeyValues(Blackhole bh) {
+        Map<String,String> m = Utils.parseKeyValues(CARGA);
+        bh.consume(m.get("usuarioId"));
+        bh.consume(m.get("libroCodigo"));
+        bh.consume(m.get("inicio"));
+        bh.consume(m.get("fin"));
+        bh.consume(Utils.extractTs(CARGA));
+    }
+
+    // Copia de la implementación previa de Utils, como referencia
+    private static Map<String,String> parseKeyValuesAnterior(String carga) {
+        Map<String,String> map = new HashMap<>();
+        String[] parts = carga.split(";");
+        for (int i = 1; i < parts.length; i++) {
+            String part = parts[i];
+            int eq = part.indexOf('=');
+            if (eq > 0) {
+                String k = part.substring(0, eq).trim();
+                String v = part.substring(eq + 1).trim();
+                map.put(k, v);
+            }
+        }
+        return map;
+    }
+
+    private static Long extractTsAnterior(String carga) {
+        String ts = parseKeyValuesAnterior(carga).get("ts");
+        if (ts == null) return null;
+        try {
+            return Long.parseLong(ts);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
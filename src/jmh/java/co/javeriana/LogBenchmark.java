@@ -0,0 +1,35 @@
+package co.javeriana;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coste de registrar en el camino caliente: un DEBUG desactivado (nivel INFO por defecto)
+ * frente a un mensaje publicado en el anillo de {@link Log}. El escritor de fondo va a un
+ * fichero temporal para no medir la consola.
+ *
+ *   java -jar target/benchmarks.jar LogBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(value = 1, jvmArgsAppend = {"-DlogLevel=INFO", "-DlogFile=target/log-benchmark.log", "-DlogMaxBytes=10000000", "-DlogMaxFiles=1"})
+public class LogBenchmark {
+    private static final Log LOG = Log.get("LogBenchmark");
+
+    private String libro = "L1";
+    private int n;
+
+    @Benchmark
+    public void debugDesactivado() {
+        LOG.debug(() -> "otorgarPrestamo start: libro=" + libro + " n=" + (n++));
+    }
+
+    @Benchmark
+    public void infoAlAnillo() {
+        LOG.info("otorgarPrestamo done: libro=" + libro + " n=" + (n++));
+    }
+}
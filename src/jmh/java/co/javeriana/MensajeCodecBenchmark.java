@@ -0,0 +1,59 @@
+package co.javeriana;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coste de serializar y leer un PRESTAMO en el formato de texto histórico frente al binario
+ * de {@link MensajeCodec}. Para ver las asignaciones por operación:
+ *
+ *   java -jar target/benchmarks.jar MensajeCodecBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class MensajeCodecBenchmark {
+
+    private static final String CARGA = "PRESTAMO;usuarioId=U1;libroCodigo=L1;inicio=2025-11-18;fin=2025-11-25";
+
+    private Mensaje mensaje;
+    private byte[] texto;
+    private byte[] binario;
+    private long ts = 1;
+
+    @Setup
+    public void setup() {
+        mensaje = Mensaje.deTexto(CARGA).conTs(123456);
+        texto = mensaje.aTexto().getBytes(StandardCharsets.UTF_8);
+        binario = MensajeCodec.encode(mensaje);
+        System.out.printf("%n[MensajeCodec] bytes texto=%d binario=%d%n", texto.length, binario.length);
+    }
+
+    /** Como se hacía antes: concatenar el ts a la carga y pasarla a bytes. */
+    @Benchmark
+    public byte[] escribirTextoConcatenado() {
+        return (CARGA + ";ts=" + (ts++)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] escribirBinario() {
+        return MensajeCodec.encode(mensaje.conTs(ts++));
+    }
+
+    @Benchmark
+    public String leerTexto() {
+        String carga = new String(texto, StandardCharsets.UTF_8);
+        return Utils.parseKeyValues(carga).get("libroCodigo") + Utils.extractTs(carga);
+    }
+
+    @Benchmark
+    public Mensaje leerBinario() {
+        return MensajeCodec.decode(ByteBuffer.wrap(binario));
+    }
+}
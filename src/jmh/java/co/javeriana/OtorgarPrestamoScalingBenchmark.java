@@ -0,0 +1,93 @@
+package co.javeriana;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Escalado de {@link GestorAlmacenamiento#otorgarPrestamo} + devolución con varios hilos.
+ *
+ * `mode=striped` usa la reserva CAS y los locks por libro del gestor; `mode=global` añade un
+ * monitor común alrededor de cada operación, equivalente a los antiguos métodos
+ * `synchronized`. Con `books=1` (libro caliente) todos los hilos compiten por el mismo título;
+ * con `books=1024` (libros fríos) los préstamos se reparten. Los repositorios son mapas en memoria y cada
+ * `save` consume `saveCost` unidades de CPU para simular el coste de persistir. Informe de
+ * escalado de 1 a N núcleos:
+ *
+ *   for t in 1 2 4 8; do java -jar target/benchmarks.jar OtorgarPrestamoScalingBenchmark -t $t; done
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class OtorgarPrestamoScalingBenchmark {
+
+    @Param({"striped", "global"})
+    public String mode;
+
+    @Param({"1", "1024"})
+    public int books;
+
+    @Param({"500"})
+    public int saveCost;
+
+    private GestorAlmacenamiento ga;
+    private Map<String, Prestamo> prestamos;
+    private String[] codigos;
+    private boolean global;
+    private final Object monitor = new Object();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Map<String, Libro> libros = new ConcurrentHashMap<>();
+        prestamos = new ConcurrentHashMap<>();
+        codigos = new String[books];
+        for (int i = 0; i < books; i++) {
+            codigos[i] = "L" + i;
+            libros.put(codigos[i], new Libro(codigos[i], "Titulo " + i, "Autor", Integer.MAX_VALUE / 2));
+        }
+        LibroRepository libroRepo = new LibroRepository() {
+            public Libro findByCodigo(String codigo) { return libros.get(codigo); }
+            public void save(Libro libro) {
+                Blackhole.consumeCPU(saveCost);
+                libros.put(libro.getCodigo(), libro);
+            }
+            public Collection<Libro> findAll() { return libros.values(); }
+        };
+        PrestamoRepository prestamoRepo = new PrestamoRepository() {
+            public Prestamo findById(String id) { return prestamos.get(id); }
+            public void save(Prestamo p) {
+                Blackhole.consumeCPU(saveCost);
+                prestamos.put(p.getId(), p);
+            }
+            public Collection<Prestamo> findAll() { return prestamos.values(); }
+        };
+        ga = new GestorAlmacenamiento(libroRepo, prestamoRepo);
+        global = "global".equals(mode);
+    }
+
+    @Benchmark
+    public boolean prestarYDevolver() {
+        String codigo = codigos[ThreadLocalRandom.current().nextInt(codigos.length)];
+        if (global) {
+            synchronized (monitor) {
+                return ciclo(codigo);
+            }
+        }
+        return ciclo(codigo);
+    }
+
+    private boolean ciclo(String codigo) {
+        Prestamo p = ga.otorgarPrestamo("U1", codigo, "2025-01-01", "2025-01-15");
+        boolean ok = ga.registrarDevolucion(p.getId());
+        prestamos.remove(p.getId()); // mantener acotado el mapa en memoria
+        return ok;
+    }
+}
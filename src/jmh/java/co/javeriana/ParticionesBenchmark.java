@@ -0,0 +1,67 @@
+package co.javeriana;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendimiento de préstamo + devolución según el número de particiones de
+ * {@link AlmacenamientoParticionado}, con los repositorios reales (`storageMode`) en un
+ * directorio temporal: con una partición todas las escrituras reescriben los mismos ficheros
+ * y toman el mismo `.lock`; con N, cada libro cae en la suya. Para ver el escalado hacen falta
+ * al menos tantos núcleos como hilos:
+ *
+ *   for t in 1 4 8; do java -jar target/benchmarks.jar ParticionesBenchmark -t $t; done
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class ParticionesBenchmark {
+
+    @Param({"1", "4", "8"})
+    public int particiones;
+
+    @Param({"file", "wal"})
+    public String storageMode;
+
+    @Param({"64"})
+    public int books;
+
+    private Path dir;
+    private AlmacenamientoParticionado almacen;
+    private String[] codigos;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        System.setProperty("particiones", Integer.toString(particiones));
+        System.setProperty("storageMode", storageMode);
+        System.setProperty("latidoMs", "0");
+        dir = Files.createTempDirectory("bench-particiones");
+        almacen = AlmacenamientoParticionado.abrir(dir, "bench");
+        codigos = new String[books];
+        for (int i = 0; i < books; i++) {
+            codigos[i] = "L" + i;
+            almacen.altaLibro(new Libro(codigos[i], "Titulo " + i, "Autor", Integer.MAX_VALUE / 2));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void cerrar() throws IOException {
+        almacen.shutdown();
+        BenchmarkFiles.borrar(dir);
+    }
+
+    @Benchmark
+    public boolean prestarYDevolver() {
+        String codigo = codigos[ThreadLocalRandom.current().nextInt(codigos.length)];
+        Prestamo p = almacen.otorgarPrestamo("U1", codigo, "2025-01-01", "2025-01-15");
+        return p != null && almacen.registrarDevolucion(p.getId());
+    }
+}
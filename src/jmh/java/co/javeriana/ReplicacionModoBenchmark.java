@@ -0,0 +1,115 @@
+package co.javeriana;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coste por operación de cada {@link GestorAlmacenamientoConReplica.ModoReplicacion}:
+ * préstamo + devolución a través del gestor compuesto, con el registro de cambios en un
+ * directorio temporal. Los repositorios son mapas en memoria; cada `save` de la primaria
+ * consume `saveCost` unidades de CPU y cada uno de la réplica `replicaSaveCost`, para ver
+ * cuándo una réplica lenta agota el presupuesto y el modo degrada a asíncrono (el contador
+ * `degradaciones` lo indica al final de cada iteración).
+ *
+ *   java -jar target/benchmarks.jar ReplicacionModoBenchmark -t 4
+ *   java -jar target/benchmarks.jar ReplicacionModoBenchmark -p replicaSaveCost=200000
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class ReplicacionModoBenchmark {
+
+    @Param({"ASYNC", "SEMISYNC", "SYNC"})
+    public String modo;
+
+    @Param({"500"})
+    public int saveCost;
+
+    @Param({"500"})
+    public int replicaSaveCost;
+
+    @Param({"1024"})
+    public int books;
+
+    private Path dir;
+    private ReplicaManager rm;
+    private GestorAlmacenamientoConReplica ga;
+    private Map<String, Prestamo> prestamosPrimaria;
+    private Map<String, Prestamo> prestamosReplica;
+    private String[] codigos;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        System.setProperty("replicaModo", modo);
+        System.setProperty("latidoMs", "0");
+        dir = Files.createTempDirectory("bench-replica");
+        codigos = new String[books];
+        for (int i = 0; i < books; i++) codigos[i] = "L" + i;
+        prestamosPrimaria = new ConcurrentHashMap<>();
+        prestamosReplica = new ConcurrentHashMap<>();
+        GestorAlmacenamiento primaria = gestor(prestamosPrimaria, saveCost, "primaria");
+        GestorAlmacenamiento replica = gestor(prestamosReplica, replicaSaveCost, "replica");
+        rm = new ReplicaManager(primaria, replica, dir.resolve("primaria"), dir.resolve("replica"), "bench");
+        ga = rm.getActivo();
+        ga.esperarReplicacion(10_000);
+    }
+
+    private GestorAlmacenamiento gestor(Map<String, Prestamo> prestamos, int coste, String nombre) {
+        Map<String, Libro> libros = new ConcurrentHashMap<>();
+        for (String c : codigos) libros.put(c, new Libro(c, "Titulo " + c, "Autor", Integer.MAX_VALUE / 2));
+        LibroRepository libroRepo = new LibroRepository() {
+            public Libro findByCodigo(String codigo) { return libros.get(codigo); }
+            public void save(Libro libro) {
+                Blackhole.consumeCPU(coste);
+                libros.put(libro.getCodigo(), libro);
+            }
+            public Collection<Libro> findAll() { return libros.values(); }
+        };
+        PrestamoRepository prestamoRepo = new PrestamoRepository() {
+            public Prestamo findById(String id) { return prestamos.get(id); }
+            public void save(Prestamo p) {
+                Blackhole.consumeCPU(coste);
+                prestamos.put(p.getId(), p);
+            }
+            public Collection<Prestamo> findAll() { return prestamos.values(); }
+        };
+        return new GestorAlmacenamiento(libroRepo, prestamoRepo, nombre);
+    }
+
+    @TearDown(Level.Iteration)
+    public void informe() {
+        ga.esperarReplicacion(10_000);
+        // mantener acotados los mapas en memoria
+        prestamosPrimaria.clear();
+        prestamosReplica.clear();
+        System.out.println();
+        for (String l : Metricas.exponer().split("\n")) {
+            if (l.startsWith("biblioteca_replica_degradaciones")) System.out.println(l);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void cerrar() throws IOException {
+        ga.shutdown();
+        BenchmarkFiles.borrar(dir);
+    }
+
+    @Benchmark
+    public boolean prestarYDevolver() {
+        String codigo = codigos[ThreadLocalRandom.current().nextInt(codigos.length)];
+        Prestamo p = ga.otorgarPrestamo("U1", codigo, "2025-01-01", "2025-01-15");
+        return ga.registrarDevolucion(p.getId());
+    }
+}
@@ -0,0 +1,89 @@
+package co.javeriana;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coste de un `save` en los repositorios basados en fichero JSON según el tamaño del
+ * conjunto: cada escritura reescribe el fichero completo, así que debe crecer linealmente
+ * con `records`. El fichero inicial se genera en streaming en un directorio temporal.
+ *
+ *   java -jar target/benchmarks.jar RepositorySaveBenchmark -p records=1000,100000
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class RepositorySaveBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int records;
+
+    @Param({"libros", "prestamos"})
+    public String repo;
+
+    private Path dir;
+    private LibroRepository libros;
+    private PrestamoRepository prestamos;
+    private Libro libro;
+    private Prestamo prestamo;
+    private int n;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("repo-bench");
+        Path file = dir.resolve(repo + ".db");
+        Gson gson = new Gson();
+        try (Writer w = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+             JsonWriter jw = new JsonWriter(w)) {
+            jw.beginObject();
+            for (int i = 0; i < records; i++) {
+                if (repo.equals("libros")) {
+                    Libro l = new Libro("L" + i, "Titulo " + i, "Autor " + (i % 997), 1 + i % 5);
+                    jw.name(l.getCodigo());
+                    gson.toJson(l, Libro.class, jw);
+                } else {
+                    Prestamo p = new Prestamo("P" + i, "U" + (i % 10_000), "L" + (i % 50_000),
+                            "2025-01-01", "2025-01-15", i % 3, PrestamoEstado.ACTIVO);
+                    jw.name(p.getId());
+                    gson.toJson(p, Prestamo.class, jw);
+                }
+            }
+            jw.endObject();
+        }
+        if (repo.equals("libros")) {
+            libros = new FileBasedLibroRepository(file.toString());
+            libro = libros.findByCodigo("L0");
+        } else {
+            prestamos = new FileBasedPrestamoRepository(file.toString());
+            prestamo = prestamos.findById("P0");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkFiles.borrar(dir);
+    }
+
+    /** Modifica un registro existente y lo guarda (= una operación de GestorAlmacenamiento). */
+    @Benchmark
+    public void save() {
+        if (libros != null) {
+            libro.setEjemplaresDisponibles(n++ & 7);
+            libros.save(libro);
+        } else {
+            prestamo.setRenovaciones(n++ & 1);
+            prestamos.save(prestamo);
+        }
+    }
+}
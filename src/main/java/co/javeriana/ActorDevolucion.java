@@ -4,50 +4,39 @@ import org.zeromq.ZContext;
 import org.zeromq.ZMQ;
 import org.zeromq.*;
 
-import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 
 public class ActorDevolucion {
+    private static final Log LOG = Log.get("ActorDevolucion");
+
     // Uso: mvn -q exec:java -Dexec.mainClass=co.javeriana.ActorDevolucion -Dexec.args="tcp://IP_GC:5560"
     //
     // Documentación (español):
     // Este actor se suscribe a mensajes de devolución publicados por el GestorCarga.
     // Implementación fase A de réplica/failover:
-    // - Crea GA primaria y réplica (rutas `data/primaria` y `data/replica`).
+    // - Crea GA primaria y réplica (rutas `data/primaria` y `data/replica`), un par por
+    //   partición (`AlmacenamientoParticionado`, -Dparticiones); el préstamo se localiza por su id.
     // - Usa `ReplicaManager` y `GestorAlmacenamientoConReplica` para aplicar la
     //   operación de devolución en la primaria y replicarla asíncronamente.
-    // - Si la primaria lanza `IllegalStateException`, el actor solicita la
-    //   conmutación a réplica mediante `rm.conmutarAReplica()` para que las
-    //   siguientes operaciones se apliquen en la réplica.
+    // - Si la primaria falla, `GestorAlmacenamientoConReplica` conmuta a la réplica y
+    //   reintenta la operación allí; `IllegalStateException` solo llega aquí si también
+    //   falla la réplica, y entonces se reenvía a los GC remotos.
     public static void main(String[] args) {
+        Metricas.proceso("ActorDevolucion");
+        Metricas.servirSiSeConfigura();
         String pubIP = args.length > 0 ? args[0] : "tcp://localhost:5560";
-        // Crear GA primaria y réplica (rutas separadas)
+        // GA primaria y réplica por partición (rutas separadas), cada par con su ReplicaManager
         String base = "data" + java.io.File.separator;
-        String primariaPathLibros = base + "primaria" + java.io.File.separator + "libros.db";
-        String primariaPathPrestamos = base + "primaria" + java.io.File.separator + "prestamos.db";
-        String replicaPathLibros = base + "replica" + java.io.File.separator + "libros.db";
-        String replicaPathPrestamos = base + "replica" + java.io.File.separator + "prestamos.db";
-
-        FileBasedLibroRepository primariaLibroRepo = new FileBasedLibroRepository(primariaPathLibros);
-        FileBasedPrestamoRepository primariaPrestamoRepo = new FileBasedPrestamoRepository(primariaPathPrestamos);
-        GestorAlmacenamiento primariaGA = new GestorAlmacenamiento(primariaLibroRepo, primariaPrestamoRepo);
-
-        FileBasedLibroRepository replicaLibroRepo = new FileBasedLibroRepository(replicaPathLibros);
-        FileBasedPrestamoRepository replicaPrestamoRepo = new FileBasedPrestamoRepository(replicaPathPrestamos);
-        GestorAlmacenamiento replicaGA = new GestorAlmacenamiento(replicaLibroRepo, replicaPrestamoRepo);
-
-        ReplicaManager rm = new ReplicaManager(primariaGA, replicaGA);
-        GestorAlmacenamientoConReplica gaCompuesto = rm.getActivo();
+        AlmacenamientoParticionado rm = AlmacenamientoParticionado.abrir(java.nio.file.Paths.get("data"), "devolucion");
+        Almacenamiento gaCompuesto = rm;
 
         // Pre-cargar un préstamo de ejemplo (id 101) en primaria si no existe
-        if (primariaPrestamoRepo.findById("101") == null) {
-            if (primariaLibroRepo.findByCodigo("L1") == null) primariaLibroRepo.save(new Libro("L1", "El Quijote", "Cervantes", 1));
-            Prestamo p101 = new Prestamo("101", "U1", "L1", "2025-10-01", "2025-10-15", 0, PrestamoEstado.ACTIVO);
-            primariaPrestamoRepo.save(p101);
-        }
+        // (como cambios de la primaria, para que lleguen a la réplica)
+        rm.altaLibro(new Libro("L1", "El Quijote", "Cervantes", 1));
+        rm.altaPrestamo(new Prestamo("101", "U1", "L1", "2025-10-01", "2025-10-15", 0, PrestamoEstado.ACTIVO));
 
         // Cola persistente local (fallback) y REQ hacia GC para encolar centralmente
         String pendingPath = base + "primaria" + java.io.File.separator + "pending_devoluciones.db";
@@ -63,7 +52,7 @@ public class ActorDevolucion {
             reqToGc.setLinger(0);
             reqToGc.setReceiveTimeOut(2000);
             reqToGc.connect(gcEnqueueEndpoint);
-            System.out.println("[ActorDevolucion] REQ hacia GC (enqueue) en " + gcEnqueueEndpoint);
+            LOG.info("REQ hacia GC (enqueue) en " + gcEnqueueEndpoint);
         } else {
             reqToGc = null;
         }
@@ -76,23 +65,25 @@ public class ActorDevolucion {
         final ZMQ.Socket finalReqToGc = reqToGc;
         sched.scheduleAtFixedRate(() -> {
             try {
-                pending.processAll(item -> {
+                // Solo los elementos cuyo backoff expiró; un fallo los reprograma con backoff
+                pending.processDue(500, item -> {
                     if (finalReqToGc == null) return false;
                     try {
-                        finalReqToGc.send(("ENQUEUE;type=Devolucion;carga=" + item).getBytes(ZMQ.CHARSET), 0);
+                        Mensaje enqueue = new Mensaje("ENQUEUE").con("type", "Devolucion").con("carga", item);
+                        MensajeCodec.enviar(finalReqToGc, enqueue, MensajeCodec.binarioPorDefecto(), 0);
                         byte[] r = finalReqToGc.recv(0);
                         String resp = r != null ? new String(r, ZMQ.CHARSET) : null;
                         if (resp != null && resp.contains("ENQUEUED")) {
-                            System.out.println("[ActorDevolucion] Moved local item to central queue: " + item);
+                            LOG.info("Moved local item to central queue: " + item);
                             return true;
                         }
                     } catch (Exception ex) {
-                        System.err.println("[ActorDevolucion] No se pudo enviar a GC en reprocessor: " + ex.getMessage());
+                        LOG.warn("No se pudo enviar a GC en reprocessor: " + ex.getMessage());
                     }
                     return false;
                 });
             } catch (Exception ex) {
-                System.err.println("[ActorDevolucion] Error en reprocessor: " + ex.getMessage());
+                LOG.warn("Error en reprocessor: " + ex.getMessage());
             }
         }, 5, 5, TimeUnit.SECONDS);
 
@@ -102,45 +93,60 @@ public class ActorDevolucion {
             sub.subscribe("Devolucion".getBytes(ZMQ.CHARSET));
             // Suscribirse a eventos de control/failover publicados por el GC
             sub.subscribe("Failover".getBytes(ZMQ.CHARSET));
-            System.out.println("[ActorDevolucion] SUB a " + pubIP + " (topic=Devolucion)");
+            LOG.info("SUB a " + pubIP + " (topic=Devolucion)");
+            // Confirmaciones al GC de lo aplicado, para su rueda de vencimientos (sin respuesta)
+            ZMQ.Socket confirmaciones = null;
+            if (gcEnqueueEndpoint != null) {
+                confirmaciones = ctx.createSocket(SocketType.DEALER);
+                confirmaciones.setLinger(0);
+                confirmaciones.connect(gcEnqueueEndpoint);
+            }
 
             while (!Thread.currentThread().isInterrupted()) {
                 String tema = sub.recvStr();
-                String carga = sub.recvStr();
-                System.out.printf("[ActorDevolucion] Mensaje recibido: tema=%s carga=%s%n", tema, carga);
+                byte[] raw = sub.recv(0);
+                if (tema == null || raw == null) continue;
+                // Failover llega como texto; el resto en binario o texto según -DwireFormat del GC
+                Mensaje mensaje = "Failover".equals(tema) ? null : MensajeCodec.leer(raw);
+                String carga = mensaje != null ? mensaje.aTexto() : new String(raw, ZMQ.CHARSET);
+                LOG.debug(() -> String.format("Mensaje recibido: tema=%s carga=%s", tema, carga));
 
                 // Si es un evento de Failover, activar conmutación local
                 if ("Failover".equals(tema)) {
-                    System.err.println("[ActorDevolucion] Evento Failover recibido: " + carga + "; solicitando conmutación a réplica");
+                    LOG.warn("Evento Failover recibido: " + carga + "; solicitando conmutación a réplica");
                     rm.conmutarAReplica();
                     continue;
                 }
 
                 // Update lamport clock if ts present
-                Long tsRemoto = Utils.extractTs(carga);
+                long tsRemoto = mensaje.getTimestamp();
                 // (actor-local lamport not persisted currently) - just log
-                if (tsRemoto != null) {
-                    System.out.println("[ActorDevolucion] ts remoto=" + tsRemoto);
+                if (tsRemoto != Mensaje.SIN_TS) {
+                    LOG.debug(() -> "ts remoto=" + tsRemoto);
                 }
 
                 // parsear carga: DEVOLUCION;prestamoId=101
-                String prestamoId = null;
-                Map<String,String> kv = Utils.parseKeyValues(carga);
-                prestamoId = kv.get("prestamoId");
+                String prestamoId = mensaje.get("prestamoId");
 
                 if (prestamoId == null) {
-                    System.out.println("[ActorDevolucion] Mensaje mal formado: no se encontró prestamoId");
+                    LOG.warn("Mensaje mal formado: no se encontró prestamoId");
                     continue;
                 }
 
                 try {
                     boolean ok = gaCompuesto.registrarDevolucion(prestamoId);
-                    System.out.println("[ActorDevolucion] Resultado GA = " + ok);
+                    LOG.debug(() -> "Resultado GA = " + ok);
                     if (!ok) {
-                        System.out.println("[ActorDevolucion] Operación rechazada por GA (no encolada)");
+                        LOG.info("Operación rechazada por GA (no encolada)");
+                    } else if (confirmaciones != null
+                            && !GestorCarga.confirmar(confirmaciones, "Devolucion", prestamoId, null)) {
+                        LOG.warn("No se pudo confirmar al GC la operación sobre " + prestamoId);
                     }
+                } catch (java.io.UncheckedIOException ex) {
+                    // No es durable: no se confirma al GC, que mantiene su vencimiento anterior
+                    LOG.error("No se pudo hacer durable la devolución de " + prestamoId + ": " + ex.getMessage());
                 } catch (IllegalStateException ex) {
-                    System.err.println("[ActorDevolucion] GA primaria no disponible; intentando reenviar a GC remoto");
+                    LOG.warn("GA primaria no disponible; intentando reenviar a GC remoto");
                     boolean forwarded = false;
                     for (String remote : remoteGcEndpoints) {
                         try (ZContext tmp2 = new ZContext()) {
@@ -152,34 +158,35 @@ public class ActorDevolucion {
                             byte[] r = req2.recv(0);
                             String resp = r != null ? new String(r, ZMQ.CHARSET) : null;
                             if (resp != null) {
-                                System.out.println("[ActorDevolucion] Reenviado a GC remoto " + remote + " -> " + resp);
+                                LOG.info("Reenviado a GC remoto " + remote + " -> " + resp);
                                 forwarded = true;
                                 break;
                             }
                         } catch (Exception e) {
-                            System.err.println("[ActorDevolucion] Error reenviando a GC remoto " + remote + ": " + e.getMessage());
+                            LOG.warn("Error reenviando a GC remoto " + remote + ": " + e.getMessage());
                         }
                     }
 
                     if (forwarded) continue;
 
-                    System.err.println("[ActorDevolucion] Intentando encolar en GC central");
+                    LOG.warn("Intentando encolar en GC central");
                     boolean enqueuedCentral = false;
                     if (finalReqToGc != null) {
                         try {
-                            finalReqToGc.send(("ENQUEUE;type=Devolucion;carga=" + carga).getBytes(ZMQ.CHARSET), 0);
+                            Mensaje enqueue = new Mensaje("ENQUEUE").con("type", "Devolucion").con("carga", carga);
+                            MensajeCodec.enviar(finalReqToGc, enqueue, MensajeCodec.binarioPorDefecto(), 0);
                             byte[] r = finalReqToGc.recv(0);
                             String resp = r != null ? new String(r, ZMQ.CHARSET) : null;
                             if (resp != null && resp.contains("ENQUEUED")) {
                                 enqueuedCentral = true;
-                                System.out.println("[ActorDevolucion] Encolado en GC central: " + carga);
+                                LOG.info("Encolado en GC central: " + carga);
                             }
                         } catch (Exception rex) {
-                            System.err.println("[ActorDevolucion] Error comunicando con GC: " + rex.getMessage());
+                            LOG.warn("Error comunicando con GC: " + rex.getMessage());
                         }
                     }
                     if (!enqueuedCentral) {
-                        System.err.println("[ActorDevolucion] Encolado local como fallback: " + carga);
+                        LOG.warn("Encolado local como fallback: " + carga);
                         pending.enqueue(carga);
                     }
                     rm.conmutarAReplica();
@@ -1,47 +1,111 @@
 package co.javeriana;
 
+import com.google.gson.Gson;
+import org.zeromq.SocketType;
 import org.zeromq.ZContext;
 import org.zeromq.ZMQ;
 
-import java.io.File;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ActorPrestamo {
+    private static final Log LOG = Log.get("ActorPrestamo");
+
     // Uso: mvn -q exec:java -Dexec.mainClass=co.javeriana.ActorPrestamo -Dexec.args="tcp://*:5570"
     //
     // Documentación (español):
-    // Este actor atiende solicitudes de PRESTAMO de forma síncrona (REP).
+    // Este actor atiende solicitudes de PRESTAMO (petición/respuesta).
     // Implementación fase A de réplica/failover:
-    // - Crea un GestorAlmacenamiento primario y otro réplica apuntando a
-    //   `data/primaria` y `data/replica` respectivamente.
-    // - Construye un `ReplicaManager` y obtiene el `GestorAlmacenamientoConReplica`
-    //   para realizar operaciones. Mientras la primaria esté activa, las
-    //   escrituras se aplican en primaria y se replican asíncronamente en la réplica.
-    // - Si la primaria lanza `IllegalStateException` (simulando fallo), el actor
-    //   solicita la conmutación a réplica llamando `rm.conmutarAReplica()` y
-    //   responde `GA_NoDisponible` al GestorCarga.
-    public static void main(String[] args) {
-        String bind = args.length > 0 ? args[0] : "tcp://*:5570";
+    // - Abre el almacenamiento con `AlmacenamientoParticionado`: -Dparticiones pares de
+    //   GestorAlmacenamiento primario/réplica (uno por defecto, en `data/primaria` y
+    //   `data/replica`), cada uno con su `ReplicaManager`, repartidos por libroCodigo.
+    //   Mientras la primaria de una partición esté activa, sus escrituras se aplican en ella
+    //   y se replican asíncronamente en su réplica.
+    // - Si la primaria falla (simulado con -DfailAfterN), el detector de latidos del
+    //   `ReplicaManager` o la primera operación que lo note conmutan a la réplica y la
+    //   operación se reintenta allí; al conmutar se notifica a los GCs configurados.
+    // - Con -DrecuperarPrimariaTrasMs=N se simula que la primaria vuelve N ms después del
+    //   failover: `ReplicaManager.recuperarPrimaria()` la pone al día en segundo plano y la
+    //   vuelve a hacer origen (failback) sin detener el servicio.
+    // - Solo si también falla la réplica (`IllegalStateException`) se reenvía a los GC
+    //   remotos y, si ninguno contesta, se responde `GA_NoDisponible` al GestorCarga.
+    //
+    // Pool de workers: un socket ROUTER recibe las peticiones y un proxy las reparte por un
+    // DEALER inproc entre -Dworkers hilos (por defecto, uno por núcleo), cada uno con su REP.
+    // El sobre de la petición (incluido el id de correlación del GC) vuelve intacto en la
+    // respuesta. La exclusión entre préstamos la dan los locks por libro de los gestores.
+    //
+    // Consultas: CONSULTA;usuarioId=U;libroCodigo=L;estado=ACTIVO;venceAntes=2025-02-01;limite=N
+    // (al menos un criterio) se resuelve con los índices del repositorio de préstamos y
+    // responde OK;total=N;prestamos=[...] con los préstamos en JSON, como mucho
+    // -DconsultaLimite (1000). Llega por el mismo camino que los PRESTAMO.
+    //
+    // ACTIVOS responde igual pero con todos los préstamos activos, sin ese tope: lo pide el
+    // GestorCarga al arrancar para reconstruir la rueda de vencimientos.
+    private static final String WORKERS_ENDPOINT = "inproc://prestamo-workers";
+    public static final String CONSULTA = "CONSULTA";
+    public static final String ACTIVOS = "ACTIVOS";
+    private static final int CONSULTA_LIMITE = Integer.getInteger("consultaLimite", 1000);
+    private static final Gson GSON = new Gson();
 
-        // Crear GA primaria y réplica con rutas separadas (data/primaria, data/replica)
-        String base = "data" + File.separator;
-        String primariaPathLibros = base + "primaria" + File.separator + "libros.db";
-        String primariaPathPrestamos = base + "primaria" + File.separator + "prestamos.db";
-        String replicaPathLibros = base + "replica" + File.separator + "libros.db";
-        String replicaPathPrestamos = base + "replica" + File.separator + "prestamos.db";
+    private final Almacenamiento gaCompuesto;
+    private final AlmacenamientoParticionado rm;
+    private final String siteId;
+    private final String[] gcEnqueueEndpoints;
+    private final String[] remoteGcEndpoints;
+    private final AtomicLong lamport = new AtomicLong();
 
-        FileBasedLibroRepository primariaLibroRepo = new FileBasedLibroRepository(primariaPathLibros);
-        FileBasedPrestamoRepository primariaPrestamoRepo = new FileBasedPrestamoRepository(primariaPathPrestamos);
-        GestorAlmacenamiento primariaGA = new GestorAlmacenamiento(primariaLibroRepo, primariaPrestamoRepo);
+    ActorPrestamo(AlmacenamientoParticionado rm, String siteId, String[] gcEnqueueEndpoints, String[] remoteGcEndpoints) {
+        this.rm = rm;
+        this.gaCompuesto = rm;
+        this.siteId = siteId;
+        this.gcEnqueueEndpoints = gcEnqueueEndpoints;
+        this.remoteGcEndpoints = remoteGcEndpoints;
+        rm.setAlConmutar(this::alConmutar);
+    }
 
-        FileBasedLibroRepository replicaLibroRepo = new FileBasedLibroRepository(replicaPathLibros);
-        FileBasedPrestamoRepository replicaPrestamoRepo = new FileBasedPrestamoRepository(replicaPathPrestamos);
-        GestorAlmacenamiento replicaGA = new GestorAlmacenamiento(replicaLibroRepo, replicaPrestamoRepo);
+    /** Tras el failover (en el hilo de aviso): notifica a los GCs y, si se pidió, simula la vuelta de la primaria. */
+    private void alConmutar() {
+        notificarFailover();
+        long recuperarTrasMs = Long.getLong("recuperarPrimariaTrasMs", 0L);
+        if (recuperarTrasMs <= 0) return;
+        try {
+            Thread.sleep(recuperarTrasMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        rm.recuperarPrimaria();
+    }
 
-        // ReplicaManager y gestor compuesto
-        ReplicaManager rm = new ReplicaManager(primariaGA, replicaGA);
-        GestorAlmacenamientoConReplica gaCompuesto = rm.getActivo();
+    /** Encola un evento de control FAILOVER en los GCs configurados (`-DnotifyGcEnqueue`). */
+    private void notificarFailover() {
+        String controlMsg = "site=" + siteId + ";event=FAILOVER";
+        Mensaje enqueue = new Mensaje("ENQUEUE").con("type", "Control").con("carga", controlMsg);
+        for (String endpoint : gcEnqueueEndpoints) {
+            try (ZContext tmp = new ZContext()) {
+                ZMQ.Socket req = tmp.createSocket(ZMQ.REQ);
+                req.setLinger(0);
+                req.setReceiveTimeOut(2000);
+                req.connect(endpoint);
+                MensajeCodec.enviar(req, enqueue, MensajeCodec.binarioPorDefecto(), 0);
+                byte[] r = req.recv(0);
+                String rr = r != null ? new String(r, ZMQ.CHARSET) : "";
+                LOG.info("Notificado GC " + endpoint + " -> " + rr);
+            } catch (Exception e) {
+                LOG.warn("Error notificando GC " + endpoint + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        Metricas.proceso("ActorPrestamo");
+        Metricas.servirSiSeConfigura();
+        String bind = args.length > 0 ? args[0] : "tcp://*:5570";
+
+        // GA primaria y réplica por partición (data/primaria, data/replica), cada par con su ReplicaManager
+        AlmacenamientoParticionado rm = AlmacenamientoParticionado.abrir(Paths.get("data"), "prestamo");
 
         // Soporte para simular fallo de primaria: pasar -DfailAfterN=10
         try {
@@ -49,11 +113,11 @@ public class ActorPrestamo {
             if (s != null) {
                 int n = Integer.parseInt(s);
                 if (n > 0) {
-                    primariaGA.setFailAfter(n);
+                    rm.setFailAfter(n);
                 }
             }
         } catch (Exception ex) {
-            System.err.println("[ActorPrestamo] No se pudo parsear failAfterN: " + ex.getMessage());
+            LOG.warn("No se pudo parsear failAfterN: " + ex.getMessage());
         }
 
         // Lista de endpoints REP de los GCs remotos para notificar failover (comma-separated)
@@ -65,123 +129,146 @@ public class ActorPrestamo {
         final String[] remoteGcEndpoints = remoteGc != null ? remoteGc.split(",") : new String[0];
 
         // DEBUG: log de propiedades leídas al inicio (ayuda a verificar ejecución desde IntelliJ/mvn)
-        System.err.println("[ActorPrestamo] startup props: remoteGcEndpoints=" + (remoteGc == null ? "<none>" : remoteGc));
-        System.err.println("[ActorPrestamo] startup props: notifyGcEnqueue=" + (notifyGcEnqueue == null ? "<none>" : notifyGcEnqueue));
-        System.err.println("[ActorPrestamo] startup props: siteId=" + siteId);
+        LOG.info("startup props: remoteGcEndpoints=" + (remoteGc == null ? "<none>" : remoteGc));
+        LOG.info("startup props: notifyGcEnqueue=" + (notifyGcEnqueue == null ? "<none>" : notifyGcEnqueue));
+        LOG.info("startup props: siteId=" + siteId);
         String sFail = System.getProperty("failAfterN");
-        System.err.println("[ActorPrestamo] startup props: failAfterN=" + (sFail == null ? "<none>" : sFail));
+        LOG.info("startup props: failAfterN=" + (sFail == null ? "<none>" : sFail));
 
-        // Pre-cargar algunos libros en primaria si no existen
-        if (primariaLibroRepo.findByCodigo("L1") == null) primariaLibroRepo.save(new Libro("L1", "El Quijote", "Cervantes", 2));
-        if (primariaLibroRepo.findByCodigo("L2") == null) primariaLibroRepo.save(new Libro("L2", "1984", "Orwell", 1));
+        // Pre-cargar algunos libros en primaria si no existen (como cambios: llegan a la réplica)
+        rm.altaLibro(new Libro("L1", "El Quijote", "Cervantes", 2));
+        rm.altaLibro(new Libro("L2", "1984", "Orwell", 1));
 
-        try (ZContext ctx = new ZContext()) {
-            ZMQ.Socket rep = ctx.createSocket(ZMQ.REP);
-            rep.bind(bind);
-            System.out.println("[ActorPrestamo] REP en " + bind);
-
-            long lamport = 0L;
-
-            while (!Thread.currentThread().isInterrupted()) {
-                String carga = rep.recvStr();
-                if (carga == null) continue;
-                System.out.println("[ActorPrestamo] Recibido: " + carga);
-
-                // update lamport if incoming ts present
-                Long tsRemoto = Utils.extractTs(carga);
-                if (tsRemoto != null) lamport = Math.max(lamport, tsRemoto) + 1;
-                else lamport++;
-
-                // Formato: PRESTAMO;usuarioId=U1;libroCodigo=L1;inicio=2025-01-01;fin=2025-01-15
-                Map<String,String> kv = Utils.parseKeyValues(carga);
-                String usuarioId = kv.get("usuarioId");
-                String libroCodigo = kv.get("libroCodigo");
-                String inicio = kv.get("inicio");
-                String fin = kv.get("fin");
-
-                if (usuarioId == null || libroCodigo == null || inicio == null || fin == null) {
-                    String resp = "ERROR;motivo=FormatoIncorrecto;ts=" + lamport;
-                    rep.send(resp.getBytes(ZMQ.CHARSET), 0);
-                    continue;
-                }
+        ActorPrestamo actor = new ActorPrestamo(rm, siteId, gcEnqueueEndpoints, remoteGcEndpoints);
+        int workers = Math.max(1, Integer.getInteger("workers", Runtime.getRuntime().availableProcessors()));
 
-                try {
-                    // Usar el gestor compuesto (primaria + réplica)
-                    Prestamo p = gaCompuesto.otorgarPrestamo(usuarioId, libroCodigo, inicio, fin);
-                    if (p == null) {
-                        String resp = "ERROR;motivo=SinDisponibilidad;ts=" + lamport;
-                        rep.send(resp.getBytes(ZMQ.CHARSET), 0);
-                    } else {
-                        String resp = "OK;prestamoId=" + p.getId() + ";ts=" + lamport;
-                        rep.send(resp.getBytes(ZMQ.CHARSET), 0);
-                    }
-                } catch (IllegalStateException ex) {
-                    // Intentar reenviar la operación al/los GC remotos configurados antes de conmutar
-                    boolean forwarded = false;
-                    String forwardResp = null;
-                    for (String remote : remoteGcEndpoints) {
-                        try (ZContext tmp2 = new ZContext()) {
-                            ZMQ.Socket req2 = tmp2.createSocket(ZMQ.REQ);
-                            req2.setLinger(0);
-                            req2.setReceiveTimeOut(2000);
-                            req2.connect(remote);
-                            req2.send(carga.getBytes(ZMQ.CHARSET), 0);
-                            byte[] rr = req2.recv(0);
-                            if (rr != null) {
-                                forwardResp = new String(rr, ZMQ.CHARSET);
-                                System.out.println("[ActorPrestamo] Reenviado PRESTAMO a GC remoto " + remote + " -> " + forwardResp);
-                                forwarded = true;
-                                break;
-                            }
-                        } catch (Exception e) {
-                            System.err.println("[ActorPrestamo] Error reenviando a GC remoto " + remote + ": " + e.getMessage());
-                        }
-                    }
+        try (ZContext ctx = new ZContext()) {
+            ZMQ.Socket frontend = ctx.createSocket(SocketType.ROUTER);
+            frontend.bind(bind);
+            ZMQ.Socket backend = ctx.createSocket(SocketType.DEALER);
+            backend.bind(WORKERS_ENDPOINT);
+            LOG.info("ROUTER en " + bind + " con " + workers + " workers");
 
-                    if (forwarded) {
-                        // Enviar la respuesta del GC remoto al GC que llamó originalmente
-                        rep.send(forwardResp.getBytes(ZMQ.CHARSET), 0);
-                        continue;
-                    }
+            for (int i = 0; i < workers; i++) {
+                Thread t = new Thread(() -> actor.atenderWorker(ctx), "prestamo-worker-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+            // Bloquea hasta que se cierre el contexto
+            ZMQ.proxy(frontend, backend, null);
+        }
+    }
 
-                    // Ninguno remoto contestó: conmutar a réplica local y notificar GCs configurados
-                    System.err.println("[ActorPrestamo] GA primaria no disponible, solicitando conmutación a réplica");
-                    rm.conmutarAReplica();
-                    String controlMsg = "site=" + siteId + ";event=FAILOVER";
-                    for (String endpoint : gcEnqueueEndpoints) {
-                        try (ZContext tmp = new ZContext()) {
-                            ZMQ.Socket req = tmp.createSocket(ZMQ.REQ);
-                            req.setLinger(0);
-                            req.setReceiveTimeOut(2000);
-                            req.connect(endpoint);
-                            String payload = "ENQUEUE;type=Control;carga=" + controlMsg;
-                            req.send(payload.getBytes(ZMQ.CHARSET), 0);
-                            byte[] r = req.recv(0);
-                            String rr = r != null ? new String(r, ZMQ.CHARSET) : "";
-                            System.out.println("[ActorPrestamo] Notificado GC " + endpoint + " -> " + rr);
-                        } catch (Exception e) {
-                            System.err.println("[ActorPrestamo] Error notificando GC " + endpoint + ": " + e.getMessage());
-                        }
-                    }
-                    String resp = "ERROR;motivo=GA_NoDisponible;ts=" + lamport;
-                    rep.send(resp.getBytes(ZMQ.CHARSET), 0);
-                }
+    /** Bucle de un worker: REP conectado al DEALER inproc del proxy. */
+    private void atenderWorker(ZContext ctx) {
+        ZMQ.Socket rep = ctx.createSocket(SocketType.REP);
+        rep.connect(WORKERS_ENDPOINT);
+        while (!Thread.currentThread().isInterrupted()) {
+            byte[] raw = rep.recv(0);
+            if (raw == null) break; // contexto cerrado
+            // Se responde en el mismo formato (binario o texto) en que llegó la petición
+            Mensaje resp;
+            try {
+                resp = procesar(MensajeCodec.leer(raw));
+            } catch (RuntimeException e) {
+                // El REP debe responder siempre; un mensaje ilegible no puede tumbar al worker
+                LOG.error("Mensaje no procesable (" + raw.length + " bytes)", e);
+                resp = new Mensaje("ERROR:MensajeInvalido");
             }
+            MensajeCodec.enviar(rep, resp, MensajeCodec.esBinario(raw), 0);
         }
     }
 
-    private static Map<String,String> parseKeyValues(String carga) {
-        Map<String,String> map = new HashMap<>();
-        String[] parts = carga.split(";");
-        for (int i = 1; i < parts.length; i++) {
-            String part = parts[i];
-            int eq = part.indexOf('=');
-            if (eq > 0) {
-                String k = part.substring(0, eq).trim();
-                String v = part.substring(eq+1).trim();
-                map.put(k, v);
+    /** Atiende una CONSULTA de préstamos; no avanza el reloj de Lamport (no modifica nada). */
+    private Mensaje consultar(Mensaje carga) {
+        PrestamoEstado estado;
+        int limite;
+        try {
+            String e = carga.get("estado");
+            estado = e == null ? null : PrestamoEstado.valueOf(e.trim().toUpperCase());
+            String l = carga.get("limite");
+            limite = l == null ? CONSULTA_LIMITE : Math.max(0, Math.min(CONSULTA_LIMITE, Integer.parseInt(l.trim())));
+        } catch (IllegalArgumentException ex) {
+            return new Mensaje("ERROR").con("motivo", "FormatoIncorrecto");
+        }
+        try {
+            List<Prestamo> r = gaCompuesto.buscarPrestamos(carga.get("usuarioId"), carga.get("libroCodigo"), estado,
+                    carga.get("venceAntes"), limite);
+            return new Mensaje("OK").con("total", Integer.toString(r.size())).con("prestamos", GSON.toJson(r));
+        } catch (IllegalArgumentException ex) {
+            return new Mensaje("ERROR").con("motivo", "SinCriterio");
+        } catch (IllegalStateException ex) {
+            return new Mensaje("ERROR").con("motivo", "GA_NoDisponible");
+        }
+    }
+
+    /** Todos los préstamos activos, para la rueda de vencimientos del GestorCarga. */
+    private Mensaje activos() {
+        try {
+            List<Prestamo> r = gaCompuesto.buscarPrestamos(null, null, PrestamoEstado.ACTIVO, null, Integer.MAX_VALUE);
+            return new Mensaje("OK").con("total", Integer.toString(r.size())).con("prestamos", GSON.toJson(r));
+        } catch (IllegalStateException ex) {
+            return new Mensaje("ERROR").con("motivo", "GA_NoDisponible");
+        }
+    }
+
+    /** Atiende un PRESTAMO (o la petición de métricas del GC) y devuelve la respuesta para el GestorCarga. */
+    Mensaje procesar(Mensaje carga) {
+        LOG.debug(() -> "Recibido: " + carga);
+        if (Metricas.OP.equals(carga.getOp())) return new Mensaje("OK").con("metricas", Metricas.exponer());
+        if (CONSULTA.equals(carga.getOp())) return consultar(carga);
+        if (ACTIVOS.equals(carga.getOp())) return activos();
+
+        // update lamport if incoming ts present
+        long tsRemoto = carga.getTimestamp();
+        long ts = tsRemoto != Mensaje.SIN_TS
+                ? lamport.accumulateAndGet(tsRemoto, (local, remoto) -> Math.max(local, remoto) + 1)
+                : lamport.incrementAndGet();
+
+        // Formato: PRESTAMO;usuarioId=U1;libroCodigo=L1;inicio=2025-01-01;fin=2025-01-15
+        String usuarioId = carga.get("usuarioId");
+        String libroCodigo = carga.get("libroCodigo");
+        String inicio = carga.get("inicio");
+        String fin = carga.get("fin");
+
+        if (usuarioId == null || libroCodigo == null || inicio == null || fin == null) {
+            return new Mensaje("ERROR").con("motivo", "FormatoIncorrecto").conTs(ts);
+        }
+
+        try {
+            // Usar el gestor compuesto (primaria + réplica)
+            Prestamo p = gaCompuesto.otorgarPrestamo(usuarioId, libroCodigo, inicio, fin);
+            if (p == null) {
+                return new Mensaje("ERROR").con("motivo", "SinDisponibilidad").conTs(ts);
+            }
+            return new Mensaje("OK").con("prestamoId", p.getId()).conTs(ts);
+        } catch (java.io.UncheckedIOException ex) {
+            // La reserva ya se anuló en el gestor; el préstamo no existe para el usuario
+            LOG.error("No se pudo hacer durable el préstamo de " + libroCodigo + ": " + ex.getMessage());
+            return new Mensaje("ERROR").con("motivo", "ErrorPersistencia").conTs(ts);
+        } catch (IllegalStateException ex) {
+            // Primaria y réplica locales caídas: reenviar la operación al/los GC remotos configurados
+            for (String remote : remoteGcEndpoints) {
+                try (ZContext tmp2 = new ZContext()) {
+                    ZMQ.Socket req2 = tmp2.createSocket(ZMQ.REQ);
+                    req2.setLinger(0);
+                    req2.setReceiveTimeOut(2000);
+                    req2.connect(remote);
+                    // El GC remoto atiende a los PS: habla texto
+                    req2.send(carga.aTexto().getBytes(ZMQ.CHARSET), 0);
+                    byte[] rr = req2.recv(0);
+                    if (rr != null) {
+                        String forwardResp = new String(rr, ZMQ.CHARSET);
+                        LOG.info("Reenviado PRESTAMO a GC remoto " + remote + " -> " + forwardResp);
+                        // Enviar la respuesta del GC remoto al GC que llamó originalmente
+                        return Mensaje.deTexto(forwardResp);
+                    }
+                } catch (Exception e) {
+                    LOG.warn("Error reenviando a GC remoto " + remote + ": " + e.getMessage());
+                }
             }
+
+            return new Mensaje("ERROR").con("motivo", "GA_NoDisponible").conTs(ts);
         }
-        return map;
     }
 }
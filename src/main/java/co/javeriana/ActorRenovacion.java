@@ -4,48 +4,38 @@ import org.zeromq.ZContext;
 import org.zeromq.ZMQ;
 import org.zeromq.*;
 
-import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 
 public class ActorRenovacion {
+    private static final Log LOG = Log.get("ActorRenovacion");
+
     // Uso: mvn -q exec:java -Dexec.mainClass=co.javeriana.ActorRenovacion -Dexec.args="tcp://IP_GC:5560"
     //
     // Documentación (español):
     // Este actor se suscribe a mensajes de renovación publicados por el GestorCarga.
-    // - Inicializa GA primaria y réplica y un ReplicaManager.
+    // - Inicializa GA primaria y réplica y un ReplicaManager por partición
+    //   (`AlmacenamientoParticionado`, -Dparticiones); el préstamo se localiza por su id.
     // - Usa `GestorAlmacenamientoConReplica` para aplicar renovaciones en primaria
     //   y replicarlas en segundo plano.
-    // - Si la primaria falla (IllegalStateException), llama `rm.conmutarAReplica()`
-    //   para que posteriores operaciones usen la réplica.
+    // - Si la primaria falla, `GestorAlmacenamientoConReplica` conmuta a la réplica y
+    //   reintenta la operación allí; `IllegalStateException` solo llega aquí si también
+    //   falla la réplica, y entonces se reenvía a los GC remotos.
     public static void main(String[] args) {
+        Metricas.proceso("ActorRenovacion");
+        Metricas.servirSiSeConfigura();
         String pubIP = args.length > 0 ? args[0] : "tcp://localhost:5560";
-        // Crear GA primaria y réplica (rutas separadas)
+        // GA primaria y réplica por partición (rutas separadas), cada par con su ReplicaManager
         String base = "data" + java.io.File.separator;
-        String primariaPathLibros = base + "primaria" + java.io.File.separator + "libros.db";
-        String primariaPathPrestamos = base + "primaria" + java.io.File.separator + "prestamos.db";
-        String replicaPathLibros = base + "replica" + java.io.File.separator + "libros.db";
-        String replicaPathPrestamos = base + "replica" + java.io.File.separator + "prestamos.db";
-
-        FileBasedLibroRepository primariaLibroRepo = new FileBasedLibroRepository(primariaPathLibros);
-        FileBasedPrestamoRepository primariaPrestamoRepo = new FileBasedPrestamoRepository(primariaPathPrestamos);
-        GestorAlmacenamiento primariaGA = new GestorAlmacenamiento(primariaLibroRepo, primariaPrestamoRepo);
-
-        FileBasedLibroRepository replicaLibroRepo = new FileBasedLibroRepository(replicaPathLibros);
-        FileBasedPrestamoRepository replicaPrestamoRepo = new FileBasedPrestamoRepository(replicaPathPrestamos);
-        GestorAlmacenamiento replicaGA = new GestorAlmacenamiento(replicaLibroRepo, replicaPrestamoRepo);
-
-        ReplicaManager rm = new ReplicaManager(primariaGA, replicaGA);
-        GestorAlmacenamientoConReplica gaCompuesto = rm.getActivo();
+        AlmacenamientoParticionado rm = AlmacenamientoParticionado.abrir(java.nio.file.Paths.get("data"), "renovacion");
+        Almacenamiento gaCompuesto = rm;
 
         // Pre-cargar un préstamo de ejemplo (id 102) en primaria si no existe
-        if (primariaPrestamoRepo.findById("102") == null) {
-            if (primariaLibroRepo.findByCodigo("L2") == null) primariaLibroRepo.save(new Libro("L2", "1984", "Orwell", 1));
-            Prestamo p102 = new Prestamo("102", "U2", "L2", "2025-10-02", "2025-10-16", 0, PrestamoEstado.ACTIVO);
-            primariaPrestamoRepo.save(p102);
-        }
+        // (como cambios de la primaria, para que lleguen a la réplica)
+        rm.altaLibro(new Libro("L2", "1984", "Orwell", 1));
+        rm.altaPrestamo(new Prestamo("102", "U2", "L2", "2025-10-02", "2025-10-16", 0, PrestamoEstado.ACTIVO));
 
         // Cola persistente local (fallback) y REQ hacia GC para encolar centralmente
         String pendingPath = base + "primaria" + java.io.File.separator + "pending_renovaciones.db";
@@ -60,7 +50,7 @@ public class ActorRenovacion {
             reqToGc.setLinger(0);
             reqToGc.setReceiveTimeOut(2000);
             reqToGc.connect(gcEnqueueEndpoint);
-            System.out.println("[ActorRenovacion] REQ hacia GC (enqueue) en " + gcEnqueueEndpoint);
+            LOG.info("REQ hacia GC (enqueue) en " + gcEnqueueEndpoint);
         } else {
             reqToGc = null;
         }
@@ -72,23 +62,25 @@ public class ActorRenovacion {
         final ZMQ.Socket finalReqToGc = reqToGc;
         sched.scheduleAtFixedRate(() -> {
             try {
-                pending.processAll(item -> {
+                // Solo los elementos cuyo backoff expiró; un fallo los reprograma con backoff
+                pending.processDue(500, item -> {
                     if (finalReqToGc == null) return false;
                     try {
-                        finalReqToGc.send(("ENQUEUE;type=Renovacion;carga=" + item).getBytes(ZMQ.CHARSET), 0);
+                        Mensaje enqueue = new Mensaje("ENQUEUE").con("type", "Renovacion").con("carga", item);
+                        MensajeCodec.enviar(finalReqToGc, enqueue, MensajeCodec.binarioPorDefecto(), 0);
                         byte[] r = finalReqToGc.recv(0);
                         String resp = r != null ? new String(r, ZMQ.CHARSET) : null;
                         if (resp != null && resp.contains("ENQUEUED")) {
-                            System.out.println("[ActorRenovacion] Moved local item to central queue: " + item);
+                            LOG.info("Moved local item to central queue: " + item);
                             return true;
                         }
                     } catch (Exception ex) {
-                        System.err.println("[ActorRenovacion] No se pudo enviar a GC en reprocessor: " + ex.getMessage());
+                        LOG.warn("No se pudo enviar a GC en reprocessor: " + ex.getMessage());
                     }
                     return false;
                 });
             } catch (Exception ex) {
-                System.err.println("[ActorRenovacion] Error en reprocessor: " + ex.getMessage());
+                LOG.warn("Error en reprocessor: " + ex.getMessage());
             }
         }, 5, 5, TimeUnit.SECONDS);
 
@@ -98,42 +90,58 @@ public class ActorRenovacion {
             sub.subscribe("Renovacion".getBytes(ZMQ.CHARSET));
             // Suscribirse a eventos de control/failover publicados por el GC
             sub.subscribe("Failover".getBytes(ZMQ.CHARSET));
-            System.out.println("[ActorRenovacion] SUB a " + pubIP + " (topic=Renovacion)");
+            LOG.info("SUB a " + pubIP + " (topic=Renovacion)");
+            // Confirmaciones al GC de lo aplicado, para su rueda de vencimientos (sin respuesta)
+            ZMQ.Socket confirmaciones = null;
+            if (gcEnqueueEndpoint != null) {
+                confirmaciones = ctx.createSocket(SocketType.DEALER);
+                confirmaciones.setLinger(0);
+                confirmaciones.connect(gcEnqueueEndpoint);
+            }
 
             while (!Thread.currentThread().isInterrupted()) {
                 String tema = sub.recvStr();
-                String carga = sub.recvStr();
-                System.out.printf("[ActorRenovacion] Mensaje recibido: tema=%s carga=%s%n", tema, carga);
+                byte[] raw = sub.recv(0);
+                if (tema == null || raw == null) continue;
+                // Failover llega como texto; el resto en binario o texto según -DwireFormat del GC
+                Mensaje mensaje = "Failover".equals(tema) ? null : MensajeCodec.leer(raw);
+                String carga = mensaje != null ? mensaje.aTexto() : new String(raw, ZMQ.CHARSET);
+                LOG.debug(() -> String.format("Mensaje recibido: tema=%s carga=%s", tema, carga));
 
                 if ("Failover".equals(tema)) {
-                    System.err.println("[ActorRenovacion] Evento Failover recibido: " + carga + "; solicitando conmutación a réplica");
+                    LOG.warn("Evento Failover recibido: " + carga + "; solicitando conmutación a réplica");
                     rm.conmutarAReplica();
                     continue;
                 }
 
-                Long tsRemoto = Utils.extractTs(carga);
-                if (tsRemoto != null) {
-                    System.out.println("[ActorRenovacion] ts remoto=" + tsRemoto);
+                long tsRemoto = mensaje.getTimestamp();
+                if (tsRemoto != Mensaje.SIN_TS) {
+                    LOG.debug(() -> "ts remoto=" + tsRemoto);
                 }
 
                 // parsear carga: RENOVACION;prestamoId=102;nuevaFecha=2025-10-22
-                Map<String,String> kv = Utils.parseKeyValues(carga);
-                String prestamoId = kv.get("prestamoId");
-                String nuevaFecha = kv.get("nuevaFecha");
+                String prestamoId = mensaje.get("prestamoId");
+                String nuevaFecha = mensaje.get("nuevaFecha");
 
                 if (prestamoId == null || nuevaFecha == null) {
-                    System.out.println("[ActorRenovacion] Mensaje mal formado: falta prestamoId o nuevaFecha");
+                    LOG.warn("Mensaje mal formado: falta prestamoId o nuevaFecha");
                     continue;
                 }
 
                 try {
                     boolean ok = gaCompuesto.registrarRenovacion(prestamoId, nuevaFecha);
-                    System.out.println("[ActorRenovacion] Resultado GA = " + ok);
+                    LOG.debug(() -> "Resultado GA = " + ok);
                     if (!ok) {
-                        System.out.println("[ActorRenovacion] Operación rechazada por GA (no encolada)");
+                        LOG.info("Operación rechazada por GA (no encolada)");
+                    } else if (confirmaciones != null
+                            && !GestorCarga.confirmar(confirmaciones, "Renovacion", prestamoId, nuevaFecha)) {
+                        LOG.warn("No se pudo confirmar al GC la operación sobre " + prestamoId);
                     }
+                } catch (java.io.UncheckedIOException ex) {
+                    // No es durable: no se confirma al GC, que mantiene su vencimiento anterior
+                    LOG.error("No se pudo hacer durable la renovación de " + prestamoId + ": " + ex.getMessage());
                 } catch (IllegalStateException ex) {
-                    System.err.println("[ActorRenovacion] GA primaria no disponible; intentando reenviar a GC remoto");
+                    LOG.warn("GA primaria no disponible; intentando reenviar a GC remoto");
                     boolean forwarded = false;
                     for (String remote : remoteGcEndpoints) {
                         try (ZContext tmp2 = new ZContext()) {
@@ -145,34 +153,35 @@ public class ActorRenovacion {
                             byte[] r = req2.recv(0);
                             String resp = r != null ? new String(r, ZMQ.CHARSET) : null;
                             if (resp != null) {
-                                System.out.println("[ActorRenovacion] Reenviado a GC remoto " + remote + " -> " + resp);
+                                LOG.info("Reenviado a GC remoto " + remote + " -> " + resp);
                                 forwarded = true;
                                 break;
                             }
                         } catch (Exception e) {
-                            System.err.println("[ActorRenovacion] Error reenviando a GC remoto " + remote + ": " + e.getMessage());
+                            LOG.warn("Error reenviando a GC remoto " + remote + ": " + e.getMessage());
                         }
                     }
 
                     if (forwarded) continue;
 
-                    System.err.println("[ActorRenovacion] Intentando encolar en GC central");
+                    LOG.warn("Intentando encolar en GC central");
                     boolean enqueuedCentral = false;
                     if (finalReqToGc != null) {
                         try {
-                            finalReqToGc.send(("ENQUEUE;type=Renovacion;carga=" + carga).getBytes(ZMQ.CHARSET), 0);
+                            Mensaje enqueue = new Mensaje("ENQUEUE").con("type", "Renovacion").con("carga", carga);
+                            MensajeCodec.enviar(finalReqToGc, enqueue, MensajeCodec.binarioPorDefecto(), 0);
                             byte[] r = finalReqToGc.recv(0);
                             String resp = r != null ? new String(r, ZMQ.CHARSET) : null;
                             if (resp != null && resp.contains("ENQUEUED")) {
                                 enqueuedCentral = true;
-                                System.out.println("[ActorRenovacion] Encolado en GC central: " + carga);
+                                LOG.info("Encolado en GC central: " + carga);
                             }
                         } catch (Exception rex) {
-                            System.err.println("[ActorRenovacion] Error comunicando con GC: " + rex.getMessage());
+                            LOG.warn("Error comunicando con GC: " + rex.getMessage());
                         }
                     }
                     if (!enqueuedCentral) {
-                        System.err.println("[ActorRenovacion] Encolado local como fallback: " + carga);
+                        LOG.warn("Encolado local como fallback: " + carga);
                         pending.enqueue(carga);
                     }
                     rm.conmutarAReplica();
@@ -0,0 +1,25 @@
+package co.javeriana;
+
+import java.util.List;
+
+/**
+ * Operaciones de almacenamiento que usan los actores. Las implementan el gestor simple
+ * ({@link GestorAlmacenamiento}), el par primaria/réplica ({@link GestorAlmacenamientoConReplica})
+ * y el almacenamiento particionado por libro ({@link AlmacenamientoParticionado}), así que un
+ * actor no sabe cuántos gestores hay detrás.
+ *
+ * Si el almacenamiento no está disponible las operaciones lanzan `IllegalStateException`.
+ */
+public interface Almacenamiento {
+    Prestamo otorgarPrestamo(String usuarioId, String libroCodigo, String fechaInicio, String fechaFin);
+
+    boolean registrarDevolucion(String prestamoId);
+
+    boolean registrarRenovacion(String prestamoId, String nuevaFecha);
+
+    boolean validarDisponibilidad(String libroCodigo);
+
+    /** Préstamos que cumplen todos los criterios dados (al menos uno), como mucho `limite`. */
+    List<Prestamo> buscarPrestamos(String usuarioId, String libroCodigo, PrestamoEstado estado,
+                                   String venceAntes, int limite);
+}
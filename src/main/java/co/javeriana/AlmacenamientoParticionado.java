@@ -0,0 +1,289 @@
+package co.javeriana;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Almacenamiento repartido en `-Dparticiones` particiones (1 por defecto) por hash de
+ * `libroCodigo`. Cada partición es un par primaria/réplica completo ({@link ReplicaManager}):
+ * sus propios ficheros de libros y préstamos (y sus `.lock`), sus locks de franja, su
+ * registro de cambios, su hilo replicador y su detector de fallos. Dos operaciones de
+ * libros de particiones distintas no comparten nada, así que las escrituras escalan con el
+ * número de particiones en vez de serializarse en un único fichero.
+ *
+ * Enrutado: préstamos, disponibilidad y consultas por libro van a la partición del libro.
+ * Los préstamos nuevos llevan su partición en el identificador (`p<k>-<uuid>`), de modo que
+ * devoluciones y renovaciones, que solo traen `prestamoId`, van directas a ella; un
+ * identificador sin partición (anterior al particionado) se busca en todas, y solo una puede
+ * tenerlo. Las consultas sin libro se reparten entre todas las particiones.
+ *
+ * Disposición en disco: con una partición, la de siempre (`<base>/primaria`, `<base>/replica`).
+ * Con N > 1, `<base>/primaria/p<k>` y `<base>/replica/p<k>`; la primera vez se reparten en
+ * ellas los libros y préstamos que hubiera en `<base>/primaria` y `<base>/replica`, y se anota
+ * N en el fichero `particiones`. N queda fijo para ese directorio de datos: arrancar con otro
+ * valor es un error, porque los libros ya repartidos cambiarían de partición.
+ *
+ * Todos los procesos que compartan los datos (ActorPrestamo, ActorDevolucion,
+ * ActorRenovacion) deben arrancar con el mismo `-Dparticiones`: el hash de `String` es el
+ * mismo en cualquier JVM, así que todos enrutan igual.
+ */
+public final class AlmacenamientoParticionado implements Almacenamiento {
+    private static final Log LOG = Log.get("Particiones");
+    private static final String MARCA = "particiones";
+
+    /** Una partición: su gestor compuesto y su primaria. */
+    private static final class Particion {
+        final ReplicaManager rm;
+        final GestorAlmacenamiento primaria;
+
+        Particion(ReplicaManager rm, GestorAlmacenamiento primaria) {
+            this.rm = rm;
+            this.primaria = primaria;
+        }
+    }
+
+    private final Particion[] particiones;
+
+    private AlmacenamientoParticionado(Particion[] particiones) {
+        this.particiones = particiones;
+    }
+
+    /**
+     * Abre `-Dparticiones` particiones bajo `base` (`data` en los actores).
+     *
+     * @param nombre nombre del flujo de cambios del proceso (ver {@link ReplicaManager}); con
+     *               varias particiones, cada una usa `<nombre>-p<k>`
+     */
+    public static AlmacenamientoParticionado abrir(Path base, String nombre) {
+        int n = Math.max(1, Integer.getInteger("particiones", 1));
+        Path primarias = base.resolve("primaria");
+        Path replicas = base.resolve("replica");
+        if (n > 1) {
+            repartir(primarias, n);
+            repartir(replicas, n);
+            LOG.info(n + " particiones por libroCodigo en " + primarias + " y " + replicas);
+        }
+        Particion[] ps = new Particion[n];
+        for (int k = 0; k < n; k++) {
+            String sufijo = n == 1 ? "" : "-p" + k;
+            Path dirPrimaria = n == 1 ? primarias : primarias.resolve("p" + k);
+            Path dirReplica = n == 1 ? replicas : replicas.resolve("p" + k);
+            GestorAlmacenamiento primaria = new GestorAlmacenamiento(
+                    RepositoryFactory.libros(dirPrimaria.resolve("libros.db").toString()),
+                    RepositoryFactory.prestamos(dirPrimaria.resolve("prestamos.db").toString()), "primaria" + sufijo);
+            GestorAlmacenamiento replica = new GestorAlmacenamiento(
+                    RepositoryFactory.libros(dirReplica.resolve("libros.db").toString()),
+                    RepositoryFactory.prestamos(dirReplica.resolve("prestamos.db").toString()), "replica" + sufijo);
+            if (n > 1) {
+                // Ambos: tras un failover la réplica es quien crea los préstamos
+                primaria.setPrefijoId("p" + k + "-");
+                replica.setPrefijoId("p" + k + "-");
+            }
+            ps[k] = new Particion(new ReplicaManager(primaria, replica, dirPrimaria, dirReplica, nombre + sufijo), primaria);
+        }
+        return new AlmacenamientoParticionado(ps);
+    }
+
+    public int particiones() {
+        return particiones.length;
+    }
+
+    int particionDeLibro(String libroCodigo) {
+        return Math.floorMod(libroCodigo.hashCode(), particiones.length);
+    }
+
+    /** Partición codificada en el identificador (`p<k>-...`), o -1 si no lleva. */
+    int particionDePrestamo(String prestamoId) {
+        if (particiones.length == 1) return 0;
+        int guion = prestamoId.indexOf('-');
+        if (guion < 2 || prestamoId.charAt(0) != 'p') return -1;
+        int k = 0;
+        for (int i = 1; i < guion; i++) {
+            char c = prestamoId.charAt(i);
+            if (c < '0' || c > '9' || k > particiones.length) return -1;
+            k = k * 10 + (c - '0');
+        }
+        return k < particiones.length ? k : -1;
+    }
+
+    private Almacenamiento de(String libroCodigo) {
+        return particiones[particionDeLibro(libroCodigo)].rm.getActivo();
+    }
+
+    /** Precarga: da de alta el libro en la primaria de su partición (ver {@link GestorAlmacenamiento#altaLibro}). */
+    public boolean altaLibro(Libro libro) {
+        return particiones[particionDeLibro(libro.getCodigo())].primaria.altaLibro(libro);
+    }
+
+    /** Precarga: da de alta el préstamo en la primaria de la partición de su libro. */
+    public boolean altaPrestamo(Prestamo p) {
+        return particiones[particionDeLibro(p.getLibroCodigo())].primaria.altaPrestamo(p);
+    }
+
+    /** Simulación de fallo: cada primaria falla tras `n` operaciones propias. */
+    public void setFailAfter(int n) {
+        for (Particion p : particiones) p.primaria.setFailAfter(n);
+    }
+
+    /** Acción tras conmutar cualquier partición a su réplica. */
+    public void setAlConmutar(Runnable accion) {
+        for (Particion p : particiones) p.rm.setAlConmutar(accion);
+    }
+
+    /** Conmuta todas las particiones (evento Failover del sitio o fallo de ambas copias). */
+    public void conmutarAReplica() {
+        for (Particion p : particiones) p.rm.conmutarAReplica();
+    }
+
+    public void recuperarPrimaria() {
+        for (Particion p : particiones) p.rm.recuperarPrimaria();
+    }
+
+    /** Detiene los replicadores y cierra los registros de cambios de todas las particiones. */
+    public void shutdown() {
+        for (Particion p : particiones) p.rm.getActivo().shutdown();
+    }
+
+    @Override
+    public Prestamo otorgarPrestamo(String usuarioId, String libroCodigo, String fechaInicio, String fechaFin) {
+        return de(libroCodigo).otorgarPrestamo(usuarioId, libroCodigo, fechaInicio, fechaFin);
+    }
+
+    @Override
+    public boolean validarDisponibilidad(String libroCodigo) {
+        return de(libroCodigo).validarDisponibilidad(libroCodigo);
+    }
+
+    @Override
+    public boolean registrarDevolucion(String prestamoId) {
+        return enPrestamo(prestamoId, ga -> ga.registrarDevolucion(prestamoId));
+    }
+
+    @Override
+    public boolean registrarRenovacion(String prestamoId, String nuevaFecha) {
+        return enPrestamo(prestamoId, ga -> ga.registrarRenovacion(prestamoId, nuevaFecha));
+    }
+
+    private boolean enPrestamo(String prestamoId, Function<Almacenamiento, Boolean> op) {
+        int k = particionDePrestamo(prestamoId);
+        if (k >= 0) return op.apply(particiones[k].rm.getActivo());
+        // Sin partición en el id: las que no lo tienen responden false sin escribir nada
+        IllegalStateException fallo = null;
+        for (Particion p : particiones) {
+            try {
+                if (op.apply(p.rm.getActivo())) return true;
+            } catch (IllegalStateException ex) {
+                fallo = ex;
+            }
+        }
+        if (fallo != null) throw fallo;
+        return false;
+    }
+
+    @Override
+    public List<Prestamo> buscarPrestamos(String usuarioId, String libroCodigo, PrestamoEstado estado,
+                                          String venceAntes, int limite) {
+        if (libroCodigo != null) return de(libroCodigo).buscarPrestamos(usuarioId, libroCodigo, estado, venceAntes, limite);
+        if (particiones.length == 1) return particiones[0].rm.getActivo().buscarPrestamos(usuarioId, null, estado, venceAntes, limite);
+        List<Prestamo> r = new ArrayList<>();
+        for (Particion p : particiones) {
+            if (r.size() >= limite) break;
+            r.addAll(p.rm.getActivo().buscarPrestamos(usuarioId, null, estado, venceAntes, limite - r.size()));
+        }
+        return r;
+    }
+
+    /**
+     * Crea las particiones que falten en `dir` repartiendo los datos sin particionar que haya
+     * en él. Cada partición se escribe en un directorio temporal y se renombra: si otro
+     * proceso la creó antes, gana la suya y la copia propia se descarta.
+     */
+    private static void repartir(Path dir, int n) {
+        try {
+            Files.createDirectories(dir);
+            Path marca = dir.resolve(MARCA);
+            if (Files.exists(marca)) {
+                int previas = Integer.parseInt(Files.readString(marca, StandardCharsets.UTF_8).trim());
+                if (previas != n) {
+                    throw new IllegalStateException(dir + " está repartido en " + previas
+                            + " particiones; arranca con -Dparticiones=" + previas);
+                }
+                return;
+            }
+            boolean hayDatos;
+            try (Stream<Path> s = Files.list(dir)) {
+                hayDatos = s.map(p -> p.getFileName().toString())
+                        .anyMatch(f -> f.startsWith("libros.db") || f.startsWith("prestamos.db"));
+            }
+            LibroRepository libros = hayDatos ? RepositoryFactory.libros(dir.resolve("libros.db").toString()) : null;
+            PrestamoRepository prestamos = hayDatos ? RepositoryFactory.prestamos(dir.resolve("prestamos.db").toString()) : null;
+            for (int k = 0; k < n; k++) {
+                Path destino = dir.resolve("p" + k);
+                if (Files.exists(destino)) continue;
+                Path tmp = dir.resolve("p" + k + ".tmp-" + ProcessHandle.current().pid());
+                Files.createDirectories(tmp);
+                if (hayDatos) {
+                    final int particion = k;
+                    LibroRepository l = RepositoryFactory.libros(tmp.resolve("libros.db").toString());
+                    l.saveAll(filtrar(libros.findAll(), Libro::getCodigo, particion, n));
+                    PrestamoRepository p = RepositoryFactory.prestamos(tmp.resolve("prestamos.db").toString());
+                    p.saveAll(filtrar(prestamos.findAll(), Prestamo::getLibroCodigo, particion, n));
+                    cerrar(l);
+                    cerrar(p);
+                }
+                try {
+                    Files.move(tmp, destino, StandardCopyOption.ATOMIC_MOVE);
+                    LOG.info("Partición " + destino + " creada");
+                } catch (IOException ex) {
+                    // Otro proceso la creó antes (el error concreto depende del sistema de ficheros)
+                    borrar(tmp);
+                    if (!Files.isDirectory(destino)) throw ex;
+                }
+            }
+            cerrar(libros);
+            cerrar(prestamos);
+            try {
+                Files.writeString(marca, Integer.toString(n), StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW);
+            } catch (FileAlreadyExistsException ignored) {
+                // Otro proceso terminó a la vez
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("No se pudo repartir " + dir + " en " + n + " particiones", e);
+        }
+    }
+
+    private static <T> List<T> filtrar(Collection<T> todos, Function<T, String> libro, int particion, int n) {
+        List<T> r = new ArrayList<>();
+        for (T t : todos) {
+            if (Math.floorMod(libro.apply(t).hashCode(), n) == particion) r.add(t);
+        }
+        return r;
+    }
+
+    private static void cerrar(Object repo) {
+        if (!(repo instanceof AutoCloseable c)) return;
+        try {
+            c.close();
+        } catch (Exception e) {
+            LOG.warn("Error cerrando " + repo + ": " + e.getMessage());
+        }
+    }
+
+    private static void borrar(Path dir) throws IOException {
+        try (Stream<Path> s = Files.walk(dir)) {
+            for (Path p : s.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(p);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package co.javeriana;
+
+/**
+ * Cambio de estado producido por una operación de {@link GestorAlmacenamiento}: la imagen
+ * posterior de una fila (un libro o un préstamo) tal como quedó escrita, con el préstamo
+ * conservando su id. Exactamente uno de `libro` y `prestamo` no es null.
+ *
+ * Aplicar un cambio es escribir la fila tal cual, así que es idempotente y no repite la
+ * lógica de negocio (ni genera otro UUID). `seq` ordena el flujo de cambios de una primaria
+ * (0 mientras no se ha publicado); `op` es la operación que lo originó y solo se usa para
+ * métricas y trazas.
+ */
+public record Cambio(long seq, String op, Libro libro, Prestamo prestamo) {
+
+    /** Cambio sin secuencia con una copia del libro (el llamador puede seguir modificándolo). */
+    static Cambio de(String op, Libro l) {
+        return new Cambio(0, op, copia(l), null);
+    }
+
+    /** Cambio sin secuencia con una copia del préstamo. */
+    static Cambio de(String op, Prestamo p) {
+        return new Cambio(0, op, null, copia(p));
+    }
+
+    Cambio conSeq(long seq) {
+        return new Cambio(seq, op, libro, prestamo);
+    }
+
+    /** Libro al que afecta el cambio (el propio, o el del préstamo). */
+    String libroCodigo() {
+        return libro != null ? libro.getCodigo() : prestamo.getLibroCodigo();
+    }
+
+    static Libro copia(Libro l) {
+        return new Libro(l.getCodigo(), l.getTitulo(), l.getAutor(), l.getEjemplaresDisponibles());
+    }
+
+    static Prestamo copia(Prestamo p) {
+        return new Prestamo(p.getId(), p.getUsuarioId(), p.getLibroCodigo(), p.getFechaInicio(), p.getFechaFin(),
+                p.getRenovaciones(), p.getEstado());
+    }
+}
@@ -0,0 +1,315 @@
+package co.javeriana;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pipeline de commit compartido por los repositorios con log (ver {@link WalStore}).
+ *
+ * Los escritores encolan registros sobre canales que permanecen abiertos; un único hilo
+ * escritor toma todo lo pendiente en ese momento (un "grupo"), lo escribe y aplica la
+ * política de sincronización configurada con `-DfsyncPolicy`:
+ * - `none` (por defecto, como antes de existir el pipeline): se confirma en cuanto el
+ *   registro está en la caché del sistema operativo.
+ * - `always`: un `force` por grupo antes de confirmar.
+ * - `interval`: un `force` cada `-DfsyncIntervalMs` (10 ms por defecto); los registros
+ *   escritos entre dos sincronizaciones se confirman juntos tras la siguiente.
+ *
+ * {@link #commit} solo retorna cuando el grupo del registro es durable según la política,
+ * de modo que una operación de `GestorAlmacenamiento` que escribe a través del pipeline no
+ * termina antes de que sus cambios lo sean.
+ */
+public final class CommitPipeline {
+    private static final Log LOG = Log.get("CommitPipeline");
+
+    public enum SyncPolicy {
+        NONE, ALWAYS, INTERVAL;
+
+        /** Sin `-DfsyncPolicy` (o con un valor desconocido) no se sincroniza, como en el modo `file` original. */
+        public static SyncPolicy parse(String s) {
+            if (s == null) return NONE;
+            switch (s.trim().toLowerCase()) {
+                case "always": return ALWAYS;
+                case "interval": return INTERVAL;
+                default: return NONE;
+            }
+        }
+    }
+
+    private static final class Request {
+        final FileChannel channel;
+        final ByteBuffer data;   // null = barrera: sincroniza el canal y confirma lo anterior
+        final long enqueuedNanos = System.nanoTime();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Request(FileChannel channel, ByteBuffer data) {
+            this.channel = channel;
+            this.data = data;
+        }
+    }
+
+    private static volatile CommitPipeline shared;
+
+    private final SyncPolicy policy;
+    private final long intervalNanos;
+    private final int maxBatch;
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    // Encolar y cerrar se excluyen: nada entra en la cola después de que el escritor pueda salir
+    private final Object cierre = new Object();
+    private volatile boolean running = true;
+
+    // Estadísticas
+    private final long startNanos = System.nanoTime();
+    private final LongAdder groups = new LongAdder();
+    private final LongAdder records = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private final AtomicLong maxGroupSize = new AtomicLong();
+
+    public CommitPipeline(SyncPolicy policy, long intervalMs) {
+        this.policy = policy;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, intervalMs));
+        this.maxBatch = Integer.getInteger("commitMaxBatch", 4096);
+        this.writer = new Thread(this::writerLoop, "commit-pipeline-" + policy.name().toLowerCase());
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /** Pipeline del proceso, configurado con `-DfsyncPolicy` y `-DfsyncIntervalMs`. */
+    public static CommitPipeline shared() {
+        CommitPipeline p = shared;
+        if (p == null) {
+            synchronized (CommitPipeline.class) {
+                p = shared;
+                if (p == null) {
+                    p = new CommitPipeline(SyncPolicy.parse(System.getProperty("fsyncPolicy")),
+                            Long.getLong("fsyncIntervalMs", 10L));
+                    shared = p;
+                    if (Boolean.getBoolean("commitStats")) {
+                        final CommitPipeline fp = p;
+                        Runtime.getRuntime().addShutdownHook(new Thread(() -> LOG.info(fp.report())));
+                    }
+                }
+            }
+        }
+        return p;
+    }
+
+    public SyncPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Encola un registro para el canal dado; el futuro se completa cuando es durable, o con
+     * error si el pipeline está cerrado.
+     */
+    public CompletableFuture<Void> submit(FileChannel channel, byte[] data) {
+        return encolar(new Request(channel, ByteBuffer.wrap(data)));
+    }
+
+    private CompletableFuture<Void> encolar(Request r) {
+        synchronized (cierre) {
+            if (running) {
+                queue.add(r);
+                return r.done;
+            }
+        }
+        r.done.completeExceptionally(new IOException("CommitPipeline cerrado"));
+        return r.done;
+    }
+
+    /** Escribe el registro y espera a que su grupo sea durable. */
+    public void commit(FileChannel channel, byte[] data) throws IOException {
+        await(submit(channel, data));
+    }
+
+    /**
+     * Espera a que todo lo encolado hasta ahora para el canal esté escrito y, salvo con
+     * política `none`, sincronizado. Se usa antes de cerrar o rotar un canal. Falla si el
+     * pipeline ya está cerrado.
+     */
+    public void flush(FileChannel channel) throws IOException {
+        await(encolar(new Request(channel, null)));
+    }
+
+    /**
+     * Sincroniza la entrada de directorio de `dir`, para que un rename recién hecho sobreviva
+     * a una caída. Donde el sistema no permite abrir directorios (Windows) no hace nada.
+     */
+    static void forceDirectory(java.nio.file.Path dir) throws IOException {
+        if (dir == null) return;
+        try (FileChannel ch = FileChannel.open(dir, java.nio.file.StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (java.nio.file.AccessDeniedException | UnsupportedOperationException e) {
+            // Sin soporte para sincronizar directorios
+        }
+    }
+
+    static void await(CompletableFuture<Void> f) throws IOException {
+        try {
+            f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrumpido esperando commit", e);
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof IOException) throw (IOException) c;
+            throw new IOException(c);
+        }
+    }
+
+    private void writerLoop() {
+        List<Request> batch = new ArrayList<>();
+        List<Request> awaitingSync = new ArrayList<>();
+        try {
+            writeGroups(batch, awaitingSync);
+        } finally {
+            // También si el escritor muere por un error inesperado: nadie puede quedar esperando
+            synchronized (cierre) {
+                running = false;
+            }
+            List<Request> restantes = new ArrayList<>(batch);
+            restantes.addAll(awaitingSync);
+            queue.drainTo(restantes);
+            IOException cerrado = new IOException("CommitPipeline cerrado");
+            for (Request r : restantes) r.done.completeExceptionally(cerrado);
+        }
+    }
+
+    private void writeGroups(List<Request> batch, List<Request> awaitingSync) {
+        Set<FileChannel> dirty = Collections.newSetFromMap(new IdentityHashMap<>());
+        long lastSync = System.nanoTime();
+
+        while (running || !queue.isEmpty()) {
+            try {
+                long waitNanos = policy == SyncPolicy.INTERVAL && !awaitingSync.isEmpty()
+                        ? Math.max(0, intervalNanos - (System.nanoTime() - lastSync))
+                        : TimeUnit.MILLISECONDS.toNanos(200);
+                Request first = queue.poll(waitNanos, TimeUnit.NANOSECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, maxBatch - 1);
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+
+            boolean barrier = false;
+            List<Request> written = new ArrayList<>(batch.size());
+            for (Request r : batch) {
+                if (r.data == null) {
+                    barrier = true;
+                    written.add(r);
+                    continue;
+                }
+                try {
+                    int n = r.data.remaining();
+                    while (r.data.hasRemaining()) r.channel.write(r.data);
+                    bytes.add(n);
+                    dirty.add(r.channel);
+                    written.add(r);
+                } catch (IOException e) {
+                    r.done.completeExceptionally(e);
+                }
+            }
+            if (!batch.isEmpty()) {
+                groups.increment();
+                maxGroupSize.accumulateAndGet(batch.size(), Math::max);
+            }
+            batch.clear();
+
+            switch (policy) {
+                case NONE:
+                    dirty.clear();
+                    complete(written);
+                    break;
+                case ALWAYS:
+                    complete(sync(dirty, written));
+                    break;
+                case INTERVAL:
+                    awaitingSync.addAll(written);
+                    if (!awaitingSync.isEmpty() && (barrier || !running || System.nanoTime() - lastSync >= intervalNanos)) {
+                        complete(sync(dirty, awaitingSync));
+                        awaitingSync.clear();
+                        lastSync = System.nanoTime();
+                    }
+                    break;
+            }
+        }
+    }
+
+    /** Sincroniza los canales sucios; devuelve las peticiones cuyo canal se sincronizó bien. */
+    private List<Request> sync(Set<FileChannel> dirty, List<Request> pending) {
+        Set<FileChannel> failed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (FileChannel ch : dirty) {
+            try {
+                ch.force(false);
+                syncs.increment();
+            } catch (IOException e) {
+                failed.add(ch);
+                for (Request r : pending) if (r.channel == ch) r.done.completeExceptionally(e);
+            }
+        }
+        dirty.clear();
+        if (failed.isEmpty()) return pending;
+        List<Request> ok = new ArrayList<>(pending.size());
+        for (Request r : pending) if (!failed.contains(r.channel)) ok.add(r);
+        return ok;
+    }
+
+    private void complete(List<Request> reqs) {
+        long now = System.nanoTime();
+        for (Request r : reqs) {
+            if (r.data != null) {
+                long lat = now - r.enqueuedNanos;
+                records.increment();
+                latencyNanos.add(lat);
+                maxLatencyNanos.accumulateAndGet(lat, Math::max);
+            }
+            r.done.complete(null);
+        }
+    }
+
+    /** Resumen de throughput, latencia de commit y tamaño de grupo para la política activa. */
+    public String report() {
+        long recs = records.sum();
+        long grps = Math.max(1, groups.sum());
+        double secs = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+        return String.format("policy=%s registros=%d grupos=%d loteMedio=%.1f loteMax=%d syncs=%d "
+                        + "throughput=%.0f reg/s latenciaMedia=%.1f us latenciaMax=%.1f us bytes=%d",
+                policy, recs, groups.sum(), (double) recs / grps, maxGroupSize.get(), syncs.sum(),
+                recs / secs, recs == 0 ? 0.0 : latencyNanos.sum() / 1e3 / recs, maxLatencyNanos.get() / 1e3, bytes.sum());
+    }
+
+    public long getRecords() { return records.sum(); }
+    public long getGroups() { return groups.sum(); }
+    public long getSyncs() { return syncs.sum(); }
+
+    /** Detiene el hilo escritor tras vaciar lo pendiente; lo encolado después falla. */
+    public void close() {
+        synchronized (cierre) {
+            running = false;
+        }
+        writer.interrupt();
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
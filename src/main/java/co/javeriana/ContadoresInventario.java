@@ -0,0 +1,60 @@
+package co.javeriana;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Tabla de contadores de ejemplares disponibles, uno por libro, actualizados con CAS.
+ *
+ * Cada contador se inicializa bajo demanda desde el repositorio (la primera lectura de ese
+ * libro) y a partir de ahí es la fuente de verdad del inventario en memoria: reservar un
+ * ejemplar es un decremento condicional que nunca baja de cero, sin locks. Persistir el
+ * nuevo valor es responsabilidad del llamador y ocurre después de la reserva.
+ */
+public final class ContadoresInventario {
+    private final ConcurrentHashMap<String, AtomicInteger> contadores = new ConcurrentHashMap<>();
+    private final Function<String, Libro> cargar;
+
+    public ContadoresInventario(Function<String, Libro> cargar) {
+        this.cargar = cargar;
+    }
+
+    /** Contador del libro, o null si el libro no existe. */
+    private AtomicInteger contador(String codigo) {
+        AtomicInteger c = contadores.get(codigo);
+        if (c != null) return c;
+        Libro l = cargar.apply(codigo);
+        if (l == null) return null;
+        return contadores.computeIfAbsent(codigo, k -> new AtomicInteger(l.getEjemplaresDisponibles()));
+    }
+
+    /** Ejemplares disponibles, o -1 si el libro no existe. */
+    public int disponibles(String codigo) {
+        AtomicInteger c = contador(codigo);
+        return c == null ? -1 : c.get();
+    }
+
+    /** Reserva un ejemplar si queda alguno; false si no hay disponibilidad o no existe el libro. */
+    public boolean reservar(String codigo) {
+        AtomicInteger c = contador(codigo);
+        if (c == null) return false;
+        int v;
+        do {
+            v = c.get();
+            if (v <= 0) return false;
+        } while (!c.compareAndSet(v, v - 1));
+        return true;
+    }
+
+    /** Fija el valor del contador (al aplicar un cambio replicado, ver {@link Cambio}). */
+    public void fijar(String codigo, int valor) {
+        contadores.computeIfAbsent(codigo, k -> new AtomicInteger()).set(valor);
+    }
+
+    /** Devuelve un ejemplar (devolución o reserva anulada). No hace nada si el libro no existe. */
+    public void liberar(String codigo) {
+        AtomicInteger c = contador(codigo);
+        if (c != null) c.incrementAndGet();
+    }
+}
@@ -1,96 +1,524 @@
 package co.javeriana;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 /**
- * Cola persistente muy simple: cada elemento es una línea en el fichero.
- * - enqueue escribe (append) de forma sincronizada.
- * - processAll aplica un procesador a cada elemento; si el procesador devuelve
- *   true, el elemento se elimina de la cola en disco (se reescribe el fichero).
+ * Cola persistente basada en un log segmentado, con visibilidad programada para reintentos.
+ *
+ * Para una cola `data/gc/pending_prestamos.db` los datos viven en el directorio
+ * `data/gc/pending_prestamos.db.segments/`:
+ * - `<seq base>.seg`: segmentos append-only, un elemento por línea. Se abre uno nuevo al
+ *   superar `-DqueueSegmentBytes` (1 MB por defecto); el primer elemento de cada segmento
+ *   tiene el número de secuencia que da nombre al fichero. Los elementos reintentados llevan
+ *   la cabecera `#a=<intentos>;nb=<epoch ms>` seguida de un tabulador.
+ * - `consumer.offset`: checkpoint del consumidor (segmento, offset en bytes y secuencia del
+ *   primer elemento pendiente; todo lo anterior está confirmado).
+ * - `acks.log`: secuencias confirmadas fuera de orden por encima del checkpoint.
+ * - `dead.seg`: elementos que agotaron `-DretryMaxAttempts` intentos (dead-letter).
+ *
+ * - enqueue añade una línea al segmento de cola a través del {@link CommitPipeline}: O(1).
+ * - Los pendientes se indexan en memoria por secuencia y por instante de próxima visibilidad,
+ *   así que {@link #pollDue} solo toca los elementos cuyo backoff ya expiró.
+ * - {@link #nack} reprograma con backoff exponencial con jitter (`-DretryBaseMs`,
+ *   `-DretryMaxMs`) volviendo a añadir el elemento al final con su contador de intentos.
+ * - Las escrituras se encolan en el pipeline con el monitor tomado y se esperan después de
+ *   soltarlo; las confirmaciones de una pasada de {@link #processDue} van juntas a `acks.log`.
+ * - Los segmentos completamente confirmados se borran al hacer checkpoint (cada 1024
+ *   confirmaciones y al terminar {@link #processAll}).
+ *
+ * Si existe el fichero plano de versiones anteriores, su contenido se importa al abrir.
  */
 public class DurableQueue {
-    private final Path file;
+    private static final Log LOG = Log.get("DurableQueue");
+
+    private static final String SEG_SUFFIX = ".seg";
+    private static final String HDR_PREFIX = "#a=";
+    private static final int ACKS_PER_CHECKPOINT = 1024;
+
+    /**
+     * Elemento pendiente. Lo devuelve {@link #pollDue} y se confirma con ack o nack; un segundo
+     * ack o nack del mismo elemento no tiene efecto (ya no está en pendientes).
+     */
+    public static final class Item {
+        private final long seq;
+        private final String payload;
+        private final int attempts;
+        private final long notBefore;
+        private final long segBase;
+        private final long offset;
+
+        Item(long seq, String payload, int attempts, long notBefore, long segBase, long offset) {
+            this.seq = seq;
+            this.payload = payload;
+            this.attempts = attempts;
+            this.notBefore = notBefore;
+            this.segBase = segBase;
+            this.offset = offset;
+        }
+
+        public long getSeq() { return seq; }
+        public String getPayload() { return payload; }
+        public int getAttempts() { return attempts; }
+        public long getNotBefore() { return notBefore; }
+    }
+
+    private final Path dir;
+    private final Path checkpoint;
+    private final Path acksPath;
+    private final long segmentBytes;
+    private final long retryBaseMs;
+    private final long retryMaxMs;
+    private final int maxAttempts;
+    private final CommitPipeline pipeline = CommitPipeline.shared();
+    private final TreeSet<Long> segments = new TreeSet<>();
+
+    // Escritura (cola)
+    private long tailBase;
+    private FileChannel tailChannel;
+    private long tailBytes;
+    private long nextSeq;
+
+    // Pendientes: por secuencia (orden FIFO) y por visibilidad (pollDue)
+    private final TreeMap<Long, Item> pending = new TreeMap<>();
+    private final PriorityQueue<Item> byVisibility = new PriorityQueue<>((a, b) ->
+            a.notBefore != b.notBefore ? Long.compare(a.notBefore, b.notBefore) : Long.compare(a.seq, b.seq));
+    private final TreeSet<Long> ackedAboveHead = new TreeSet<>();
+    private FileChannel acksChannel;
+    private int acksSinceCheckpoint = 0;
+    private FileChannel deadChannel;
+    private final Histograma drenaje;
 
     public DurableQueue(String filePath) {
-        this.file = Path.of(filePath);
+        Path legacy = Path.of(filePath);
+        String etiqueta = "cola=\"" + legacy.toString().replace('\\', '/') + "\"";
+        this.drenaje = Metricas.histograma("biblioteca_cola_drenaje_segundos", etiqueta);
+        Metricas.gauge("biblioteca_cola_profundidad", etiqueta, this::size);
+        this.dir = Path.of(filePath + ".segments");
+        this.checkpoint = dir.resolve("consumer.offset");
+        this.acksPath = dir.resolve("acks.log");
+        this.segmentBytes = Long.getLong("queueSegmentBytes", 1024L * 1024L);
+        this.retryBaseMs = Long.getLong("retryBaseMs", 1000L);
+        this.retryMaxMs = Long.getLong("retryMaxMs", 60_000L);
+        this.maxAttempts = Integer.getInteger("retryMaxAttempts", 10);
         try {
-            if (file.getParent() != null) Files.createDirectories(file.getParent());
-            if (!Files.exists(file)) Files.createFile(file);
+            Files.createDirectories(dir);
+            try (Stream<Path> files = Files.list(dir)) {
+                files.map(p -> p.getFileName().toString())
+                        .filter(n -> n.endsWith(SEG_SUFFIX) && !n.equals("dead" + SEG_SUFFIX))
+                        .forEach(n -> segments.add(Long.parseLong(n.substring(0, n.length() - SEG_SUFFIX.length()))));
+            }
+            if (segments.isEmpty()) segments.add(0L);
+            openTail(segments.last());
+            load();
+            acksChannel = FileChannel.open(acksPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            deadChannel = FileChannel.open(dir.resolve("dead" + SEG_SUFFIX), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            importLegacy(legacy);
         } catch (IOException e) {
-            System.err.println("[DurableQueue] No se pudo inicializar cola en " + filePath + ": " + e.getMessage());
+            LOG.error("No se pudo inicializar cola en " + filePath + ": " + e.getMessage());
         }
     }
 
-    public synchronized void enqueue(String item) {
-        try (Writer w = new OutputStreamWriter(new FileOutputStream(file.toFile(), true), StandardCharsets.UTF_8)) {
-            w.write(item.replaceAll("\r?\n", " ") + System.lineSeparator());
-            w.flush();
-        } catch (IOException e) {
-            System.err.println("[DurableQueue] Error en enqueue: " + e.getMessage());
+    private Path segmentPath(long base) {
+        return dir.resolve(String.format("%020d%s", base, SEG_SUFFIX));
+    }
+
+    /** Abre el segmento de cola, descarta una última línea incompleta y calcula la siguiente secuencia. */
+    private void openTail(long base) throws IOException {
+        Path p = segmentPath(base);
+        tailChannel = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long lines = 0, lastNl = -1, pos = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(p))) {
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    lines++;
+                    lastNl = pos;
+                }
+                pos++;
+            }
+        }
+        if (lastNl + 1 != pos) tailChannel.truncate(lastNl + 1);
+        tailChannel.position(lastNl + 1);
+        tailBase = base;
+        tailBytes = lastNl + 1;
+        nextSeq = base + lines;
+    }
+
+    /** Reconstruye el índice en memoria a partir del checkpoint, acks.log y los segmentos. */
+    private void load() throws IOException {
+        long headBase = segments.first(), headOffset = 0, headSeq = headBase;
+        if (Files.exists(checkpoint)) {
+            String[] parts = Files.readString(checkpoint, StandardCharsets.UTF_8).trim().split("\\s+");
+            if (parts.length == 3 && segments.contains(Long.parseLong(parts[0]))) {
+                headBase = Long.parseLong(parts[0]);
+                headOffset = Long.parseLong(parts[1]);
+                headSeq = Long.parseLong(parts[2]);
+            }
+        }
+        if (Files.exists(acksPath)) {
+            for (String l : Files.readAllLines(acksPath, StandardCharsets.UTF_8)) {
+                l = l.trim();
+                if (l.isEmpty()) continue;
+                try {
+                    long s = Long.parseLong(l);
+                    if (s >= headSeq) ackedAboveHead.add(s);
+                } catch (NumberFormatException ignored) {
+                    // escritura final truncada
+                }
+            }
+        }
+
+        long seq = headSeq;
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        for (Long base : segments.tailSet(headBase, true)) {
+            long offset = base == headBase ? headOffset : 0;
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(segmentPath(base)), 64 * 1024)) {
+                long toSkip = offset;
+                while (toSkip > 0) {
+                    long s = in.skip(toSkip);
+                    if (s <= 0) break;
+                    toSkip -= s;
+                }
+                int c;
+                while (true) {
+                    line.reset();
+                    while ((c = in.read()) != -1 && c != '\n') line.write(c);
+                    if (c == -1) break;
+                    if (!ackedAboveHead.remove(seq)) {
+                        index(parse(seq, line.toString(StandardCharsets.UTF_8), base, offset));
+                    }
+                    offset += line.size() + 1;
+                    seq++;
+                }
+            }
+        }
+    }
+
+    private static Item parse(long seq, String line, long segBase, long offset) {
+        if (line.startsWith(HDR_PREFIX)) {
+            int tab = line.indexOf('\t');
+            int semi = line.indexOf(";nb=");
+            if (tab > 0 && semi > 0 && semi < tab) {
+                try {
+                    int attempts = Integer.parseInt(line.substring(HDR_PREFIX.length(), semi));
+                    long nb = Long.parseLong(line.substring(semi + 4, tab));
+                    return new Item(seq, line.substring(tab + 1), attempts, nb, segBase, offset);
+                } catch (NumberFormatException ignored) {
+                    // no es una cabecera: se trata como carga normal
+                }
+            }
+        }
+        return new Item(seq, line, 0, 0L, segBase, offset);
+    }
+
+    private void index(Item it) {
+        pending.put(it.seq, it);
+        byVisibility.add(it);
+    }
+
+    private void importLegacy(Path legacy) throws IOException {
+        if (!Files.isRegularFile(legacy)) return;
+        List<String> lines = Files.readAllLines(legacy, StandardCharsets.UTF_8);
+        int n = 0;
+        for (String l : lines) {
+            if (l != null && !l.trim().isEmpty()) {
+                append(l.trim(), 0, 0L);
+                n++;
+            }
+        }
+        Files.delete(legacy);
+        if (n > 0) LOG.info("Importados " + n + " elementos desde " + legacy);
+    }
+
+    /**
+     * Añade el elemento y retorna cuando es durable. La línea se encola en el pipeline bajo el
+     * monitor, para que el orden del segmento coincida con el de las secuencias, pero la espera
+     * se hace fuera: los enqueue concurrentes comparten grupo y no bloquean a los consumidores.
+     */
+    public void enqueue(String item) {
+        if (item == null || item.isEmpty()) return;
+        CompletableFuture<Void> durable;
+        synchronized (this) {
+            try {
+                durable = append(item, 0, 0L);
+            } catch (IOException e) {
+                LOG.error("Error en enqueue: " + e.getMessage());
+                return;
+            }
+        }
+        esperar(List.of(durable));
+    }
+
+    /** Con el monitor tomado: indexa el elemento y encola su línea; devuelve la espera de durabilidad. */
+    private CompletableFuture<Void> append(String item, int attempts, long notBefore) throws IOException {
+        if (tailBytes >= segmentBytes) roll();
+        String clean = sanitize(item);
+        String line = attempts > 0 || notBefore > 0 ? HDR_PREFIX + attempts + ";nb=" + notBefore + "\t" + clean : clean;
+        byte[] rec = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        CompletableFuture<Void> durable = pipeline.submit(tailChannel, rec);
+        index(new Item(nextSeq, clean, attempts, notBefore, tailBase, tailBytes));
+        tailBytes += rec.length;
+        nextSeq++;
+        return durable;
+    }
+
+    /** Escrituras encoladas bajo el monitor; se esperan después de soltarlo. */
+    private static void esperar(List<CompletableFuture<Void>> escrituras) {
+        for (CompletableFuture<Void> f : escrituras) {
+            try {
+                CommitPipeline.await(f);
+            } catch (IOException e) {
+                LOG.error("Error escribiendo en la cola: " + e.getMessage());
+            }
         }
     }
 
+    /** El cambio de segmento (uno por `-DqueueSegmentBytes`) sí espera bajo el monitor. */
+    private void roll() throws IOException {
+        pipeline.flush(tailChannel);
+        tailChannel.close();
+        segments.add(nextSeq);
+        openTail(nextSeq);
+    }
+
+    private static String sanitize(String item) {
+        if (item.indexOf('\n') < 0 && item.indexOf('\r') < 0) return item;
+        StringBuilder sb = new StringBuilder(item.length());
+        for (int i = 0; i < item.length(); i++) {
+            char c = item.charAt(i);
+            if (c == '\r') continue;
+            sb.append(c == '\n' ? ' ' : c);
+        }
+        return sb.toString();
+    }
+
+    /** Número de elementos pendientes (incluye los reprogramados y los entregados sin confirmar). */
+    public synchronized long size() {
+        return pending.size();
+    }
+
     public synchronized List<String> snapshot() {
+        List<String> items = new ArrayList<>(pending.size());
+        for (Item it : pending.values()) items.add(it.payload);
+        return items;
+    }
+
+    /**
+     * Devuelve hasta `limit` elementos cuyo instante de visibilidad ya pasó, en orden de
+     * visibilidad. Quedan invisibles para siguientes pollDue hasta que se llame a
+     * {@link #ack} o {@link #nack}; tras un reinicio vuelven a estar pendientes.
+     */
+    public synchronized List<Item> pollDue(int limit) {
+        long now = System.currentTimeMillis();
+        List<Item> due = new ArrayList<>(Math.min(limit, 64));
+        while (due.size() < limit) {
+            Item it = byVisibility.peek();
+            if (it == null || it.notBefore > now) break;
+            byVisibility.poll();
+            if (pending.get(it.seq) != it) continue; // ya confirmado
+            due.add(it);
+        }
+        return due;
+    }
+
+    /** Confirma el elemento: deja de estar pendiente. Retorna cuando el ack es durable. */
+    public void ack(Item it) {
+        List<CompletableFuture<Void>> escrituras = new ArrayList<>(1);
+        synchronized (this) {
+            StringBuilder acks = new StringBuilder();
+            if (!confirmar(it, acks)) return;
+            cerrarLote(acks, escrituras);
+        }
+        esperar(escrituras);
+    }
+
+    /**
+     * Intento fallido: reprograma el elemento con backoff exponencial con jitter o, si agotó
+     * los intentos, lo mueve a la dead-letter.
+     */
+    public void nack(Item it) {
+        List<CompletableFuture<Void>> escrituras = new ArrayList<>(2);
+        synchronized (this) {
+            StringBuilder acks = new StringBuilder();
+            reprogramar(it, acks, escrituras);
+            cerrarLote(acks, escrituras);
+        }
+        esperar(escrituras);
+    }
+
+    /** Con el monitor tomado: saca el elemento de pendientes y anota su secuencia en `acks`. */
+    private boolean confirmar(Item it, StringBuilder acks) {
+        if (pending.remove(it.seq) == null) return false;
+        ackedAboveHead.add(it.seq);
+        acks.append(it.seq).append('\n');
+        acksSinceCheckpoint++;
+        return true;
+    }
+
+    /** Con el monitor tomado: vuelve a añadir el elemento al final (o a la dead-letter) y lo confirma. */
+    private void reprogramar(Item it, StringBuilder acks, List<CompletableFuture<Void>> escrituras) {
+        if (pending.get(it.seq) != it) return;
+        int attempts = it.attempts + 1;
         try {
-            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
-            List<String> cleaned = new ArrayList<>();
-            for (String l : lines) if (l != null && !l.trim().isEmpty()) cleaned.add(l.trim());
-            return cleaned;
+            if (attempts >= maxAttempts) {
+                String rec = HDR_PREFIX + attempts + ";nb=" + System.currentTimeMillis() + "\t" + it.payload + "\n";
+                escrituras.add(pipeline.submit(deadChannel, rec.getBytes(StandardCharsets.UTF_8)));
+                LOG.warn("Elemento movido a dead-letter tras " + attempts + " intentos: " + it.payload);
+            } else {
+                escrituras.add(append(it.payload, attempts, System.currentTimeMillis() + backoffMs(attempts)));
+            }
         } catch (IOException e) {
-            System.err.println("[DurableQueue] Error leyendo snapshot: " + e.getMessage());
-            return new ArrayList<>();
+            LOG.warn("Error reprogramando elemento: " + e.getMessage());
+            byVisibility.add(it);
+            return;
         }
+        confirmar(it, acks);
     }
 
     /**
-     * Procesa todos los elementos actuales aplicando el processor. Si devuelve true,
-     * el elemento se elimina de la cola. Al final reescribe el fichero con los
-     * elementos restantes de forma atómica.
+     * Con el monitor tomado: encola en `acks.log` las confirmaciones del lote en una sola
+     * escritura y, cada {@value #ACKS_PER_CHECKPOINT}, hace checkpoint.
      */
-    public synchronized void processAll(java.util.function.Function<String, Boolean> processor) {
-        List<String> items = snapshot();
-        if (items.isEmpty()) return;
+    private void cerrarLote(StringBuilder acks, List<CompletableFuture<Void>> escrituras) {
+        if (acks.length() > 0) {
+            escrituras.add(pipeline.submit(acksChannel, acks.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+        if (acksSinceCheckpoint >= ACKS_PER_CHECKPOINT) checkpoint();
+    }
 
-        List<String> remaining = new ArrayList<>();
-        for (String it : items) {
-            boolean ok = false;
-            try {
-                ok = Boolean.TRUE.equals(processor.apply(it));
-            } catch (Exception ex) {
-                System.err.println("[DurableQueue] Processor raised: " + ex.getMessage());
-                ok = false;
+    /** Backoff exponencial con "equal jitter": la mitad fija y la otra mitad aleatoria. */
+    long backoffMs(int attempts) {
+        long d = retryMaxMs;
+        if (attempts < 31) d = Math.min(retryMaxMs, retryBaseMs << (attempts - 1));
+        long half = Math.max(1, d / 2);
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    /**
+     * Entrega los elementos vencidos al processor: true confirma, false reprograma con
+     * backoff. Las confirmaciones de la pasada van a `acks.log` en una sola escritura, que se
+     * espera ya fuera del monitor. Devuelve cuántos se procesaron.
+     */
+    public int processDue(int limit, Function<String, Boolean> processor) {
+        long t0 = System.nanoTime();
+        List<CompletableFuture<Void>> escrituras = new ArrayList<>();
+        int n;
+        synchronized (this) {
+            List<Item> due = pollDue(limit);
+            n = due.size();
+            if (n == 0) return 0;
+            StringBuilder acks = new StringBuilder(n * 8);
+            for (Item it : due) {
+                if (apply(processor, it.payload)) confirmar(it, acks);
+                else reprogramar(it, acks, escrituras);
+            }
+            cerrarLote(acks, escrituras);
+        }
+        esperar(escrituras);
+        drenaje.registrarDesde(t0);
+        return n;
+    }
+
+    /**
+     * Procesa todos los elementos pendientes en orden de llegada, sin mirar su visibilidad.
+     * Si el processor devuelve true el elemento se consume; si no, se reprograma (ver
+     * {@link #nack}).
+     */
+    public void processAll(Function<String, Boolean> processor) {
+        long t0 = System.nanoTime();
+        List<CompletableFuture<Void>> escrituras = new ArrayList<>();
+        synchronized (this) {
+            if (pending.isEmpty()) return;
+            StringBuilder acks = new StringBuilder();
+            // Se recorre desde la cabeza por secuencia; lo que nack reañade al final queda fuera
+            long fin = nextSeq;
+            for (Map.Entry<Long, Item> e = pending.firstEntry(); e != null && e.getKey() < fin; e = pending.higherEntry(e.getKey())) {
+                Item it = e.getValue();
+                if (apply(processor, it.payload)) confirmar(it, acks);
+                else reprogramar(it, acks, escrituras);
             }
-            if (!ok) remaining.add(it);
+            cerrarLote(acks, escrituras);
+            checkpoint();
         }
+        esperar(escrituras);
+        drenaje.registrarDesde(t0);
+    }
 
-        // rewrite file atomically
+    private static boolean apply(Function<String, Boolean> processor, String item) {
         try {
-            Path tmp = file.resolveSibling(file.getFileName().toString() + ".tmp");
-            try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp.toFile()), StandardCharsets.UTF_8)) {
-                for (String r : remaining) {
-                    w.write(r + System.lineSeparator());
-                }
-                w.flush();
+            return Boolean.TRUE.equals(processor.apply(item));
+        } catch (Exception ex) {
+            LOG.warn("Processor raised: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /** Elementos en la dead-letter (para inspección o reinyección manual). */
+    public synchronized List<String> deadLetters() {
+        List<String> out = new ArrayList<>();
+        try {
+            for (String l : Files.readAllLines(dir.resolve("dead" + SEG_SUFFIX), StandardCharsets.UTF_8)) {
+                if (!l.isEmpty()) out.add(parse(0, l, 0, 0).payload);
             }
-            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
-        } catch (Exception e) {
-            try {
-                // fallback non-atomic
-                Path tmp = file.resolveSibling(file.getFileName().toString() + ".tmp");
-                try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp.toFile()), StandardCharsets.UTF_8)) {
-                    for (String r : remaining) w.write(r + System.lineSeparator());
-                    w.flush();
-                }
-                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
-            } catch (Exception ex) {
-                System.err.println("[DurableQueue] Error reescribiendo cola: " + ex.getMessage());
+        } catch (IOException e) {
+            LOG.warn("Error leyendo dead-letter: " + e.getMessage());
+        }
+        return out;
+    }
+
+    /**
+     * Avanza el checkpoint hasta el primer pendiente, compacta acks.log y borra los segmentos
+     * ya confirmados por completo.
+     */
+    public synchronized void checkpoint() {
+        try {
+            long headSeq, headBase, headOffset;
+            if (pending.isEmpty()) {
+                headSeq = nextSeq;
+                headBase = tailBase;
+                headOffset = tailBytes;
+            } else {
+                Item first = pending.firstEntry().getValue();
+                headSeq = first.seq;
+                headBase = first.segBase;
+                headOffset = first.offset;
+            }
+            Path tmp = dir.resolve("consumer.offset.tmp");
+            Files.writeString(tmp, headBase + " " + headOffset + " " + headSeq, StandardCharsets.UTF_8);
+            Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            ackedAboveHead.headSet(headSeq).clear();
+            StringBuilder sb = new StringBuilder();
+            for (Long s : ackedAboveHead) sb.append(s).append('\n');
+            pipeline.flush(acksChannel);
+            acksChannel.close();
+            Path acksTmp = dir.resolve("acks.log.tmp");
+            Files.writeString(acksTmp, sb, StandardCharsets.UTF_8);
+            Files.move(acksTmp, acksPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            acksChannel = FileChannel.open(acksPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            acksSinceCheckpoint = 0;
+
+            while (segments.first() < headBase) {
+                Files.deleteIfExists(segmentPath(segments.pollFirst()));
             }
+        } catch (IOException e) {
+            LOG.warn("Error guardando checkpoint: " + e.getMessage());
         }
     }
 }
@@ -1,21 +1,34 @@
 package co.javeriana;
 
 import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 
 import java.io.*;
-import java.lang.reflect.Type;
 import java.nio.charset.StandardCharsets;
+import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class FileBasedLibroRepository implements LibroRepository, AutoCloseable {
+    private static final Log LOG = Log.get("FileBasedLibroRepository");
 
-public class FileBasedLibroRepository implements LibroRepository {
     private final File file;
     private final Map<String, Libro> libros;
     private final Gson gson = new Gson();
+    private final CommitPipeline.SyncPolicy syncPolicy = CommitPipeline.SyncPolicy.parse(System.getProperty("fsyncPolicy"));
+    private final long intervaloSyncNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, Long.getLong("fsyncIntervalMs", 10L)));
+    // Commit en grupo: cada escritura en memoria recibe una versión; una reescritura guarda el
+    // mapa vigente y cubre todas las versiones anteriores a su inicio
+    private final AtomicLong version = new AtomicLong();
+    private long persistida; // con this tomado
+    private long ultimaEscritura; // con this tomado
+    private java.nio.channels.FileChannel lockChannel; // con this tomado
+    private final Histograma persistencia;
 
     public FileBasedLibroRepository(String path) {
         this.file = new File(path);
+        this.persistencia = Metricas.histograma("biblioteca_repo_persist_segundos", "archivo=\"" + file.getPath().replace('\\', '/') + "\"");
         this.libros = loadFromDisk();
     }
 
@@ -25,49 +38,105 @@ public class FileBasedLibroRepository implements LibroRepository {
             if (parent != null && !parent.exists()) parent.mkdirs();
             return new ConcurrentHashMap<>();
         }
-        try (InputStreamReader r = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
-            Type type = new TypeToken<Map<String, Libro>>(){}.getType();
-            Map<String, Libro> map = gson.fromJson(r, type);
-            if (map != null) return new ConcurrentHashMap<>(map);
+        try {
+            // Carga en streaming directamente sobre el mapa final (sin mapa intermedio)
+            return StreamingJsonLoader.load(file, Libro.class);
         } catch (Exception e) {
-            System.err.println("[FileBasedLibroRepository] Error cargando desde disco: " + e.getMessage());
+            LOG.warn("Error cargando desde disco: " + e.getMessage());
             // backup corrupted/non-json file so next run can recreate
             try {
                 File bak = new File(file.getAbsolutePath() + ".bak");
                 java.nio.file.Files.move(file.toPath(), bak.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-                System.err.println("[FileBasedLibroRepository] Archivo corrupto movido a: " + bak.getAbsolutePath());
+                LOG.warn("Archivo corrupto movido a: " + bak.getAbsolutePath());
             } catch (Exception ex) {
-                System.err.println("[FileBasedLibroRepository] No se pudo mover archivo corrupto: " + ex.getMessage());
+                LOG.warn("No se pudo mover archivo corrupto: " + ex.getMessage());
             }
         }
         return new ConcurrentHashMap<>();
     }
 
-    private synchronized void persist() {
-        File lockFile = new File(file.getAbsolutePath() + ".lock");
-        File tmp = new File(file.getAbsolutePath() + ".tmp");
-        // Use a file lock on a dedicated lock file to coordinate across processes
-        try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(lockFile, "rw");
-             java.nio.channels.FileChannel channel = raf.getChannel();
-             java.nio.channels.FileLock lock = channel.lock()) {
-
-            try (OutputStreamWriter w = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
-                gson.toJson(libros, w);
-                w.flush();
-                w.close();
+    /**
+     * Hace durable la versión `v`. Si otra reescritura ya la incluyó no hace nada, así que los
+     * escritores que esperan a la reescritura en curso comparten la siguiente. Con
+     * `-DfsyncPolicy=interval` se espera antes a que pasen `-DfsyncIntervalMs` desde la
+     * anterior, para que el grupo sea mayor; con `none` se reescribe sin fsync.
+     */
+    private synchronized void persistHasta(long v) {
+        if (persistida >= v) return;
+        if (syncPolicy == CommitPipeline.SyncPolicy.INTERVAL) {
+            long resta = ultimaEscritura + intervaloSyncNanos - System.nanoTime();
+            if (resta > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(resta);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
             }
+        }
+        long objetivo = version.get();
+        persist();
+        persistida = objetivo;
+        ultimaEscritura = System.nanoTime();
+    }
+
+    private void persist() {
+        long t0 = System.nanoTime();
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        // Use a file lock on a dedicated lock file to coordinate across processes.
+        // The lock file channel stays open between writes; only the lock is taken per persist.
+        try {
+            java.nio.channels.FileLock lock = lockChannel().lock();
             try {
-                java.nio.file.Files.move(tmp.toPath(), file.toPath(), java.nio.file.StandardCopyOption.ATOMIC_MOVE, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-            } catch (Exception ex) {
-                if (!tmp.renameTo(file)) {
-                    System.err.println("[FileBasedLibroRepository] Error renombrando temp file: " + ex.getMessage());
+                try (FileOutputStream fos = new FileOutputStream(tmp);
+                     OutputStreamWriter w = new OutputStreamWriter(fos, StandardCharsets.UTF_8)) {
+                    gson.toJson(libros, w);
+                    w.flush();
+                    // Durabilidad según -DfsyncPolicy: sin fsync con 'none'; en otro caso el tmp
+                    // se sincroniza antes del rename
+                    if (syncPolicy != CommitPipeline.SyncPolicy.NONE) fos.getFD().sync();
+                }
+                try {
+                    java.nio.file.Files.move(tmp.toPath(), file.toPath(), java.nio.file.StandardCopyOption.ATOMIC_MOVE, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                } catch (Exception ex) {
+                    if (!tmp.renameTo(file)) {
+                        throw new IOException("Error renombrando temp file: " + ex.getMessage(), ex);
+                    }
+                }
+                // El rename solo es durable cuando lo es el directorio que lo contiene
+                if (syncPolicy != CommitPipeline.SyncPolicy.NONE) {
+                    CommitPipeline.forceDirectory(file.getAbsoluteFile().getParentFile().toPath());
                 }
+            } finally {
+                lock.release();
             }
-
         } catch (IOException e) {
-            System.err.println("[FileBasedLibroRepository] Error persistiendo: " + e.getMessage());
+            LOG.error("Error persistiendo: " + e.getMessage());
             if (tmp.exists()) tmp.delete();
+            // Quien espera esta versión no puede darla por durable
+            throw new UncheckedIOException("[FileBasedLibroRepository] Error persistiendo " + file, e);
+        } finally {
+            persistencia.registrarDesde(t0);
+        }
+    }
+
+    /** Cierra el canal del fichero de lock, que permanece abierto entre escrituras. */
+    @Override
+    public synchronized void close() {
+        if (lockChannel == null) return;
+        try {
+            lockChannel.close();
+        } catch (IOException e) {
+            LOG.warn("Error cerrando el fichero de lock: " + e.getMessage());
+        }
+        lockChannel = null;
+    }
+
+    private java.nio.channels.FileChannel lockChannel() throws IOException {
+        if (lockChannel == null || !lockChannel.isOpen()) {
+            lockChannel = java.nio.channels.FileChannel.open(new File(file.getAbsolutePath() + ".lock").toPath(),
+                    java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.WRITE);
         }
+        return lockChannel;
     }
 
     @Override
@@ -78,6 +147,26 @@ public class FileBasedLibroRepository implements LibroRepository {
     @Override
     public void save(Libro libro) {
         libros.put(libro.getCodigo(), libro);
-        persist();
+        persistHasta(version.incrementAndGet());
+    }
+
+    /** La reescritura del fichero se hace al completar la escritura devuelta. */
+    @Override
+    public PendingWrite stage(Libro libro) {
+        libros.put(libro.getCodigo(), libro);
+        long v = version.incrementAndGet();
+        return () -> persistHasta(v);
+    }
+
+    @Override
+    public void saveAll(Collection<Libro> lote) {
+        if (lote.isEmpty()) return;
+        for (Libro l : lote) libros.put(l.getCodigo(), l);
+        persistHasta(version.incrementAndGet());
+    }
+
+    @Override
+    public Collection<Libro> findAll() {
+        return libros.values();
     }
 }
@@ -0,0 +1,101 @@
+package co.javeriana;
+
+import org.zeromq.SocketType;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool de sockets REQ hacia el GestorCarga para usar desde muchos hilos.
+ *
+ * Un socket ZMQ no es seguro entre hilos, pero sí puede pasar de un hilo a otro: cada
+ * petición toma un socket en exclusiva, hace su envío/recepción y lo devuelve a la cola
+ * (que aporta la barrera de memoria necesaria). Si la respuesta no llega a tiempo, el REQ
+ * queda a mitad de su ciclo send/recv y no puede reutilizarse: se cierra y se sustituye
+ * por uno nuevo.
+ */
+public final class GcSocketPool implements AutoCloseable {
+    /** Primer frame de un lote multi-frame (ver {@link GestorCarga}). */
+    public static final String BATCH = "BATCH";
+
+    private final ZContext ctx;
+    private final String endpoint;
+    private final BlockingQueue<ZMQ.Socket> libres;
+    private final int timeoutMs;
+
+    public GcSocketPool(ZContext ctx, String endpoint, int size, int timeoutMs) {
+        this.ctx = ctx;
+        this.endpoint = endpoint;
+        this.timeoutMs = timeoutMs;
+        this.libres = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) libres.add(nuevoSocket());
+    }
+
+    private ZMQ.Socket nuevoSocket() {
+        ZMQ.Socket s = ctx.createSocket(SocketType.REQ);
+        s.setLinger(0);
+        s.setReceiveTimeOut(timeoutMs);
+        s.connect(endpoint);
+        return s;
+    }
+
+    /**
+     * Envía una petición y espera su respuesta. Devuelve null si no hay socket libre o el
+     * GC no responde dentro del plazo.
+     */
+    public String request(String body) throws InterruptedException {
+        List<String> r = intercambio(List.of(body));
+        return r == null || r.isEmpty() ? null : r.get(0);
+    }
+
+    /**
+     * Envía un lote como un único mensaje multi-frame (`BATCH`, una línea por frame) y
+     * devuelve un resultado por línea, en el mismo orden, o null si el GC no responde.
+     */
+    public List<String> requestBatch(List<String> lineas) throws InterruptedException {
+        List<String> frames = new ArrayList<>(lineas.size() + 1);
+        frames.add(BATCH);
+        frames.addAll(lineas);
+        List<String> r = intercambio(frames);
+        return r == null || r.size() != lineas.size() ? null : r;
+    }
+
+    private List<String> intercambio(List<String> frames) throws InterruptedException {
+        ZMQ.Socket s = libres.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        if (s == null) return null;
+        boolean sano = false;
+        try {
+            for (int i = 0; i < frames.size(); i++) {
+                byte[] f = frames.get(i).getBytes(ZMQ.CHARSET);
+                boolean ok = i < frames.size() - 1 ? s.sendMore(f) : s.send(f, 0);
+                if (!ok) return null;
+            }
+            List<String> reply = new ArrayList<>();
+            do {
+                byte[] f = s.recv(0);
+                if (f == null) return null;
+                reply.add(new String(f, ZMQ.CHARSET));
+            } while (s.hasReceiveMore());
+            sano = true;
+            return reply;
+        } finally {
+            if (sano) {
+                libres.add(s);
+            } else {
+                ctx.destroySocket(s);
+                libres.add(nuevoSocket());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        ZMQ.Socket s;
+        while ((s = libres.poll()) != null) ctx.destroySocket(s);
+    }
+}
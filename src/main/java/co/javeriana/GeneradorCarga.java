@@ -0,0 +1,486 @@
+package co.javeriana;
+
+import org.zeromq.ZContext;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generador de carga para la cadena PS → GC → actores, alternativa a locust que no limita la
+ * carga ofrecida con el tiempo de espera de cada usuario.
+ *
+ * Las plantillas son líneas con el formato de `solicitudes_sede1.txt`; la proporción de cada
+ * operación es la de sus líneas. Al generar cada petición se sustituyen las claves:
+ * - `libroCodigo`: Zipf (`-DzipfS`) sobre los códigos de `-DlibrosDb`, o sobre L1..Ln con
+ *   `-DnumLibros=n` (1000 si el fichero no existe o está vacío). L1 es el más pedido.
+ * - `usuarioId`: uniforme entre U1..U`-Dusuarios`.
+ * - `prestamoId`: préstamos activos de `-DprestamosDb` más los que devuelven los PRESTAMO
+ *   aceptados durante la prueba; una DEVOLUCION consume el id y una RENOVACION lo reutiliza.
+ *
+ * Modos (`-Dmodo`):
+ * - `abierto` (por defecto): las peticiones se lanzan a `-Dtasa` por segundo con
+ *   independencia de las respuestas. La latencia se mide desde el instante en que la petición
+ *   debía salir, así que los retrasos del propio generador o de un sistema saturado se ven en
+ *   los percentiles en lugar de ocultarse (omisión coordinada). Por encima de
+ *   `-DmaxPendientes` en vuelo las peticiones se descartan y se cuentan.
+ * - `cerrado`: `-Dclientes` clientes que envían una petición tras otra.
+ *
+ * El destino es una lista de URL de PS (`http://localhost:8081,http://localhost:8082`,
+ * repartidas en turno rotatorio sobre `/send`) o el endpoint del GC (`tcp://localhost:5555`).
+ * Los primeros `-DcalentamientoS` segundos no cuentan en el informe final; la medición dura
+ * `-DduracionS` segundos.
+ */
+public final class GeneradorCarga {
+    private static final Log LOG = Log.get("GeneradorCarga");
+
+    // Uso: mvn -q exec:java -Dexec.mainClass=co.javeriana.GeneradorCarga -Dexec.args="http://localhost:8081 [plantillas.txt]"
+
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Destino destino;
+    private final List<Plantilla> plantillas;
+    private final Zipf libros;
+    private final int usuarios;
+    private final IdsPrestamo ids;
+
+    private GeneradorCarga(Destino destino, List<Plantilla> plantillas, Zipf libros, int usuarios, IdsPrestamo ids) {
+        this.destino = destino;
+        this.plantillas = plantillas;
+        this.libros = libros;
+        this.usuarios = usuarios;
+        this.ids = ids;
+    }
+
+    /** Histogramas y contadores de una fase (calentamiento o medición). */
+    private static final class Resultados {
+        final Histograma corregida = new Histograma();
+        final Histograma servicio = new Histograma();
+        final Map<String, Histograma> porOperacion = new ConcurrentHashMap<>();
+        final Map<String, LongAdder> respuestas = new ConcurrentHashMap<>();
+        final LongAdder completadas = new LongAdder();
+        final LongAdder errores = new LongAdder();
+        final LongAdder descartadas = new LongAdder();
+
+        void registrar(String op, String respuesta, long previsto, long envio) {
+            long fin = System.nanoTime();
+            corregida.registrar(fin - previsto);
+            servicio.registrar(fin - envio);
+            porOperacion.computeIfAbsent(op, k -> new Histograma()).registrar(fin - previsto);
+            respuestas.computeIfAbsent(tipo(respuesta), k -> new LongAdder()).increment();
+            completadas.increment();
+            if (respuesta == null || respuesta.startsWith("HTTP")) errores.increment();
+        }
+
+        private static String tipo(String respuesta) {
+            if (respuesta == null) return "<error>";
+            int i = 0;
+            while (i < respuesta.length() && Character.isLetterOrDigit(respuesta.charAt(i))) i++;
+            return i == 0 ? "<otra>" : respuesta.substring(0, i);
+        }
+    }
+
+    // ---- Plantillas y claves -------------------------------------------------------------
+
+    private record Plantilla(String op, String[] claves, String[] valores) {
+        static Plantilla de(String linea) {
+            KvParser kv = new KvParser().parse(linea);
+            String[] c = new String[kv.size()];
+            String[] v = new String[kv.size()];
+            for (int i = 0; i < c.length; i++) {
+                c[i] = kv.clave(i);
+                v[i] = kv.valor(i);
+            }
+            return new Plantilla(kv.op(), c, v);
+        }
+    }
+
+    private static List<Plantilla> leerPlantillas(String ruta) throws IOException {
+        List<Plantilla> r = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(abrir(ruta), StandardCharsets.UTF_8))) {
+            String l;
+            while ((l = in.readLine()) != null) {
+                l = l.trim();
+                if (!l.isEmpty() && !l.startsWith("#")) r.add(Plantilla.de(l));
+            }
+        }
+        if (r.isEmpty()) throw new IllegalArgumentException("Sin plantillas en " + ruta);
+        return r;
+    }
+
+    /** Fichero o, si no existe, recurso del classpath (`solicitudes_sede1.txt`). */
+    private static InputStream abrir(String ruta) throws IOException {
+        Path p = Path.of(ruta);
+        if (Files.isRegularFile(p)) return Files.newInputStream(p);
+        InputStream in = GeneradorCarga.class.getResourceAsStream("/" + ruta);
+        if (in == null) throw new IOException("No se encuentra " + ruta);
+        return in;
+    }
+
+    /** Muestreo Zipf por búsqueda binaria sobre la distribución acumulada. */
+    static final class Zipf {
+        private final String[] valores;
+        private final double[] acumulada;
+
+        Zipf(String[] valores, double s) {
+            this.valores = valores;
+            this.acumulada = new double[valores.length];
+            double total = 0;
+            for (int i = 0; i < valores.length; i++) {
+                total += 1.0 / Math.pow(i + 1, s);
+                acumulada[i] = total;
+            }
+            for (int i = 0; i < valores.length; i++) acumulada[i] /= total;
+        }
+
+        String siguiente() {
+            double u = ThreadLocalRandom.current().nextDouble();
+            int lo = 0, hi = acumulada.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (acumulada[mid] < u) lo = mid + 1;
+                else hi = mid;
+            }
+            return valores[lo];
+        }
+
+        int size() {
+            return valores.length;
+        }
+    }
+
+    private static String[] codigosLibros() {
+        Integer n = Integer.getInteger("numLibros");
+        if (n == null) {
+            File f = new File(System.getProperty("librosDb", "data" + File.separator + "primaria" + File.separator + "libros.db"));
+            if (f.isFile()) {
+                try {
+                    Map<String, Libro> m = new TreeMap<>(StreamingJsonLoader.load(f, Libro.class));
+                    if (!m.isEmpty()) {
+                        // L1, L2, ... L10 en orden numérico: el rango de Zipf sigue al número del código
+                        return m.keySet().stream().sorted(GeneradorCarga::compararCodigos).toArray(String[]::new);
+                    }
+                } catch (IOException e) {
+                    LOG.warn("No se pudo leer " + f + ": " + e.getMessage());
+                }
+            }
+            n = 1000;
+        }
+        String[] c = new String[n];
+        for (int i = 0; i < n; i++) c[i] = "L" + (i + 1);
+        return c;
+    }
+
+    private static int compararCodigos(String a, String b) {
+        int c = Integer.compare(a.length(), b.length());
+        return c != 0 ? c : a.compareTo(b);
+    }
+
+    /** Ids de préstamos activos conocidos. */
+    private static final class IdsPrestamo {
+        private final ArrayList<String> ids = new ArrayList<>();
+
+        synchronized void agregar(String id) {
+            ids.add(id);
+        }
+
+        /** Saca un id al azar (para DEVOLUCION); null si no hay. */
+        synchronized String tomar() {
+            if (ids.isEmpty()) return null;
+            int i = ThreadLocalRandom.current().nextInt(ids.size());
+            String id = ids.get(i);
+            ids.set(i, ids.get(ids.size() - 1));
+            ids.remove(ids.size() - 1);
+            return id;
+        }
+
+        /** Un id al azar sin sacarlo (para RENOVACION); null si no hay. */
+        synchronized String elegir() {
+            return ids.isEmpty() ? null : ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+        }
+
+        synchronized int size() {
+            return ids.size();
+        }
+    }
+
+    private static IdsPrestamo idsActivos() {
+        IdsPrestamo ids = new IdsPrestamo();
+        File f = new File(System.getProperty("prestamosDb", "data" + File.separator + "primaria" + File.separator + "prestamos.db"));
+        if (f.isFile()) {
+            try {
+                for (Prestamo p : StreamingJsonLoader.load(f, Prestamo.class).values()) {
+                    if (p.getEstado() == PrestamoEstado.ACTIVO) ids.agregar(p.getId());
+                }
+            } catch (IOException e) {
+                LOG.warn("No se pudo leer " + f + ": " + e.getMessage());
+            }
+        }
+        return ids;
+    }
+
+    /** Petición concreta a partir de una plantilla al azar. */
+    private String generar(Plantilla p) {
+        StringBuilder sb = new StringBuilder(96).append(p.op());
+        for (int i = 0; i < p.claves().length; i++) {
+            String k = p.claves()[i];
+            String v = p.valores()[i];
+            switch (k) {
+                case "libroCodigo" -> v = libros.siguiente();
+                case "usuarioId" -> v = "U" + (1 + ThreadLocalRandom.current().nextInt(usuarios));
+                case "prestamoId" -> {
+                    String id = "DEVOLUCION".equals(p.op()) ? ids.tomar() : ids.elegir();
+                    if (id != null) v = id;
+                }
+                default -> { }
+            }
+            sb.append(';').append(k).append('=').append(v);
+        }
+        return sb.toString();
+    }
+
+    /** Envía una petición y anota el resultado en `r`. */
+    private void ejecutar(Resultados r, long previsto) {
+        Plantilla p = plantillas.get(ThreadLocalRandom.current().nextInt(plantillas.size()));
+        String carga = generar(p);
+        long envio = System.nanoTime();
+        String resp;
+        try {
+            resp = destino.enviar(carga);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Exception e) {
+            LOG.debug(() -> "Error enviando " + carga + ": " + e.getMessage());
+            resp = null;
+        }
+        r.registrar(p.op(), resp, previsto, envio);
+        if (resp != null && "PRESTAMO".equals(p.op()) && resp.startsWith("OK")) {
+            String id = KvParser.local().parse(resp).get("prestamoId");
+            if (id != null) ids.agregar(id);
+        }
+    }
+
+    // ---- Destinos ------------------------------------------------------------------------
+
+    private interface Destino extends AutoCloseable {
+        /** Respuesta del sistema, `HTTP<código>` si el PS la rechazó, o null si falló o no llegó a tiempo. */
+        String enviar(String carga) throws Exception;
+
+        @Override
+        void close();
+    }
+
+    /** POST /send en turno rotatorio sobre varios PS. */
+    private static final class DestinoPs implements Destino {
+        private final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+        private final URI[] uris;
+        private final Duration timeout;
+        private final AtomicInteger turno = new AtomicInteger();
+
+        DestinoPs(String[] bases, int timeoutMs) {
+            uris = new URI[bases.length];
+            for (int i = 0; i < bases.length; i++) {
+                String b = bases[i].trim();
+                uris[i] = URI.create(b.endsWith("/send") ? b : b.replaceAll("/+$", "") + "/send");
+            }
+            timeout = Duration.ofMillis(timeoutMs);
+        }
+
+        @Override
+        public String enviar(String carga) throws Exception {
+            URI uri = uris[Math.floorMod(turno.getAndIncrement(), uris.length)];
+            HttpRequest req = HttpRequest.newBuilder(uri).timeout(timeout)
+                    .POST(HttpRequest.BodyPublishers.ofString(carga, StandardCharsets.UTF_8)).build();
+            HttpResponse<String> resp = http.send(req, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+            return resp.statusCode() == 200 ? resp.body().trim() : "HTTP" + resp.statusCode();
+        }
+
+        @Override
+        public void close() {
+            http.close();
+        }
+    }
+
+    /** Directo al ROUTER del GC, como haría un PS. */
+    private static final class DestinoGc implements Destino {
+        private final ZContext ctx = new ZContext();
+        private final GcSocketPool pool;
+
+        DestinoGc(String endpoint, int tamano, int timeoutMs) {
+            pool = new GcSocketPool(ctx, endpoint, tamano, timeoutMs);
+        }
+
+        @Override
+        public String enviar(String carga) throws InterruptedException {
+            return pool.request(carga);
+        }
+
+        @Override
+        public void close() {
+            pool.close();
+            ctx.close();
+        }
+    }
+
+    // ---- Ejecución -----------------------------------------------------------------------
+
+    /** Lanza peticiones a `tasa` por segundo hasta `fin` (nanoTime). */
+    private void abierto(double tasa, long inicio, long finCalentamiento, long fin, int maxPendientes,
+                         Resultados calentamiento, Resultados medicion, ExecutorService hilos) {
+        long intervalo = Math.max(1, (long) (1e9 / tasa));
+        AtomicInteger pendientes = new AtomicInteger();
+        for (long i = 0; ; i++) {
+            long previsto = inicio + i * intervalo;
+            if (previsto >= fin) break;
+            long espera = previsto - System.nanoTime();
+            if (espera > 0) LockSupport.parkNanos(espera);
+            Resultados r = previsto < finCalentamiento ? calentamiento : medicion;
+            if (pendientes.get() >= maxPendientes) {
+                r.descartadas.increment();
+                continue;
+            }
+            pendientes.incrementAndGet();
+            hilos.execute(() -> {
+                try {
+                    ejecutar(r, previsto);
+                } finally {
+                    pendientes.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    /** `clientes` bucles petición-respuesta hasta `fin`; sin corrección (previsto = envío). */
+    private void cerrado(int clientes, long finCalentamiento, long fin,
+                         Resultados calentamiento, Resultados medicion, ExecutorService hilos) {
+        for (int c = 0; c < clientes; c++) {
+            hilos.execute(() -> {
+                long ahora;
+                while ((ahora = System.nanoTime()) < fin && !Thread.currentThread().isInterrupted()) {
+                    ejecutar(ahora < finCalentamiento ? calentamiento : medicion, ahora);
+                }
+            });
+        }
+        long espera;
+        while ((espera = fin - System.nanoTime()) > 0) LockSupport.parkNanos(espera);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Uso: <http://ps:puerto[,http://ps2:puerto...] | tcp://gc:5555> [plantillas]");
+            System.out.println("Ejemplo: -Dtasa=500 -DduracionS=60 http://localhost:8081,http://localhost:8082");
+            return;
+        }
+        String modo = System.getProperty("modo", "abierto");
+        double tasa = Double.parseDouble(System.getProperty("tasa", "200"));
+        int clientes = Integer.getInteger("clientes", 16);
+        long calentamientoS = Long.getLong("calentamientoS", 5L);
+        long duracionS = Long.getLong("duracionS", 30L);
+        int maxPendientes = Integer.getInteger("maxPendientes", 10_000);
+        int timeoutMs = Integer.getInteger("timeoutMs", 10_000);
+        double zipfS = Double.parseDouble(System.getProperty("zipfS", "1.0"));
+        int usuarios = Integer.getInteger("usuarios", 10_000);
+        String rutaPlantillas = args.length > 1 ? args[1] : "solicitudes_sede1.txt";
+
+        List<Plantilla> plantillas = leerPlantillas(rutaPlantillas);
+        Zipf libros = new Zipf(codigosLibros(), zipfS);
+        IdsPrestamo ids = idsActivos();
+        LOG.info(String.format(Locale.ROOT, "%d plantillas, %d libros (zipf s=%.2f), %d usuarios, %d préstamos activos",
+                plantillas.size(), libros.size(), zipfS, usuarios, ids.size()));
+
+        Destino destino = args[0].startsWith("tcp://")
+                ? new DestinoGc(args[0], Integer.getInteger("gcPoolSize", 64), timeoutMs)
+                : new DestinoPs(args[0].split(","), timeoutMs);
+        GeneradorCarga g = new GeneradorCarga(destino, plantillas, libros, usuarios, ids);
+
+        Resultados calentamiento = new Resultados();
+        Resultados medicion = new Resultados();
+        long inicio = System.nanoTime();
+        long finCalentamiento = inicio + TimeUnit.SECONDS.toNanos(calentamientoS);
+        long fin = finCalentamiento + TimeUnit.SECONDS.toNanos(duracionS);
+
+        // Progreso cada segundo de la fase en curso
+        Thread progreso = Thread.ofPlatform().daemon().name("progreso").start(() -> {
+            Resultados anterior = calentamiento;
+            long previas = 0;
+            while (true) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                Resultados r = System.nanoTime() >= finCalentamiento ? medicion : calentamiento;
+                if (r != anterior) {
+                    anterior = r;
+                    previas = 0;
+                }
+                long total = r.completadas.sum();
+                LOG.info(String.format(Locale.ROOT, "%s: %d ops/s, p99 %.2f ms, errores %d, descartadas %d",
+                        r == medicion ? "medición" : "calentamiento", total - previas, r.corregida.percentil(0.99) / 1e6,
+                        r.errores.sum(), r.descartadas.sum()));
+                previas = total;
+            }
+        });
+
+        ExecutorService hilos = Executors.newVirtualThreadPerTaskExecutor();
+        try (destino) {
+            if (modo.equals("cerrado")) {
+                g.cerrado(clientes, finCalentamiento, fin, calentamiento, medicion, hilos);
+            } else {
+                g.abierto(tasa, inicio, finCalentamiento, fin, maxPendientes, calentamiento, medicion, hilos);
+            }
+            hilos.shutdown();
+            if (!hilos.awaitTermination(timeoutMs + 5000L, TimeUnit.MILLISECONDS)) hilos.shutdownNow();
+        }
+        progreso.interrupt();
+
+        System.out.println(informe(modo, tasa, clientes, duracionS, medicion));
+    }
+
+    private static String informe(String modo, double tasa, int clientes, long duracionS, Resultados r) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(modo.equals("cerrado")
+                ? String.format(Locale.ROOT, "%nModo cerrado: %d clientes, %d s medidos%n", clientes, duracionS)
+                : String.format(Locale.ROOT, "%nModo abierto: %.1f peticiones/s objetivo, %d s medidos%n", tasa, duracionS));
+        long n = r.completadas.sum();
+        sb.append(String.format(Locale.ROOT, "  completadas=%d (%.1f ops/s)  errores=%d  descartadas=%d%n",
+                n, n / (double) duracionS, r.errores.sum(), r.descartadas.sum()));
+        sb.append("  respuestas:");
+        new TreeMap<>(r.respuestas).forEach((k, v) -> sb.append(' ').append(k).append('=').append(v.sum()));
+        sb.append('\n');
+        sb.append(linea(modo.equals("cerrado") ? "latencia" : "latencia corregida", r.corregida));
+        if (!modo.equals("cerrado")) sb.append(linea("tiempo de servicio", r.servicio));
+        new TreeMap<>(r.porOperacion).forEach((op, h) -> sb.append(linea("  " + op, h)));
+        return sb.toString();
+    }
+
+    private static String linea(String titulo, Histograma h) {
+        long[] p = h.percentiles(PERCENTILES);
+        return String.format(Locale.ROOT, "  %-20s n=%-8d p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f ms%n",
+                titulo, h.count(), p[0] / 1e6, p[1] / 1e6, p[2] / 1e6, p[3] / 1e6, h.maxNanos() / 1e6);
+    }
+}
@@ -1,34 +1,133 @@
 package co.javeriana;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Operaciones de negocio sobre los repositorios de libros y préstamos.
+ *
+ * El inventario vive en {@link ContadoresInventario}: un préstamo reserva el ejemplar con
+ * un decremento condicional (CAS) que nunca baja de cero, sin locks ni E/S. Solo después se
+ * registra: bajo el lock de la franja del libro ({@link StripedLocks}) se aplica en memoria
+ * el valor vigente del contador ({@link LibroRepository#stage}), de modo que escrituras
+ * concurrentes del mismo libro nunca dejan un valor antiguo. La E/S de esas escrituras se
+ * completa después de soltar el lock, así que otras operaciones del libro no esperan a un
+ * fsync ajeno; la operación no responde hasta que las suyas son durables. Devoluciones y
+ * renovaciones modifican además el préstamo; lo localizan para conocer su libro
+ * (inmutable) y lo vuelven a leer con el lock tomado.
+ *
+ * Cada fila escrita se entrega además, como {@link Cambio}, al receptor de
+ * {@link #setCambios}, dentro del mismo lock de franja que la escritura: los cambios de un
+ * mismo libro (y de sus préstamos) salen en el orden en que se aplicaron. La espera a que
+ * sean durables (y replicados, según el modo) se hace una sola vez por operación, por la
+ * secuencia más alta que produjo y ya sin el lock. Otro gestor los reproduce con
+ * {@link #aplicar} (replicación por envío de cambios).
+ *
+ * Si esa espera falla (E/S del repositorio o del registro de cambios) la operación no se da
+ * por hecha: el error ({@link java.io.UncheckedIOException}) llega al llamador y un préstamo
+ * ya reservado se anula, devolviendo el ejemplar como cuando falla su registro.
+ */
+public class GestorAlmacenamiento implements Almacenamiento {
+    private static final Log LOG = Log.get("GestorAlmacenamiento");
+    /** Renovaciones permitidas por préstamo. */
+    public static final int MAX_RENOVACIONES = 2;
 
-public class GestorAlmacenamiento {
     private final LibroRepository libroRepo;
     private final PrestamoRepository prestamoRepo;
     private volatile boolean disponible = true;
     // Simulación de fallo: si failAfter > 0, tras 'failAfter' operaciones de escritura
     // la primaria se marcará no disponible. opCount incrementa tras cada operación.
     private volatile int failAfter = -1;
-    private volatile int opCount = 0;
+    private final AtomicInteger opCount = new AtomicInteger();
+    private final StripedLocks locks = new StripedLocks();
+    private final ContadoresInventario inventario;
+    private final Metricas.PorOperacion ejecucion;
+    private volatile ReceptorCambios cambios;
+    private volatile String prefijoId = "";
+    private final AtomicLong ultimoCambio = new AtomicLong();
 
     public GestorAlmacenamiento(LibroRepository libroRepo, PrestamoRepository prestamoRepo) {
+        this(libroRepo, prestamoRepo, "primaria");
+    }
+
+    /** `sitio` ("primaria" o "replica") etiqueta sus métricas de tiempo de ejecución. */
+    public GestorAlmacenamiento(LibroRepository libroRepo, PrestamoRepository prestamoRepo, String sitio) {
         this.libroRepo = libroRepo;
         this.prestamoRepo = prestamoRepo;
+        this.inventario = new ContadoresInventario(libroRepo::findByCodigo);
+        this.ejecucion = Metricas.porOperacion("biblioteca_ga_ejecucion_segundos", "ga=\"" + sitio + "\"");
+    }
+
+    /** Receptor de los cambios de estado de las operaciones (ver {@link #setCambios}). */
+    public interface ReceptorCambios {
+        /** Recibe el cambio con el lock de franja tomado; devuelve su secuencia (0 si no tiene). */
+        long publicar(Cambio c);
+
+        /** Espera, sin locks tomados, a que los cambios hasta `seq` estén confirmados. */
+        void confirmar(long seq);
+    }
+
+    /** Receptor de los cambios de estado que producen las operaciones; null para ninguno. */
+    public void setCambios(ReceptorCambios receptor) {
+        this.cambios = receptor;
+    }
+
+    private long emitir(Cambio c) {
+        ReceptorCambios r = cambios;
+        return r == null ? 0 : r.publicar(c);
+    }
+
+    /** Una vez por operación, fuera del lock de franja, con la secuencia más alta que emitió. */
+    private void confirmar(long seq) {
+        ReceptorCambios r = cambios;
+        if (r != null && seq > 0) r.confirmar(seq);
+    }
+
+    /** Fila aplicada en memoria bajo el lock: secuencia de su cambio y escritura a disco pendiente. */
+    private record Preparado(long seq, PendingWrite escritura) {
+        static final Preparado NADA = new Preparado(0, PendingWrite.DONE);
+    }
+
+    /**
+     * Completa, ya sin el lock de franja, las escrituras de una operación y su confirmación.
+     * Propaga el primer fallo: la operación no se puede dar por hecha.
+     */
+    private void completar(Preparado a, Preparado b) {
+        a.escritura().await();
+        b.escritura().await();
+        confirmar(Math.max(a.seq(), b.seq()));
+    }
+
+    /** Prefijo de los identificadores de préstamo nuevos (la partición que los creó); "" por defecto. */
+    public void setPrefijoId(String prefijo) {
+        this.prefijoId = prefijo;
     }
 
     public void setDisponible(boolean disponible) {
         this.disponible = disponible;
     }
 
+    /** Sonda del detector de fallos: no cuenta como operación ni toca los datos. */
+    public boolean latido() {
+        return disponible;
+    }
+
     public void setFailAfter(int n) {
         this.failAfter = n;
-        this.opCount = 0;
-        if (n > 0) System.err.println("[GestorAlmacenamiento] Modo fallo activado: fallar después de " + n + " operaciones");
+        this.opCount.set(0);
+        if (n > 0) LOG.warn("Modo fallo activado: fallar después de " + n + " operaciones");
     }
 
     private void maybeTriggerFail() {
-        if (failAfter > 0 && opCount >= failAfter) {
-            System.err.println("[GestorAlmacenamiento] Simulando fallo de primaria tras " + opCount + " operaciones (failAfter=" + failAfter + ")");
+        int n = opCount.get();
+        if (failAfter > 0 && n >= failAfter) {
+            LOG.warn("Simulando fallo de primaria tras " + n + " operaciones (failAfter=" + failAfter + ")");
             this.disponible = false;
         }
     }
@@ -37,72 +136,326 @@ public class GestorAlmacenamiento {
         if (!disponible) throw new IllegalStateException("GA no disponible");
     }
 
-    public synchronized boolean registrarDevolucion(String prestamoId) {
-        System.err.println("[GestorAlmacenamiento] registrarDevolucion start: opCount=" + opCount + " failAfter=" + failAfter + " disponible=" + disponible);
-        checkDisponible();
+    /** Lock de la franja del libro al que pertenece el préstamo, o null si no existe. */
+    private ReentrantLock lockDePrestamo(String prestamoId) {
         Prestamo p = prestamoRepo.findById(prestamoId);
-        if (p == null) return false;
+        return p == null ? null : locks.lockFor(p.getLibroCodigo());
+    }
+
+    public boolean registrarDevolucion(String prestamoId) {
+        long t0 = System.nanoTime();
+        try {
+            LOG.debug(() -> "registrarDevolucion start: opCount=" + opCount + " failAfter=" + failAfter + " disponible=" + disponible);
+            checkDisponible();
+            ReentrantLock lock = lockDePrestamo(prestamoId);
+            if (lock == null) return false;
+            Preparado prestamo, libro;
+            lock.lock();
+            try {
+                checkDisponible();
+                Prestamo p = prestamoRepo.findById(prestamoId);
+                if (p == null) return false;
 
-        p.setEstado(PrestamoEstado.DEVUELTO);
-        prestamoRepo.save(p);
+                p.setEstado(PrestamoEstado.DEVUELTO);
+                prestamo = preparar(p, "DEVOLUCION");
 
-        Libro l = libroRepo.findByCodigo(p.getLibroCodigo());
-        if (l != null) {
-            l.setEjemplaresDisponibles(l.getEjemplaresDisponibles() + 1);
-            libroRepo.save(l);
+                inventario.liberar(p.getLibroCodigo());
+                libro = prepararInventario(p.getLibroCodigo(), "DEVOLUCION");
+            } finally {
+                lock.unlock();
+            }
+            completar(prestamo, libro);
+            // Contabilizar operación exitosa
+            int n = opCount.incrementAndGet();
+            LOG.debug(() -> "registrarDevolucion done: new opCount=" + n);
+            // After counting this write, possibly trigger the simulated failure immediately
+            maybeTriggerFail();
+            return true;
+        } finally {
+            ejecucion.devolucion().registrarDesde(t0);
         }
-        // Contabilizar operación exitosa
-        opCount++;
-        System.err.println("[GestorAlmacenamiento] registrarDevolucion done: new opCount=" + opCount);
-        // After counting this write, possibly trigger the simulated failure immediately
-        maybeTriggerFail();
-        return true;
     }
 
-    public synchronized boolean registrarRenovacion(String prestamoId, String nuevaFecha) {
-        System.err.println("[GestorAlmacenamiento] registrarRenovacion start: opCount=" + opCount + " failAfter=" + failAfter + " disponible=" + disponible);
-        checkDisponible();
-        Prestamo p = prestamoRepo.findById(prestamoId);
-        if (p == null) return false;
+    public boolean registrarRenovacion(String prestamoId, String nuevaFecha) {
+        long t0 = System.nanoTime();
+        try {
+            LOG.debug(() -> "registrarRenovacion start: opCount=" + opCount + " failAfter=" + failAfter + " disponible=" + disponible);
+            checkDisponible();
+            ReentrantLock lock = lockDePrestamo(prestamoId);
+            if (lock == null) return false;
+            Preparado prestamo;
+            lock.lock();
+            try {
+                checkDisponible();
+                Prestamo p = prestamoRepo.findById(prestamoId);
+                if (p == null) return false;
 
-        if (p.getRenovaciones() >= 2) return false;
+                if (p.getRenovaciones() >= MAX_RENOVACIONES) return false;
 
-        p.setRenovaciones(p.getRenovaciones() + 1);
-        p.setFechaFin(nuevaFecha);
-        prestamoRepo.save(p);
-        opCount++;
-        System.err.println("[GestorAlmacenamiento] registrarRenovacion done: new opCount=" + opCount);
-        maybeTriggerFail();
-        return true;
+                p.setRenovaciones(p.getRenovaciones() + 1);
+                p.setFechaFin(nuevaFecha);
+                prestamo = preparar(p, "RENOVACION");
+            } finally {
+                lock.unlock();
+            }
+            completar(prestamo, Preparado.NADA);
+            int n = opCount.incrementAndGet();
+            LOG.debug(() -> "registrarRenovacion done: new opCount=" + n);
+            maybeTriggerFail();
+            return true;
+        } finally {
+            ejecucion.renovacion().registrarDesde(t0);
+        }
     }
 
-    public synchronized boolean validarDisponibilidad(String libroCodigo) {
-        System.err.println("[GestorAlmacenamiento] validarDisponibilidad start: opCount=" + opCount + " failAfter=" + failAfter + " disponible=" + disponible);
+    public boolean validarDisponibilidad(String libroCodigo) {
+        LOG.debug(() -> "validarDisponibilidad start: opCount=" + opCount + " failAfter=" + failAfter + " disponible=" + disponible);
         checkDisponible();
-        Libro l = libroRepo.findByCodigo(libroCodigo);
-        if (l == null) {
-            System.err.println("[GestorAlmacenamiento] validarDisponibilidad: libro not found -> " + libroCodigo);
+        int ejemplares = inventario.disponibles(libroCodigo);
+        if (ejemplares < 0) {
+            LOG.debug(() -> "validarDisponibilidad: libro not found -> " + libroCodigo);
             return false;
         }
-        System.err.println("[GestorAlmacenamiento] validarDisponibilidad: libro=" + l.getCodigo() + " ejemplares=" + l.getEjemplaresDisponibles());
-        return l.getEjemplaresDisponibles() > 0;
+        LOG.debug(() -> "validarDisponibilidad: libro=" + libroCodigo + " ejemplares=" + ejemplares);
+        return ejemplares > 0;
     }
 
-    public synchronized Prestamo otorgarPrestamo(String usuarioId, String libroCodigo, String fechaInicio, String fechaFin) {
-        System.err.println("[GestorAlmacenamiento] otorgarPrestamo start: opCount=" + opCount + " failAfter=" + failAfter + " disponible=" + disponible + " libro=" + libroCodigo + " usuario=" + usuarioId);
+    /**
+     * Préstamos que cumplen todos los criterios dados (null = cualquiera), como mucho
+     * `limite`. Se parte del índice del primer criterio presente en el orden usuario, libro,
+     * vencimiento (`fechaFin` anterior a `venceAntes`), estado, que suele ser el más
+     * selectivo, y el resto se filtra sobre ese resultado: nunca se recorren todos los
+     * préstamos, así que hace falta al menos un criterio.
+     */
+    public List<Prestamo> buscarPrestamos(String usuarioId, String libroCodigo, PrestamoEstado estado,
+                                          String venceAntes, int limite) {
         checkDisponible();
-        if (!validarDisponibilidad(libroCodigo)) return null;
+        List<Prestamo> candidatos;
+        if (usuarioId != null) candidatos = prestamoRepo.findByUsuario(usuarioId);
+        else if (libroCodigo != null) candidatos = prestamoRepo.findByLibro(libroCodigo);
+        else if (venceAntes != null) candidatos = prestamoRepo.findVencenAntesDe(venceAntes);
+        else if (estado != null) candidatos = prestamoRepo.findByEstado(estado);
+        else throw new IllegalArgumentException("Consulta sin criterio");
+        List<Prestamo> r = new ArrayList<>(Math.min(candidatos.size(), limite));
+        for (Prestamo p : candidatos) {
+            if (r.size() >= limite) break;
+            if (libroCodigo != null && !libroCodigo.equals(p.getLibroCodigo())) continue;
+            if (estado != null && estado != p.getEstado()) continue;
+            if (venceAntes != null && (p.getFechaFin() == null || p.getFechaFin().compareTo(venceAntes) >= 0)) continue;
+            r.add(p);
+        }
+        return r;
+    }
+
+    public Prestamo otorgarPrestamo(String usuarioId, String libroCodigo, String fechaInicio, String fechaFin) {
+        long t0 = System.nanoTime();
+        try {
+            LOG.debug(() -> "otorgarPrestamo start: opCount=" + opCount + " failAfter=" + failAfter + " disponible=" + disponible + " libro=" + libroCodigo + " usuario=" + usuarioId);
+            checkDisponible();
+            // Reserva atómica: comprobar y decrementar en un solo CAS, nunca por debajo de cero
+            if (!inventario.reservar(libroCodigo)) {
+                LOG.debug(() -> "otorgarPrestamo: sin ejemplares -> " + libroCodigo);
+                return null;
+            }
+
+            String id = prefijoId + UUID.randomUUID();
+            Prestamo p = new Prestamo(id, usuarioId, libroCodigo, fechaInicio, fechaFin, 0, PrestamoEstado.ACTIVO);
+            // El alta se aplica con el lock del libro, como las devoluciones y renovaciones:
+            // su cambio sale antes que cualquier cambio posterior del mismo préstamo
+            ReentrantLock lock = locks.lockFor(libroCodigo);
+            Preparado libro, alta;
+            RuntimeException fallo = null;
+            lock.lock();
+            try {
+                libro = prepararInventario(libroCodigo, "PRESTAMO");
+                alta = preparar(p, "PRESTAMO");
+            } catch (RuntimeException ex) {
+                // No se pudo registrar: anular la reserva
+                inventario.liberar(libroCodigo);
+                libro = prepararInventario(libroCodigo, "PRESTAMO");
+                alta = Preparado.NADA;
+                fallo = ex;
+            } finally {
+                lock.unlock();
+            }
+            if (fallo != null) {
+                completarAnulacion(libro, Preparado.NADA, fallo);
+                throw fallo;
+            }
+            try {
+                completar(libro, alta);
+            } catch (RuntimeException ex) {
+                anularPrestamo(p, ex);
+                throw ex;
+            }
+            int n = opCount.incrementAndGet();
+            LOG.debug(() -> "otorgarPrestamo done: new opCount=" + n + " prestamoId=" + p.getId());
+            maybeTriggerFail();
+            return p;
+        } finally {
+            ejecucion.prestamo().registrarDesde(t0);
+        }
+    }
+
+    /**
+     * El préstamo ya aplicado en memoria no llegó a ser durable: se cierra y se devuelve su
+     * ejemplar, con sus cambios como cualquier operación, para que ni este gestor ni la
+     * réplica lo sigan contando. `fallo` es el error que se propagará al llamador.
+     */
+    private void anularPrestamo(Prestamo p, RuntimeException fallo) {
+        ReentrantLock lock = locks.lockFor(p.getLibroCodigo());
+        Preparado prestamo, libro;
+        lock.lock();
+        try {
+            inventario.liberar(p.getLibroCodigo());
+            p.setEstado(PrestamoEstado.DEVUELTO);
+            prestamo = preparar(p, "ANULACION");
+            libro = prepararInventario(p.getLibroCodigo(), "ANULACION");
+        } catch (RuntimeException ex) {
+            fallo.addSuppressed(ex);
+            return;
+        } finally {
+            lock.unlock();
+        }
+        completarAnulacion(prestamo, libro, fallo);
+    }
 
+    /** Completa las escrituras de una anulación; si también fallan, quedan como suprimidas en `fallo`. */
+    private void completarAnulacion(Preparado a, Preparado b, RuntimeException fallo) {
+        try {
+            completar(a, b);
+        } catch (RuntimeException ex) {
+            LOG.error("No se pudo hacer durable la anulación: " + ex.getMessage());
+            fallo.addSuppressed(ex);
+        }
+    }
+
+    /** Con el lock de la franja del libro: aplica en memoria el valor vigente de su contador. */
+    private Preparado prepararInventario(String libroCodigo, String op) {
         Libro l = libroRepo.findByCodigo(libroCodigo);
-        l.setEjemplaresDisponibles(l.getEjemplaresDisponibles() - 1);
-        libroRepo.save(l);
-
-        String id = UUID.randomUUID().toString();
-        Prestamo p = new Prestamo(id, usuarioId, libroCodigo, fechaInicio, fechaFin, 0, PrestamoEstado.ACTIVO);
-        prestamoRepo.save(p);
-        opCount++;
-        System.err.println("[GestorAlmacenamiento] otorgarPrestamo done: new opCount=" + opCount + " prestamoId=" + id);
-        maybeTriggerFail();
-        return p;
+        if (l == null) return Preparado.NADA;
+        l.setEjemplaresDisponibles(inventario.disponibles(libroCodigo));
+        PendingWrite w = libroRepo.stage(l);
+        return new Preparado(emitir(Cambio.de(op, l)), w);
+    }
+
+    /** Con el lock de la franja del libro del préstamo: lo aplica en memoria. */
+    private Preparado preparar(Prestamo p, String op) {
+        PendingWrite w = prestamoRepo.stage(p);
+        return new Preparado(emitir(Cambio.de(op, p)), w);
+    }
+
+    /**
+     * Da de alta un libro que no existe (precarga de datos): fija su contador y emite su
+     * cambio como cualquier operación, así que llega a la réplica y al registro de cambios.
+     * Devuelve false si ya existía.
+     */
+    public boolean altaLibro(Libro libro) {
+        checkDisponible();
+        ReentrantLock lock = locks.lockFor(libro.getCodigo());
+        Preparado alta;
+        lock.lock();
+        try {
+            if (libroRepo.findByCodigo(libro.getCodigo()) != null) return false;
+            PendingWrite w = libroRepo.stage(libro);
+            inventario.fijar(libro.getCodigo(), libro.getEjemplaresDisponibles());
+            alta = new Preparado(emitir(Cambio.de("ALTA", libro)), w);
+        } finally {
+            lock.unlock();
+        }
+        completar(alta, Preparado.NADA);
+        return true;
+    }
+
+    /** Como {@link #altaLibro}, para un préstamo cuyo id no existe; no toca el inventario. */
+    public boolean altaPrestamo(Prestamo p) {
+        checkDisponible();
+        ReentrantLock lock = locks.lockFor(p.getLibroCodigo());
+        Preparado alta;
+        lock.lock();
+        try {
+            if (prestamoRepo.findById(p.getId()) != null) return false;
+            alta = preparar(p, "ALTA");
+        } finally {
+            lock.unlock();
+        }
+        completar(alta, Preparado.NADA);
+        return true;
+    }
+
+    /**
+     * Aplica un cambio producido por otro gestor (la primaria): escribe la fila tal cual y, si
+     * es un libro, fija su contador. No comprueba disponibilidad ni cuenta como operación. Los
+     * cambios deben llegar en orden de `seq`; los de secuencia ya aplicada se ignoran, y
+     * reaplicar uno deja el mismo estado. Devuelve false si se ignoró.
+     */
+    public boolean aplicar(Cambio c) {
+        if (c.seq() > 0 && c.seq() <= ultimoCambio.get()) return false;
+        ReentrantLock lock = locks.lockFor(c.libroCodigo());
+        PendingWrite w;
+        lock.lock();
+        try {
+            if (c.libro() != null) {
+                w = libroRepo.stage(Cambio.copia(c.libro()));
+                inventario.fijar(c.libro().getCodigo(), c.libro().getEjemplaresDisponibles());
+            } else {
+                w = prestamoRepo.stage(Cambio.copia(c.prestamo()));
+            }
+        } finally {
+            lock.unlock();
+        }
+        w.await();
+        if (c.seq() > 0) ultimoCambio.accumulateAndGet(c.seq(), Math::max);
+        return true;
+    }
+
+    /**
+     * Aplica un lote de cambios ordenado por `seq` con una sola escritura por repositorio: de
+     * cada fila queda su última imagen. Se ignoran los de secuencia ya aplicada. Lo usa el
+     * hilo que replica, sin operaciones concurrentes sobre este gestor. Devuelve cuántos
+     * cambios del lote se aplicaron.
+     */
+    public int aplicarLote(List<Cambio> lote) {
+        long ultimo = ultimoCambio.get();
+        long max = ultimo;
+        int n = 0;
+        Map<String, Libro> libros = new LinkedHashMap<>();
+        Map<String, Prestamo> prestamos = new LinkedHashMap<>();
+        for (Cambio c : lote) {
+            if (c.seq() > 0 && c.seq() <= ultimo) continue;
+            if (c.libro() != null) libros.put(c.libro().getCodigo(), Cambio.copia(c.libro()));
+            else prestamos.put(c.prestamo().getId(), Cambio.copia(c.prestamo()));
+            max = Math.max(max, c.seq());
+            n++;
+        }
+        if (n == 0) return 0;
+        libroRepo.saveAll(libros.values());
+        prestamoRepo.saveAll(prestamos.values());
+        for (Libro l : libros.values()) inventario.fijar(l.getCodigo(), l.getEjemplaresDisponibles());
+        ultimoCambio.accumulateAndGet(max, Math::max);
+        return n;
+    }
+
+    /** Fija la secuencia aplicada (tras cargar una foto completa, o al arrancar desde un checkpoint). */
+    public void setUltimoCambioAplicado(long seq) {
+        ultimoCambio.set(seq);
+    }
+
+    /**
+     * Foto del estado completo como cambios sin secuencia, para poblar una réplica sin
+     * historial. Se lee sin detener las escrituras, así que puede mezclar versiones de
+     * distintas filas; aplicar después el registro de cambios desde la secuencia tomada antes
+     * de la foto lo corrige.
+     */
+    public List<Cambio> exportar() {
+        List<Cambio> r = new ArrayList<>();
+        for (Libro l : libroRepo.findAll()) r.add(Cambio.de("SNAPSHOT", l));
+        for (Prestamo p : prestamoRepo.findAll()) r.add(Cambio.de("SNAPSHOT", p));
+        return r;
+    }
+
+    /** Secuencia del último cambio aplicado con {@link #aplicar} (0 si ninguno). */
+    public long ultimoCambioAplicado() {
+        return ultimoCambio.get();
     }
 }
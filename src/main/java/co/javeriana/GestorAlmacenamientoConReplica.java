@@ -1,97 +1,678 @@
 package co.javeriana;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
 
 /**
  * GestorAlmacenamientoConReplica agrupa una primaria y una réplica.
  *
- * Comportamiento mínimo implementado (fase A):
- * - Mientras la primaria esté activa, las operaciones se aplican primero en la primaria
- *   y se intentan replicar a la réplica (replicación asíncrona mediante un pool simple).
- * - Cuando la primaria se conmute a réplica, las operaciones se realizan únicamente
- *   contra la réplica.
+ * - Mientras la primaria esté activa, las operaciones se ejecutan solo en la primaria. Cada
+ *   fila que escribe sale como {@link Cambio} (imagen posterior) y aquí recibe un número de
+ *   secuencia; un único hilo los aplica en la réplica en ese orden. La réplica no vuelve a
+ *   ejecutar la operación: no revalida disponibilidad, no genera otro UUID y guarda
+ *   exactamente las mismas filas, así que su estado coincide con el de la primaria una vez
+ *   aplicados los cambios pendientes.
+ * - La secuencia se asigna y el cambio se encola en un mismo bloque sincronizado, llamado
+ *   desde dentro del lock de franja de la primaria: el orden de la cola respeta el orden de
+ *   escritura de cada libro y sus préstamos. La espera a que el registro sea durable, y a la
+ *   confirmación de la réplica, la hace la operación una sola vez al terminar, ya fuera del
+ *   lock de franja ({@link GestorAlmacenamiento.ReceptorCambios#confirmar}).
+ * - La cola está acotada (`-DreplicaCola`, 10000 cambios). El hilo que replica saca de ella
+ *   todo lo pendiente, hasta `-DreplicaLote` (512) cambios, y lo aplica con
+ *   {@link GestorAlmacenamiento#aplicarLote}: una escritura por repositorio por lote en vez
+ *   de una por cambio, así que cuanto más se retrasa la réplica más barato le sale
+ *   recuperarse. Con la cola llena se aplica `-DreplicaPolitica` ({@link PoliticaCola}).
+ * - Cada cambio numerado se anota además en el {@link RegistroCambios} de la primaria, y la
+ *   réplica guarda en un checkpoint (`<dirReplica>/cambios-<nombre>.offset`) la secuencia
+ *   que ya tiene aplicada. Al arrancar, y cada vez que la réplica queda desfasada, el hilo
+ *   que replica la pone al día en segundo plano aplicando por lotes los cambios del registro
+ *   posteriores a esa secuencia. Solo si no hay checkpoint, el registro ya no cubre el hueco
+ *   o la política lo pide se carga antes una foto completa de la primaria.
+ * - Si una operación encuentra la primaria caída (`IllegalStateException`), se conmuta a la
+ *   réplica, que ya está en memoria y al día salvo la cola pendiente, y la operación se
+ *   reintenta allí sin que el llamador lo note. La primaria no escribe nada antes de esa
+ *   comprobación, así que el reintento no duplica efectos.
+ * - Cuando la primaria se conmuta a réplica, primero se terminan de aplicar los cambios ya
+ *   numerados (la cola, no los ficheros) y después se intercambian los papeles: la réplica
+ *   pasa a ser el origen de los cambios, que anota en su propio registro
+ *   (`<dirReplica>/cambios-<nombre>.log`) siguiendo la misma secuencia, y la primaria pasa a
+ *   ser el destino, desfasada hasta que vuelva.
+ * - Failback ({@link #intentarVolverAPrimaria}): con la primaria recuperada, el mismo hilo
+ *   que replica la pone al día en segundo plano desde el registro de la réplica, mientras la
+ *   réplica sigue atendiendo. Cuando el retraso baja de `-DfailbackUmbral` cambios, se
+ *   detienen las operaciones, se aplica el resto (pocos cambios, con plazo
+ *   `-DfailbackEsperaMs`) y se vuelven a intercambiar los papeles. Nunca se copia un fichero
+ *   completo con las escrituras detenidas.
+ * - Las operaciones toman el lock de lectura de papeles y los intercambios el de escritura:
+ *   ningún cambio se origina en un gestor que ya no es el origen.
+ * - Al arrancar, si el registro de la réplica llega más lejos que el de la primaria (el
+ *   proceso terminó tras un failover), se arranca con la réplica como origen y se vuelve a
+ *   la primaria del mismo modo.
+ *
+ * Métricas: `biblioteca_replica_lag_segundos` mide, por operación de origen, cuánto tarda
+ * la réplica en aplicar un cambio desde que se escribió en la primaria;
+ * `biblioteca_replica_pendientes` es el número de cambios encolados aún sin aplicar;
+ * `biblioteca_replica_lag_ops` y `biblioteca_replica_lag_ms` son el retraso actual en cambios
+ * y la antigüedad del cambio pendiente más viejo; `biblioteca_replica_desbordes` cuenta las
+ * veces que se llenó la cola. `biblioteca_replica_ack_segundos` es la espera de confirmación
+ * de cada operación en SEMISYNC/SYNC; `biblioteca_replica_degradada` vale 1 mientras el modo
+ * está degradado a asíncrono y `biblioteca_replica_degradaciones` cuenta las veces que pasó.
+ * Los gauges llevan la etiqueta `flujo` (el nombre del flujo de cambios).
  *
  * Notas:
- * - La replicación es best-effort en esta fase; en fases posteriores podemos añadir
- *   confirmación/retry y mecanismos de catch-up.
+ * - Modo de replicación (`-DreplicaModo`, {@link ModoReplicacion}): en ASYNC (por defecto)
+ *   la operación responde cuando la primaria y el registro de cambios la tienen; en SEMISYNC
+ *   espera además a que el hilo que replica haya recibido el cambio; en SYNC, a que la
+ *   réplica lo haya aplicado. La espera está acotada por el presupuesto del modo; si se
+ *   agota, la operación responde igualmente (el cambio ya es durable en el registro) y la
+ *   replicación pasa a asíncrona hasta que la réplica vacíe la cola. Mientras la réplica
+ *   está desfasada tampoco se espera.
  */
-public class GestorAlmacenamientoConReplica {
+public class GestorAlmacenamientoConReplica implements Almacenamiento {
+    private static final Log LOG = Log.get("Replica");
+    private static final Metricas.PorOperacion LAG = Metricas.porOperacion("biblioteca_replica_lag_segundos");
+    private static final Histograma ACK = Metricas.histograma("biblioteca_replica_ack_segundos", "");
+    private static final long DRENAJE_MS = Long.getLong("replicaDrainMs", 5000L);
+    private static final int CHECKPOINT_CADA = Integer.getInteger("replicaCheckpointCada", 1000);
+    private static final int CAPACIDAD = Integer.getInteger("replicaCola", 10_000);
+    private static final int LOTE = Integer.getInteger("replicaLote", 512);
+    private static final long BLOQUEO_MS = Long.getLong("replicaBloqueoMs", 1000L);
+
+    /**
+     * Qué hacer con un cambio cuando la cola de replicación está llena. En ningún caso se
+     * pierde: ya está en el registro de cambios.
+     */
+    public enum PoliticaCola {
+        /**
+         * El cambio se encola igualmente (la cola admite hasta el doble de su capacidad) y la
+         * operación, al terminar y ya sin locks, espera hasta `-DreplicaBloqueoMs` a que la cola
+         * baje de su capacidad; si no baja, se pasa a DESCARTAR.
+         */
+        BLOQUEAR,
+        /** Se vacía la cola y la réplica se pone al día leyendo el registro desde su última secuencia. */
+        DESCARTAR,
+        /** Se vacía la cola y la réplica se repuebla con una foto completa de la primaria. */
+        FOTO;
+
+        static PoliticaCola parse(String s) {
+            try {
+                return s == null ? BLOQUEAR : valueOf(s.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                LOG.warn("replicaPolitica desconocida: " + s + "; se usa BLOQUEAR");
+                return BLOQUEAR;
+            }
+        }
+    }
+
+    /** Cuánto espera una operación a la réplica antes de responder. */
+    public enum ModoReplicacion {
+        /** No espera. */
+        ASYNC(null, 0L),
+        /** Espera a que el hilo que replica saque el cambio de la cola (`-DreplicaEsperaSemisyncMs`, 20). */
+        SEMISYNC("replicaEsperaSemisyncMs", 20L),
+        /** Espera a que la réplica lo aplique y persista (`-DreplicaEsperaSyncMs`, 100). */
+        SYNC("replicaEsperaSyncMs", 100L);
+
+        private final String propiedad;
+        private final long presupuestoPorDefecto;
+
+        ModoReplicacion(String propiedad, long presupuestoPorDefecto) {
+            this.propiedad = propiedad;
+            this.presupuestoPorDefecto = presupuestoPorDefecto;
+        }
+
+        /** Espera máxima por operación antes de degradar a asíncrono. */
+        long presupuestoMs() {
+            return propiedad == null ? 0L : Long.getLong(propiedad, presupuestoPorDefecto);
+        }
+
+        static ModoReplicacion parse(String s) {
+            try {
+                return s == null ? ASYNC : valueOf(s.trim().toUpperCase().replace("-", ""));
+            } catch (IllegalArgumentException e) {
+                LOG.warn("replicaModo desconocido: " + s + "; se usa ASYNC");
+                return ASYNC;
+            }
+        }
+    }
+
+    private record Pendiente(Cambio cambio, long t0) { }
+
+    /**
+     * Papeles vigentes: `origen` atiende las operaciones y anota sus cambios en `registro`;
+     * `destino` los recibe y guarda su secuencia aplicada en `checkpoint`. `registroDestino`
+     * es el registro propio del destino (lo que originó cuando era origen).
+     */
+    private record Papeles(GestorAlmacenamiento origen, GestorAlmacenamiento destino, RegistroCambios registro,
+                           RegistroCambios registroDestino, Path checkpoint) { }
+
+    private static final long FAILBACK_UMBRAL = Long.getLong("failbackUmbral", 100L);
+    private static final long FAILBACK_ESPERA_MS = Long.getLong("failbackEsperaMs", 200L);
+
     private final GestorAlmacenamiento primaria;
     private final GestorAlmacenamiento replica;
     private final ReplicaManager rm;
-    private volatile boolean primariaActiva = true;
-    private final ExecutorService replicator = Executors.newFixedThreadPool(1);
+    private final Papeles normal;
+    private final Papeles conmutados;
+    private volatile Papeles papeles;
+    private final ReentrantReadWriteLock lockPapeles = new ReentrantReadWriteLock();
+    private final Object aplicando = new Object(); // una unidad de trabajo del hilo que replica
+    private final PoliticaCola politica = PoliticaCola.parse(System.getProperty("replicaPolitica"));
+    private final ModoReplicacion modo = ModoReplicacion.parse(System.getProperty("replicaModo"));
+    private final long presupuestoNs = TimeUnit.MILLISECONDS.toNanos(modo.presupuestoMs());
+    private final LongAdder degradaciones = new LongAdder();
+    private volatile boolean degradada;
+    private volatile long recibido; // último seq que el hilo que replica sacó de la cola
+    private final ArrayBlockingQueue<Pendiente> cola =
+            new ArrayBlockingQueue<>(politica == PoliticaCola.BLOQUEAR ? 2 * CAPACIDAD : CAPACIDAD);
+    private final LongAdder desbordes = new LongAdder();
+    private final Object avance = new Object();
+    private final Thread replicador;
+    private int sinCheckpoint; // solo desde el hilo que replica
+    private boolean inicial = true; // solo desde el hilo que replica
+    private volatile boolean activo = true;
+    private volatile long seq; // se escribe con this tomado
+
+    // Réplica pendiente de ponerse al día desde el registro (o desde una foto): mientras tanto
+    // los cambios no se encolan. Se escriben con this tomado.
+    private volatile boolean desfasada = true;
+    private volatile boolean pedirFoto;
+    private volatile long desfasadaDesde = System.nanoTime();
 
-    public GestorAlmacenamientoConReplica(GestorAlmacenamiento primaria, GestorAlmacenamiento replica, ReplicaManager rm) {
+    /**
+     * @param dirPrimaria directorio del registro de cambios de la primaria y de su checkpoint
+     * @param dirReplica  ídem para la réplica
+     * @param nombre      nombre del flujo de cambios (`cambios-<nombre>.log` / `.offset`)
+     */
+    public GestorAlmacenamientoConReplica(GestorAlmacenamiento primaria, GestorAlmacenamiento replica, ReplicaManager rm,
+                                          Path dirPrimaria, Path dirReplica, String nombre) {
         this.primaria = primaria;
         this.replica = replica;
         this.rm = rm;
-        this.primariaActiva = rm.primariaActiva();
+        RegistroCambios registroPrimaria = new RegistroCambios(dirPrimaria.resolve("cambios-" + nombre + ".log"));
+        RegistroCambios registroReplica = new RegistroCambios(dirReplica.resolve("cambios-" + nombre + ".log"));
+        this.normal = new Papeles(primaria, replica, registroPrimaria, registroReplica,
+                dirReplica.resolve("cambios-" + nombre + ".offset"));
+        this.conmutados = new Papeles(replica, primaria, registroReplica, registroPrimaria,
+                dirPrimaria.resolve("cambios-" + nombre + ".offset"));
+        this.seq = Math.max(registroPrimaria.ultimoSeq(), registroReplica.ultimoSeq());
+        this.papeles = registroReplica.ultimoSeq() > registroPrimaria.ultimoSeq() ? conmutados : normal;
+        if (papeles == conmutados) LOG.warn("El último origen de cambios fue la réplica (seq " + seq + "); se arranca sobre ella");
+        String flujo = "flujo=\"" + nombre + "\"";
+        Metricas.gauge("biblioteca_replica_pendientes", flujo, cola::size);
+        Metricas.gauge("biblioteca_replica_lag_ops", flujo, this::lagOperaciones);
+        Metricas.gauge("biblioteca_replica_lag_ms", flujo, this::lagMs);
+        Metricas.gauge("biblioteca_replica_desbordes", flujo, desbordes::sum);
+        Metricas.gauge("biblioteca_replica_degradada", flujo, () -> degradada ? 1 : 0);
+        Metricas.gauge("biblioteca_replica_degradaciones", flujo, degradaciones::sum);
+        if (modo != ModoReplicacion.ASYNC) LOG.info("Replicación " + modo + ", presupuesto " + modo.presupuestoMs() + " ms");
+        GestorAlmacenamiento.ReceptorCambios receptor = new GestorAlmacenamiento.ReceptorCambios() {
+            @Override
+            public long publicar(Cambio c) {
+                return GestorAlmacenamientoConReplica.this.publicar(c);
+            }
+
+            @Override
+            public void confirmar(long s) {
+                GestorAlmacenamientoConReplica.this.confirmar(s);
+            }
+        };
+        primaria.setCambios(receptor);
+        replica.setCambios(receptor);
+        replicador = new Thread(this::replicar, "replicador-" + nombre);
+        replicador.setDaemon(true);
+        replicador.start();
     }
 
-    public void setPrimariaActiva(boolean act) {
-        this.primariaActiva = act;
+    public boolean primariaActiva() {
+        return papeles == normal;
     }
 
-    // Registrar devolución: si primaria activa -> escribir en primaria y replicar en background.
-    public synchronized boolean registrarDevolucion(String prestamoId) {
-        if (!primariaActiva) {
-            return replica.registrarDevolucion(prestamoId);
+    /**
+     * Failover: aplica en la réplica los cambios pendientes y la convierte en origen. Se hace
+     * con las operaciones detenidas (lock de escritura de papeles), así que el tiempo de
+     * conmutación es el de drenar la cola. La primaria queda como destino desfasado hasta
+     * {@link #intentarVolverAPrimaria}.
+     */
+    void promoverReplica() {
+        lockPapeles.writeLock().lock();
+        try {
+            if (papeles != normal) return;
+            esperarReplicacion(DRENAJE_MS);
+            synchronized (aplicando) {
+                synchronized (this) {
+                    primaria.setUltimoCambioAplicado(seq);
+                    papeles = conmutados;
+                    desfasada = true;
+                    desfasadaDesde = System.nanoTime();
+                    cola.clear();
+                }
+            }
+        } finally {
+            lockPapeles.writeLock().unlock();
         }
+    }
 
-        boolean ok = primaria.registrarDevolucion(prestamoId);
-        // Replicar asíncronamente, best-effort
-        replicator.submit(() -> {
-            try {
-                replica.registrarDevolucion(prestamoId);
-            } catch (Exception ex) {
-                System.err.println("[Replica] Error replicando devolucion: " + ex.getMessage());
+    /**
+     * Failback: si la primaria ya está casi al día (ver la nota de la clase), detiene las
+     * operaciones, aplica el resto y la vuelve a hacer origen. Devuelve true si la primaria
+     * queda activa; false si aún no es momento (se reintenta más tarde).
+     */
+    boolean intentarVolverAPrimaria() {
+        if (papeles == normal) return true;
+        if (desfasada || !primaria.latido() || lagOperaciones() > FAILBACK_UMBRAL) return false;
+        lockPapeles.writeLock().lock();
+        long t0 = System.nanoTime();
+        try {
+            if (papeles == normal) return true;
+            if (!esperarReplicacion(FAILBACK_ESPERA_MS)) return false;
+            synchronized (aplicando) {
+                synchronized (this) {
+                    if (desfasada || primaria.ultimoCambioAplicado() < seq) return false;
+                    // La réplica originó todo lo que no vino de la primaria: está completa
+                    replica.setUltimoCambioAplicado(seq);
+                    papeles = normal;
+                    cola.clear();
+                }
+                guardarCheckpoint(normal);
             }
-        });
-        return ok;
+            LOG.info("Failback completado en seq " + seq + "; operaciones detenidas "
+                    + (System.nanoTime() - t0) / 1_000_000 + " ms");
+            return true;
+        } finally {
+            lockPapeles.writeLock().unlock();
+        }
     }
 
-    public synchronized boolean registrarRenovacion(String prestamoId, String nuevaFecha) {
-        if (!primariaActiva) {
-            return replica.registrarRenovacion(prestamoId, nuevaFecha);
+    /**
+     * Numera el cambio, lo anota en el registro y lo encola para la réplica (ver la nota de
+     * orden en la clase). No espera nada: eso lo hace {@link #confirmar} al final de la
+     * operación.
+     */
+    private synchronized long publicar(Cambio c) {
+        Cambio numerado = c.conSeq(seq + 1);
+        seq = numerado.seq();
+        papeles.registro().anotar(numerado);
+        if (!desfasada) encolar(new Pendiente(numerado, System.nanoTime()));
+        return numerado.seq();
+    }
+
+    /**
+     * Espera a que el registro tenga durables los cambios hasta `s` y, en SEMISYNC/SYNC, a que
+     * la réplica los confirme. Se llama una vez por operación, sin el lock de franja ni el
+     * bloque sincronizado, así que escritores concurrentes comparten fsync y confirmación.
+     * Si el registro no se pudo escribir lanza {@link UncheckedIOException}: la operación falla.
+     */
+    private void confirmar(long s) {
+        if (politica == PoliticaCola.BLOQUEAR && cola.size() > CAPACIDAD) esperarHueco();
+        try {
+            CommitPipeline.await(papeles.registro().durable());
+        } catch (IOException e) {
+            LOG.error("Error escribiendo en el registro de cambios: " + e.getMessage());
+            throw new UncheckedIOException("Error escribiendo en el registro de cambios", e);
         }
-        boolean ok = primaria.registrarRenovacion(prestamoId, nuevaFecha);
-        replicator.submit(() -> {
-            try {
-                replica.registrarRenovacion(prestamoId, nuevaFecha);
-            } catch (Exception ex) {
-                System.err.println("[Replica] Error replicando renovacion: " + ex.getMessage());
+        if (modo != ModoReplicacion.ASYNC && !degradada) esperarConfirmacion(s, papeles.destino());
+    }
+
+    /**
+     * Espera a que la réplica reciba (SEMISYNC) o aplique (SYNC) el cambio `s`, como mucho el
+     * presupuesto del modo; si se agota, degrada a asíncrono. Las operaciones tienen tomado el
+     * lock de lectura de papeles, así que `destino` no cambia durante la espera.
+     */
+    private void esperarConfirmacion(long s, GestorAlmacenamiento destino) {
+        long t0 = System.nanoTime();
+        long limite = t0 + presupuestoNs;
+        synchronized (avance) {
+            // Un cambio aplicado al ponerse al día desde el registro cuenta también como recibido
+            while (destino.ultimoCambioAplicado() < s && (modo == ModoReplicacion.SYNC || recibido < s)) {
+                if (degradada || desfasada) return;
+                long resta = limite - System.nanoTime();
+                if (resta <= 0) {
+                    degradar(s);
+                    return;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(avance, resta);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
             }
-        });
-        return ok;
+        }
+        ACK.registrarDesde(t0);
+    }
+
+    private synchronized void degradar(long s) {
+        if (degradada) return;
+        degradada = true;
+        degradaciones.increment();
+        LOG.warn("La réplica no confirmó el cambio " + s + " en " + modo.presupuestoMs() + " ms; replicación "
+                + modo + " degradada a asíncrona hasta que vacíe la cola");
+    }
+
+    /** Vuelve al modo configurado cuando la réplica está al día; desde el hilo que replica. */
+    private void restaurarModo() {
+        if (!degradada || desfasada || !cola.isEmpty()) return;
+        degradada = false;
+        LOG.info("Réplica al día; replicación " + modo + " restablecida");
     }
 
-    public synchronized boolean validarDisponibilidad(String libroCodigo) {
-        // Leer desde primaria si está activa, sino desde réplica
-        if (!primariaActiva) return replica.validarDisponibilidad(libroCodigo);
-        return primaria.validarDisponibilidad(libroCodigo);
+    /**
+     * Con this tomado, así que nunca espera: con BLOQUEAR la espera por hueco la hace
+     * {@link #esperarHueco} al final de la operación. La holgura de la cola por encima de su
+     * capacidad solo se agota si hay más escritores concurrentes que la mitad de la capacidad.
+     */
+    private void encolar(Pendiente p) {
+        if ((politica == PoliticaCola.BLOQUEAR || cola.size() < CAPACIDAD) && cola.offer(p)) return;
+        desbordar();
     }
 
-    public synchronized Prestamo otorgarPrestamo(String usuarioId, String libroCodigo, String fechaInicio, String fechaFin) {
-        if (!primariaActiva) {
-            return replica.otorgarPrestamo(usuarioId, libroCodigo, fechaInicio, fechaFin);
+    /** Con this tomado: la réplica pasa a ponerse al día desde el registro (o una foto). */
+    private void desbordar() {
+        desbordes.increment();
+        LOG.warn("Cola de replicación llena (" + CAPACIDAD + "); la réplica se pondrá al día desde "
+                + (politica == PoliticaCola.FOTO ? "una foto completa" : "el registro de cambios"));
+        Pendiente primero = cola.peek();
+        desfasada = true;
+        pedirFoto = politica == PoliticaCola.FOTO;
+        desfasadaDesde = primero != null ? primero.t0() : System.nanoTime();
+        cola.clear();
+    }
+
+    /**
+     * BLOQUEAR: espera, sin locks tomados, a que el hilo que replica baje la cola de su
+     * capacidad, como mucho `-DreplicaBloqueoMs`; si no lo consigue, desborda.
+     */
+    private void esperarHueco() {
+        long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BLOQUEO_MS);
+        synchronized (avance) {
+            while (cola.size() > CAPACIDAD && !desfasada) {
+                long resta = limite - System.nanoTime();
+                if (resta <= 0) break;
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(avance, resta);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        synchronized (this) {
+            if (cola.size() > CAPACIDAD && !desfasada) desbordar();
         }
-        Prestamo p = primaria.otorgarPrestamo(usuarioId, libroCodigo, fechaInicio, fechaFin);
-        replicator.submit(() -> {
+    }
+
+    /** Bucle del hilo que replica. */
+    private void replicar() {
+        List<Pendiente> lote = new ArrayList<>(LOTE);
+        List<Cambio> cambios = new ArrayList<>(LOTE);
+        while (activo) {
             try {
-                // Intentar replicar el efecto: recrear el prestamo en replica (si existe)
-                if (p != null) {
-                    replica.otorgarPrestamo(p.getUsuarioId(), p.getLibroCodigo(), p.getFechaInicio(), p.getFechaFin());
+                if (desfasada) {
+                    // Un destino caído (la primaria tras un failover) se espera a que vuelva
+                    if (!papeles.destino().latido()) {
+                        Thread.sleep(100);
+                        continue;
+                    }
+                    synchronized (aplicando) {
+                        ponerseAlDia(papeles);
+                    }
+                    continue;
+                }
+                Pendiente p = cola.poll(100, TimeUnit.MILLISECONDS);
+                if (p == null) {
+                    if (sinCheckpoint > 0) {
+                        synchronized (aplicando) {
+                            guardarCheckpoint(papeles);
+                        }
+                    }
+                    continue;
                 }
+                lote.add(p);
+                cola.drainTo(lote, LOTE - 1);
+                for (Pendiente x : lote) cambios.add(x.cambio());
+                if (modo == ModoReplicacion.SEMISYNC) recibido = cambios.get(cambios.size() - 1).seq();
+                // Despierta a los SEMISYNC que esperan recepción y a los BLOQUEAR que esperan hueco
+                if (modo == ModoReplicacion.SEMISYNC || politica == PoliticaCola.BLOQUEAR) avisarAvance();
+                synchronized (aplicando) {
+                    Papeles r = papeles;
+                    try {
+                        r.destino().aplicarLote(cambios);
+                        for (Pendiente x : lote) LAG.para(x.cambio().op()).registrarDesde(x.t0());
+                    } catch (Exception ex) {
+                        // El lote no se pudo escribir: se recupera desde el registro
+                        LOG.warn("Error aplicando " + cambios.size() + " cambios en réplica: " + ex.getMessage());
+                        synchronized (this) {
+                            desfasada = true;
+                            desfasadaDesde = lote.get(0).t0();
+                            cola.clear();
+                        }
+                    }
+                    sinCheckpoint += lote.size();
+                    lote.clear();
+                    cambios.clear();
+                    if (sinCheckpoint >= CHECKPOINT_CADA || cola.isEmpty()) guardarCheckpoint(r);
+                }
+                avisarAvance();
+                restaurarModo();
+            } catch (InterruptedException e) {
+                if (!activo) return;
             } catch (Exception ex) {
-                System.err.println("[Replica] Error replicando otorgarPrestamo: " + ex.getMessage());
+                LOG.error("Error en el hilo de replicación", ex);
+            }
+        }
+    }
+
+    /** Secuencia desde la que hay que poner al día el destino; -1 para una foto completa. */
+    private long desdeParaPonerseAlDia(Papeles r) {
+        if (pedirFoto) return -1;
+        if (!inicial) return r.destino().ultimoCambioAplicado();
+        inicial = false;
+        // Al arrancar, el destino tiene lo que dice su checkpoint y todo lo que originó él mismo
+        long cp = leerCheckpoint(r.checkpoint());
+        long propio = r.registroDestino().ultimoSeq();
+        return cp < 0 && propio == 0 ? -1 : Math.max(cp, propio);
+    }
+
+    /**
+     * Pone el destino al día con los cambios del registro del origen posteriores a su
+     * secuencia (una foto completa primero si no la hay o el registro no cubre el hueco). Los
+     * cambios en vivo no se encolan mientras tanto; al terminar se vuelven a encolar y se lee
+     * el registro una vez más para recoger los que se anotaron entre la primera lectura y ese
+     * momento. Los que lleguen repetidos se descartan por secuencia.
+     */
+    private void ponerseAlDia(Papeles r) {
+        long t0 = System.nanoTime();
+        long desde = desdeParaPonerseAlDia(r);
+        long inicio = desde;
+        try {
+            if (desde < 0 || desde + 1 < r.registro().primerSeq() || desde > seq) {
+                // Sin historial utilizable: foto completa tomada después de fijar la secuencia base
+                long base = seq;
+                List<Cambio> foto = r.origen().exportar();
+                r.destino().aplicarLote(foto);
+                r.destino().setUltimoCambioAplicado(base);
+                LOG.info("Destino poblado con una foto completa del origen (" + foto.size() + " filas, seq " + base + ")");
+                desde = base;
+            } else {
+                r.destino().setUltimoCambioAplicado(desde);
+            }
+            int total = aplicarRegistro(r, desde);
+            synchronized (this) {
+                desfasada = false;
+                pedirFoto = false;
+            }
+            r.registro().sincronizar();
+            total += aplicarRegistro(r, r.destino().ultimoCambioAplicado());
+            guardarCheckpoint(r);
+            avisarAvance();
+            restaurarModo();
+            LOG.info("Destino al día desde seq " + inicio + ": " + total + " cambios en "
+                    + (System.nanoTime() - t0) / 1_000_000 + " ms");
+        } catch (Exception ex) {
+            LOG.error("No se pudo poner al día el destino desde seq " + inicio, ex);
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private int aplicarRegistro(Papeles r, long desde) throws IOException {
+        List<Cambio> lote = new ArrayList<>(LOTE);
+        int[] total = {0};
+        r.registro().leerDesde(desde, c -> {
+            lote.add(c);
+            if (lote.size() >= LOTE) {
+                total[0] += r.destino().aplicarLote(lote);
+                lote.clear();
+                avisarAvance();
             }
         });
-        return p;
+        return total[0] + r.destino().aplicarLote(lote);
+    }
+
+    private void avisarAvance() {
+        synchronized (avance) {
+            avance.notifyAll();
+        }
+    }
+
+    private static long leerCheckpoint(Path checkpoint) {
+        try {
+            if (!Files.exists(checkpoint)) return -1;
+            return Long.parseLong(Files.readString(checkpoint, StandardCharsets.UTF_8).trim());
+        } catch (IOException | NumberFormatException e) {
+            LOG.warn("Checkpoint de réplica ilegible (" + checkpoint + "): " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /** Escribe la secuencia aplicada por el destino (tmp + move atómico); con `aplicando` tomado. */
+    private void guardarCheckpoint(Papeles r) {
+        sinCheckpoint = 0;
+        try {
+            Path tmp = r.checkpoint().resolveSibling(r.checkpoint().getFileName() + ".tmp");
+            Files.writeString(tmp, Long.toString(r.destino().ultimoCambioAplicado()), StandardCharsets.UTF_8);
+            Files.move(tmp, r.checkpoint(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("No se pudo guardar el checkpoint de réplica: " + e.getMessage());
+        }
+    }
+
+    /** Secuencia del último cambio numerado (por el origen vigente). */
+    public long ultimoCambioPublicado() {
+        return seq;
+    }
+
+    /** Cambios numerados que el destino aún no ha aplicado. */
+    public long lagOperaciones() {
+        return Math.max(0, seq - papeles.destino().ultimoCambioAplicado());
+    }
+
+    /** Antigüedad en ms del cambio pendiente más viejo (0 si la réplica está al día). */
+    public long lagMs() {
+        if (lagOperaciones() == 0) return 0;
+        long desde;
+        if (desfasada) {
+            desde = desfasadaDesde;
+        } else {
+            Pendiente p = cola.peek();
+            if (p == null) return 0;
+            desde = p.t0();
+        }
+        return Math.max(0, (System.nanoTime() - desde) / 1_000_000);
+    }
+
+    /**
+     * Espera a que la réplica aplique los cambios ya numerados (y termine de ponerse al día si
+     * está desfasada); false si vence el plazo.
+     */
+    public boolean esperarReplicacion(long timeoutMs) {
+        long objetivo = seq;
+        long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        synchronized (avance) {
+            while (desfasada || papeles.destino().ultimoCambioAplicado() < objetivo) {
+                long resta = TimeUnit.NANOSECONDS.toMillis(limite - System.nanoTime());
+                if (resta <= 0) {
+                    LOG.warn("La réplica no terminó de aplicar los cambios pendientes ("
+                            + (objetivo - papeles.destino().ultimoCambioAplicado()) + ")");
+                    return false;
+                }
+                try {
+                    avance.wait(Math.min(resta, 50));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ejecuta la operación en el origen vigente. Si la primaria está caída, conmuta y la
+     * reintenta en la réplica.
+     */
+    private <T> T ejecutar(Function<GestorAlmacenamiento, T> op) {
+        for (int intento = 0; ; intento++) {
+            GestorAlmacenamiento g = null;
+            lockPapeles.readLock().lock();
+            try {
+                g = papeles.origen();
+                return op.apply(g);
+            } catch (IllegalStateException ex) {
+                if (g != primaria || intento > 0) throw ex;
+                LOG.warn("Primaria no disponible (" + ex.getMessage() + "); se reintenta en la réplica");
+            } finally {
+                lockPapeles.readLock().unlock();
+            }
+            rm.conmutarAReplica();
+        }
+    }
+
+    public boolean registrarDevolucion(String prestamoId) {
+        return ejecutar(g -> g.registrarDevolucion(prestamoId));
+    }
+
+    public boolean registrarRenovacion(String prestamoId, String nuevaFecha) {
+        return ejecutar(g -> g.registrarRenovacion(prestamoId, nuevaFecha));
+    }
+
+    public boolean validarDisponibilidad(String libroCodigo) {
+        return ejecutar(g -> g.validarDisponibilidad(libroCodigo));
+    }
+
+    public Prestamo otorgarPrestamo(String usuarioId, String libroCodigo, String fechaInicio, String fechaFin) {
+        return ejecutar(g -> g.otorgarPrestamo(usuarioId, libroCodigo, fechaInicio, fechaFin));
+    }
+
+    public List<Prestamo> buscarPrestamos(String usuarioId, String libroCodigo, PrestamoEstado estado,
+                                          String venceAntes, int limite) {
+        return ejecutar(g -> g.buscarPrestamos(usuarioId, libroCodigo, estado, venceAntes, limite));
     }
 
     public void shutdown() {
-        replicator.shutdownNow();
+        activo = false;
+        replicador.interrupt();
+        try {
+            replicador.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        normal.registro().close();
+        normal.registroDestino().close();
     }
 }
@@ -1,50 +1,163 @@
 package co.javeriana;
 
+import org.zeromq.SocketType;
 import org.zeromq.ZContext;
+import org.zeromq.ZFrame;
 import org.zeromq.ZMQ;
+import org.zeromq.ZMsg;
 
-import java.nio.charset.StandardCharsets;
+import com.google.gson.Gson;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
 import java.util.concurrent.TimeUnit;
 
 public class GestorCarga implements AutoCloseable {
+    private static final Log LOG = Log.get("GC");
+    private static final Log LOG_RETRY = Log.get("GC-retry");
+    private static final Gson GSON = new Gson();
+
+    /** Operación con la que los actores confirman una devolución o renovación aplicada. */
+    public static final String CONFIRMADO = "CONFIRMADO";
+
     // Uso: mvn -q exec:java -Dexec.mainClass=co.javeriana.GestorCarga -Dexec.args="tcp://*:5555 tcp://*:5560 tcp://actorPrestamo:5570 tcp://*:5556"
-    // Arg0 = endpoint REP para PS
+    // Arg0 = endpoint ROUTER para PS (los PS usan REQ)
     // Arg1 = endpoint PUB para Actores
-    // Arg2 = endpoint REQ hacia ActorPrestamo (opcional) - ej. tcp://localhost:5570
-    // Arg3 = endpoint REP para que Actores encolen fallos en GC (opcional) - ej. tcp://*:5556
+    // Arg2 = endpoint DEALER hacia ActorPrestamo (opcional) - ej. tcp://localhost:5570
+    // Arg3 = endpoint ROUTER para que Actores encolen fallos en GC (opcional) - ej. tcp://*:5556
+    // -DgcDataDir = directorio de las colas centrales (data/gc por defecto)
+    //
+    // Los PRESTAMO se reenvían de forma asíncrona: cada uno sale por el DEALER con un
+    // identificador de correlación como sobre ([corrId][vacío][carga]); el REP del actor lo
+    // devuelve intacto en la respuesta, que se enruta al PS original por su identidad ROUTER.
+    // Se admiten hasta -DmaxInFlight préstamos en vuelo (64 por defecto); con el límite
+    // alcanzado se deja de leer del socket de PS (backpressure). Cada préstamo expira tras
+    // -DprestamoTimeoutMs (5000 ms por defecto) y el PS recibe ERROR;motivo=Timeout.
+    //
+    // Lotes: un PS puede enviar un único mensaje multi-frame [BATCH][línea 1]...[línea n]. Cada
+    // línea se procesa como una petición independiente y la respuesta es otro mensaje
+    // multi-frame con un resultado por línea, en orden. Los PRESTAMO del lote ocupan la
+    // ventana en vuelo como los sueltos: las líneas que no caben esperan, en orden, a que se
+    // libere, y mientras haya alguna esperando no se lee de los PS.
+    //
+    // Vencimientos: cada PRESTAMO aceptado se programa en una rueda de temporizadores para el
+    // final de su `fin` (hora local). Al arrancar, el GC pide a ActorPrestamo los préstamos
+    // activos (ACTIVOS) y los programa; hasta que responde lo reintenta cada RETRY_INTERVAL_MS.
+    // Las devoluciones y renovaciones solo tocan la rueda cuando el actor las aplica: tras
+    // registrarlas, ActorDevolucion/ActorRenovacion envían por un DEALER al endpoint de Arg3
+    // CONFIRMADO;type=Devolucion|Renovacion;prestamoId=..[;nuevaFecha=..] (sin respuesta);
+    // la devolución cancela el vencimiento y la renovación lo mueve a `nuevaFecha`. Al vencer
+    // se publica en el tópico "Vencido" la carga VENCIDO;prestamoId=..;usuarioId=..;libroCodigo=..;fechaFin=..
+    // Resolución -DvencidosTickMs (1000 ms por defecto).
+
+    // Tiempo en el GC: hasta publicar (DEVOLUCION/RENOVACION) o hasta la respuesta de ActorPrestamo (PRESTAMO)
+    private static final Metricas.PorOperacion REENVIO = Metricas.porOperacion("biblioteca_gc_reenvio_segundos");
+
+    private static final int RETRY_BATCH = Integer.getInteger("retryBatch", 500);
+    private static final long RETRY_INTERVAL_MS = 5000L;
 
     private final ZContext ctx;
+    private final String dataDir = System.getProperty("gcDataDir", "data" + java.io.File.separator + "gc") + java.io.File.separator;
     private ZMQ.Socket rep;
     private ZMQ.Socket pub;
-    private ZMQ.Socket reqPrestamo;
+    private ZMQ.Socket dealerPrestamo;
     private ZMQ.Socket repActorEnqueue;
     private DurableQueue centralPendingDevoluciones;
     private DurableQueue centralPendingRenovaciones;
     private DurableQueue centralPendingPrestamos;
-    private final Queue<String> pendingPrestamos = new ConcurrentLinkedQueue<>();
-    private final ScheduledExecutorService retryExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
-        Thread t = new Thread(r, "gc-retry-thread");
-        t.setDaemon(true);
-        return t;
-    });
+    private final Queue<String> pendingPrestamos = new ArrayDeque<>();
     private long lamportClock = 0L;
+    // Formato hacia los actores (binario salvo -DwireFormat=text); con los PS siempre texto
+    private final boolean binario = MensajeCodec.binarioPorDefecto();
+
+    private final int maxInFlight = Integer.getInteger("maxInFlight", 64);
+    private final long prestamoTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("prestamoTimeoutMs", 5000L));
+    private long nextCorrId = 1L;
+    /** Préstamos en vuelo por identificador de correlación, en orden de envío (= orden de expiración). */
+    private final LinkedHashMap<String, EnVuelo> enVuelo = new LinkedHashMap<>();
+    /** Líneas de lotes a la espera de hueco en la ventana en vuelo, en orden de llegada. */
+    private final Queue<LineaLote> lineasEnEspera = new ArrayDeque<>();
+    /** Préstamos activos por fecha de vencimiento; solo la toca el hilo del bucle. */
+    private final RuedaTemporizadores<Vencimiento> vencimientos =
+            new RuedaTemporizadores<>(Long.getLong("vencidosTickMs", 1000L), System.currentTimeMillis());
+    private long vencidosPublicados;
+    private boolean vencimientosCargados;
+    private boolean cargandoVencimientos;
+    /** Confirmaciones llegadas con la carga inicial en curso: prestamoId -> nueva fecha, o null si se devolvió. */
+    private final Map<String, String> confirmadosDuranteCarga = new HashMap<>();
+
+    private record Vencimiento(String usuarioId, String libroCodigo, String fechaFin) {}
+
+    /** Préstamo reenviado a ActorPrestamo a la espera de respuesta. */
+    private static final class EnVuelo {
+        final String carga;                 // carga original, sin ts
+        final Consumer<String> destino;     // entrega la respuesta al PS; null si es un reintento
+        final DurableQueue.Item reintento;  // elemento de la cola central, si viene de ahí
+        final long inicio;
+        final long deadline;
+
+        EnVuelo(String carga, Consumer<String> destino, DurableQueue.Item reintento, long inicio, long deadline) {
+            this.carga = carga;
+            this.destino = destino;
+            this.reintento = reintento;
+            this.inicio = inicio;
+            this.deadline = deadline;
+        }
+    }
+
+    private record LineaLote(String carga, Consumer<String> destino) {}
+
+    /** Lote multi-frame de un PS: se responde cuando todas sus líneas tienen resultado. */
+    private final class Lote {
+        final ZFrame cliente;
+        final String[] resultados;
+        int pendientes;
+
+        Lote(ZFrame cliente, int n) {
+            this.cliente = cliente;
+            this.resultados = new String[n];
+            this.pendientes = n;
+        }
+
+        void completar(int i, String resultado) {
+            resultados[i] = resultado;
+            if (--pendientes > 0) return;
+            ZMsg r = new ZMsg();
+            r.add(cliente);
+            r.add("");
+            for (String res : resultados) r.add(res);
+            r.send(rep);
+        }
+    }
 
     public GestorCarga() {
-        this.ctx = new ZContext();
+        this(new ZContext());
     }
 
-    /** Crea y bindea el socket REP (para atender PS). */
+    /** Con un contexto compartido, los endpoints pueden ser `inproc://` (pruebas y benchmarks). */
+    public GestorCarga(ZContext ctx) {
+        this.ctx = ctx;
+        // Lectura sin sincronizar desde el hilo que expone: basta como indicador
+        Metricas.gauge("biblioteca_gc_en_vuelo", "", enVuelo::size);
+        Metricas.gauge("biblioteca_gc_vencimientos_programados", "", vencimientos::size);
+        Metricas.gauge("biblioteca_gc_vencidos_publicados", "", () -> vencidosPublicados);
+    }
+
+    /** Crea y bindea el socket ROUTER que atiende a los PS (REQ). */
     public void iniciarRep(String repBind) {
-        rep = ctx.createSocket(ZMQ.REP);
-        
-        rep.setReceiveTimeOut(0);     // bloqueante
+        rep = ctx.createSocket(SocketType.ROUTER);
         rep.setLinger(0);             // no retener mensajes al cerrar
         rep.bind(repBind);
-        System.out.println("[GC] REP escuchando en " + repBind);
+        LOG.info("ROUTER (PS) escuchando en " + repBind);
     }
 
     /** Crea y bindea el socket PUB (para publicar a Actores). */
@@ -52,23 +165,34 @@ public class GestorCarga implements AutoCloseable {
         pub = ctx.createSocket(ZMQ.PUB);
         pub.setLinger(0);
         pub.bind(pubBind);
-        System.out.println("[GC] PUB publicando en " + pubBind);
+        LOG.info("PUB publicando en " + pubBind);
     }
 
-    /** Exponer endpoint REP para que actores puedan pedir encolar operaciones fallidas. */
+    /** Exponer endpoint ROUTER para que actores puedan pedir encolar operaciones fallidas. */
     public void iniciarRepActorEnqueue(String bind) {
-        repActorEnqueue = ctx.createSocket(ZMQ.REP);
+        repActorEnqueue = ctx.createSocket(SocketType.ROUTER);
         repActorEnqueue.setLinger(0);
         repActorEnqueue.bind(bind);
-        System.out.println("[GC] REP (actor-enqueue) escuchando en " + bind);
+        LOG.info("ROUTER (actor-enqueue) escuchando en " + bind);
 
         // Inicializar colas durables centrales
-        String base = "data" + java.io.File.separator + "gc" + java.io.File.separator;
-        centralPendingDevoluciones = new DurableQueue(base + "pending_devoluciones.db");
-        centralPendingRenovaciones = new DurableQueue(base + "pending_renovaciones.db");
+        centralPendingDevoluciones = new DurableQueue(dataDir + "pending_devoluciones.db");
+        centralPendingRenovaciones = new DurableQueue(dataDir + "pending_renovaciones.db");
+    }
+
+    /** Conecta el socket DEALER hacia ActorPrestamo (endpoint debe ser tcp://ip:puerto). */
+    public void iniciarReqPrestamo(String endpointPrestamo) {
+        dealerPrestamo = ctx.createSocket(SocketType.DEALER);
+        dealerPrestamo.setLinger(0);
+        dealerPrestamo.connect(endpointPrestamo);
+        LOG.info("DEALER hacia ActorPrestamo en " + endpointPrestamo);
     }
 
-    /** Bucle principal: recibe por REP, responde ACK y publica por PUB. */
+    /**
+     * Bucle principal (un solo hilo, dueño de todos los sockets): atiende PS, respuestas de
+     * ActorPrestamo, peticiones de encolado de los actores, expiraciones, vencimientos de
+     * préstamos y reintentos.
+     */
     public void runLoop() {
         if (rep == null || pub == null) {
             throw new IllegalStateException("Llama primero a iniciarRep() e iniciarPub().");
@@ -76,209 +200,448 @@ public class GestorCarga implements AutoCloseable {
 
         // Ensure central pending prestamo queue exists
         try {
-            String base = "data" + java.io.File.separator + "gc" + java.io.File.separator;
-            centralPendingPrestamos = new DurableQueue(base + "pending_prestamos.db");
+            centralPendingPrestamos = new DurableQueue(dataDir + "pending_prestamos.db");
         } catch (Exception ex) {
-            System.err.println("[GC] No se pudo inicializar centralPendingPrestamos: " + ex.getMessage());
+            LOG.warn("No se pudo inicializar centralPendingPrestamos: " + ex.getMessage());
         }
 
-        // Start retry task for queued PRESTAMO requests and to reprocesar colas centrales
-        retryExecutor.scheduleWithFixedDelay(() -> {
-            try {
-                if (reqPrestamo == null) return;
-
-                // First, process durable central pending prestamos
-                if (centralPendingPrestamos != null) {
-                    centralPendingPrestamos.processAll(item -> {
-                        try {
-                            System.out.println("[GC-retry] Reintentando PRESTAMO desde cola central: " + item);
-                            lamportClock++;
-                            String cargaWithTs = item + ";ts=" + lamportClock;
-                            reqPrestamo.send(cargaWithTs.getBytes(ZMQ.CHARSET), 0);
-                            byte[] r = reqPrestamo.recv(0);
-                            String respuesta = r != null ? new String(r, ZMQ.CHARSET) : "ERROR:SinRespuesta";
-                            System.out.println("[GC-retry] Respuesta: " + respuesta);
-                            if (respuesta.contains("GA_NoDisponible")) {
-                                return false; // keep in queue
-                            } else {
-                                System.out.println("[GC-retry] PRESTAMO procesado correctamente: " + respuesta);
-                                return true; // remove from durable queue
-                            }
-                        } catch (Exception ex) {
-                            System.err.println("[GC-retry] Error procesando pedido desde cola central: " + ex.getMessage());
-                            return false;
-                        }
-                    });
-                }
+        // Dos pollers: con el límite de préstamos en vuelo alcanzado no se lee de los PS
+        ZMQ.Poller todos = ctx.createPoller(3);
+        ZMQ.Poller sinPs = ctx.createPoller(2);
+        int idxPs = todos.register(rep, ZMQ.Poller.POLLIN);
+        int idxDealer = -1, idxActorRep = -1, idxDealerBp = -1, idxActorRepBp = -1;
+        if (dealerPrestamo != null) {
+            idxDealer = todos.register(dealerPrestamo, ZMQ.Poller.POLLIN);
+            idxDealerBp = sinPs.register(dealerPrestamo, ZMQ.Poller.POLLIN);
+        }
+        if (repActorEnqueue != null) {
+            idxActorRep = todos.register(repActorEnqueue, ZMQ.Poller.POLLIN);
+            idxActorRepBp = sinPs.register(repActorEnqueue, ZMQ.Poller.POLLIN);
+        }
 
-                // Also process in-memory pendingPrestamos (fallback)
-                String carga;
-                while ((carga = pendingPrestamos.poll()) != null) {
-                    System.out.println("[GC-retry] Reintentando PRESTAMO desde cola en memoria: " + carga);
-                    lamportClock++;
-                    String cargaWithTs = carga + ";ts=" + lamportClock;
-                    reqPrestamo.send(cargaWithTs.getBytes(ZMQ.CHARSET), 0);
-                    byte[] r = reqPrestamo.recv(0);
-                    String respuesta = r != null ? new String(r, ZMQ.CHARSET) : "ERROR:SinRespuesta";
-                    System.out.println("[GC-retry] Respuesta: " + respuesta);
-                    if (respuesta.contains("GA_NoDisponible")) {
-                        // move to durable queue for longer-term persistence
-                        if (centralPendingPrestamos != null) centralPendingPrestamos.enqueue(carga);
-                        else pendingPrestamos.add(carga);
-                        Thread.sleep(1000);
-                    } else {
-                        System.out.println("[GC-retry] PRESTAMO procesado correctamente: " + respuesta);
-                    }
-                }
-                // Reprocesar colas centrales: publicar nuevamente los mensajes (Devolucion/Renovacion)
-                if (centralPendingDevoluciones != null) {
-                    centralPendingDevoluciones.processAll(item -> {
-                        try {
-                            lamportClock++;
-                            String cargaWithTs = item + ";ts=" + lamportClock;
-                            pub.sendMore("Devolucion");
-                            pub.send(cargaWithTs);
-                            System.out.println("[GC-retry] Re-publicada Devolucion desde cola central: " + cargaWithTs);
-                            return true; // eliminado de la cola local central
-                        } catch (Exception ex) {
-                            System.err.println("[GC-retry] Error re-publicando Devolucion: " + ex.getMessage());
-                            return false;
-                        }
-                    });
-                }
-                if (centralPendingRenovaciones != null) {
-                    centralPendingRenovaciones.processAll(item -> {
-                        try {
-                            lamportClock++;
-                            String cargaWithTs = item + ";ts=" + lamportClock;
-                            pub.sendMore("Renovacion");
-                            pub.send(cargaWithTs);
-                            System.out.println("[GC-retry] Re-publicada Renovacion desde cola central: " + cargaWithTs);
-                            return true;
-                        } catch (Exception ex) {
-                            System.err.println("[GC-retry] Error re-publicando Renovacion: " + ex.getMessage());
-                            return false;
-                        }
-                    });
-                }
-            } catch (Exception ex) {
-                System.err.println("[GC-retry] Error durante reintento: " + ex.getMessage());
+        cargarVencimientos();
+        long nextRetry = System.currentTimeMillis() + RETRY_INTERVAL_MS;
+        while (!Thread.currentThread().isInterrupted()) {
+            boolean lleno = enVuelo.size() >= maxInFlight || !lineasEnEspera.isEmpty();
+            ZMQ.Poller poller = lleno ? sinPs : todos;
+            int rc = poller.poll(pollTimeoutMs(nextRetry));
+            if (rc < 0) break;
+
+            if (!lleno && poller.pollin(idxPs)) atenderPs();
+            if (dealerPrestamo != null && poller.pollin(lleno ? idxDealerBp : idxDealer)) atenderRespuestaPrestamo();
+            if (repActorEnqueue != null && poller.pollin(lleno ? idxActorRepBp : idxActorRep)) atenderActorEnqueue();
+
+            expirarEnVuelo();
+            despacharLineas();
+            vencimientos.avanzar(System.currentTimeMillis(), this::publicarVencido);
+            if (System.currentTimeMillis() >= nextRetry) {
+                reintentar();
+                nextRetry = System.currentTimeMillis() + RETRY_INTERVAL_MS;
             }
-        }, 5, 5, TimeUnit.SECONDS);
+        }
+    }
 
-        // Poll both PS REP and actor-enqueue REP (if configured)
-        ZMQ.Poller poller = ctx.createPoller(2);
-        poller.register(rep, ZMQ.Poller.POLLIN);
-        int idxActorRep = -1;
-        if (repActorEnqueue != null) {
-            poller.register(repActorEnqueue, ZMQ.Poller.POLLIN);
-            idxActorRep = 1;
+    private long pollTimeoutMs(long nextRetry) {
+        long t = Math.max(0, nextRetry - System.currentTimeMillis());
+        if (!enVuelo.isEmpty()) {
+            long d = enVuelo.values().iterator().next().deadline - System.nanoTime();
+            t = Math.min(t, Math.max(0, TimeUnit.NANOSECONDS.toMillis(d) + 1));
         }
+        return Math.min(t, vencimientos.msHastaProximoTick(System.currentTimeMillis()));
+    }
 
-        while (!Thread.currentThread().isInterrupted()) {
-            int rc = poller.poll();
-            if (rc == 0) continue;
-
-            String carga = null;
-            if (poller.pollin(0)) {
-                byte[] req = rep.recv(0); // bloqueante
-                if (req == null) continue;
-                carga = new String(req, ZMQ.CHARSET);
-                System.out.println("[GC] Recibido: " + carga);
-
-                // Update Lamport clock on incoming PS message (PS doesn't send ts): increment local clock
-                lamportClock++;
-
-                if (carga.startsWith("DEVOLUCION") || carga.startsWith("RENOVACION")) {
-                    String topic = carga.startsWith("DEVOLUCION") ? "Devolucion" : "Renovacion";
-                    // ACK inmediato al PS
-                    rep.send("ACK".getBytes(ZMQ.CHARSET), 0);
-
-                    // Publicar a los Actores (frame 1 = tópico, frame 2 = carga)
-                    // attach ts to published payload
-                    String cargaWithTs = carga + ";ts=" + lamportClock;
-                    pub.sendMore(topic);
-                    pub.send(cargaWithTs);
-                    System.out.printf("[GC] Publicado -> topic=%s carga=%s%n", topic, carga);
-                    continue;
-                }
+    private void atenderPs() {
+        ZMsg msg = ZMsg.recvMsg(rep, ZMQ.DONTWAIT);
+        if (msg == null) return;
+        ZFrame cliente = msg.pop();
+        msg.pop(); // delimitador vacío del sobre REQ
+        String carga = msg.popString();
+        if (GcSocketPool.BATCH.equals(carga) && !msg.isEmpty()) {
+            Lote lote = new Lote(cliente, msg.size());
+            LOG.debug(() -> "Recibido lote de " + msg.size() + " operaciones");
+            for (int i = 0; !msg.isEmpty(); i++) {
+                final int idx = i;
+                lineasEnEspera.add(new LineaLote(msg.popString(), r -> lote.completar(idx, r)));
+            }
+            msg.destroy();
+            despacharLineas();
+            return;
+        }
+        msg.destroy();
+        procesarOperacion(carga, r -> responderPs(cliente, r));
+    }
 
-                if (carga.startsWith("PRESTAMO")) {
-                    // Flujo síncrono: reenviar a ActorPrestamo vía REQ/REP y devolver su respuesta al PS
-                    if (reqPrestamo == null) {
-                        rep.send("ERROR:NoActorPrestamoConfigured".getBytes(ZMQ.CHARSET), 0);
-                        continue;
-                    }
-                    // attach lamport ts when forwarding
-                    lamportClock++;
-                    String cargaWithTs = carga + ";ts=" + lamportClock;
-                    reqPrestamo.send(cargaWithTs.getBytes(ZMQ.CHARSET), 0);
-                    byte[] resp = reqPrestamo.recv(0);
-                    String respuesta = resp != null ? new String(resp, ZMQ.CHARSET) : "ERROR:SinRespuesta";
-                    System.out.println("[GC] Respuesta ActorPrestamo -> " + respuesta);
-                    if (respuesta.contains("GA_NoDisponible")) {
-                        // Encolar para reintento y notify PS with PENDING (persistir en cola central)
-                        if (centralPendingPrestamos != null) {
-                            centralPendingPrestamos.enqueue(carga);
-                        } else {
-                            pendingPrestamos.add(carga);
-                        }
-                        rep.send("PENDING".getBytes(ZMQ.CHARSET), 0);
-                    } else {
-                        rep.send(respuesta.getBytes(ZMQ.CHARSET), 0);
-                    }
-                    continue;
-                }
+    /** Procesa líneas de lotes en espera mientras quede hueco en la ventana en vuelo. */
+    private void despacharLineas() {
+        while (!lineasEnEspera.isEmpty() && enVuelo.size() < maxInFlight) {
+            LineaLote l = lineasEnEspera.poll();
+            procesarOperacion(l.carga(), l.destino());
+        }
+    }
+
+    /** Procesa una operación de un PS; la respuesta se entrega a `destino` (ahora o al llegar). */
+    private void procesarOperacion(String carga, Consumer<String> destino) {
+        if (carga == null) {
+            destino.accept("NACK:OperacionDesconocida");
+            return;
+        }
+        LOG.debug(() -> "Recibido: " + carga);
+        long t0 = System.nanoTime();
+
+        // Update Lamport clock on incoming PS message (PS doesn't send ts): increment local clock
+        lamportClock++;
+
+        if (carga.startsWith("DEVOLUCION") || carga.startsWith("RENOVACION")) {
+            String topic = carga.startsWith("DEVOLUCION") ? "Devolucion" : "Renovacion";
+            // ACK inmediato al PS
+            destino.accept("ACK");
+
+            // Publicar a los Actores (frame 1 = tópico, frame 2 = carga)
+            // attach ts to published payload
+            Mensaje m = Mensaje.deTexto(carga).conTs(lamportClock);
+            pub.sendMore(topic);
+            MensajeCodec.enviar(pub, m, binario, 0);
+            REENVIO.para(carga).registrarDesde(t0);
+            LOG.debug(() -> String.format("Publicado -> topic=%s carga=%s", topic, carga));
+            return;
+        }
+
+        if (Metricas.OP.equals(carga)) {
+            // Las métricas de ActorPrestamo viajan como un préstamo más (mismo DEALER y timeout)
+            if (dealerPrestamo == null) destino.accept(Metricas.exponer());
+            else enviarPrestamo(carga, r -> destino.accept(Metricas.exponer() + metricasDe(r)), null);
+            return;
+        }
+
+        if (carga.startsWith("PRESTAMO") || carga.startsWith(ActorPrestamo.CONSULTA)) {
+            // Las consultas de préstamos las resuelve ActorPrestamo: viajan como un préstamo más
+            if (dealerPrestamo == null) {
+                destino.accept("ERROR:NoActorPrestamoConfigured");
+                return;
+            }
+            enviarPrestamo(carga, destino, null);
+            return;
+        }
+
+        // Operación desconocida desde PS
+        destino.accept("NACK:OperacionDesconocida");
+    }
+
+    private static String metricasDe(String respuesta) {
+        String m = KvParser.local().parse(respuesta).get("metricas");
+        return m == null ? "# ActorPrestamo sin respuesta: " + respuesta + "\n" : m + "\n";
+    }
+
+    private void responderPs(ZFrame cliente, String resp) {
+        ZMsg r = new ZMsg();
+        r.add(cliente);
+        r.add("");
+        r.add(resp);
+        r.send(rep);
+    }
+
+    /** Reenvía un PRESTAMO a ActorPrestamo sin esperar la respuesta. */
+    private void enviarPrestamo(String carga, Consumer<String> destino, DurableQueue.Item reintento) {
+        // attach lamport ts when forwarding
+        lamportClock++;
+        String corrId = Long.toString(nextCorrId++);
+        long ahora = System.nanoTime();
+        enVuelo.put(corrId, new EnVuelo(carga, destino, reintento, ahora, ahora + prestamoTimeoutNanos));
+        dealerPrestamo.sendMore(corrId);
+        dealerPrestamo.sendMore("");
+        MensajeCodec.enviar(dealerPrestamo, Mensaje.deTexto(carga).conTs(lamportClock), binario, 0);
+    }
+
+    private void atenderRespuestaPrestamo() {
+        ZMsg msg = ZMsg.recvMsg(dealerPrestamo, ZMQ.DONTWAIT);
+        if (msg == null) return;
+        String corrId = msg.popString();
+        msg.pop(); // delimitador vacío
+        ZFrame cuerpo = msg.pop();
+        msg.destroy();
+        // La respuesta puede venir en binario; hacia los PS se reenvía siempre como texto
+        String respuesta;
+        try {
+            respuesta = cuerpo == null ? "ERROR:SinRespuesta" : MensajeCodec.leer(cuerpo.getData()).aTexto();
+        } catch (RuntimeException ex) {
+            // Un frame ilegible no puede tumbar el bucle: se descarta y la petición vence por Timeout
+            LOG.warn("Respuesta ilegible de ActorPrestamo descartada (corrId=" + corrId + "): " + ex.getMessage());
+            return;
+        }
+        EnVuelo ev = enVuelo.remove(corrId);
+        if (ev == null) {
+            LOG.warn("Respuesta tardía descartada (corrId=" + corrId + "): " + respuesta);
+            return;
+        }
+        REENVIO.para(ev.carga).registrarDesde(ev.inicio);
+        LOG.debug(() -> "Respuesta ActorPrestamo -> " + respuesta);
+        // Solo los PRESTAMO se reintentan desde la cola; una consulta fallida se responde tal cual
+        boolean noDisponible = ev.carga.startsWith("PRESTAMO") && respuesta.contains("GA_NoDisponible");
+        if (ev.carga.startsWith("PRESTAMO") && respuesta.startsWith("OK")) programarVencimiento(ev.carga, respuesta);
+
+        if (ev.reintento != null) {
+            // Reintento desde la cola central: reprogramar con backoff o confirmar
+            if (noDisponible) centralPendingPrestamos.nack(ev.reintento);
+            else {
+                LOG_RETRY.info("PRESTAMO procesado correctamente: " + respuesta);
+                centralPendingPrestamos.ack(ev.reintento);
+            }
+            return;
+        }
+        if (noDisponible) {
+            // Encolar para reintento y notify PS with PENDING (persistir en cola central)
+            encolarPrestamoPendiente(ev.carga);
+            if (ev.destino != null) ev.destino.accept("PENDING");
+        } else if (ev.destino != null) {
+            ev.destino.accept(respuesta);
+        } else {
+            LOG_RETRY.info("PRESTAMO procesado correctamente: " + respuesta);
+        }
+    }
+
+    /** Programa el vencimiento de un préstamo recién aceptado (PRESTAMO;...;fin=... y OK;prestamoId=...). */
+    private void programarVencimiento(String carga, String respuesta) {
+        String id = KvParser.local().parse(respuesta).get("prestamoId");
+        if (id == null) return;
+        KvParser kv = KvParser.local().parse(carga);
+        programar(id, new Vencimiento(kv.get("usuarioId"), kv.get("libroCodigo"), kv.get("fin")));
+    }
+
+    /** Pide a ActorPrestamo los préstamos activos para programar sus vencimientos. */
+    private void cargarVencimientos() {
+        if (dealerPrestamo == null || vencimientosCargados || cargandoVencimientos) return;
+        cargandoVencimientos = true;
+        enviarPrestamo(ActorPrestamo.ACTIVOS, this::vencimientosActivos, null);
+    }
 
-                // Operación desconocida desde PS
-                rep.send("NACK:OperacionDesconocida".getBytes(ZMQ.CHARSET), 0);
-                continue;
+    private void vencimientosActivos(String respuesta) {
+        cargandoVencimientos = false;
+        String json = respuesta.startsWith("OK") ? KvParser.local().parse(respuesta).get("prestamos") : null;
+        Prestamo[] activos;
+        try {
+            activos = json == null ? null : GSON.fromJson(json, Prestamo[].class);
+        } catch (RuntimeException ex) {
+            activos = null;
+        }
+        if (activos == null) {
+            LOG.warn("No se pudieron cargar los préstamos activos (" + respuesta + "); se reintentará");
+            return;
+        }
+        for (Prestamo p : activos) {
+            String fechaFin = p.getFechaFin();
+            // Lo confirmado mientras tanto es más reciente que la foto de ActorPrestamo
+            if (confirmadosDuranteCarga.containsKey(p.getId())) {
+                fechaFin = confirmadosDuranteCarga.get(p.getId());
+                if (fechaFin == null) continue;
             }
+            programar(p.getId(), new Vencimiento(p.getUsuarioId(), p.getLibroCodigo(), fechaFin));
+        }
+        confirmadosDuranteCarga.clear();
+        vencimientosCargados = true;
+        LOG.info("Vencimientos cargados: " + activos.length + " préstamos activos");
+    }
+
+    /** Devolución o renovación aplicada por un actor: cancela o reprograma el vencimiento. */
+    private void anotarConfirmacion(Mensaje m) {
+        String id = m.get("prestamoId");
+        if (id == null) return;
+        String nueva = "Renovacion".equalsIgnoreCase(m.get("type")) ? m.get("nuevaFecha") : null;
+        if (nueva == null && !"Devolucion".equalsIgnoreCase(m.get("type"))) {
+            LOG.warn("Confirmación mal formada: " + m);
+            return;
+        }
+        if (!vencimientosCargados) confirmadosDuranteCarga.put(id, nueva);
+        if (nueva == null) {
+            vencimientos.cancelar(id);
+            return;
+        }
+        Vencimiento v = vencimientos.get(id);
+        if (v != null) programar(id, new Vencimiento(v.usuarioId(), v.libroCodigo(), nueva));
+    }
+
+    /**
+     * Envía sin esperar respuesta un CONFIRMADO por un DEALER conectado al endpoint de actores
+     * del GC. Devuelve false si no cabe en la cola del socket (GC caído durante mucho tiempo).
+     */
+    public static boolean confirmar(ZMQ.Socket dealer, String type, String prestamoId, String nuevaFecha) {
+        Mensaje m = new Mensaje(CONFIRMADO).con("type", type).con("prestamoId", prestamoId);
+        if (nuevaFecha != null) m.con("nuevaFecha", nuevaFecha);
+        // Un mensaje multiparte se encola entero o nada: si entra el delimitador, entra el cuerpo
+        if (!dealer.send("", ZMQ.SNDMORE | ZMQ.DONTWAIT)) return false;
+        return MensajeCodec.enviar(dealer, m, MensajeCodec.binarioPorDefecto(), 0);
+    }
+
+    private void programar(String prestamoId, Vencimiento v) {
+        try {
+            // Vence al terminar el día de fechaFin
+            long vence = LocalDate.parse(v.fechaFin()).plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            vencimientos.programar(prestamoId, vence, v);
+        } catch (DateTimeParseException | NullPointerException ex) {
+            LOG.warn("Préstamo " + prestamoId + " sin fecha de fin válida (" + v.fechaFin() + "): no se vigila su vencimiento");
+        }
+    }
+
+    private void publicarVencido(String prestamoId, Vencimiento v) {
+        lamportClock++;
+        Mensaje m = new Mensaje("VENCIDO").con("prestamoId", prestamoId).con("usuarioId", v.usuarioId())
+                .con("libroCodigo", v.libroCodigo()).con("fechaFin", v.fechaFin()).conTs(lamportClock);
+        pub.sendMore("Vencido");
+        MensajeCodec.enviar(pub, m, binario, 0);
+        vencidosPublicados++;
+        LOG.info("Préstamo vencido publicado: " + m);
+    }
+
+    private void encolarPrestamoPendiente(String carga) {
+        if (centralPendingPrestamos != null) centralPendingPrestamos.enqueue(carga);
+        else pendingPrestamos.add(carga);
+    }
+
+    /** Responde Timeout a los préstamos cuyo plazo venció; sus respuestas tardías se descartan. */
+    private void expirarEnVuelo() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String, EnVuelo>> it = enVuelo.entrySet().iterator();
+        while (it.hasNext()) {
+            EnVuelo ev = it.next().getValue();
+            if (ev.deadline - now > 0) break;
+            it.remove();
+            REENVIO.para(ev.carga).registrar(now - ev.inicio);
+            LOG.warn("Timeout esperando a ActorPrestamo: " + ev.carga);
+            if (ev.reintento != null) centralPendingPrestamos.nack(ev.reintento);
+            else if (ev.destino != null) ev.destino.accept("ERROR;motivo=Timeout");
+            else encolarPrestamoPendiente(ev.carga);
+        }
+    }
 
-            // actor-enqueue requests (se procesan independientemente)
-            if (idxActorRep >= 0 && poller.pollin(idxActorRep)) {
-                byte[] reqA = repActorEnqueue.recv(0);
-                if (reqA == null) continue;
-                String msg = new String(reqA, ZMQ.CHARSET);
-                System.out.println("[GC] Recibido desde actor (enqueue): " + msg);
-                // Esperamos una carga del formato: ENQUEUE;type=Devolucion;carga=...
-                if (msg.startsWith("ENQUEUE;")) {
-                    // parse key-values after ENQUEUE;
-                    String payload = msg.substring("ENQUEUE;".length());
-                    java.util.Map<String, String> kv = Utils.parseKeyValues(payload);
-                    String type = kv.get("type");
-                    String cargaOrig = kv.get("carga");
-                    if (type == null || cargaOrig == null) {
-                        repActorEnqueue.send("ERROR:Malformed".getBytes(ZMQ.CHARSET), 0);
-                    } else {
-                        if (type.equalsIgnoreCase("Devolucion") && centralPendingDevoluciones != null) {
-                            centralPendingDevoluciones.enqueue(cargaOrig);
-                            repActorEnqueue.send("ENQUEUED".getBytes(ZMQ.CHARSET), 0);
-                        } else if (type.equalsIgnoreCase("Renovacion") && centralPendingRenovaciones != null) {
-                            centralPendingRenovaciones.enqueue(cargaOrig);
-                            repActorEnqueue.send("ENQUEUED".getBytes(ZMQ.CHARSET), 0);
-                        } else if (type.equalsIgnoreCase("Control")) {
-                            // Control message: propagar como evento de failover a los actores locales
-                            System.err.println("[GC] Mensaje de control recibido: " + cargaOrig);
-                            try {
-                                pub.sendMore("Failover");
-                                pub.send(cargaOrig);
-                                repActorEnqueue.send("ENQUEUED".getBytes(ZMQ.CHARSET), 0);
-                            } catch (Exception ex) {
-                                repActorEnqueue.send(("ERROR:PublishFailed:" + ex.getMessage()).getBytes(ZMQ.CHARSET), 0);
-                            }
-                        } else {
-                            repActorEnqueue.send("ERROR:UnknownType".getBytes(ZMQ.CHARSET), 0);
-                        }
+    /** Reintentos periódicos: préstamos pendientes y re-publicación de las colas centrales. */
+    private void reintentar() {
+        try {
+            cargarVencimientos();
+            if (dealerPrestamo != null) {
+                // Solo se reintentan los elementos cuyo backoff expiró y caben en la ventana en vuelo
+                int libres = maxInFlight - enVuelo.size();
+                if (centralPendingPrestamos != null && libres > 0) {
+                    List<DurableQueue.Item> due = centralPendingPrestamos.pollDue(Math.min(libres, RETRY_BATCH));
+                    for (DurableQueue.Item item : due) {
+                        LOG_RETRY.info("Reintentando PRESTAMO desde cola central: " + item.getPayload());
+                        enviarPrestamo(item.getPayload(), null, item);
                     }
-                } else {
-                    repActorEnqueue.send("ERROR:Unsupported".getBytes(ZMQ.CHARSET), 0);
+                    libres -= due.size();
+                }
+                // Also process in-memory pendingPrestamos (fallback)
+                String carga;
+                while (libres-- > 0 && (carga = pendingPrestamos.poll()) != null) {
+                    LOG_RETRY.info("Reintentando PRESTAMO desde cola en memoria: " + carga);
+                    enviarPrestamo(carga, null, null);
                 }
             }
+            // Reprocesar colas centrales: publicar nuevamente los mensajes (Devolucion/Renovacion)
+            if (centralPendingDevoluciones != null) {
+                centralPendingDevoluciones.processDue(RETRY_BATCH, item -> republicar("Devolucion", item));
+            }
+            if (centralPendingRenovaciones != null) {
+                centralPendingRenovaciones.processDue(RETRY_BATCH, item -> republicar("Renovacion", item));
+            }
+        } catch (Exception ex) {
+            LOG_RETRY.warn("Error durante reintento: " + ex.getMessage());
+        }
+    }
 
-            // Operación desconocida
-            rep.send("NACK:OperacionDesconocida".getBytes(ZMQ.CHARSET), 0);
+    private boolean republicar(String topic, String item) {
+        try {
+            lamportClock++;
+            // La carga guardada puede traer un ts antiguo: se sustituye por el actual
+            Mensaje m = Mensaje.deTexto(item).conTs(lamportClock);
+            pub.sendMore(topic);
+            MensajeCodec.enviar(pub, m, binario, 0);
+            LOG_RETRY.info("Re-publicada " + topic + " desde cola central: " + m);
+            return true; // eliminado de la cola local central
+        } catch (Exception ex) {
+            LOG_RETRY.warn("Error re-publicando " + topic + ": " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /** actor-enqueue requests (se procesan independientemente). */
+    private void atenderActorEnqueue() {
+        ZMsg req = ZMsg.recvMsg(repActorEnqueue, ZMQ.DONTWAIT);
+        if (req == null) return;
+        ZFrame actor = req.pop();
+        req.pop(); // delimitador vacío
+        ZFrame cuerpo = req.pop();
+        req.destroy();
+        byte[] raw = cuerpo == null ? null : cuerpo.getData();
+        String resp;
+        if (MensajeCodec.esBinario(raw)) {
+            Mensaje m = decodificarDeActor(raw);
+            if (m == null) {
+                resp = "ERROR:Formato";
+            } else {
+                LOG.debug(() -> "Recibido desde actor (enqueue): " + m);
+                if (CONFIRMADO.equals(m.getOp())) {
+                    anotarConfirmacion(m); // llega por un DEALER: no se responde
+                    return;
+                }
+                resp = "ENQUEUE".equals(m.getOp()) ? procesarEnqueue(m.get("type"), m.get("carga")) : "ERROR:Unsupported";
+            }
+        } else {
+            String msg = raw == null ? null : new String(raw, ZMQ.CHARSET);
+            LOG.debug(() -> "Recibido desde actor (enqueue): " + msg);
+            if (msg != null && msg.startsWith(CONFIRMADO + ";")) {
+                anotarConfirmacion(Mensaje.deTexto(msg));
+                return;
+            }
+            resp = procesarEnqueueTexto(msg);
         }
+        ZMsg r = new ZMsg();
+        r.add(actor);
+        r.add("");
+        r.add(resp);
+        r.send(repActorEnqueue);
+    }
+
+    /** Decodifica un frame binario de un actor; null (y traza) si está mal formado, sin tumbar el bucle. */
+    private static Mensaje decodificarDeActor(byte[] raw) {
+        try {
+            return MensajeCodec.decode(java.nio.ByteBuffer.wrap(raw));
+        } catch (RuntimeException ex) {
+            LOG.warn("Mensaje ilegible desde actor (" + raw.length + " bytes): " + ex.getMessage());
+            return null;
+        }
+    }
+
+    private String procesarEnqueueTexto(String msg) {
+        // Esperamos una carga del formato: ENQUEUE;type=Devolucion;carga=...
+        if (msg == null || !msg.startsWith("ENQUEUE;")) return "ERROR:Unsupported";
+        // carga va al final y puede contener ';' propios, así que se toma entera tras "carga="
+        int idxCarga = msg.indexOf(";carga=");
+        String cabecera = idxCarga < 0 ? msg : msg.substring(0, idxCarga);
+        String type = KvParser.local().parse(cabecera).get("type");
+        String cargaOrig = idxCarga < 0 ? null : msg.substring(idxCarga + ";carga=".length());
+        return procesarEnqueue(type, cargaOrig);
+    }
+
+    private String procesarEnqueue(String type, String cargaOrig) {
+        if (type == null || cargaOrig == null) return "ERROR:Malformed";
+        if (type.equalsIgnoreCase("Devolucion") && centralPendingDevoluciones != null) {
+            centralPendingDevoluciones.enqueue(cargaOrig);
+            return "ENQUEUED";
+        }
+        if (type.equalsIgnoreCase("Renovacion") && centralPendingRenovaciones != null) {
+            centralPendingRenovaciones.enqueue(cargaOrig);
+            return "ENQUEUED";
+        }
+        if (type.equalsIgnoreCase("Control")) {
+            // Control message: propagar como evento de failover a los actores locales
+            LOG.warn("Mensaje de control recibido: " + cargaOrig);
+            try {
+                pub.sendMore("Failover");
+                pub.send(cargaOrig);
+                return "ENQUEUED";
+            } catch (Exception ex) {
+                return "ERROR:PublishFailed:" + ex.getMessage();
+            }
+        }
+        return "ERROR:UnknownType";
     }
 
     @Override
@@ -286,8 +649,10 @@ public class GestorCarga implements AutoCloseable {
         // Cierre ordenado
         if (rep != null) rep.close();
         if (pub != null) pub.close();
+        if (dealerPrestamo != null) dealerPrestamo.close();
+        if (repActorEnqueue != null) repActorEnqueue.close();
         ctx.close();
-        System.out.println("[GC] Contexto y sockets cerrados.");
+        LOG.info("Contexto y sockets cerrados.");
     }
 
     public static void main(String[] args) {
@@ -296,6 +661,8 @@ public class GestorCarga implements AutoCloseable {
         String endpointActorPrestamo = args.length > 2 ? args[2] : null;
         String endpointActorEnqueue = args.length > 3 ? args[3] : null;
 
+        Metricas.proceso("GC");
+        Metricas.servirSiSeConfigura();
         try (GestorCarga gc = new GestorCarga()) {
             gc.iniciarRep(repIP);
             gc.iniciarPub(pubIP);
@@ -308,12 +675,4 @@ public class GestorCarga implements AutoCloseable {
             gc.runLoop();
         }
     }
-
-    /** Conecta el socket REQ hacia ActorPrestamo (endpoint debe ser tcp://ip:puerto). */
-    public void iniciarReqPrestamo(String endpointPrestamo) {
-        reqPrestamo = ctx.createSocket(ZMQ.REQ);
-        reqPrestamo.setLinger(0);
-        reqPrestamo.connect(endpointPrestamo);
-        System.out.println("[GC] REQ hacia ActorPrestamo en " + endpointPrestamo);
-    }
 }
@@ -0,0 +1,99 @@
+package co.javeriana;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de latencias en nanosegundos, seguro entre hilos y sin asignaciones al registrar.
+ *
+ * Cubetas log-lineales: los valores menores que 32 tienen cubeta propia y cada potencia de
+ * dos por encima se divide en 32 cubetas iguales, así que el percentil devuelto se desvía
+ * como mucho un ~3 % del valor real en todo el rango de un long, con 1 888 contadores. Registrar
+ * es un incremento atómico en el array más dos acumuladores; leer percentiles recorre el
+ * array sin detener a los escritores (la foto puede mezclar registros en curso).
+ */
+public final class Histograma {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int CUBETAS = (64 - SUB_BITS) * SUB;
+
+    private final AtomicLongArray cubetas = new AtomicLongArray(CUBETAS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder suma = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void registrar(long nanos) {
+        if (nanos < 0) nanos = 0;
+        cubetas.incrementAndGet(indice(nanos));
+        total.increment();
+        suma.add(nanos);
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) m = max.get();
+    }
+
+    /** Registra el tiempo transcurrido desde `inicioNanos` (un valor de System.nanoTime()). */
+    public void registrarDesde(long inicioNanos) {
+        registrar(System.nanoTime() - inicioNanos);
+    }
+
+    static int indice(long v) {
+        if (v < SUB) return (int) v;
+        int mag = 63 - Long.numberOfLeadingZeros(v);        // >= SUB_BITS
+        int grupo = mag - SUB_BITS + 1;
+        return (grupo << SUB_BITS) + (int) ((v >>> (mag - SUB_BITS)) - SUB);
+    }
+
+    /** Límite superior (inclusive) de los valores de la cubeta `i`. */
+    static long techo(int i) {
+        int grupo = i >>> SUB_BITS;
+        long sub = i & (SUB - 1);
+        if (grupo == 0) return sub;
+        int shift = grupo - 1;
+        long base = (SUB + sub) << shift;
+        return base + (1L << shift) - 1;
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long sumaNanos() {
+        return suma.sum();
+    }
+
+    public long maxNanos() {
+        return max.get();
+    }
+
+    /** Percentil `p` (0..1) en nanos; 0 si aún no hay registros. */
+    public long percentil(double p) {
+        return percentiles(p)[0];
+    }
+
+    /** Varios percentiles sobre una misma foto del histograma. */
+    public long[] percentiles(double... ps) {
+        long[] foto = new long[CUBETAS];
+        long n = 0;
+        for (int i = 0; i < CUBETAS; i++) {
+            foto[i] = cubetas.get(i);
+            n += foto[i];
+        }
+        long[] r = new long[ps.length];
+        if (n == 0) return r;
+        long m = max.get();
+        for (int k = 0; k < ps.length; k++) {
+            long objetivo = Math.max(1, (long) Math.ceil(ps[k] * n));
+            long acumulado = 0;
+            r[k] = m;
+            for (int i = 0; i < CUBETAS; i++) {
+                acumulado += foto[i];
+                if (acumulado >= objetivo) {
+                    r[k] = Math.min(techo(i), m);
+                    break;
+                }
+            }
+        }
+        return r;
+    }
+}
@@ -1,5 +1,6 @@
 package co.javeriana;
 
+import java.util.Collection;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.Map;
 
@@ -15,4 +16,9 @@ public class InMemoryLibroRepository implements LibroRepository {
     public void save(Libro libro) {
         libros.put(libro.getCodigo(), libro);
     }
+
+    @Override
+    public Collection<Libro> findAll() {
+        return libros.values();
+    }
 }
@@ -1,10 +1,13 @@
 package co.javeriana;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.Map;
 
 public class InMemoryPrestamoRepository implements PrestamoRepository {
     private final Map<String, Prestamo> prestamos = new ConcurrentHashMap<>();
+    private final IndicePrestamos indice = new IndicePrestamos(null);
 
     @Override
     public Prestamo findById(String id) {
@@ -14,5 +17,31 @@ public class InMemoryPrestamoRepository implements PrestamoRepository {
     @Override
     public void save(Prestamo p) {
         prestamos.put(p.getId(), p);
+        indice.actualizar(p);
+    }
+
+    @Override
+    public Collection<Prestamo> findAll() {
+        return prestamos.values();
+    }
+
+    @Override
+    public List<Prestamo> findByUsuario(String usuarioId) {
+        return indice.porUsuario(usuarioId, this::findById);
+    }
+
+    @Override
+    public List<Prestamo> findByLibro(String libroCodigo) {
+        return indice.porLibro(libroCodigo, this::findById);
+    }
+
+    @Override
+    public List<Prestamo> findByEstado(PrestamoEstado estado) {
+        return indice.porEstado(estado, this::findById);
+    }
+
+    @Override
+    public List<Prestamo> findVencenAntesDe(String fecha) {
+        return indice.vencenAntesDe(fecha, this::findById);
     }
 }
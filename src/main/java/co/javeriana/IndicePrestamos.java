@@ -0,0 +1,123 @@
+package co.javeriana;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Índices secundarios de préstamos en memoria: por usuario, por libro, por estado y por
+ * fecha de fin (ordenado, para rangos). Los repositorios lo mantienen en cada `save` con
+ * {@link #actualizar}, que mueve el préstamo de la entrada anterior a la nueva; guarda las
+ * claves con las que indexó cada préstamo, así que funciona aunque el objeto se haya
+ * modificado en sitio antes de guardarlo.
+ *
+ * Las escrituras se serializan; las lecturas no bloquean y pueden ver un préstamo que acaba
+ * de cambiar todavía en su entrada anterior, por eso cada consulta vuelve a comprobar el
+ * criterio sobre el préstamo actual.
+ *
+ * Métricas (si se da `etiquetas`): `biblioteca_prestamos_indice_bytes` es una estimación de
+ * la memoria de los índices (referencias comprimidas; las cadenas son las del propio
+ * préstamo y no se cuentan) y `biblioteca_prestamos_indice_entradas` el número de préstamos
+ * indexados.
+ */
+final class IndicePrestamos {
+    // Estimaciones por estructura en una JVM de 64 bits con referencias comprimidas:
+    // nodo de ConcurrentHashMap + hueco de tabla, registro de claves y conjunto por valor
+    private static final long BYTES_NODO = 40;
+    private static final long BYTES_CLAVES = 32;
+    private static final long BYTES_CONJUNTO = 160;
+
+    private record Claves(String usuarioId, String libroCodigo, PrestamoEstado estado, String fechaFin) {
+        static Claves de(Prestamo p) {
+            return new Claves(p.getUsuarioId(), p.getLibroCodigo(), p.getEstado(), p.getFechaFin());
+        }
+    }
+
+    private final Map<String, Claves> claves = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> porUsuario = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> porLibro = new ConcurrentHashMap<>();
+    private final Map<PrestamoEstado, Set<String>> porEstado = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<String, Set<String>> porFechaFin = new ConcurrentSkipListMap<>();
+    private long postings; // con this tomado
+
+    /** @param etiquetas etiquetas de las métricas (`archivo="..."`), o null para no publicarlas */
+    IndicePrestamos(String etiquetas) {
+        if (etiquetas != null) {
+            Metricas.gauge("biblioteca_prestamos_indice_bytes", etiquetas, this::bytesEstimados);
+            Metricas.gauge("biblioteca_prestamos_indice_entradas", etiquetas, claves::size);
+        }
+    }
+
+    /** Indexa todos los préstamos (al cargar un repositorio). */
+    void indexar(Collection<Prestamo> prestamos) {
+        for (Prestamo p : prestamos) actualizar(p);
+    }
+
+    /** Indexa el préstamo con sus valores actuales, quitándolo de las entradas anteriores. */
+    synchronized void actualizar(Prestamo p) {
+        String id = p.getId();
+        Claves nuevas = Claves.de(p);
+        Claves viejas = claves.put(id, nuevas);
+        if (nuevas.equals(viejas)) return;
+        if (viejas == null) viejas = new Claves(null, null, null, null);
+        mover(porUsuario, viejas.usuarioId(), nuevas.usuarioId(), id);
+        mover(porLibro, viejas.libroCodigo(), nuevas.libroCodigo(), id);
+        mover(porEstado, viejas.estado(), nuevas.estado(), id);
+        mover(porFechaFin, viejas.fechaFin(), nuevas.fechaFin(), id);
+    }
+
+    private <K> void mover(Map<K, Set<String>> indice, K antes, K despues, String id) {
+        if (Objects.equals(antes, despues)) return;
+        if (antes != null) {
+            Set<String> ids = indice.get(antes);
+            if (ids != null && ids.remove(id)) {
+                postings--;
+                if (ids.isEmpty()) indice.remove(antes);
+            }
+        }
+        if (despues != null && indice.computeIfAbsent(despues, k -> ConcurrentHashMap.newKeySet()).add(id)) postings++;
+    }
+
+    List<Prestamo> porUsuario(String usuarioId, Function<String, Prestamo> porId) {
+        return resolver(porUsuario.get(usuarioId), porId, p -> usuarioId.equals(p.getUsuarioId()));
+    }
+
+    List<Prestamo> porLibro(String libroCodigo, Function<String, Prestamo> porId) {
+        return resolver(porLibro.get(libroCodigo), porId, p -> libroCodigo.equals(p.getLibroCodigo()));
+    }
+
+    List<Prestamo> porEstado(PrestamoEstado estado, Function<String, Prestamo> porId) {
+        return resolver(porEstado.get(estado), porId, p -> estado == p.getEstado());
+    }
+
+    /** Préstamos con `fechaFin` anterior a `fecha` (ISO `yyyy-MM-dd`: el orden de texto es el cronológico). */
+    List<Prestamo> vencenAntesDe(String fecha, Function<String, Prestamo> porId) {
+        List<Prestamo> r = new ArrayList<>();
+        Predicate<Prestamo> cumple = p -> p.getFechaFin() != null && p.getFechaFin().compareTo(fecha) < 0;
+        for (Set<String> ids : porFechaFin.headMap(fecha, false).values()) r.addAll(resolver(ids, porId, cumple));
+        return r;
+    }
+
+    private static List<Prestamo> resolver(Set<String> ids, Function<String, Prestamo> porId, Predicate<Prestamo> cumple) {
+        if (ids == null) return List.of();
+        List<Prestamo> r = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            Prestamo p = porId.apply(id);
+            if (p != null && cumple.test(p)) r.add(p);
+        }
+        return r;
+    }
+
+    /** Estimación en bytes de la memoria ocupada por los índices. */
+    synchronized long bytesEstimados() {
+        long conjuntos = porUsuario.size() + porLibro.size() + porEstado.size() + porFechaFin.size();
+        return claves.size() * (BYTES_NODO + BYTES_CLAVES) + postings * BYTES_NODO + conjuntos * BYTES_CONJUNTO;
+    }
+}
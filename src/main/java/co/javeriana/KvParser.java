@@ -0,0 +1,197 @@
+package co.javeriana;
+
+import java.util.Arrays;
+
+/**
+ * Lector reutilizable (flyweight) de cargas de texto `OP;clave=valor;...;ts=N`.
+ *
+ * {@link #parse} recorre la carga una sola vez y guarda solo posiciones (inicio/fin de cada
+ * clave y valor, ya sin espacios), sin crear substrings, mapas ni arrays por campo. Los
+ * accesores comparan in situ: buscar una clave, comparar un valor o leer un número no
+ * asigna memoria; solo {@link #get} crea el String que devuelve. `ts` se interpreta durante
+ * el mismo recorrido, así que leerlo no necesita una segunda pasada.
+ *
+ * Mismas reglas que el antiguo `Utils.parseKeyValues`: el primer segmento es la operación,
+ * los pares necesitan un `=` que no esté al principio del segmento y, si una clave se
+ * repite, gana la última (para `ts`, la última válida). Una instancia no es segura entre
+ * hilos: usar {@link #local()} o una por dueño.
+ */
+public final class KvParser {
+    private static final ThreadLocal<KvParser> LOCAL = ThreadLocal.withInitial(KvParser::new);
+
+    private CharSequence s;
+    private int opIni, opFin;
+    private int[] pos = new int[8 * 4]; // por par: inicio/fin de clave, inicio/fin de valor
+    private int n;
+    private boolean tieneTs;
+    private long ts;
+
+    /** Instancia reutilizable del hilo actual; válida hasta el siguiente parse en este hilo. */
+    public static KvParser local() {
+        return LOCAL.get();
+    }
+
+    public KvParser parse(CharSequence carga) {
+        return parse(carga, false);
+    }
+
+    /**
+     * Como {@link #parse(CharSequence)}; con `opOpcional`, un primer segmento que ya es un par
+     * clave=valor (p. ej. `site=..;event=..`) cuenta como par y la operación queda vacía.
+     */
+    public KvParser parse(CharSequence carga, boolean opOpcional) {
+        s = carga;
+        n = 0;
+        tieneTs = false;
+        ts = 0;
+        int len = carga == null ? 0 : carga.length();
+        int ini = 0;
+        boolean primero = true;
+        while (ini <= len) {
+            int fin = ini;
+            int eq = -1;
+            while (fin < len && carga.charAt(fin) != ';') {
+                if (eq < 0 && carga.charAt(fin) == '=') eq = fin;
+                fin++;
+            }
+            if (primero && opOpcional && eq > ini) {
+                opIni = opFin = ini;
+                anadir(ini, eq, eq + 1, fin);
+                primero = false;
+            } else if (primero) {
+                opIni = saltarIni(ini, fin);
+                opFin = saltarFin(opIni, fin);
+                primero = false;
+            } else if (eq > ini) {
+                anadir(ini, eq, eq + 1, fin);
+            }
+            ini = fin + 1;
+        }
+        return this;
+    }
+
+    private void anadir(int kIni, int kFin, int vIni, int vFin) {
+        if ((n + 1) * 4 > pos.length) pos = Arrays.copyOf(pos, pos.length * 2);
+        int b = n * 4;
+        pos[b] = saltarIni(kIni, kFin);
+        pos[b + 1] = saltarFin(pos[b], kFin);
+        pos[b + 2] = saltarIni(vIni, vFin);
+        pos[b + 3] = saltarFin(pos[b + 2], vFin);
+        n++;
+        if (claveEs(n - 1, "ts")) {
+            long v = leerLong(pos[b + 2], pos[b + 3]);
+            if (v != Long.MIN_VALUE) {
+                tieneTs = true;
+                ts = v;
+            }
+        }
+    }
+
+    // Mismo criterio que String.trim(): fuera todo carácter <= ' '
+    private int saltarIni(int i, int fin) {
+        while (i < fin && s.charAt(i) <= ' ') i++;
+        return i;
+    }
+
+    private int saltarFin(int ini, int fin) {
+        while (fin > ini && s.charAt(fin - 1) <= ' ') fin--;
+        return fin;
+    }
+
+    /** Número de pares clave=valor (sin contar la operación). */
+    public int size() {
+        return n;
+    }
+
+    public String op() {
+        return s == null ? null : s.subSequence(opIni, opFin).toString();
+    }
+
+    public boolean opEs(String op) {
+        return rangoEs(opIni, opFin, op);
+    }
+
+    public String clave(int i) {
+        return s.subSequence(pos[i * 4], pos[i * 4 + 1]).toString();
+    }
+
+    public String valor(int i) {
+        return s.subSequence(pos[i * 4 + 2], pos[i * 4 + 3]).toString();
+    }
+
+    public boolean claveEs(int i, String clave) {
+        return rangoEs(pos[i * 4], pos[i * 4 + 1], clave);
+    }
+
+    private boolean rangoEs(int ini, int fin, String v) {
+        if (fin - ini != v.length()) return false;
+        for (int j = 0; j < v.length(); j++) {
+            if (s.charAt(ini + j) != v.charAt(j)) return false;
+        }
+        return true;
+    }
+
+    /** Índice del par con esa clave (el último si se repite) o -1. */
+    public int indexOf(String clave) {
+        for (int i = n - 1; i >= 0; i--) {
+            if (claveEs(i, clave)) return i;
+        }
+        return -1;
+    }
+
+    public boolean has(String clave) {
+        return indexOf(clave) >= 0;
+    }
+
+    public String get(String clave) {
+        int i = indexOf(clave);
+        return i < 0 ? null : valor(i);
+    }
+
+    /** Compara el valor sin materializarlo. */
+    public boolean valorEs(String clave, String esperado) {
+        int i = indexOf(clave);
+        return i >= 0 && rangoEs(pos[i * 4 + 2], pos[i * 4 + 3], esperado);
+    }
+
+    /** Valor numérico de la clave, o `porDefecto` si falta o no es un entero. */
+    public long getLong(String clave, long porDefecto) {
+        int i = indexOf(clave);
+        return i < 0 ? porDefecto : valorLong(i, porDefecto);
+    }
+
+    /** Valor numérico del par `i`, o `porDefecto` si no es un entero. */
+    public long valorLong(int i, long porDefecto) {
+        long v = leerLong(pos[i * 4 + 2], pos[i * 4 + 3]);
+        return v == Long.MIN_VALUE ? porDefecto : v;
+    }
+
+    public boolean tieneTs() {
+        return tieneTs;
+    }
+
+    /** Marca de Lamport de la carga, o {@link Mensaje#SIN_TS} si no trae una válida. */
+    public long ts() {
+        return tieneTs ? ts : Mensaje.SIN_TS;
+    }
+
+    /** Entero decimal con signo opcional; Long.MIN_VALUE si no es válido o desborda. */
+    private long leerLong(int ini, int fin) {
+        if (ini >= fin) return Long.MIN_VALUE;
+        boolean neg = false;
+        int i = ini;
+        char c = s.charAt(i);
+        if (c == '-' || c == '+') {
+            neg = c == '-';
+            if (++i == fin) return Long.MIN_VALUE;
+        }
+        long v = 0;
+        for (; i < fin; i++) {
+            int d = s.charAt(i) - '0';
+            if (d < 0 || d > 9) return Long.MIN_VALUE;
+            if (v > (Long.MAX_VALUE - d) / 10) return Long.MIN_VALUE;
+            v = v * 10 + d;
+        }
+        return neg ? -v : v;
+    }
+}
@@ -1,6 +1,26 @@
 package co.javeriana;
 
+import java.util.Collection;
+
 public interface LibroRepository {
     Libro findByCodigo(String codigo);
     void save(Libro libro);
+
+    /**
+     * Aplica el libro en memoria, visible de inmediato para las lecturas, y devuelve su
+     * escritura a disco para que el llamador la complete fuera de sus locks. Por defecto se
+     * escribe aquí mismo.
+     */
+    default PendingWrite stage(Libro libro) {
+        save(libro);
+        return PendingWrite.DONE;
+    }
+
+    /** Guarda varios libros; las implementaciones que reescriben el fichero lo hacen una sola vez. */
+    default void saveAll(Collection<Libro> libros) {
+        for (Libro l : libros) save(l);
+    }
+
+    /** Vista de todos los libros (para sincronizar una réplica completa). */
+    Collection<Libro> findAll();
 }
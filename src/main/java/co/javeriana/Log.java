@@ -0,0 +1,263 @@
+package co.javeriana;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Fachada de logging asíncrona.
+ *
+ * Quien registra solo construye una entrada y la publica en un anillo acotado sin locks
+ * (varios productores, un consumidor); un hilo de fondo la formatea y la escribe. Así un
+ * worker nunca hace E/S, tampoco mientras tiene un lock de almacenamiento tomado. Si el
+ * anillo se llena, DEBUG e INFO se descartan y se cuentan (el escritor informa del número de
+ * descartes en cuanto puede); WARN y ERROR esperan hueco un máximo de 100 ms.
+ *
+ * Configuración:
+ * - `-DlogLevel=DEBUG|INFO|WARN|ERROR|OFF` (INFO por defecto). Se lee una sola vez, así que
+ *   comprobar un nivel desactivado es comparar con una constante; las variantes con
+ *   {@link Supplier} ni siquiera construyen el texto.
+ * - `-DlogFile=<ruta>`: escribe en ese fichero y lo rota al pasar de `-DlogMaxBytes`
+ *   (10 MB por defecto), conservando `-DlogMaxFiles` ficheros (`<ruta>.1` es el más
+ *   reciente). Sin `logFile` se escribe en consola: WARN y ERROR por System.err, el resto
+ *   por System.out.
+ * - `-DlogBuffer`: entradas del anillo (8192 por defecto, se redondea a potencia de dos).
+ */
+public final class Log {
+    public enum Nivel { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final int NIVEL = nivelConfigurado().ordinal();
+    private static final int D = Nivel.DEBUG.ordinal();
+    private static final int I = Nivel.INFO.ordinal();
+    private static final int W = Nivel.WARN.ordinal();
+    private static final int E = Nivel.ERROR.ordinal();
+
+    private static final DateTimeFormatter HORA = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    private final String nombre;
+
+    private Log(String nombre) {
+        this.nombre = nombre;
+    }
+
+    /** Logger con el prefijo `[nombre]` que usaban los mensajes por consola. */
+    public static Log get(String nombre) {
+        return new Log(nombre);
+    }
+
+    private static Nivel nivelConfigurado() {
+        String v = System.getProperty("logLevel", "INFO").trim().toUpperCase();
+        try {
+            return Nivel.valueOf(v);
+        } catch (IllegalArgumentException e) {
+            return Nivel.INFO;
+        }
+    }
+
+    public boolean isDebug() { return NIVEL <= D; }
+    public boolean isInfo() { return NIVEL <= I; }
+
+    public void debug(String msg) { if (NIVEL <= D) publicar(Nivel.DEBUG, msg, null); }
+    public void debug(Supplier<String> msg) { if (NIVEL <= D) publicar(Nivel.DEBUG, msg.get(), null); }
+    public void info(String msg) { if (NIVEL <= I) publicar(Nivel.INFO, msg, null); }
+    public void info(Supplier<String> msg) { if (NIVEL <= I) publicar(Nivel.INFO, msg.get(), null); }
+    public void warn(String msg) { if (NIVEL <= W) publicar(Nivel.WARN, msg, null); }
+    public void warn(String msg, Throwable t) { if (NIVEL <= W) publicar(Nivel.WARN, msg, t); }
+    public void error(String msg) { if (NIVEL <= E) publicar(Nivel.ERROR, msg, null); }
+    public void error(String msg, Throwable t) { if (NIVEL <= E) publicar(Nivel.ERROR, msg, t); }
+
+    private void publicar(Nivel nivel, String msg, Throwable t) {
+        Entrada e = new Entrada(System.currentTimeMillis(), nivel, nombre, msg, t);
+        Escritor w = Escritor.INSTANCIA;
+        if (w.ofrecer(e)) return;
+        if (nivel.ordinal() >= W && w.esperarHueco(e)) return;
+        w.descartados.incrementAndGet();
+    }
+
+    private record Entrada(long millis, Nivel nivel, String nombre, String msg, Throwable error) {}
+
+    /** Anillo MPSC y hilo que lo vacía. Se crea con el primer mensaje que supera el nivel. */
+    private static final class Escritor implements Runnable {
+        static final Escritor INSTANCIA = new Escritor();
+
+        private final AtomicReferenceArray<Entrada> slots;
+        private final int mask;
+        private final AtomicLong cola = new AtomicLong();     // siguiente secuencia a reservar
+        private final AtomicLong cabeza = new AtomicLong();   // siguiente secuencia a leer (solo el escritor la avanza)
+        final AtomicLong descartados = new AtomicLong();
+
+        private final File fichero;
+        private final long maxBytes;
+        private final int maxFiles;
+        private BufferedWriter out;
+        private long escritos;
+        private final StringBuilder linea = new StringBuilder(256);
+
+        private final Thread hilo;
+        private volatile boolean cerrando;
+        private volatile boolean cerrado;
+
+        private Escritor() {
+            int cap = Integer.highestOneBit(Math.max(64, Integer.getInteger("logBuffer", 8192)) * 2 - 1);
+            slots = new AtomicReferenceArray<>(cap);
+            mask = cap - 1;
+            String f = System.getProperty("logFile");
+            fichero = f == null || f.isBlank() ? null : new File(f);
+            maxBytes = Long.getLong("logMaxBytes", 10L * 1024 * 1024);
+            maxFiles = Math.max(1, Integer.getInteger("logMaxFiles", 5));
+            if (fichero != null) abrir();
+            hilo = new Thread(this, "log-writer");
+            hilo.setDaemon(true);
+            hilo.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(this::cerrar, "log-shutdown"));
+        }
+
+        boolean ofrecer(Entrada e) {
+            if (cerrado) {
+                // Mensajes de otros shutdown hooks tras vaciar el anillo: se escriben directamente
+                synchronized (this) {
+                    escribir(e);
+                    flush();
+                }
+                return true;
+            }
+            long t;
+            do {
+                t = cola.get();
+                if (t - cabeza.get() >= slots.length()) return false;
+            } while (!cola.compareAndSet(t, t + 1));
+            slots.setRelease((int) (t & mask), e);
+            return true;
+        }
+
+        boolean esperarHueco(Entrada e) {
+            long limite = System.nanoTime() + 100_000_000L;
+            do {
+                LockSupport.unpark(hilo);
+                LockSupport.parkNanos(100_000L);
+                if (ofrecer(e)) return true;
+            } while (System.nanoTime() < limite);
+            return false;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                int n = drenar();
+                if (n == 0) {
+                    if (cerrando && cabeza.get() == cola.get()) break;
+                    flush();
+                    LockSupport.parkNanos(2_000_000L);
+                }
+            }
+            synchronized (this) {
+                flush();
+                cerrado = true;
+            }
+        }
+
+        private int drenar() {
+            int n = 0;
+            long perdidos = descartados.getAndSet(0);
+            synchronized (this) {
+                if (perdidos > 0) {
+                    escribir(new Entrada(System.currentTimeMillis(), Nivel.WARN, "Log",
+                            perdidos + " mensajes descartados (anillo lleno, ver -DlogBuffer)", null));
+                }
+                while (true) {
+                    long h = cabeza.get();
+                    int i = (int) (h & mask);
+                    Entrada e = slots.getAcquire(i);
+                    // null: vacío, o un productor reservó la secuencia y aún no publicó
+                    if (e == null) break;
+                    slots.setPlain(i, null);
+                    cabeza.setRelease(h + 1);
+                    escribir(e);
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        private void cerrar() {
+            cerrando = true;
+            LockSupport.unpark(hilo);
+            try {
+                hilo.join(2000);
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+            cerrado = true;
+        }
+
+        private void escribir(Entrada e) {
+            StringBuilder sb = linea;
+            sb.setLength(0);
+            HORA.formatTo(LocalDateTime.ofInstant(Instant.ofEpochMilli(e.millis()), ZoneId.systemDefault()), sb);
+            sb.append(' ').append(e.nivel().name());
+            for (int i = e.nivel().name().length(); i < 5; i++) sb.append(' ');
+            sb.append(" [").append(e.nombre()).append("] ").append(e.msg());
+            if (e.error() != null) {
+                StringWriter traza = new StringWriter();
+                e.error().printStackTrace(new PrintWriter(traza));
+                sb.append(System.lineSeparator()).append(traza.toString().stripTrailing());
+            }
+            if (fichero == null) {
+                (e.nivel().ordinal() >= W ? System.err : System.out).println(sb);
+                return;
+            }
+            try {
+                sb.append(System.lineSeparator());
+                out.append(sb);
+                escritos += sb.length();
+                if (escritos >= maxBytes) rotar();
+            } catch (IOException ex) {
+                System.err.println("[Log] Error escribiendo " + fichero + ": " + ex.getMessage() + " | " + sb);
+            }
+        }
+
+        private void flush() {
+            if (out == null) return;
+            try {
+                out.flush();
+            } catch (IOException ex) {
+                System.err.println("[Log] Error escribiendo " + fichero + ": " + ex.getMessage());
+            }
+        }
+
+        private void abrir() {
+            try {
+                File dir = fichero.getAbsoluteFile().getParentFile();
+                if (dir != null) dir.mkdirs();
+                out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fichero, true), StandardCharsets.UTF_8), 64 * 1024);
+                escritos = fichero.length();
+            } catch (IOException ex) {
+                throw new IllegalStateException("[Log] No se pudo abrir " + fichero, ex);
+            }
+        }
+
+        private void rotar() throws IOException {
+            out.close();
+            new File(fichero.getPath() + "." + maxFiles).delete();
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                File f = new File(fichero.getPath() + "." + i);
+                if (f.exists()) f.renameTo(new File(fichero.getPath() + "." + (i + 1)));
+            }
+            fichero.renameTo(new File(fichero.getPath() + ".1"));
+            abrir();
+        }
+    }
+}
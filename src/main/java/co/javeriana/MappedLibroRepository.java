@@ -0,0 +1,307 @@
+package co.javeriana;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Repositorio de libros con el inventario en un fichero mapeado en memoria.
+ *
+ * `<path>.slots` contiene una cabecera y un registro binario de tamaño fijo por libro:
+ * <pre>
+ *   0  short  longitud del código (bytes UTF-8, máx. {@value #MAX_CODIGO})
+ *   2  byte[] código
+ *  40  int    ejemplaresDisponibles
+ *  44  long   offset del título/autor en `<path>.meta`
+ *  52  int    longitud de ese registro en `<path>.meta`
+ * </pre>
+ * Un índice `codigo -> slot` en memoria localiza el registro; actualizar el contador es una
+ * escritura in situ de 4 bytes en el buffer mapeado, independiente del tamaño del catálogo.
+ * Título y autor viven en `<path>.meta` (append-only) y solo se reescriben cuando cambian;
+ * se leen bajo demanda, por lo que arrancar solo requiere recorrer los códigos de los slots.
+ *
+ * Si existe `<path>` (JSON de {@link FileBasedLibroRepository}) y aún no hay slots, se importa
+ * una vez. La durabilidad del contador sigue `-DfsyncPolicy`: `always` fuerza el rango del
+ * registro en cada `save`, `interval` fuerza todo el mapeo periódicamente, `none` no fuerza.
+ */
+public class MappedLibroRepository implements LibroRepository, AutoCloseable {
+    private static final Log LOG = Log.get("MappedLibroRepository");
+
+    static final int MAGIC = 0x4C425253; // "LBRS"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 64;
+    static final int MAX_CODIGO = 38;
+    private static final int OFF_CODIGO_LEN = 0;
+    private static final int OFF_CODIGO = 2;
+    private static final int OFF_EJEMPLARES = 40;
+    private static final int OFF_META_OFFSET = 44;
+    private static final int OFF_META_LEN = 52;
+    private static final int HDR_COUNT = 12;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final File slotsFile;
+    private final FileChannel slots;
+    private final FileChannel meta;
+    private final Map<String, Integer> index;
+    private final Map<Integer, String[]> metaCache = new ConcurrentHashMap<>();
+    private final CommitPipeline.SyncPolicy syncPolicy = CommitPipeline.SyncPolicy.parse(System.getProperty("fsyncPolicy"));
+    private final ScheduledExecutorService syncer;
+    private volatile MappedByteBuffer buf;
+    private int capacity;
+    private int count;
+    private volatile boolean importing;
+
+    public MappedLibroRepository(String path) {
+        this.slotsFile = new File(path + ".slots");
+        File parent = slotsFile.getParentFile();
+        if (parent != null && !parent.exists()) parent.mkdirs();
+        boolean fresh = !slotsFile.exists() || slotsFile.length() < HEADER_SIZE;
+        try {
+            this.slots = FileChannel.open(slotsFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.meta = FileChannel.open(new File(path + ".meta").toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (fresh) {
+                capacity = INITIAL_CAPACITY;
+                map();
+                buf.putInt(0, MAGIC);
+                buf.putInt(4, VERSION);
+                buf.putInt(8, RECORD_SIZE);
+                buf.putInt(HDR_COUNT, 0);
+                count = 0;
+            } else {
+                capacity = (int) Math.max(INITIAL_CAPACITY, (slots.size() - HEADER_SIZE) / RECORD_SIZE);
+                map();
+                if (buf.getInt(0) != MAGIC || buf.getInt(8) != RECORD_SIZE) {
+                    throw new IOException("Formato de slots no reconocido en " + slotsFile);
+                }
+                count = buf.getInt(HDR_COUNT);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("[MappedLibroRepository] No se pudo abrir " + slotsFile, e);
+        }
+
+        this.index = new ConcurrentHashMap<>(Math.max(16, count * 4 / 3 + 1));
+        byte[] tmp = new byte[MAX_CODIGO];
+        for (int slot = 0; slot < count; slot++) {
+            int off = recordOffset(slot);
+            int len = buf.getShort(off + OFF_CODIGO_LEN);
+            buf.get(off + OFF_CODIGO, tmp, 0, len);
+            index.put(new String(tmp, 0, len, StandardCharsets.UTF_8), slot);
+        }
+
+        if (fresh) importJson(new File(path));
+
+        if (syncPolicy == CommitPipeline.SyncPolicy.INTERVAL) {
+            long periodMs = Long.getLong("fsyncIntervalMs", 10L);
+            syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "mmap-sync-" + slotsFile.getName());
+                t.setDaemon(true);
+                return t;
+            });
+            syncer.scheduleWithFixedDelay(() -> buf.force(), periodMs, periodMs, TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    private static int recordOffset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    private void map() throws IOException {
+        buf = slots.map(FileChannel.MapMode.READ_WRITE, 0, (long) HEADER_SIZE + (long) capacity * RECORD_SIZE);
+    }
+
+    /** Migración única desde el JSON de los repositorios FileBased. */
+    private void importJson(File json) {
+        if (!json.exists()) return;
+        try {
+            Map<String, Libro> m = StreamingJsonLoader.load(json, Libro.class);
+            int omitidos = 0;
+            importing = true;
+            try {
+                for (Libro l : m.values()) {
+                    try {
+                        save(l);
+                    } catch (IllegalArgumentException e) {
+                        // Un código que no cabe en su slot no impide importar el resto
+                        LOG.warn(e.getMessage() + "; no se importa");
+                        omitidos++;
+                    }
+                }
+            } finally {
+                importing = false;
+            }
+            buf.force();
+            meta.force(false);
+            LOG.info("Importados " + (m.size() - omitidos) + " libros desde " + json.getName()
+                    + (omitidos > 0 ? " (" + omitidos + " omitidos)" : ""));
+        } catch (Exception e) {
+            LOG.warn("Error importando " + json + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public Libro findByCodigo(String codigo) {
+        Integer slot = index.get(codigo);
+        if (slot == null) return null;
+        String[] m = metaOf(slot);
+        return new Libro(codigo, m[0], m[1], buf.getInt(recordOffset(slot) + OFF_EJEMPLARES));
+    }
+
+    /** Lectura directa del contador sin materializar el libro. */
+    public int ejemplaresDisponibles(String codigo) {
+        Integer slot = index.get(codigo);
+        return slot == null ? -1 : buf.getInt(recordOffset(slot) + OFF_EJEMPLARES);
+    }
+
+    @Override
+    public void save(Libro libro) {
+        stage(libro).await();
+    }
+
+    /** El contador se escribe en el mapeo al instante; la escritura devuelta fuerza su registro. */
+    @Override
+    public PendingWrite stage(Libro libro) {
+        Integer slot = index.get(libro.getCodigo());
+        if (slot == null) {
+            insert(libro);
+            return PendingWrite.DONE;
+        }
+        int off = recordOffset(slot);
+        MappedByteBuffer b = buf;
+        b.putInt(off + OFF_EJEMPLARES, libro.getEjemplaresDisponibles());
+        String[] m = metaOf(slot);
+        if (!eq(m[0], libro.getTitulo()) || !eq(m[1], libro.getAutor())) {
+            synchronized (this) {
+                writeMeta(slot, libro.getTitulo(), libro.getAutor());
+            }
+        }
+        if (syncPolicy != CommitPipeline.SyncPolicy.ALWAYS) return PendingWrite.DONE;
+        return () -> b.force(off, RECORD_SIZE);
+    }
+
+    private synchronized void insert(Libro libro) {
+        if (index.containsKey(libro.getCodigo())) {
+            save(libro);
+            return;
+        }
+        byte[] codigo = libro.getCodigo().getBytes(StandardCharsets.UTF_8);
+        if (codigo.length > MAX_CODIGO) {
+            throw new IllegalArgumentException("Código de libro demasiado largo para un slot: " + libro.getCodigo());
+        }
+        try {
+            if (count == capacity) {
+                capacity *= 2;
+                map();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("[MappedLibroRepository] No se pudo ampliar " + slotsFile, e);
+        }
+        int slot = count;
+        int off = recordOffset(slot);
+        buf.putShort(off + OFF_CODIGO_LEN, (short) codigo.length);
+        buf.put(off + OFF_CODIGO, codigo);
+        buf.putInt(off + OFF_EJEMPLARES, libro.getEjemplaresDisponibles());
+        writeMeta(slot, libro.getTitulo(), libro.getAutor());
+        count++;
+        buf.putInt(HDR_COUNT, count);
+        index.put(libro.getCodigo(), slot);
+        if (syncPolicy == CommitPipeline.SyncPolicy.ALWAYS && !importing) buf.force(off, RECORD_SIZE);
+    }
+
+    private void writeMeta(int slot, String titulo, String autor) {
+        byte[] t = titulo == null ? new byte[0] : titulo.getBytes(StandardCharsets.UTF_8);
+        byte[] a = autor == null ? new byte[0] : autor.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer rec = ByteBuffer.allocate(8 + t.length + a.length);
+        // longitud -1 = null, para distinguirlo de la cadena vacía
+        rec.putInt(titulo == null ? -1 : t.length).put(t).putInt(autor == null ? -1 : a.length).put(a).flip();
+        try {
+            long pos = meta.size();
+            int len = rec.remaining();
+            while (rec.hasRemaining()) meta.write(rec, pos + (len - rec.remaining()));
+            if (syncPolicy == CommitPipeline.SyncPolicy.ALWAYS && !importing) meta.force(false);
+            int off = recordOffset(slot);
+            buf.putLong(off + OFF_META_OFFSET, pos);
+            buf.putInt(off + OFF_META_LEN, len);
+            metaCache.put(slot, new String[]{titulo, autor});
+        } catch (IOException e) {
+            LOG.warn("Error escribiendo metadatos: " + e.getMessage());
+        }
+    }
+
+    private String[] metaOf(int slot) {
+        String[] m = metaCache.get(slot);
+        if (m != null) return m;
+        int off = recordOffset(slot);
+        long pos = buf.getLong(off + OFF_META_OFFSET);
+        int len = buf.getInt(off + OFF_META_LEN);
+        m = new String[2];
+        if (len > 0) {
+            try {
+                ByteBuffer rec = ByteBuffer.allocate(len);
+                while (rec.hasRemaining()) {
+                    if (meta.read(rec, pos + rec.position()) < 0) break;
+                }
+                rec.flip();
+                m[0] = readString(rec);
+                m[1] = readString(rec);
+            } catch (Exception e) {
+                LOG.warn("Error leyendo metadatos del slot " + slot + ": " + e.getMessage());
+            }
+        }
+        metaCache.put(slot, m);
+        return m;
+    }
+
+    private static String readString(ByteBuffer rec) {
+        int n = rec.getInt();
+        if (n < 0) return null;
+        byte[] b = new byte[n];
+        rec.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static boolean eq(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /** Copia de todos los libros, materializados desde sus slots. */
+    @Override
+    public Collection<Libro> findAll() {
+        List<Libro> r = new ArrayList<>(index.size());
+        for (String codigo : index.keySet()) {
+            Libro l = findByCodigo(codigo);
+            if (l != null) r.add(l);
+        }
+        return r;
+    }
+
+    @Override
+    public void close() {
+        if (syncer != null) syncer.shutdownNow();
+        buf.force();
+        try {
+            meta.force(false);
+            meta.close();
+            slots.close();
+        } catch (IOException e) {
+            LOG.warn("Error cerrando: " + e.getMessage());
+        }
+    }
+}
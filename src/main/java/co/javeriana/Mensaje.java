@@ -1,17 +1,94 @@
 package co.javeriana;
 
+import java.util.Arrays;
+
+/**
+ * Mensaje del protocolo entre GC y actores: una operación, pares clave/valor y la marca de
+ * Lamport como campo de cabecera (no como un par más).
+ *
+ * Se puede leer y escribir en el formato de texto histórico (`OP;clave=valor;...;ts=N`,
+ * ver {@link #deTexto} y {@link #aTexto}) o en el binario de {@link MensajeCodec}.
+ */
 public class Mensaje {
-    private final String topico;
-    private final String payload;
-    private final long timestamp;
-
-    public Mensaje(String topico, String payload, long timestamp) {
-        this.topico = topico;
-        this.payload = payload;
-        this.timestamp = timestamp;
+    /** Valor de {@link #getTimestamp()} cuando el mensaje no lleva marca de Lamport. */
+    public static final long SIN_TS = -1L;
+
+    private final String op;
+    private long timestamp = SIN_TS;
+    private String[] claves = new String[6];
+    private String[] valores = new String[6];
+    private int n;
+
+    public Mensaje(String op) {
+        this.op = op;
     }
 
-    public String getTopico() { return topico; }
-    public String getPayload() { return payload; }
+    public String getOp() { return op; }
     public long getTimestamp() { return timestamp; }
+
+    public Mensaje conTs(long ts) {
+        this.timestamp = ts;
+        return this;
+    }
+
+    /** Añade (o reemplaza) un campo. */
+    public Mensaje con(String clave, String valor) {
+        for (int i = 0; i < n; i++) {
+            if (claves[i].equals(clave)) {
+                valores[i] = valor;
+                return this;
+            }
+        }
+        if (n == claves.length) {
+            claves = Arrays.copyOf(claves, n * 2);
+            valores = Arrays.copyOf(valores, n * 2);
+        }
+        claves[n] = clave;
+        valores[n] = valor;
+        n++;
+        return this;
+    }
+
+    public String get(String clave) {
+        for (int i = 0; i < n; i++) {
+            if (claves[i].equals(clave)) return valores[i];
+        }
+        return null;
+    }
+
+    public int size() { return n; }
+    public String clave(int i) { return claves[i]; }
+    public String valor(int i) { return valores[i]; }
+
+    /**
+     * Interpreta `OP;clave=valor;...`. El primer token es la operación (vacía si ya es un
+     * par clave=valor); `ts`, si aparece, pasa a la cabecera.
+     */
+    public static Mensaje deTexto(String texto) {
+        KvParser kv = KvParser.local().parse(texto, true);
+        Mensaje m = new Mensaje(kv.op());
+        for (int i = 0; i < kv.size(); i++) {
+            // un ts no numérico se conserva como campo, igual que cualquier otro par
+            if (kv.claveEs(i, "ts") && kv.valorLong(i, Long.MIN_VALUE) != Long.MIN_VALUE) continue;
+            m.con(kv.clave(i), kv.valor(i));
+        }
+        m.timestamp = kv.ts();
+        return m;
+    }
+
+    /** Forma de texto: `OP;clave=valor;...;ts=N` (sin `ts` si no hay marca). */
+    public String aTexto() {
+        StringBuilder sb = new StringBuilder(op.length() + n * 24 + 16).append(op);
+        for (int i = 0; i < n; i++) {
+            if (sb.length() > 0) sb.append(';');
+            sb.append(claves[i]).append('=').append(valores[i]);
+        }
+        if (timestamp != SIN_TS) sb.append(sb.length() > 0 ? ";ts=" : "ts=").append(timestamp);
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return aTexto();
+    }
 }
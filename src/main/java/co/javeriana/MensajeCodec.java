@@ -0,0 +1,254 @@
+package co.javeriana;
+
+import org.zeromq.ZMQ;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Codificación binaria versionada de {@link Mensaje}.
+ * <pre>
+ *   byte    MAGIC (0xB1); ningún mensaje de texto empieza por este byte
+ *   byte    versión (2)
+ *   byte    tag de operación (0 = literal: cadena)
+ *   varint  ts + 1 (0 = sin marca de Lamport)
+ *   varint  número de campos
+ *   campo:  byte tag de clave (0 = literal: cadena), cadena del valor
+ *   cadena: varint longitud + 1 (0 = null) + UTF-8
+ * </pre>
+ * Las operaciones y claves conocidas ocupan un byte; cualquier otra viaja como literal, así
+ * que pasar de texto a binario y de vuelta no pierde información. Las tablas de tags solo
+ * pueden crecer por el final: cambiar un tag existente exige subir la versión. La versión 1,
+ * en la que la longitud de una cadena iba sin sumar 1 y null viajaba como "", se sigue
+ * leyendo.
+ *
+ * Un frame binario mal formado (truncado, con una longitud fuera del frame, tag o versión
+ * desconocidos) se rechaza con {@link FormatoInvalidoException}.
+ *
+ * La negociación es por el primer byte: el receptor acepta ambos formatos
+ * ({@link #leer}) y responde en el del remitente. PS y locust siguen hablando texto;
+ * `-DwireFormat=text` fuerza texto también entre GC y actores.
+ */
+public final class MensajeCodec {
+    public static final byte MAGIC = (byte) 0xB1;
+    public static final byte VERSION = 2;
+    private static final byte VERSION_SIN_NULOS = 1;
+
+    private static final String[] OPS = {null, "PRESTAMO", "DEVOLUCION", "RENOVACION", "ENQUEUE", "OK", "ERROR"};
+    private static final String[] CLAVES = {null, "usuarioId", "libroCodigo", "inicio", "fin", "prestamoId",
+            "nuevaFecha", "motivo", "type", "carga", "site", "event"};
+
+    private MensajeCodec() {}
+
+    /** Frame binario que no se puede decodificar. */
+    public static final class FormatoInvalidoException extends IllegalArgumentException {
+        FormatoInvalidoException(String mensaje) {
+            super("[MensajeCodec] " + mensaje);
+        }
+    }
+
+    /** true si los emisores deben usar binario (por defecto) y no texto. */
+    public static boolean binarioPorDefecto() {
+        return !"text".equalsIgnoreCase(System.getProperty("wireFormat", "binary"));
+    }
+
+    public static boolean esBinario(byte[] raw) {
+        return raw != null && raw.length > 1 && raw[0] == MAGIC;
+    }
+
+    /** Decodifica un mensaje en cualquiera de los dos formatos. */
+    public static Mensaje leer(byte[] raw) {
+        if (esBinario(raw)) return decode(ByteBuffer.wrap(raw));
+        return Mensaje.deTexto(new String(raw, StandardCharsets.UTF_8));
+    }
+
+    /** Codifica en el formato indicado. */
+    public static byte[] escribir(Mensaje m, boolean binario) {
+        return binario ? encode(m) : m.aTexto().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Envía el mensaje por `socket` en el formato indicado. En binario se codifica en un
+     * array propio del mensaje y no en un buffer compartido: ZMQ no copia lo que se le da
+     * (`sendByteBuffer` solo lo envuelve), y el frame puede seguir en la cola del socket
+     * cuando el hilo codifica el siguiente mensaje.
+     */
+    public static boolean enviar(ZMQ.Socket socket, Mensaje m, boolean binario, int flags) {
+        if (!binario) return socket.send(m.aTexto().getBytes(ZMQ.CHARSET), flags);
+        return socket.send(encode(m), flags);
+    }
+
+    /**
+     * Codifica en un array del tamaño exacto, calculado antes a partir de la cabecera y los
+     * campos: una sola asignación por mensaje, sin buffer intermedio ni copia.
+     */
+    public static byte[] encode(Mensaje m) {
+        byte[] r = new byte[longitud(m)];
+        encode(m, ByteBuffer.wrap(r));
+        return r;
+    }
+
+    /** Bytes que ocupa el mensaje codificado. */
+    static int longitud(Mensaje m) {
+        int n = 2 + longitudTagOLiteral(OPS, m.getOp())
+                + longitudVarint(m.getTimestamp() == Mensaje.SIN_TS ? 0 : m.getTimestamp() + 1)
+                + longitudVarint(m.size());
+        for (int i = 0; i < m.size(); i++) n += longitudTagOLiteral(CLAVES, m.clave(i)) + longitudString(m.valor(i));
+        return n;
+    }
+
+    /** Escribe el mensaje a partir de la posición actual de `b`. Lanza BufferOverflowException si no cabe. */
+    public static void encode(Mensaje m, ByteBuffer b) {
+        b.put(MAGIC).put(VERSION);
+        putTagOLiteral(b, OPS, m.getOp());
+        putVarint(b, m.getTimestamp() == Mensaje.SIN_TS ? 0 : m.getTimestamp() + 1);
+        putVarint(b, m.size());
+        for (int i = 0; i < m.size(); i++) {
+            putTagOLiteral(b, CLAVES, m.clave(i));
+            putString(b, m.valor(i));
+        }
+    }
+
+    /** Lanza {@link FormatoInvalidoException} si el frame no es un mensaje binario válido. */
+    public static Mensaje decode(ByteBuffer b) {
+        try {
+            if (b.get() != MAGIC) throw new FormatoInvalidoException("No es un mensaje binario");
+            int version = b.get();
+            if (version != VERSION && version != VERSION_SIN_NULOS) {
+                throw new FormatoInvalidoException("Versión no soportada: " + version);
+            }
+            boolean nulos = version != VERSION_SIN_NULOS;
+            Mensaje m = new Mensaje(getTagOLiteral(b, OPS, nulos));
+            long ts = getVarint(b);
+            if (ts != 0) m.conTs(ts - 1);
+            long campos = getVarint(b);
+            for (long i = 0; i < campos; i++) {
+                String k = getTagOLiteral(b, CLAVES, nulos);
+                m.con(k, getString(b, nulos));
+            }
+            return m;
+        } catch (BufferUnderflowException e) {
+            throw new FormatoInvalidoException("Mensaje truncado");
+        }
+    }
+
+    private static void putTagOLiteral(ByteBuffer b, String[] tabla, String s) {
+        for (int t = 1; t < tabla.length; t++) {
+            if (tabla[t].equals(s)) {
+                b.put((byte) t);
+                return;
+            }
+        }
+        b.put((byte) 0);
+        putString(b, s);
+    }
+
+    private static int longitudTagOLiteral(String[] tabla, String s) {
+        for (int t = 1; t < tabla.length; t++) {
+            if (tabla[t].equals(s)) return 1;
+        }
+        return 1 + longitudString(s);
+    }
+
+    private static String getTagOLiteral(ByteBuffer b, String[] tabla, boolean nulos) {
+        int t = b.get() & 0xFF;
+        if (t == 0) {
+            String s = getString(b, nulos);
+            if (s == null) throw new FormatoInvalidoException("Operación o clave null");
+            return s;
+        }
+        if (t >= tabla.length) throw new FormatoInvalidoException("Tag desconocido: " + t);
+        return tabla[t];
+    }
+
+    /** Longitud + 1 y bytes; null se escribe como longitud 0. */
+    private static void putString(ByteBuffer b, String s) {
+        if (s == null) {
+            putVarint(b, 0);
+            return;
+        }
+        int len = s.length();
+        int i = 0;
+        while (i < len && s.charAt(i) < 0x80) i++;
+        if (i == len) {
+            // Caso habitual (códigos, fechas, ids): ASCII, se copia sin arrays intermedios
+            putVarint(b, len + 1L);
+            if (b.remaining() < len) throw new BufferOverflowException();
+            if (b.hasArray()) {
+                byte[] arr = b.array();
+                int off = b.arrayOffset() + b.position();
+                for (int j = 0; j < len; j++) arr[off + j] = (byte) s.charAt(j);
+                b.position(b.position() + len);
+            } else {
+                for (int j = 0; j < len; j++) b.put((byte) s.charAt(j));
+            }
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        putVarint(b, bytes.length + 1L);
+        b.put(bytes);
+    }
+
+    private static int longitudString(String s) {
+        if (s == null) return 1;
+        int bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) bytes++;
+            else if (c < 0x800) bytes += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) bytes++; // sin pareja: getBytes escribe '?'
+            else bytes += 3;
+        }
+        return longitudVarint(bytes + 1L) + bytes;
+    }
+
+    /** Con `nulos` (versión 2) la longitud viene sumada en 1 y 0 es null; en la versión 1, tal cual. */
+    private static String getString(ByteBuffer b, boolean nulos) {
+        long len = getVarint(b);
+        if (nulos) {
+            if (len == 0) return null;
+            len--;
+        }
+        // Un varint fuera de rango no puede convertirse en una longitud negativa al pasar a int
+        if (len < 0 || len > b.remaining()) {
+            throw new FormatoInvalidoException("Cadena de " + Long.toUnsignedString(len) + " bytes con "
+                    + b.remaining() + " en el frame");
+        }
+        int n = (int) len;
+        String s = new String(b.array(), b.arrayOffset() + b.position(), n, StandardCharsets.UTF_8);
+        b.position(b.position() + n);
+        return s;
+    }
+
+    static void putVarint(ByteBuffer b, long v) {
+        while ((v & ~0x7FL) != 0) {
+            b.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        b.put((byte) v);
+    }
+
+    static int longitudVarint(long v) {
+        int n = 1;
+        while ((v & ~0x7FL) != 0) {
+            n++;
+            v >>>= 7;
+        }
+        return n;
+    }
+
+    static long getVarint(ByteBuffer b) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte x = b.get();
+            v |= (long) (x & 0x7F) << shift;
+            if ((x & 0x80) == 0) return v;
+        }
+        throw new FormatoInvalidoException("Varint demasiado largo");
+    }
+}
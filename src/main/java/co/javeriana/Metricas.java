@@ -0,0 +1,168 @@
+package co.javeriana;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Registro de métricas del proceso y su exposición en formato de texto de Prometheus.
+ *
+ * Los histogramas se resuelven una vez (normalmente en un campo `static final`) y en el
+ * camino caliente solo se llama a {@link Histograma#registrar}, que no asigna memoria. Las
+ * series de tiempo se exponen como `summary` en segundos (cuantiles 0.5, 0.99 y 0.999, más
+ * `_sum` y `_count`) acompañado de un gauge `<nombre>_max`; los gauges se leen en el momento
+ * de exponer.
+ *
+ * Todas las series llevan la etiqueta `proceso` ({@link #proceso(String)}), de modo que la
+ * salida de varios procesos se puede concatenar: PS agrega en `/metrics` la suya, la del GC
+ * y la de ActorPrestamo. Cualquier proceso puede además servir la suya con `-DmetricsPort`.
+ */
+public final class Metricas {
+    private static final Log LOG = Log.get("Metricas");
+
+    /** Operación que pide a GC y ActorPrestamo su exposición (campo `metricas` de la respuesta). */
+    public static final String OP = "METRICS";
+
+    private static final double[] CUANTILES = {0.5, 0.99, 0.999};
+
+    private static final Map<Serie, Histograma> HISTOGRAMAS = new ConcurrentHashMap<>();
+    private static final Map<Serie, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+    private static volatile String proceso = "desconocido";
+
+    private record Serie(String nombre, String etiquetas) implements Comparable<Serie> {
+        @Override
+        public int compareTo(Serie o) {
+            int c = nombre.compareTo(o.nombre);
+            return c != 0 ? c : etiquetas.compareTo(o.etiquetas);
+        }
+    }
+
+    private Metricas() {}
+
+    /** Nombre del proceso para la etiqueta `proceso`; se fija al arrancar el main. */
+    public static void proceso(String nombre) {
+        proceso = nombre;
+    }
+
+    /** Histograma de la serie; `etiquetas` en sintaxis Prometheus sin llaves (`op="PRESTAMO"`) o "". */
+    public static Histograma histograma(String nombre, String etiquetas) {
+        return HISTOGRAMAS.computeIfAbsent(new Serie(nombre, etiquetas), s -> new Histograma());
+    }
+
+    /** Registra (o reemplaza) un gauge que se evalúa al exponer. */
+    public static void gauge(String nombre, String etiquetas, LongSupplier valor) {
+        GAUGES.put(new Serie(nombre, etiquetas), valor);
+    }
+
+    /** Un histograma por operación de préstamo, resueltos de antemano. */
+    public static PorOperacion porOperacion(String nombre) {
+        return new PorOperacion(nombre, "");
+    }
+
+    /** Como {@link #porOperacion(String)}, con etiquetas adicionales comunes a las cuatro series. */
+    public static PorOperacion porOperacion(String nombre, String etiquetas) {
+        return new PorOperacion(nombre, etiquetas.isEmpty() ? "" : etiquetas + ",");
+    }
+
+    public static final class PorOperacion {
+        private final Histograma prestamo, devolucion, renovacion, otra;
+
+        private PorOperacion(String nombre, String prefijo) {
+            prestamo = histograma(nombre, prefijo + "op=\"PRESTAMO\"");
+            devolucion = histograma(nombre, prefijo + "op=\"DEVOLUCION\"");
+            renovacion = histograma(nombre, prefijo + "op=\"RENOVACION\"");
+            otra = histograma(nombre, prefijo + "op=\"OTRA\"");
+        }
+
+        public Histograma prestamo() { return prestamo; }
+        public Histograma devolucion() { return devolucion; }
+        public Histograma renovacion() { return renovacion; }
+
+        /** Histograma según el prefijo de la carga (`PRESTAMO;...`), sin asignar memoria. */
+        public Histograma para(String carga) {
+            if (carga == null) return otra;
+            if (carga.startsWith("PRESTAMO")) return prestamo;
+            if (carga.startsWith("DEVOLUCION")) return devolucion;
+            if (carga.startsWith("RENOVACION")) return renovacion;
+            return otra;
+        }
+    }
+
+    /** Exposición en formato de texto de Prometheus (versión 0.0.4). */
+    public static String exponer() {
+        StringBuilder sb = new StringBuilder(4096);
+        StringBuilder maximos = new StringBuilder(1024);
+        String p = "proceso=\"" + proceso + "\"";
+        String ultimo = null;
+        for (Map.Entry<Serie, Histograma> e : new TreeMap<>(HISTOGRAMAS).entrySet()) {
+            Serie s = e.getKey();
+            Histograma h = e.getValue();
+            if (h.count() == 0) continue;
+            String etiquetas = s.etiquetas().isEmpty() ? p : p + "," + s.etiquetas();
+            if (!s.nombre().equals(ultimo)) {
+                sb.append("# TYPE ").append(s.nombre()).append(" summary\n");
+                maximos.append("# TYPE ").append(s.nombre()).append("_max gauge\n");
+                ultimo = s.nombre();
+            }
+            long[] q = h.percentiles(CUANTILES);
+            for (int i = 0; i < CUANTILES.length; i++) {
+                sb.append(s.nombre()).append('{').append(etiquetas).append(",quantile=\"").append(CUANTILES[i]).append("\"} ")
+                        .append(segundos(q[i])).append('\n');
+            }
+            sb.append(s.nombre()).append("_sum{").append(etiquetas).append("} ").append(segundos(h.sumaNanos())).append('\n');
+            sb.append(s.nombre()).append("_count{").append(etiquetas).append("} ").append(h.count()).append('\n');
+            maximos.append(s.nombre()).append("_max{").append(etiquetas).append("} ").append(segundos(h.maxNanos())).append('\n');
+        }
+        sb.append(maximos);
+        ultimo = null;
+        for (Map.Entry<Serie, LongSupplier> e : new TreeMap<>(GAUGES).entrySet()) {
+            Serie s = e.getKey();
+            long v;
+            try {
+                v = e.getValue().getAsLong();
+            } catch (RuntimeException ex) {
+                continue;
+            }
+            if (!s.nombre().equals(ultimo)) {
+                sb.append("# TYPE ").append(s.nombre()).append(" gauge\n");
+                ultimo = s.nombre();
+            }
+            String etiquetas = s.etiquetas().isEmpty() ? p : p + "," + s.etiquetas();
+            sb.append(s.nombre()).append('{').append(etiquetas).append("} ").append(v).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String segundos(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    /** Con `-DmetricsPort=<puerto>`, sirve {@link #exponer()} en `http://*:<puerto>/metrics`. */
+    public static void servirSiSeConfigura() {
+        Integer puerto = Integer.getInteger("metricsPort");
+        if (puerto == null) return;
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(puerto), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] b = exponer().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, b.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(b);
+                }
+            });
+            server.start();
+            LOG.info("Métricas en http://localhost:" + puerto + "/metrics");
+        } catch (IOException e) {
+            LOG.warn("No se pudo abrir el puerto de métricas " + puerto + ": " + e.getMessage());
+        }
+    }
+}
@@ -2,15 +2,46 @@ package co.javeriana;
 
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpExchange;
-import org.zeromq.SocketType;
 import org.zeromq.ZContext;
-import org.zeromq.ZMQ;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class PS {
+    private static final Log LOG = Log.get("PS");
+
+    // Cada petición HTTP se atiende en su propio hilo virtual y habla con el GC a través de
+    // un pool de sockets REQ (GcSocketPool):
+    // -DgcPoolSize      sockets hacia el GC, es decir, peticiones simultáneas en vuelo (32)
+    // -DgcTimeoutMs     espera máxima de la respuesta del GC (10000)
+    // -DmaxConcurrent   peticiones HTTP admitidas a la vez; el resto recibe 503 (256)
+    // -DadmitTimeoutMs  espera máxima para ser admitida antes del 503 (1000)
+    //
+    // POST /sendBatch recibe solicitudes separadas por saltos de línea (formato de
+    // solicitudes_sede1.txt). Se trocean en lotes de -DbatchChunk líneas (64), cada lote viaja
+    // al GC como un único mensaje multi-frame y hasta -DbatchWindow lotes (8) están en vuelo a
+    // la vez. La respuesta se emite en streaming: un resultado por línea, en el orden recibido.
+    //
+    // GET /prestamos?usuarioId=U&libroCodigo=L&estado=ACTIVO&venceAntes=2025-02-01&limite=N
+    // consulta préstamos (al menos un criterio; venceAntes filtra por fechaFin anterior). La
+    // resuelve ActorPrestamo con los índices del repositorio y se responde en JSON:
+    // {"total":N,"prestamos":[...]}. 400 si falta criterio o el formato no es válido.
+    //
+    // GET /metrics devuelve en formato Prometheus las métricas de este PS, del GC y de
+    // ActorPrestamo (ver Metricas).
+
+    private static final Metricas.PorOperacion LATENCIA = Metricas.porOperacion("biblioteca_ps_latencia_segundos");
+    private static final Histograma LATENCIA_LOTE = Metricas.histograma("biblioteca_ps_lote_segundos", "");
 
     public static void main(String[] args) throws Exception {
 
@@ -23,53 +54,214 @@ public class PS {
         final String endpoint = args[0];
         final int puerto = Integer.parseInt(args[1]);
 
-        System.out.println("[PS] Conectando a GC en " + endpoint);
-        System.out.println("[PS] Iniciando HTTP en puerto " + puerto);
+        Metricas.proceso("PS");
+        LOG.info("Conectando a GC en " + endpoint);
+        LOG.info("Iniciando HTTP en puerto " + puerto);
+
+        int poolSize = Integer.getInteger("gcPoolSize", 32);
+        int gcTimeoutMs = Integer.getInteger("gcTimeoutMs", 10000);
+        int maxConcurrent = Integer.getInteger("maxConcurrent", 256);
+        long admitTimeoutMs = Long.getLong("admitTimeoutMs", 1000L);
+        int batchChunk = Math.max(1, Integer.getInteger("batchChunk", 64));
+        int batchWindow = Math.max(1, Integer.getInteger("batchWindow", 8));
 
         ZContext context = new ZContext();
-        ZMQ.Socket socket = context.createSocket(SocketType.REQ);
-        socket.setLinger(0);
-        socket.connect(endpoint);
+        GcSocketPool gc = new GcSocketPool(context, endpoint, poolSize, gcTimeoutMs);
+        Semaphore admision = new Semaphore(maxConcurrent);
 
         // Servidor HTTP local usando el puerto pasado por parámetro
-        HttpServer server = HttpServer.create(new InetSocketAddress(puerto), 0);
-        System.out.println("[PS] HTTP server escuchando en http://localhost:" + puerto + "/send");
+        HttpServer server = HttpServer.create(new InetSocketAddress(puerto), maxConcurrent);
+        ExecutorService hilos = Executors.newVirtualThreadPerTaskExecutor();
+        server.setExecutor(hilos);
+        LOG.info(String.format("gcPoolSize=%d gcTimeoutMs=%d maxConcurrent=%d", poolSize, gcTimeoutMs, maxConcurrent));
+        LOG.info("HTTP server escuchando en http://localhost:" + puerto + "/send");
 
         server.createContext("/send", (HttpExchange exchange) -> {
+            long t0 = System.nanoTime();
+            boolean admitida = false;
             try {
                 if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
                     exchange.sendResponseHeaders(405, -1);
                     return;
                 }
+                admitida = admision.tryAcquire(admitTimeoutMs, TimeUnit.MILLISECONDS);
+                if (!admitida) {
+                    responder(exchange, 503, "ERROR: PS saturado");
+                    return;
+                }
 
                 String body = new String(exchange.getRequestBody().readAllBytes()).trim();
-                System.out.println("[PS] Recibido desde Locust: " + body);
+                LOG.debug(() -> "Recibido desde Locust: " + body);
 
                 // Enviar al GC
-                socket.send(body.getBytes(ZMQ.CHARSET), 0);
+                String resp = gc.request(body);
+                if (resp == null) {
+                    LOG.warn("Sin respuesta del GC para: " + body);
+                    responder(exchange, 504, "<sin respuesta>");
+                    LATENCIA.para(body).registrarDesde(t0);
+                    return;
+                }
 
-                byte[] reply = socket.recv(0);
-                String resp = reply != null ? new String(reply, ZMQ.CHARSET) : "<sin respuesta>";
+                LOG.debug(() -> "Respuesta GC: " + resp);
+                responder(exchange, 200, resp);
+                LATENCIA.para(body).registrarDesde(t0);
+
+            } catch (Exception e) {
+                LOG.error("Error atendiendo /send", e);
+                responder(exchange, 500, "ERROR: " + e.getMessage());
+            } finally {
+                if (admitida) admision.release();
+            }
+        });
+
+        server.createContext("/sendBatch", (HttpExchange exchange) -> {
+            long t0 = System.nanoTime();
+            boolean admitida = false;
+            try {
+                if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                admitida = admision.tryAcquire(admitTimeoutMs, TimeUnit.MILLISECONDS);
+                if (!admitida) {
+                    responder(exchange, 503, "ERROR: PS saturado");
+                    return;
+                }
 
-                System.out.println("[PS] Respuesta GC: " + resp);
+                List<String> lineas = new ArrayList<>();
+                for (String l : new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8).split("\\R")) {
+                    if (!l.isBlank()) lineas.add(l.trim());
+                }
+                LOG.debug(() -> "Lote recibido: " + lineas.size() + " solicitudes");
 
-                byte[] response = resp.getBytes();
-                exchange.sendResponseHeaders(200, response.length);
+                List<List<String>> trozos = new ArrayList<>();
+                for (int i = 0; i < lineas.size(); i += batchChunk) {
+                    trozos.add(lineas.subList(i, Math.min(lineas.size(), i + batchChunk)));
+                }
 
+                // Ventana deslizante: se mantienen hasta batchWindow trozos en vuelo y se
+                // escriben en orden a medida que se completan
+                exchange.sendResponseHeaders(200, 0);
                 try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response);
+                    List<CompletableFuture<List<String>>> enVuelo = new ArrayList<>();
+                    int enviados = 0;
+                    for (int i = 0; i < trozos.size(); i++) {
+                        while (enviados < trozos.size() && enviados - i < batchWindow) {
+                            List<String> trozo = trozos.get(enviados++);
+                            enVuelo.add(CompletableFuture.supplyAsync(() -> enviarLote(gc, trozo), hilos));
+                        }
+                        StringBuilder sb = new StringBuilder();
+                        for (String r : enVuelo.get(i).join()) sb.append(r).append('\n');
+                        enVuelo.set(i, null);
+                        os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                        os.flush();
+                    }
                 }
+                LATENCIA_LOTE.registrarDesde(t0);
 
             } catch (Exception e) {
-                e.printStackTrace();
-                String err = "ERROR: " + e.getMessage();
-                exchange.sendResponseHeaders(500, err.length());
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(err.getBytes());
+                LOG.error("Error atendiendo /sendBatch", e);
+                // Si ya empezó el streaming no se puede cambiar el estado; el cliente ve el corte
+                if (exchange.getResponseCode() == -1) responder(exchange, 500, "ERROR: " + e.getMessage());
+            } finally {
+                if (admitida) admision.release();
+            }
+        });
+
+        server.createContext("/prestamos", (HttpExchange exchange) -> {
+            boolean admitida = false;
+            try {
+                if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                String carga = cargaConsulta(exchange.getRequestURI().getRawQuery());
+                if (carga == null) {
+                    responder(exchange, 400, "ERROR: parámetro no válido");
+                    return;
                 }
+                admitida = admision.tryAcquire(admitTimeoutMs, TimeUnit.MILLISECONDS);
+                if (!admitida) {
+                    responder(exchange, 503, "ERROR: PS saturado");
+                    return;
+                }
+                String resp = gc.request(carga);
+                if (resp == null) {
+                    responder(exchange, 504, "<sin respuesta>");
+                    return;
+                }
+                KvParser kv = KvParser.local().parse(resp);
+                if (!kv.opEs("OK")) {
+                    String motivo = kv.get("motivo");
+                    int status = "SinCriterio".equals(motivo) || "FormatoIncorrecto".equals(motivo) ? 400 : 503;
+                    responder(exchange, status, resp);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                responder(exchange, 200, "{\"total\":" + kv.get("total") + ",\"prestamos\":" + kv.get("prestamos") + "}");
+            } catch (Exception e) {
+                LOG.error("Error atendiendo /prestamos", e);
+                responder(exchange, 500, "ERROR: " + e.getMessage());
+            } finally {
+                if (admitida) admision.release();
+            }
+        });
+
+        server.createContext("/metrics", (HttpExchange exchange) -> {
+            try {
+                // Las del GC incluyen las de ActorPrestamo; si no responde se sirven solo las propias
+                String remotas = gc.request(Metricas.OP);
+                String cuerpo = Metricas.exponer() + (remotas == null ? "# GC sin respuesta\n" : remotas);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                responder(exchange, 200, cuerpo);
+            } catch (Exception e) {
+                LOG.error("Error atendiendo /metrics", e);
+                responder(exchange, 500, "ERROR: " + e.getMessage());
             }
         });
 
         server.start();
     }
+
+    private static final List<String> CRITERIOS = List.of("usuarioId", "libroCodigo", "estado", "venceAntes", "limite");
+
+    /** `CONSULTA;clave=valor;...` a partir de la query string; null si trae un parámetro desconocido o inválido. */
+    private static String cargaConsulta(String query) {
+        StringBuilder sb = new StringBuilder(ActorPrestamo.CONSULTA);
+        if (query == null) return sb.toString();
+        for (String par : query.split("&")) {
+            if (par.isEmpty()) continue;
+            int i = par.indexOf('=');
+            if (i <= 0) return null;
+            String clave = URLDecoder.decode(par.substring(0, i), StandardCharsets.UTF_8);
+            String valor = URLDecoder.decode(par.substring(i + 1), StandardCharsets.UTF_8).trim();
+            // ';' y '=' romperían el formato de texto de la carga
+            if (!CRITERIOS.contains(clave) || valor.isEmpty() || valor.indexOf(';') >= 0 || valor.indexOf('=') >= 0) return null;
+            sb.append(';').append(clave).append('=').append(valor);
+        }
+        return sb.toString();
+    }
+
+    /** Envía un trozo del lote al GC; si no hay respuesta, cada línea recibe un error. */
+    private static List<String> enviarLote(GcSocketPool gc, List<String> trozo) {
+        List<String> r = null;
+        try {
+            r = gc.requestBatch(trozo);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (r != null) return r;
+        LOG.warn("Sin respuesta del GC para un lote de " + trozo.size() + " solicitudes");
+        List<String> errores = new ArrayList<>(trozo.size());
+        for (int i = 0; i < trozo.size(); i++) errores.add("<sin respuesta>");
+        return errores;
+    }
+
+    private static void responder(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] response = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(response);
+        }
+    }
 }
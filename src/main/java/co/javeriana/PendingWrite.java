@@ -0,0 +1,19 @@
+package co.javeriana;
+
+/**
+ * Escritura a disco de un repositorio ya aplicada en memoria pero aún no hecha durable (ver
+ * {@link LibroRepository#stage}). Permite que quien modifica el repositorio bajo un lock
+ * haga la E/S después de soltarlo.
+ */
+@FunctionalInterface
+public interface PendingWrite {
+    /** Escritura ya completada. */
+    PendingWrite DONE = () -> { };
+
+    /**
+     * Hace durable la escritura (o espera a que lo sea) según `-DfsyncPolicy`. Si la E/S
+     * falla lanza {@link java.io.UncheckedIOException}: el cambio está en memoria pero no
+     * se puede dar por hecho.
+     */
+    void await();
+}
@@ -1,6 +1,44 @@
 package co.javeriana;
 
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Las consultas por usuario, libro, estado y fecha de fin tienen una implementación por
+ * defecto que recorre {@link #findAll()}; los repositorios del proyecto las resuelven con
+ * índices secundarios ({@link IndicePrestamos}) mantenidos en cada `save`.
+ */
 public interface PrestamoRepository {
     Prestamo findById(String id);
     void save(Prestamo p);
+
+    /** Como {@link LibroRepository#stage}: en memoria ahora, a disco al completar la escritura devuelta. */
+    default PendingWrite stage(Prestamo p) {
+        save(p);
+        return PendingWrite.DONE;
+    }
+
+    default void saveAll(Collection<Prestamo> prestamos) {
+        for (Prestamo p : prestamos) save(p);
+    }
+
+    /** Vista de todos los préstamos (para sincronizar una réplica completa). */
+    Collection<Prestamo> findAll();
+
+    default List<Prestamo> findByUsuario(String usuarioId) {
+        return findAll().stream().filter(p -> usuarioId.equals(p.getUsuarioId())).toList();
+    }
+
+    default List<Prestamo> findByLibro(String libroCodigo) {
+        return findAll().stream().filter(p -> libroCodigo.equals(p.getLibroCodigo())).toList();
+    }
+
+    default List<Prestamo> findByEstado(PrestamoEstado estado) {
+        return findAll().stream().filter(p -> estado == p.getEstado()).toList();
+    }
+
+    /** Préstamos cuya `fechaFin` (ISO `yyyy-MM-dd`) es anterior a `fecha`. */
+    default List<Prestamo> findVencenAntesDe(String fecha) {
+        return findAll().stream().filter(p -> p.getFechaFin() != null && p.getFechaFin().compareTo(fecha) < 0).toList();
+    }
 }
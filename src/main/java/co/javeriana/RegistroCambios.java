@@ -0,0 +1,213 @@
+package co.javeriana;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Registro persistente del flujo de cambios de una primaria ({@link Cambio}): una línea JSON
+ * por cambio, en orden de `seq`, escrita a través del {@link CommitPipeline} compartido.
+ *
+ * Una réplica que se reinicia o se quedó atrás se pone al día leyendo solo los cambios
+ * posteriores a su checkpoint ({@link #leerDesde}) en lugar de copiar los ficheros de datos.
+ * Cada gestor del par tiene el suyo y anota en él mientras es el origen; la secuencia es
+ * común, así que un registro tiene huecos en los tramos que originó el otro.
+ * Al superar `-DcambiosMaxBytes` (64 MB) el fichero pasa a `<fichero>.old` y se empieza
+ * otro; se conservan esas dos generaciones y una réplica anterior a ellas necesita una foto
+ * completa ({@link GestorAlmacenamiento#exportar}). La rotación no espera a los lectores: si
+ * hay una lectura en curso se aplaza a la siguiente escritura.
+ */
+public final class RegistroCambios implements AutoCloseable {
+    private static final Log LOG = Log.get("RegistroCambios");
+
+    private final Path fichero;
+    private final Path anterior;
+    private final Gson gson = new Gson();
+    private final CommitPipeline pipeline = CommitPipeline.shared();
+    private final long maxBytes = Long.getLong("cambiosMaxBytes", 64L * 1024 * 1024);
+    private final ReentrantReadWriteLock rotacion = new ReentrantReadWriteLock();
+    private FileChannel canal;
+    private long bytes;
+    private long primeroAnterior;           // 0 si no hay .old o está vacío
+    private long primeroActual;             // 0 si el fichero actual está vacío
+    private volatile long ultimo;
+    private CompletableFuture<Void> ultimaEscritura = CompletableFuture.completedFuture(null);
+
+    public RegistroCambios(Path fichero) {
+        this.fichero = fichero;
+        this.anterior = fichero.resolveSibling(fichero.getFileName() + ".old");
+        try {
+            if (fichero.getParent() != null) Files.createDirectories(fichero.getParent());
+            long[] a = escanear(anterior);
+            long[] f = escanear(fichero);
+            primeroAnterior = a[0];
+            primeroActual = f[0];
+            ultimo = Math.max(a[1], f[1]);
+            canal = FileChannel.open(fichero, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            // Una última línea incompleta (caída a mitad de escritura) se descarta
+            if (canal.size() != f[2]) canal.truncate(f[2]);
+            canal.position(f[2]);
+            bytes = f[2];
+        } catch (IOException e) {
+            throw new UncheckedIOException("No se pudo abrir el registro de cambios " + fichero, e);
+        }
+        LOG.info("Registro de cambios " + fichero + ": seq " + primerSeq() + ".." + ultimo);
+    }
+
+    /** {primer seq, último seq, bytes hasta la última línea completa} de un fichero del registro. */
+    private static long[] escanear(Path p) throws IOException {
+        long[] r = new long[3];
+        if (!Files.exists(p)) return r;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(p), 64 * 1024)) {
+            StringBuilder linea = new StringBuilder(256);
+            long pos = 0;
+            int c;
+            while ((c = in.read()) != -1) {
+                pos++;
+                if (c != '\n') {
+                    if (linea.length() < 64) linea.append((char) c); // basta con el prefijo {"seq":N
+                    continue;
+                }
+                long seq = seqDe(linea);
+                linea.setLength(0);
+                if (seq <= 0) break;
+                if (r[0] == 0) r[0] = seq;
+                r[1] = seq;
+                r[2] = pos;
+            }
+        }
+        return r;
+    }
+
+    private static long seqDe(CharSequence linea) {
+        String s = linea.toString();
+        int i = s.indexOf("\"seq\":");
+        if (i < 0) return -1;
+        long v = 0;
+        int n = 0;
+        for (i += 6; i < s.length() && Character.isDigit(s.charAt(i)); i++, n++) v = v * 10 + (s.charAt(i) - '0');
+        return n == 0 ? -1 : v;
+    }
+
+    /**
+     * Añade el cambio (ya numerado, en orden) y devuelve el futuro de su durabilidad. El orden
+     * de llamada es el del fichero: el llamador numera y anota en el mismo bloque sincronizado
+     * y espera el futuro fuera de él, para que varios escritores compartan fsync.
+     */
+    public synchronized CompletableFuture<Void> anotar(Cambio c) {
+        if (bytes >= maxBytes) rotarSiSePuede();
+        byte[] rec = (gson.toJson(c) + "\n").getBytes(StandardCharsets.UTF_8);
+        CompletableFuture<Void> durable = pipeline.submit(canal, rec);
+        bytes += rec.length;
+        if (primeroActual == 0) primeroActual = c.seq();
+        ultimo = c.seq();
+        ultimaEscritura = durable;
+        return durable;
+    }
+
+    /**
+     * Futuro que se completa cuando todo lo anotado hasta ahora es durable. El pipeline escribe
+     * y sincroniza cada canal en orden, así que basta el del último cambio anotado.
+     */
+    public synchronized CompletableFuture<Void> durable() {
+        return ultimaEscritura;
+    }
+
+    private void rotarSiSePuede() {
+        if (!rotacion.writeLock().tryLock()) return;
+        try {
+            pipeline.flush(canal);
+            canal.close();
+            Files.move(fichero, anterior, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            canal = FileChannel.open(fichero, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            primeroAnterior = primeroActual;
+            primeroActual = 0;
+            bytes = 0;
+            LOG.info("Registro de cambios rotado en seq " + ultimo);
+        } catch (IOException e) {
+            LOG.error("No se pudo rotar el registro de cambios " + fichero, e);
+            try {
+                if (!canal.isOpen()) canal = FileChannel.open(fichero, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        } finally {
+            rotacion.writeLock().unlock();
+        }
+    }
+
+    /** Espera a que todo lo anotado hasta ahora esté escrito en el fichero. */
+    public synchronized void sincronizar() throws IOException {
+        pipeline.flush(canal);
+    }
+
+    /** Último seq anotado (0 si el registro está vacío). */
+    public long ultimoSeq() {
+        return ultimo;
+    }
+
+    /** Primer seq que aún se puede leer; `ultimoSeq() + 1` si no queda ninguno. */
+    public synchronized long primerSeq() {
+        if (primeroAnterior > 0) return primeroAnterior;
+        if (primeroActual > 0) return primeroActual;
+        return ultimo + 1;
+    }
+
+    /**
+     * Entrega en orden los cambios con seq mayor que `desde` escritos hasta ahora. Se detiene
+     * en la primera línea incompleta (una escritura en curso): lo posterior llega por el
+     * flujo en vivo.
+     */
+    public void leerDesde(long desde, Consumer<Cambio> destino) throws IOException {
+        rotacion.readLock().lock();
+        try {
+            if (leer(anterior, desde, destino)) leer(fichero, desde, destino);
+        } finally {
+            rotacion.readLock().unlock();
+        }
+    }
+
+    /** false si se encontró una línea incompleta (no hay que seguir leyendo). */
+    private boolean leer(Path p, long desde, Consumer<Cambio> destino) throws IOException {
+        if (!Files.exists(p)) return true;
+        try (BufferedReader in = Files.newBufferedReader(p, StandardCharsets.UTF_8)) {
+            String l;
+            while ((l = in.readLine()) != null) {
+                if (seqDe(l) <= desde) continue;
+                Cambio c;
+                try {
+                    c = gson.fromJson(l, Cambio.class);
+                } catch (JsonParseException e) {
+                    return false;
+                }
+                if (c == null || (c.libro() == null && c.prestamo() == null)) return false;
+                destino.accept(c);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            pipeline.flush(canal);
+            canal.close();
+        } catch (IOException e) {
+            LOG.warn("Error cerrando el registro de cambios: " + e.getMessage());
+        }
+    }
+}
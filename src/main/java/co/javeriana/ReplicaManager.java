@@ -1,5 +1,14 @@
 package co.javeriana;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 /**
  * ReplicaManager mantiene referencias a un GestorAlmacenamiento primario y uno réplica.
  * Permite consultar el GA activo y forzar una conmutación a la réplica cuando la primaria falla.
@@ -9,23 +18,91 @@ package co.javeriana;
  * - `primariaActiva()` indica si la primaria está siendo utilizada.
  * - `conmutarAReplica()` fuerza la conmutación: a partir de ese momento las operaciones
  *   se realizarán únicamente sobre la réplica.
+ * - La réplica se mantiene con el flujo de cambios de la primaria y su registro persistente
+ *   ({@link RegistroCambios}); sincronizarla es aplicar lo que falta desde su checkpoint, no
+ *   copiar ficheros.
+ * - Un detector de fallos por latidos sondea la primaria cada `-DlatidoMs` (50 ms; 0 lo
+ *   desactiva) y, si no responde durante `-DlatidoTimeoutMs` (150 ms), promueve la réplica
+ *   sin esperar a que una petición tropiece con el fallo. La primaria conmutada queda
+ *   cercada (no disponible) para que ninguna escritura tardía le llegue.
+ * - `recuperarPrimaria()` devuelve la primaria al servicio (failback): la primaria se pone al
+ *   día en segundo plano desde el registro de la réplica y, cuando el retraso es pequeño, el
+ *   compuesto vuelve a hacerla origen con una pausa breve de las escrituras. Si el proceso
+ *   arranca con la réplica como último origen, el failback se lanza solo.
  */
 public class ReplicaManager {
+    private static final Log LOG = Log.get("ReplicaManager");
+
     private final GestorAlmacenamiento primaria;
     private final GestorAlmacenamiento replica;
     private final GestorAlmacenamientoConReplica compuesto;
-    private volatile boolean primariaActiva = true;
+    private static final long LATIDO_MS = Long.getLong("latidoMs", 50L);
+    private static final long LATIDO_TIMEOUT_MS = Long.getLong("latidoTimeoutMs", 150L);
+    private static final long FAILBACK_SONDEO_MS = 20;
+
+    private volatile long ultimoLatido = System.nanoTime();
+    private volatile Runnable alConmutar;
+    private ScheduledExecutorService detector;
+    private Thread failback;
 
     public ReplicaManager(GestorAlmacenamiento primaria, GestorAlmacenamiento replica) {
+        this(primaria, replica, Paths.get("data", "primaria"), Paths.get("data", "replica"), "ga");
+    }
+
+    /**
+     * @param dirPrimaria directorio donde se guarda el registro de cambios de la primaria
+     * @param dirReplica  directorio donde se guarda el checkpoint de la réplica
+     * @param nombre      nombre del flujo de cambios; cada proceso con su propio par de
+     *                    gestores usa uno distinto (`cambios-<nombre>.log`)
+     */
+    public ReplicaManager(GestorAlmacenamiento primaria, GestorAlmacenamiento replica,
+                          Path dirPrimaria, Path dirReplica, String nombre) {
         this.primaria = primaria;
         this.replica = replica;
-        this.compuesto = new GestorAlmacenamientoConReplica(primaria, replica, this);
-        // Intentar sincronizar réplica desde primaria al arrancar si es necesario
         try {
-            boolean synced = syncReplicaFromPrimary();
-            if (synced) System.err.println("[ReplicaManager] Replica inicial sincronizada desde primaria.");
-        } catch (Exception ex) {
-            System.err.println("[ReplicaManager] No se pudo sincronizar réplica al arrancar: " + ex.getMessage());
+            Files.createDirectories(dirReplica);
+        } catch (IOException e) {
+            throw new UncheckedIOException("No se pudo crear directorio de réplica " + dirReplica, e);
+        }
+        // La puesta al día desde el checkpoint corre en segundo plano en el compuesto
+        this.compuesto = new GestorAlmacenamientoConReplica(primaria, replica, this, dirPrimaria, dirReplica, nombre);
+        if (!compuesto.primariaActiva()) recuperarPrimaria();
+        if (LATIDO_MS > 0) {
+            detector = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "detector-fallos-" + nombre);
+                t.setDaemon(true);
+                return t;
+            });
+            detector.scheduleWithFixedDelay(this::sondear, LATIDO_MS, LATIDO_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Acción a ejecutar (en otro hilo) tras conmutar, p. ej. avisar a los GCs. */
+    public void setAlConmutar(Runnable accion) {
+        this.alConmutar = accion;
+    }
+
+    /** Un latido: si la primaria lleva más de `latidoTimeoutMs` sin responder, se promueve la réplica. */
+    private void sondear() {
+        if (!compuesto.primariaActiva()) {
+            ultimoLatido = System.nanoTime();
+            return;
+        }
+        boolean viva;
+        try {
+            viva = primaria.latido();
+        } catch (RuntimeException e) {
+            viva = false;
+        }
+        long ahora = System.nanoTime();
+        if (viva) {
+            ultimoLatido = ahora;
+            return;
+        }
+        long sinLatidoMs = (ahora - ultimoLatido) / 1_000_000;
+        if (sinLatidoMs >= LATIDO_TIMEOUT_MS) {
+            LOG.warn("Primaria sin latido desde hace " + sinLatidoMs + " ms; se promueve la réplica");
+            conmutarAReplica();
         }
     }
 
@@ -35,94 +112,59 @@ public class ReplicaManager {
     }
 
     public boolean primariaActiva() {
-        return primariaActiva;
+        return compuesto.primariaActiva();
     }
 
     /**
      * Forzar conmutación a réplica. Las llamadas posteriores usarán la réplica.
-     * Se deja la réplica como el destino único.
+     * Se deja la réplica como el destino único. Idempotente.
+     *
+     * La réplica ya va al día por el flujo de cambios, así que basta con aplicar la cola
+     * pendiente: el coste no depende del tamaño de los datos sino del lag.
      */
-    public void conmutarAReplica() {
-        System.err.println("[ReplicaManager] Iniciando conmutación a réplica (failover)");
-        try {
-            boolean ok = syncReplicaFromPrimary();
-            if (!ok) {
-                System.err.println("[ReplicaManager] Advertencia: sincronización a réplica falló, procediendo de todos modos.");
-            } else {
-                System.err.println("[ReplicaManager] Sincronización a réplica completada.");
-            }
-        } catch (Exception ex) {
-            System.err.println("[ReplicaManager] Error durante syncReplicaFromPrimary: " + ex.getMessage());
+    public synchronized void conmutarAReplica() {
+        // Con varios workers, más de uno puede detectar el fallo: solo el primero conmuta
+        if (!compuesto.primariaActiva()) return;
+        LOG.warn("Iniciando conmutación a réplica (failover)");
+        long t0 = System.nanoTime();
+        primaria.setDisponible(false); // cercar la primaria
+        compuesto.promoverReplica(); // aplica antes los cambios encolados
+        LOG.info("Conmutación a réplica completada en " + (System.nanoTime() - t0) / 1_000_000 + " ms");
+        Runnable accion = alConmutar;
+        if (accion != null) {
+            Thread t = new Thread(accion, "aviso-failover");
+            t.setDaemon(true);
+            t.start();
         }
-        primariaActiva = false;
-        compuesto.setPrimariaActiva(false);
     }
 
     /**
-     * Sincroniza los ficheros básicos de datos desde `data/primaria` a `data/replica`.
-     * Intenta copiar `libros.db` y `prestamos.db` de forma atómica usando ficheros temporales
-     * y bloqueos sencillos para evitar corrupciones por concurrencia con otros procesos.
-     *
-     * Retorna true si al menos los ficheros presentes fueron copiados correctamente.
+     * Pone la réplica al día con la primaria: espera a que aplique los cambios ya numerados
+     * (cola en vivo y, si sigue arrancando, la cola del registro desde su checkpoint). No copia
+     * ficheros. Retorna false si no lo consigue en `-DreplicaDrainMs`.
      */
     public boolean syncReplicaFromPrimary() {
-        java.nio.file.Path primariaDir = java.nio.file.Paths.get("data", "primaria");
-        java.nio.file.Path replicaDir = java.nio.file.Paths.get("data", "replica");
-        try {
-            java.nio.file.Files.createDirectories(replicaDir);
-        } catch (Exception e) {
-            System.err.println("[ReplicaManager] No se pudo crear directorio de réplica: " + e.getMessage());
-            return false;
-        }
-
-        String[] files = new String[]{"libros.db", "prestamos.db"};
-        boolean anyOk = false;
-
-        for (String fname : files) {
-            java.nio.file.Path src = primariaDir.resolve(fname);
-            java.nio.file.Path dst = replicaDir.resolve(fname);
-            if (!java.nio.file.Files.exists(src)) continue; // nada que copiar
-
-            java.nio.file.Path srcLock = primariaDir.resolve(fname + ".lock");
-            java.nio.file.Path dstLock = replicaDir.resolve(fname + ".lock");
-
-            // Acquire locks in deterministic order (by path string) to avoid deadlocks
-            java.nio.file.Path firstLock = srcLock.toString().compareTo(dstLock.toString()) <= 0 ? srcLock : dstLock;
-            java.nio.file.Path secondLock = firstLock == srcLock ? dstLock : srcLock;
-
-            try (java.io.RandomAccessFile raf1 = new java.io.RandomAccessFile(firstLock.toFile(), "rw");
-                 java.nio.channels.FileChannel ch1 = raf1.getChannel();
-                 java.nio.channels.FileLock l1 = ch1.lock()) {
-
-                try (java.io.RandomAccessFile raf2 = new java.io.RandomAccessFile(secondLock.toFile(), "rw");
-                     java.nio.channels.FileChannel ch2 = raf2.getChannel();
-                     java.nio.channels.FileLock l2 = ch2.lock()) {
-
-                    // perform copy to temp then atomic move
-                    java.nio.file.Path tmp = dst.resolveSibling(dst.getFileName().toString() + ".tmp");
-                    try {
-                        java.nio.file.Files.copy(src, tmp, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-                        try {
-                            java.nio.file.Files.move(tmp, dst, java.nio.file.StandardCopyOption.ATOMIC_MOVE, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-                        } catch (Exception moveEx) {
-                            // fallback to non-atomic move
-                            java.nio.file.Files.move(tmp, dst, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-                        }
-                        anyOk = true;
-                        System.err.println("[ReplicaManager] Copiado " + src.toString() + " -> " + dst.toString());
-                    } catch (Exception copyEx) {
-                        System.err.println("[ReplicaManager] Error copiando " + src.toString() + ": " + copyEx.getMessage());
-                        try { if (java.nio.file.Files.exists(tmp)) java.nio.file.Files.delete(tmp); } catch (Exception ignore) {}
-                    }
+        return compuesto.esperarReplicacion(Long.getLong("replicaDrainMs", 5000L));
+    }
 
-                }
-            } catch (Exception lockEx) {
-                System.err.println("[ReplicaManager] Error adquiriendo locks para " + fname + ": " + lockEx.getMessage());
+    /**
+     * Devuelve la primaria al servicio tras un failover. La primaria deja de estar cercada y
+     * un hilo en segundo plano espera a que el compuesto la ponga al día y la vuelva a hacer
+     * origen; mientras tanto la réplica sigue atendiendo. Idempotente.
+     */
+    public synchronized void recuperarPrimaria() {
+        if (compuesto.primariaActiva() || failback != null && failback.isAlive()) return;
+        LOG.info("Primaria recuperada; poniéndola al día para el failback");
+        primaria.setFailAfter(-1);
+        primaria.setDisponible(true);
+        failback = new Thread(() -> {
+            try {
+                while (!compuesto.intentarVolverAPrimaria()) Thread.sleep(FAILBACK_SONDEO_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        }
-
-        return anyOk;
+        }, "failback");
+        failback.setDaemon(true);
+        failback.start();
     }
-
-    /** NOTA: Por ahora no implementamos failback automático. */
 }
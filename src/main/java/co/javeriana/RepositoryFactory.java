@@ -0,0 +1,41 @@
+package co.javeriana;
+
+/**
+ * Crea los repositorios según el modo de almacenamiento configurado con
+ * `-DstorageMode=<modo>`:
+ * - `file` (por defecto): {@link FileBasedLibroRepository} / {@link FileBasedPrestamoRepository},
+ *   reescriben el fichero JSON completo; las escrituras concurrentes comparten reescritura
+ *   y fsync según `-DfsyncPolicy`.
+ * - `wal`: {@link WalLibroRepository} / {@link WalPrestamoRepository}, añaden un registro
+ *   al log por escritura y compactan en segundo plano.
+ * - `mmap`: {@link MappedLibroRepository} para el inventario (contadores in situ en un fichero
+ *   mapeado); los préstamos usan el repositorio con WAL.
+ */
+public final class RepositoryFactory {
+    private RepositoryFactory() {}
+
+    public static String storageMode() {
+        return System.getProperty("storageMode", "file").trim().toLowerCase();
+    }
+
+    public static LibroRepository libros(String path) {
+        switch (storageMode()) {
+            case "wal":
+                return new WalLibroRepository(path);
+            case "mmap":
+                return new MappedLibroRepository(path);
+            default:
+                return new FileBasedLibroRepository(path);
+        }
+    }
+
+    public static PrestamoRepository prestamos(String path) {
+        switch (storageMode()) {
+            case "wal":
+            case "mmap":
+                return new WalPrestamoRepository(path);
+            default:
+                return new FileBasedPrestamoRepository(path);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package co.javeriana;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Rueda de temporizadores jerárquica (Varghese y Lauck): {@value #NIVELES} niveles de
+ * {@value #RANURAS} ranuras, cada uno con ranuras 64 veces más anchas que el anterior. Con un
+ * tick de 1 s cubre ~34 años; lo que quede más lejos espera en una lista de desborde.
+ *
+ * Cada entrada está en la ranura que corresponde a su vencimiento respecto al tick actual:
+ * en el nivel 0 si vence dentro del bloque de 64 ticks en curso, en el nivel 1 si vence
+ * dentro del bloque de 64² en curso, etc. Al empezar un bloque del nivel `n` se vacía su
+ * ranura y sus entradas bajan a niveles inferiores (cascada). Avanzar un tick solo toca la
+ * ranura de ese tick y, una de cada 64 veces, la ranura que cae en cascada: el coste es
+ * proporcional a lo que vence (cada entrada baja como mucho `NIVELES - 1` veces) y no al
+ * número de temporizadores. Programar, reprogramar y cancelar por id son O(1): las ranuras
+ * son listas doblemente enlazadas intrusivas.
+ *
+ * No es thread-safe: la usa un único hilo (el bucle del GC).
+ */
+final class RuedaTemporizadores<V> {
+    private static final int BITS = 6;
+    static final int RANURAS = 1 << BITS;
+    private static final int MASCARA = RANURAS - 1;
+    static final int NIVELES = 5;
+    private static final int DESBORDE = -1;
+
+    private static final class Entrada<V> {
+        final String id;
+        final V valor;
+        final long vence; // tick
+        int nivel;
+        int ranura;
+        Entrada<V> ant;
+        Entrada<V> sig;
+
+        Entrada(String id, V valor, long vence) {
+            this.id = id;
+            this.valor = valor;
+            this.vence = vence;
+        }
+    }
+
+    private final long tickMs;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Entrada<V>[][] ranuras = new Entrada[NIVELES][RANURAS];
+    private Entrada<V> desborde;
+    private final Map<String, Entrada<V>> porId = new HashMap<>();
+    private long actual; // último tick procesado
+
+    RuedaTemporizadores(long tickMs, long ahoraMs) {
+        this.tickMs = Math.max(1, tickMs);
+        this.actual = ahoraMs / this.tickMs;
+    }
+
+    /** Programa (o reprograma) `id` para `venceMs`; si ya venció, sale en el siguiente tick. */
+    void programar(String id, long venceMs, V valor) {
+        cancelar(id);
+        // Redondeo hacia arriba: nunca vence antes de tiempo
+        Entrada<V> e = new Entrada<>(id, valor, Math.floorDiv(venceMs + tickMs - 1, tickMs));
+        porId.put(id, e);
+        colocar(e, actual + 1);
+    }
+
+    /** Quita el temporizador de `id`; false si no había. */
+    boolean cancelar(String id) {
+        Entrada<V> e = porId.remove(id);
+        if (e == null) return false;
+        desenlazar(e);
+        return true;
+    }
+
+    V get(String id) {
+        Entrada<V> e = porId.get(id);
+        return e == null ? null : e.valor;
+    }
+
+    int size() {
+        return porId.size();
+    }
+
+    /** Milisegundos hasta el siguiente tick, o Long.MAX_VALUE si no hay temporizadores. */
+    long msHastaProximoTick(long ahoraMs) {
+        if (porId.isEmpty()) return Long.MAX_VALUE;
+        return Math.max(0, (actual + 1) * tickMs - ahoraMs);
+    }
+
+    /** Procesa los ticks hasta `ahoraMs` y entrega cada entrada vencida; devuelve cuántas. */
+    int avanzar(long ahoraMs, BiConsumer<String, V> alVencer) {
+        long objetivo = ahoraMs / tickMs;
+        int vencidas = 0;
+        while (actual < objetivo) {
+            if (porId.isEmpty()) {
+                actual = objetivo;
+                break;
+            }
+            long t = ++actual;
+            if ((t & ((1L << (BITS * NIVELES)) - 1)) == 0) recolocarDesborde();
+            // Cascadas de arriba abajo: lo que baja de un nivel puede volver a bajar en este tick
+            for (int n = NIVELES - 1; n >= 1; n--) {
+                if ((t & ((1L << (BITS * n)) - 1)) == 0) cascada(n, (int) ((t >>> (BITS * n)) & MASCARA));
+            }
+            Entrada<V> e = ranuras[0][(int) (t & MASCARA)];
+            ranuras[0][(int) (t & MASCARA)] = null;
+            while (e != null) {
+                Entrada<V> sig = e.sig;
+                porId.remove(e.id);
+                e.ant = e.sig = null;
+                alVencer.accept(e.id, e.valor);
+                vencidas++;
+                e = sig;
+            }
+        }
+        return vencidas;
+    }
+
+    private void cascada(int nivel, int ranura) {
+        Entrada<V> e = ranuras[nivel][ranura];
+        ranuras[nivel][ranura] = null;
+        while (e != null) {
+            Entrada<V> sig = e.sig;
+            e.ant = e.sig = null;
+            colocar(e, actual);
+            e = sig;
+        }
+    }
+
+    private void recolocarDesborde() {
+        Entrada<V> e = desborde;
+        desborde = null;
+        while (e != null) {
+            Entrada<V> sig = e.sig;
+            e.ant = e.sig = null;
+            colocar(e, actual);
+            e = sig;
+        }
+    }
+
+    /**
+     * Nivel más bajo en el que `vence` y el tick actual comparten todos los dígitos
+     * superiores; la ranura es el dígito de `vence` en ese nivel. Lo ya vencido va a
+     * `minimo`: el tick siguiente al programar, el que se está procesando en una cascada.
+     */
+    private void colocar(Entrada<V> e, long minimo) {
+        long t = Math.max(e.vence, minimo);
+        int nivel = 0;
+        while (nivel < NIVELES && (t >>> (BITS * (nivel + 1))) != (actual >>> (BITS * (nivel + 1)))) nivel++;
+        if (nivel == NIVELES) {
+            e.nivel = DESBORDE;
+            e.sig = desborde;
+            if (desborde != null) desborde.ant = e;
+            desborde = e;
+            return;
+        }
+        int ranura = (int) ((t >>> (BITS * nivel)) & MASCARA);
+        e.nivel = nivel;
+        e.ranura = ranura;
+        Entrada<V> cabeza = ranuras[nivel][ranura];
+        e.sig = cabeza;
+        if (cabeza != null) cabeza.ant = e;
+        ranuras[nivel][ranura] = e;
+    }
+
+    private void desenlazar(Entrada<V> e) {
+        if (e.ant != null) e.ant.sig = e.sig;
+        else if (e.nivel == DESBORDE) desborde = e.sig;
+        else ranuras[e.nivel][e.ranura] = e.sig;
+        if (e.sig != null) e.sig.ant = e.ant;
+        e.ant = e.sig = null;
+    }
+}
@@ -0,0 +1,184 @@
+package co.javeriana;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Carga en streaming de los ficheros JSON `{"clave": {...}, ...}` de los repositorios.
+ *
+ * En lugar de materializar el documento como un `Map` intermedio y copiarlo después a un
+ * `ConcurrentHashMap`, cada entrada se deserializa y se inserta directamente en el mapa
+ * final, presizado para el número de entradas:
+ * - Ficheros pequeños: un único `JsonReader` secuencial; el tamaño se estima a partir del
+ *   tamaño del fichero.
+ * - Ficheros de al menos `-DparallelLoadThreshold` bytes (8 MB por defecto): el fichero se
+ *   mapea en memoria, una pasada de bytes localiza las entradas de primer nivel (número
+ *   exacto y fronteras de troceo) y los trozos se parsean en paralelo.
+ *
+ * Cada carga deja en el log las entradas leídas, el tiempo empleado y el número de trozos.
+ */
+public final class StreamingJsonLoader {
+    private static final Log LOG = Log.get("StreamingJsonLoader");
+
+    /** Bytes aproximados por entrada; solo sirve para presizar en la ruta secuencial. */
+    private static final int EST_BYTES_PER_ENTRY = 96;
+    private static final int CHUNK_BYTES = 4 * 1024 * 1024;
+
+    private StreamingJsonLoader() {}
+
+    public static <V> ConcurrentHashMap<String, V> load(File file, Class<V> type) throws IOException {
+        Gson gson = new Gson();
+        long t0 = System.nanoTime();
+        long size = file.length();
+        long threshold = Long.getLong("parallelLoadThreshold", 8L * 1024 * 1024);
+
+        ConcurrentHashMap<String, V> map;
+        int chunks = 1;
+        if (size >= threshold && size < Integer.MAX_VALUE) {
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer bytes = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                Layout layout = scan(bytes);
+                chunks = layout.chunks.size();
+                map = new ConcurrentHashMap<>(capacityFor(layout.entries));
+                final ConcurrentHashMap<String, V> target = map;
+                IntStream.range(0, chunks).parallel().forEach(i -> {
+                    int from = layout.chunks.get(i)[0], to = layout.chunks.get(i)[1];
+                    ByteBuffer slice = bytes.slice(from, to - from);
+                    try (JsonReader r = new JsonReader(new InputStreamReader(new SequenceInputStream(
+                            new ByteArrayInputStream(new byte[]{'{'}),
+                            new SequenceInputStream(new ByteBufferInputStream(slice), new ByteArrayInputStream(new byte[]{'}'}))),
+                            StandardCharsets.UTF_8))) {
+                        readEntries(r, gson, type, target);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } else {
+            map = new ConcurrentHashMap<>(capacityFor((int) Math.min(Integer.MAX_VALUE / 2, size / EST_BYTES_PER_ENTRY + 1)));
+            try (JsonReader r = new JsonReader(new InputStreamReader(new BufferedInputStream(new FileInputStream(file), 64 * 1024), StandardCharsets.UTF_8))) {
+                try {
+                    if (r.peek() == JsonToken.END_DOCUMENT) return map;
+                } catch (EOFException e) {
+                    return map; // vacío o solo espacios: como Gson, sin entradas
+                }
+                readEntries(r, gson, type, map);
+            }
+        }
+
+        long ms = (System.nanoTime() - t0) / 1_000_000;
+        LOG.info(String.format("%s: %d entradas en %d ms (trozos=%d)", file.getName(), map.size(), ms, chunks));
+        return map;
+    }
+
+    private static <V> void readEntries(JsonReader r, Gson gson, Class<V> type, ConcurrentHashMap<String, V> target) throws IOException {
+        if (r.peek() == JsonToken.NULL) {
+            r.nextNull();
+            return;
+        }
+        r.beginObject();
+        while (r.hasNext()) {
+            String key = r.nextName();
+            V v = gson.fromJson(r, type);
+            if (v != null) target.put(key, v);
+        }
+        r.endObject();
+    }
+
+    private static int capacityFor(int entries) {
+        // ConcurrentHashMap(int) ya aplica el factor de carga sobre la capacidad pedida
+        return Math.max(16, entries);
+    }
+
+    /** Entradas de primer nivel y trozos [inicio, fin) con entradas completas, sin comas en los extremos. */
+    private static final class Layout {
+        int entries;
+        final List<int[]> chunks = new ArrayList<>();
+    }
+
+    private static Layout scan(ByteBuffer b) {
+        Layout l = new Layout();
+        int n = b.limit();
+        int depth = 0;
+        boolean inString = false, escape = false, closed = false, blank = true;
+        int chunkStart = -1;
+        for (int i = 0; i < n; i++) {
+            byte c = b.get(i);
+            if (inString) {
+                if (escape) escape = false;
+                else if (c == '\\') escape = true;
+                else if (c == '"') inString = false;
+                continue;
+            }
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') blank = false;
+            switch (c) {
+                case '"':
+                    inString = true;
+                    break;
+                case '{':
+                case '[':
+                    depth++;
+                    if (depth == 1) chunkStart = i + 1;
+                    break;
+                case '}':
+                case ']':
+                    if (depth == 1) {
+                        l.chunks.add(new int[]{chunkStart, i});
+                        closed = true;
+                    }
+                    depth--;
+                    break;
+                case ':':
+                    if (depth == 1) l.entries++;
+                    break;
+                case ',':
+                    if (depth == 1 && i - chunkStart >= CHUNK_BYTES) {
+                        l.chunks.add(new int[]{chunkStart, i});
+                        chunkStart = i + 1;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (blank) return l; // solo espacios: sin entradas, como en la ruta secuencial
+        if (depth != 0 || !closed) throw new JsonParseException("JSON incompleto o sin objeto raíz");
+        return l;
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] dst, int off, int len) {
+            if (!buf.hasRemaining()) return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(dst, off, n);
+            return n;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package co.javeriana;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Conjunto fijo de locks indexado por hash de clave (lock striping).
+ *
+ * Dos claves iguales siempre comparten lock, de modo que las operaciones sobre un mismo
+ * libro quedan serializadas; claves distintas caen (salvo colisión) en locks distintos y
+ * avanzan en paralelo. El número de franjas se fija con `-DlockStripes` (64 por defecto) y
+ * se redondea a potencia de dos.
+ */
+public final class StripedLocks {
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    public StripedLocks() {
+        this(Integer.getInteger("lockStripes", 64));
+    }
+
+    public StripedLocks(int stripes) {
+        int n = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        if (stripes <= 1) n = 1;
+        locks = new ReentrantLock[n];
+        for (int i = 0; i < n; i++) locks[i] = new ReentrantLock();
+        mask = n - 1;
+    }
+
+    public ReentrantLock lockFor(String key) {
+        int h = key == null ? 0 : key.hashCode();
+        h ^= (h >>> 16); // mezclar bits altos, como HashMap
+        return locks[h & mask];
+    }
+
+    public int stripes() {
+        return locks.length;
+    }
+}
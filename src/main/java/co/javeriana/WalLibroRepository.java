@@ -0,0 +1,40 @@
+package co.javeriana;
+
+import java.util.Collection;
+
+/**
+ * Repositorio de libros respaldado por un write-ahead log: cada `save` añade un registro
+ * al fichero `<path>.wal` en lugar de reescribir todo `libros.db` (ver {@link WalStore}).
+ */
+public class WalLibroRepository implements LibroRepository, AutoCloseable {
+    private final WalStore<Libro> store;
+
+    public WalLibroRepository(String path) {
+        this.store = new WalStore<>(path, Libro.class, Libro::getCodigo);
+    }
+
+    @Override
+    public Libro findByCodigo(String codigo) {
+        return store.get(codigo);
+    }
+
+    @Override
+    public void save(Libro libro) {
+        store.put(libro);
+    }
+
+    @Override
+    public PendingWrite stage(Libro libro) {
+        return store.stage(libro);
+    }
+
+    @Override
+    public Collection<Libro> findAll() {
+        return store.values();
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+}
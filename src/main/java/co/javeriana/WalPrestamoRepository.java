@@ -0,0 +1,67 @@
+package co.javeriana;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Repositorio de préstamos respaldado por un write-ahead log: cada `save` añade un registro
+ * al fichero `<path>.wal` en lugar de reescribir todo `prestamos.db` (ver {@link WalStore}).
+ */
+public class WalPrestamoRepository implements PrestamoRepository, AutoCloseable {
+    private final WalStore<Prestamo> store;
+    private final IndicePrestamos indice;
+
+    public WalPrestamoRepository(String path) {
+        this.store = new WalStore<>(path, Prestamo.class, Prestamo::getId);
+        this.indice = new IndicePrestamos("archivo=\"" + path.replace('\\', '/') + "\"");
+        indice.indexar(store.values());
+    }
+
+    @Override
+    public Prestamo findById(String id) {
+        return store.get(id);
+    }
+
+    @Override
+    public void save(Prestamo p) {
+        store.put(p);
+        indice.actualizar(p);
+    }
+
+    @Override
+    public PendingWrite stage(Prestamo p) {
+        PendingWrite w = store.stage(p);
+        indice.actualizar(p);
+        return w;
+    }
+
+    @Override
+    public Collection<Prestamo> findAll() {
+        return store.values();
+    }
+
+    @Override
+    public List<Prestamo> findByUsuario(String usuarioId) {
+        return indice.porUsuario(usuarioId, this::findById);
+    }
+
+    @Override
+    public List<Prestamo> findByLibro(String libroCodigo) {
+        return indice.porLibro(libroCodigo, this::findById);
+    }
+
+    @Override
+    public List<Prestamo> findByEstado(PrestamoEstado estado) {
+        return indice.porEstado(estado, this::findById);
+    }
+
+    @Override
+    public List<Prestamo> findVencenAntesDe(String fecha) {
+        return indice.vencenAntesDe(fecha, this::findById);
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+}
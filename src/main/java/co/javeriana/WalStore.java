@@ -0,0 +1,296 @@
+package co.javeriana;
+
+import com.google.gson.Gson;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Almacén clave/valor respaldado por un write-ahead log (WAL).
+ *
+ * Ficheros (para un snapshot `libros.db`):
+ * - `libros.db`      snapshot completo en el mismo formato JSON que usan los repositorios FileBased.
+ * - `libros.db.wal`  log append-only: una línea JSON por cada `put` (estado completo de la entidad).
+ * - `libros.db.wal.old` log rotado durante un checkpoint en curso.
+ *
+ * Cada `put` añade un único registro pequeño al log, de modo que el coste de E/S por
+ * operación no depende del tamaño del catálogo. El canal del log permanece abierto y las
+ * escrituras pasan por el {@link CommitPipeline}, que agrupa las concurrentes y las hace
+ * durables según la política de fsync configurada. Un hilo checkpointer compacta
+ * periódicamente el log en un nuevo snapshot. Al arrancar se carga el snapshot y se
+ * reproducen `.wal.old` y `.wal` en ese orden; como cada registro es un upsert del estado
+ * completo, la reproducción es idempotente y es segura ante caídas en cualquier punto
+ * del checkpoint.
+ */
+public class WalStore<V> implements AutoCloseable {
+    private final File snapshot;
+    private final File log;
+    private final File oldLog;
+    private final File lockFile;
+    private final Class<V> type;
+    private final Function<V, String> keyOf;
+    private final Map<String, V> map;
+    private final Gson gson = new Gson();
+    private final String tag;
+    private final Log logger;
+    private final int checkpointRecords;
+    private FileChannel logChannel;
+    private int recordsSinceCheckpoint = 0;
+    private final AtomicBoolean checkpointRequested = new AtomicBoolean();
+    private final ScheduledExecutorService checkpointer;
+    private final CommitPipeline pipeline;
+
+    public WalStore(String path, Class<V> type, Function<V, String> keyOf) {
+        this(path, type, keyOf, CommitPipeline.shared());
+    }
+
+    public WalStore(String path, Class<V> type, Function<V, String> keyOf, CommitPipeline pipeline) {
+        this.pipeline = pipeline;
+        this.snapshot = new File(path);
+        this.log = new File(path + ".wal");
+        this.oldLog = new File(path + ".wal.old");
+        this.lockFile = new File(path + ".lock");
+        this.type = type;
+        this.keyOf = keyOf;
+        this.tag = "[WalStore " + snapshot.getName() + "]";
+        this.logger = Log.get("WalStore " + snapshot.getName());
+        this.checkpointRecords = Integer.getInteger("walCheckpointRecords", 1000);
+        File parent = snapshot.getParentFile();
+        if (parent != null && !parent.exists()) parent.mkdirs();
+
+        this.map = loadSnapshot();
+        replay(oldLog);
+        replay(log);
+        try {
+            this.logChannel = openLog();
+        } catch (IOException e) {
+            throw new UncheckedIOException(tag + " No se pudo abrir el log", e);
+        }
+
+        long periodMs = Long.getLong("walCheckpointMs", 5000L);
+        this.checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "wal-checkpoint-" + snapshot.getName());
+            t.setDaemon(true);
+            return t;
+        });
+        checkpointer.scheduleWithFixedDelay(() -> {
+            try {
+                if (pendingRecords() > 0) checkpoint();
+            } catch (Exception ex) {
+                logger.warn("Error en checkpoint: " + ex.getMessage());
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    private Map<String, V> loadSnapshot() {
+        if (!snapshot.exists()) return new ConcurrentHashMap<>();
+        try {
+            return StreamingJsonLoader.load(snapshot, type);
+        } catch (Exception e) {
+            logger.warn("Error cargando snapshot: " + e.getMessage());
+        }
+        return new ConcurrentHashMap<>();
+    }
+
+    private void replay(File f) {
+        if (!f.exists()) return;
+        int n = 0;
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.isBlank()) continue;
+                try {
+                    V v = gson.fromJson(line, type);
+                    if (v != null) {
+                        map.put(keyOf.apply(v), v);
+                        n++;
+                    }
+                } catch (Exception ex) {
+                    // Registro final truncado por una caída durante la escritura: se ignora
+                    logger.warn("Registro inválido ignorado en " + f.getName() + ": " + ex.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Error reproduciendo " + f.getName() + ": " + e.getMessage());
+        }
+        recordsSinceCheckpoint += n;
+        if (n > 0) logger.info("Reproducidos " + n + " registros desde " + f.getName());
+    }
+
+    /**
+     * Abre el log para añadir al final. Un último registro incompleto (caída a mitad de escritura),
+     * que {@link #replay} ya ignoró, se recorta antes para que el siguiente no quede pegado a él.
+     */
+    private FileChannel openLog() throws IOException {
+        try (FileChannel ch = FileChannel.open(log.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long fin = finUltimaLinea(ch);
+            if (fin != ch.size()) {
+                logger.warn("Recortando " + (ch.size() - fin) + " bytes incompletos al final de " + log.getName());
+                ch.truncate(fin);
+                ch.force(true);
+            }
+        }
+        return FileChannel.open(log.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /** Bytes hasta el último '\n' inclusive, buscando desde el final del fichero. */
+    private static long finUltimaLinea(FileChannel ch) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8192);
+        long pos = ch.size();
+        while (pos > 0) {
+            int n = (int) Math.min(buf.capacity(), pos);
+            pos -= n;
+            buf.clear().limit(n);
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, pos + buf.position()) < 0) break;
+            }
+            for (int i = n - 1; i >= 0; i--) {
+                if (buf.get(i) == '\n') return pos + i + 1;
+            }
+        }
+        return 0;
+    }
+
+    public V get(String key) {
+        return map.get(key);
+    }
+
+    /** Vista de los valores vigentes. */
+    public Collection<V> values() {
+        return map.values();
+    }
+
+    /** Actualiza el mapa en memoria y añade un registro al log. */
+    public void put(V value) {
+        String key = keyOf.apply(value);
+        byte[] rec = (gson.toJson(value) + "\n").getBytes(StandardCharsets.UTF_8);
+        CompletableFuture<Void> durable;
+        synchronized (this) {
+            // El orden del mapa y el del log deben coincidir para que la reproducción sea fiel
+            map.put(key, value);
+            durable = pipeline.submit(logChannel, rec);
+            recordsSinceCheckpoint++;
+        }
+        // Se espera fuera del monitor para que otros escritores se sumen al mismo grupo
+        esperar(durable);
+    }
+
+    /**
+     * Como {@link #put}, pero devuelve la espera de durabilidad en vez de hacerla. El registro
+     * se serializa aquí, así que refleja el valor en el momento de la llamada aunque el objeto
+     * cambie antes de completar la escritura.
+     */
+    public PendingWrite stage(V value) {
+        byte[] rec = (gson.toJson(value) + "\n").getBytes(StandardCharsets.UTF_8);
+        CompletableFuture<Void> durable;
+        synchronized (this) {
+            map.put(keyOf.apply(value), value);
+            durable = pipeline.submit(logChannel, rec);
+            recordsSinceCheckpoint++;
+        }
+        return () -> esperar(durable);
+    }
+
+    private void esperar(CompletableFuture<Void> durable) {
+        try {
+            CommitPipeline.await(durable);
+        } catch (IOException e) {
+            logger.error("Error escribiendo en el log: " + e.getMessage());
+            throw new UncheckedIOException(tag + " Error escribiendo en el log", e);
+        }
+        if (pendingRecords() >= checkpointRecords && checkpointRequested.compareAndSet(false, true)) {
+            checkpointer.execute(this::checkpointQuietly);
+        }
+    }
+
+    private synchronized int pendingRecords() {
+        return recordsSinceCheckpoint;
+    }
+
+    private void checkpointQuietly() {
+        checkpointRequested.set(false);
+        try {
+            if (pendingRecords() >= checkpointRecords) checkpoint();
+        } catch (Exception ex) {
+            logger.warn("Error en checkpoint: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Compacta el log en un snapshot nuevo. Solo la rotación del log se hace bajo el
+     * monitor; la serialización del snapshot ocurre sin bloquear a los escritores.
+     */
+    public void checkpoint() throws IOException {
+        try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(lockFile, "rw");
+             FileChannel channel = raf.getChannel()) {
+            java.nio.channels.FileLock lock = channel.lock();
+            try {
+                synchronized (this) {
+                    pipeline.flush(logChannel);
+                    if (oldLog.exists()) {
+                        // Un checkpoint anterior quedó a medias: su log rotado sigue siendo necesario
+                        // hasta que haya un snapshot nuevo, así que se concatena con el actual.
+                        logChannel.close();
+                        Files.write(oldLog.toPath(), Files.readAllBytes(log.toPath()), StandardOpenOption.APPEND);
+                        Files.delete(log.toPath());
+                    } else {
+                        logChannel.close();
+                        Files.move(log.toPath(), oldLog.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    }
+                    logChannel = openLog();
+                    recordsSinceCheckpoint = 0;
+                }
+
+                File tmp = new File(snapshot.getAbsolutePath() + ".tmp");
+                try (OutputStreamWriter w = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+                    gson.toJson(map, w);
+                    w.flush();
+                }
+                try {
+                    Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (Exception ex) {
+                    Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                Files.deleteIfExists(oldLog.toPath());
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // Sin interrumpir: un checkpoint en curso debe terminar antes del final
+        checkpointer.shutdown();
+        try {
+            checkpointer.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            logger.warn("Error en checkpoint final: " + e.getMessage());
+        }
+        synchronized (this) {
+            try {
+                pipeline.flush(logChannel);
+                logChannel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package co.javeriana;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Enrutado por libro de {@link AlmacenamientoParticionado} y reparto de un directorio sin particionar. */
+class AlmacenamientoParticionadoTest {
+    @TempDir
+    Path dir;
+
+    private AlmacenamientoParticionado almacen;
+
+    @BeforeAll
+    static void sinDetectorDeFallos() {
+        System.setProperty("latidoMs", "0");
+    }
+
+    @AfterEach
+    void cerrar() {
+        if (almacen != null) almacen.shutdown();
+        System.clearProperty("particiones");
+    }
+
+    private AlmacenamientoParticionado abrir(int particiones) {
+        System.setProperty("particiones", Integer.toString(particiones));
+        almacen = AlmacenamientoParticionado.abrir(dir, "test");
+        return almacen;
+    }
+
+    @Test
+    void cadaOperacionVaALaParticionDeSuLibro() {
+        AlmacenamientoParticionado a = abrir(3);
+        assertEquals(3, a.particiones());
+        List<Prestamo> otorgados = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            String codigo = "L" + i;
+            assertTrue(a.altaLibro(new Libro(codigo, "Titulo " + i, "Autor", 1)));
+            Prestamo p = a.otorgarPrestamo("U1", codigo, "2025-01-01", "2025-01-15");
+            assertNotNull(p, codigo);
+            int k = a.particionDeLibro(codigo);
+            assertTrue(p.getId().startsWith("p" + k + "-"), p.getId() + " fuera de la partición " + k);
+            assertEquals(k, a.particionDePrestamo(p.getId()));
+            assertFalse(a.validarDisponibilidad(codigo));
+            otorgados.add(p);
+        }
+        assertFalse(a.altaLibro(new Libro("L0", "Otro", "Autor", 5)), "el alta no pisa un libro existente");
+
+        // Las consultas sin libro recorren todas las particiones
+        assertEquals(12, a.buscarPrestamos("U1", null, PrestamoEstado.ACTIVO, null, 100).size());
+        assertEquals(5, a.buscarPrestamos("U1", null, null, null, 5).size());
+        assertEquals(1, a.buscarPrestamos(null, "L7", null, null, 100).size());
+
+        Prestamo p = otorgados.get(4);
+        assertTrue(a.registrarRenovacion(p.getId(), "2025-01-29"));
+        assertTrue(a.registrarDevolucion(p.getId()));
+        assertTrue(a.validarDisponibilidad(p.getLibroCodigo()));
+        assertEquals(11, a.buscarPrestamos("U1", null, PrestamoEstado.ACTIVO, null, 100).size());
+    }
+
+    @Test
+    void unIdSinParticionSeBuscaEnTodas() {
+        AlmacenamientoParticionado a = abrir(4);
+        assertEquals(-1, a.particionDePrestamo("101"));
+        assertEquals(-1, a.particionDePrestamo("p9-1"));
+        assertTrue(a.altaLibro(new Libro("L2", "1984", "Orwell", 0)));
+        assertTrue(a.altaPrestamo(new Prestamo("101", "U2", "L2", "2025-10-02", "2025-10-16", 0, PrestamoEstado.ACTIVO)));
+        assertFalse(a.registrarDevolucion("999"));
+        assertTrue(a.registrarDevolucion("101"));
+        assertTrue(a.validarDisponibilidad("L2"));
+    }
+
+    @Test
+    void repartirUnDirectorioSinParticionarAlSubirDeVersion() throws IOException {
+        // Datos de una versión anterior, sin particionar, en primaria/
+        Path primaria = dir.resolve("primaria");
+        Files.createDirectories(primaria);
+        FileBasedLibroRepository libros = new FileBasedLibroRepository(primaria.resolve("libros.db").toString());
+        FileBasedPrestamoRepository prestamos = new FileBasedPrestamoRepository(primaria.resolve("prestamos.db").toString());
+        Set<String> codigos = new HashSet<>();
+        for (int i = 0; i < 20; i++) {
+            libros.save(new Libro("L" + i, "Titulo " + i, "Autor", 3));
+            prestamos.save(new Prestamo(Integer.toString(100 + i), "U1", "L" + i, "2025-01-01", "2025-01-15", 0, PrestamoEstado.ACTIVO));
+            codigos.add("L" + i);
+        }
+
+        AlmacenamientoParticionado a = abrir(3);
+        assertEquals("3", Files.readString(primaria.resolve("particiones"), StandardCharsets.UTF_8).trim());
+        Set<String> vistos = new HashSet<>();
+        for (int k = 0; k < 3; k++) {
+            FileBasedLibroRepository parte = new FileBasedLibroRepository(primaria.resolve("p" + k).resolve("libros.db").toString());
+            for (Libro l : parte.findAll()) {
+                assertEquals(k, a.particionDeLibro(l.getCodigo()), l.getCodigo() + " en la partición " + k);
+                assertTrue(vistos.add(l.getCodigo()), l.getCodigo() + " repetido");
+            }
+            FileBasedPrestamoRepository prestamosParte =
+                    new FileBasedPrestamoRepository(primaria.resolve("p" + k).resolve("prestamos.db").toString());
+            for (Prestamo p : prestamosParte.findAll()) assertEquals(k, a.particionDeLibro(p.getLibroCodigo()));
+        }
+        assertEquals(codigos, vistos);
+
+        // Los préstamos antiguos (sin prefijo) siguen accesibles a través de su libro
+        assertEquals(20, a.buscarPrestamos("U1", null, PrestamoEstado.ACTIVO, null, 100).size());
+        assertTrue(a.registrarDevolucion("105"));
+        assertEquals(PrestamoEstado.DEVUELTO, a.buscarPrestamos(null, "L5", null, null, 10).get(0).getEstado());
+        a.shutdown();
+        almacen = null;
+
+        // Reabrir con otro número de particiones no puede mezclar repartos
+        assertThrows(IllegalStateException.class, () -> abrir(2));
+        almacen = null;
+        assertEquals(3, abrir(3).particiones());
+    }
+}
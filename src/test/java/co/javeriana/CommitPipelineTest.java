@@ -0,0 +1,80 @@
+package co.javeriana;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Cierre de {@link CommitPipeline} con escritores concurrentes: ningún futuro queda sin completar. */
+class CommitPipelineTest {
+    @TempDir
+    Path dir;
+
+    private FileChannel abrir(String nombre) throws IOException {
+        return FileChannel.open(dir.resolve(nombre), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    @Test
+    void loEncoladoDuranteElCierreSeCompletaOFalla() throws Exception {
+        for (CommitPipeline.SyncPolicy politica : CommitPipeline.SyncPolicy.values()) {
+            CommitPipeline pipeline = new CommitPipeline(politica, 5);
+            ConcurrentLinkedQueue<CompletableFuture<Void>> futuros = new ConcurrentLinkedQueue<>();
+            CountDownLatch arrancados = new CountDownLatch(4);
+            try (FileChannel ch = abrir(politica + ".log")) {
+                List<Thread> hilos = new ArrayList<>();
+                for (int t = 0; t < 4; t++) {
+                    Thread h = new Thread(() -> {
+                        arrancados.countDown();
+                        for (int i = 0; i < 2000; i++) futuros.add(pipeline.submit(ch, "x\n".getBytes(StandardCharsets.UTF_8)));
+                    });
+                    h.start();
+                    hilos.add(h);
+                }
+                arrancados.await();
+                pipeline.close();
+                for (Thread h : hilos) h.join();
+
+                int completados = 0;
+                for (CompletableFuture<Void> f : futuros) {
+                    try {
+                        f.get(5, TimeUnit.SECONDS);
+                        completados++;
+                    } catch (ExecutionException e) {
+                        assertInstanceOf(IOException.class, e.getCause());
+                    }
+                }
+                // Lo que se confirmó está en el fichero
+                assertTrue(Files.size(dir.resolve(politica + ".log")) >= 2L * completados, politica.name());
+                assertThrows(IOException.class, () -> pipeline.flush(ch), "flush tras cerrar");
+            }
+        }
+    }
+
+    @Test
+    void flushConfirmaLoAnterior() throws IOException {
+        CommitPipeline pipeline = new CommitPipeline(CommitPipeline.SyncPolicy.INTERVAL, 60_000);
+        try (FileChannel ch = abrir("a.log")) {
+            CompletableFuture<Void> f = pipeline.submit(ch, "a\n".getBytes(StandardCharsets.UTF_8));
+            pipeline.flush(ch);
+            assertTrue(f.isDone() && !f.isCompletedExceptionally());
+            assertEquals("a\n", Files.readString(dir.resolve("a.log"), StandardCharsets.UTF_8));
+        } finally {
+            pipeline.close();
+        }
+        assertTrue(pipeline.submit(null, new byte[1]).isCompletedExceptionally());
+    }
+}
@@ -0,0 +1,137 @@
+package co.javeriana;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Reintentos con backoff y dead-letter de {@link DurableQueue}. */
+class DurableQueueTest {
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    void configurar() {
+        System.setProperty("retryBaseMs", "40");
+        System.setProperty("retryMaxMs", "320");
+        System.setProperty("retryMaxAttempts", "3");
+    }
+
+    @AfterEach
+    void restaurar() {
+        System.clearProperty("retryBaseMs");
+        System.clearProperty("retryMaxMs");
+        System.clearProperty("retryMaxAttempts");
+    }
+
+    private DurableQueue abrir() {
+        return new DurableQueue(dir.resolve("pending.db").toString());
+    }
+
+    @Test
+    void backoffExponencialConJitterAcotado() {
+        DurableQueue q = abrir();
+        for (int intento = 1; intento <= 40; intento++) {
+            long d = Math.min(320, 40L << Math.min(intento - 1, 30));
+            for (int i = 0; i < 50; i++) {
+                long b = q.backoffMs(intento);
+                assertTrue(b >= d / 2 && b <= d, "intento " + intento + ": " + b + " fuera de [" + d / 2 + ", " + d + "]");
+            }
+        }
+    }
+
+    @Test
+    void nackOcultaElElementoHastaQueVenceSuBackoff() throws InterruptedException {
+        DurableQueue q = abrir();
+        q.enqueue("PRESTAMO;usuarioId=U1;libroCodigo=L1");
+
+        List<DurableQueue.Item> due = q.pollDue(10);
+        assertEquals(1, due.size());
+        assertTrue(q.pollDue(10).isEmpty(), "en vuelo no vuelve a entregarse");
+
+        q.nack(due.get(0));
+        assertEquals(1, q.size());
+        // Repetir el nack o confirmar la entrega ya reprogramada no tiene efecto
+        q.nack(due.get(0));
+        q.ack(due.get(0));
+        assertEquals(1, q.size());
+        assertTrue(q.pollDue(10).isEmpty(), "el backoff aún no venció");
+
+        Thread.sleep(60);
+        List<DurableQueue.Item> reintento = q.pollDue(10);
+        assertEquals(1, reintento.size());
+        assertEquals(1, reintento.get(0).getAttempts());
+        assertEquals("PRESTAMO;usuarioId=U1;libroCodigo=L1", reintento.get(0).getPayload());
+
+        q.ack(reintento.get(0));
+        assertEquals(0, q.size());
+    }
+
+    @Test
+    void agotarLosIntentosLoMueveALaDeadLetter() throws InterruptedException {
+        DurableQueue q = abrir();
+        q.enqueue("RENOVACION;prestamoId=102");
+
+        int intentos = 0;
+        while (q.size() > 0) {
+            List<DurableQueue.Item> due = q.pollDue(10);
+            if (due.isEmpty()) {
+                Thread.sleep(10);
+                continue;
+            }
+            q.nack(due.get(0));
+            intentos++;
+        }
+        assertEquals(3, intentos);
+        assertEquals(List.of("RENOVACION;prestamoId=102"), q.deadLetters());
+    }
+
+    @Test
+    void lasConfirmacionesDeUnaPasadaSobrevivenAUnReinicio() throws Exception {
+        DurableQueue q = abrir();
+        for (String x : List.of("a", "b", "c", "d", "e")) q.enqueue(x);
+        assertEquals(5, q.processDue(10, x -> !x.equals("b") && !x.equals("d")));
+        assertEquals(2, q.size());
+        // Sin checkpoint: los acks de la pasada están en acks.log, escritos de una vez
+        assertEquals(List.of("0", "1", "2", "3", "4"),
+                Files.readAllLines(dir.resolve("pending.db.segments").resolve("acks.log")));
+
+        DurableQueue reabierta = abrir();
+        assertEquals(List.of("b", "d"), reabierta.snapshot());
+        Thread.sleep(60);
+        List<DurableQueue.Item> due = reabierta.pollDue(10);
+        assertEquals(2, due.size());
+        assertEquals(1, due.get(0).getAttempts());
+        assertEquals(1, due.get(1).getAttempts());
+    }
+
+    @Test
+    void losIntentosYLaDeadLetterSobrevivenAUnReinicio() throws InterruptedException {
+        DurableQueue q = abrir();
+        q.enqueue("a");
+        q.enqueue("b");
+        q.nack(q.pollDue(1).get(0));  // "a" con un intento
+        DurableQueue.Item b = q.pollDue(10).get(0);
+        q.nack(b);
+        Thread.sleep(60);
+        q.nack(q.pollDue(1).get(0));  // el primero en vencer pasa a dos intentos
+
+        DurableQueue reabierta = abrir();
+        assertEquals(2, reabierta.size());
+        Thread.sleep(200);
+        List<DurableQueue.Item> due = reabierta.pollDue(10);
+        assertEquals(2, due.size());
+        int suma = due.get(0).getAttempts() + due.get(1).getAttempts();
+        assertEquals(3, suma);
+
+        for (DurableQueue.Item it : due) if (it.getAttempts() == 2) reabierta.nack(it);
+        assertEquals(1, reabierta.deadLetters().size());
+        assertEquals(1, abrir().size());
+    }
+}
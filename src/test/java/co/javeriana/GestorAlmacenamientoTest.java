@@ -0,0 +1,154 @@
+package co.javeriana;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Reserva de ejemplares de {@link GestorAlmacenamiento} con préstamos concurrentes y su anulación si el alta falla. */
+class GestorAlmacenamientoTest {
+    @TempDir
+    Path dir;
+
+    /** Repositorio en memoria cuyas próximas `fallos` altas fallan al preparar (`enStage`) o al hacerse durables. */
+    private static class PrestamosQueFallan extends InMemoryPrestamoRepository {
+        final AtomicInteger fallos = new AtomicInteger();
+        volatile boolean enStage;
+
+        @Override
+        public PendingWrite stage(Prestamo p) {
+            if (fallos.getAndDecrement() <= 0) {
+                fallos.set(0);
+                return super.stage(p);
+            }
+            UncheckedIOException error = new UncheckedIOException("simulado", new IOException("disco lleno"));
+            if (enStage) throw error;
+            save(p);
+            return () -> {
+                throw error;
+            };
+        }
+    }
+
+    /** Receptor que solo anota los cambios emitidos, en orden. */
+    private static class Anotador implements GestorAlmacenamiento.ReceptorCambios {
+        final List<Cambio> cambios = new CopyOnWriteArrayList<>();
+
+        @Override
+        public long publicar(Cambio c) {
+            cambios.add(c);
+            return cambios.size();
+        }
+
+        @Override
+        public void confirmar(long seq) {
+        }
+    }
+
+    @Test
+    void losPrestamosConcurrentesNuncaSuperanLosEjemplares() throws Exception {
+        int ejemplares = 5, hilos = 32;
+        String libros = dir.resolve("libros.db").toString(), prestamos = dir.resolve("prestamos.db").toString();
+        new FileBasedLibroRepository(libros).save(new Libro("L1", "Rayuela", "Cortázar", ejemplares));
+        FileBasedLibroRepository libroRepo = new FileBasedLibroRepository(libros);
+        GestorAlmacenamiento ga = new GestorAlmacenamiento(libroRepo, new FileBasedPrestamoRepository(prestamos));
+
+        ExecutorService ex = Executors.newFixedThreadPool(hilos);
+        CountDownLatch salida = new CountDownLatch(1);
+        List<Future<Prestamo>> fs = new ArrayList<>();
+        for (int i = 0; i < hilos; i++) {
+            String usuario = "U" + i;
+            fs.add(ex.submit(() -> {
+                salida.await();
+                return ga.otorgarPrestamo(usuario, "L1", "2025-01-01", "2025-01-15");
+            }));
+        }
+        salida.countDown();
+        List<Prestamo> otorgados = new ArrayList<>();
+        for (Future<Prestamo> f : fs) {
+            Prestamo p = f.get(30, TimeUnit.SECONDS);
+            if (p != null) otorgados.add(p);
+        }
+        ex.shutdown();
+
+        assertEquals(ejemplares, otorgados.size());
+        assertFalse(ga.validarDisponibilidad("L1"));
+        assertEquals(0, libroRepo.findByCodigo("L1").getEjemplaresDisponibles());
+        // Lo persistido coincide con lo concedido
+        assertEquals(0, new FileBasedLibroRepository(libros).findByCodigo("L1").getEjemplaresDisponibles());
+        FileBasedPrestamoRepository releidos = new FileBasedPrestamoRepository(prestamos);
+        assertEquals(ejemplares, releidos.findByEstado(PrestamoEstado.ACTIVO).size());
+        for (Prestamo p : otorgados) assertNotNull(releidos.findById(p.getId()), p.getId());
+
+        // Una devolución libera exactamente un ejemplar
+        assertTrue(ga.registrarDevolucion(otorgados.get(0).getId()));
+        assertNotNull(ga.otorgarPrestamo("U99", "L1", "2025-01-01", "2025-01-15"));
+        assertNull(ga.otorgarPrestamo("U100", "L1", "2025-01-01", "2025-01-15"));
+        assertEquals(0, new FileBasedLibroRepository(libros).findByCodigo("L1").getEjemplaresDisponibles());
+    }
+
+    @Test
+    void siElAltaFallaSeDevuelveLaReserva() {
+        InMemoryLibroRepository libros = new InMemoryLibroRepository();
+        libros.save(new Libro("L1", "Rayuela", "Cortázar", 1));
+        PrestamosQueFallan prestamos = new PrestamosQueFallan();
+        prestamos.enStage = true;
+        prestamos.fallos.set(1);
+        GestorAlmacenamiento ga = new GestorAlmacenamiento(libros, prestamos);
+        Anotador cambios = new Anotador();
+        ga.setCambios(cambios);
+
+        assertThrows(UncheckedIOException.class, () -> ga.otorgarPrestamo("U1", "L1", "2025-01-01", "2025-01-15"));
+        assertTrue(ga.validarDisponibilidad("L1"));
+        assertEquals(1, libros.findByCodigo("L1").getEjemplaresDisponibles());
+        assertTrue(prestamos.findAll().isEmpty());
+        // Solo salen cambios del libro, el último con el contador restaurado
+        assertTrue(cambios.cambios.stream().allMatch(c -> c.prestamo() == null));
+        assertEquals(1, cambios.cambios.get(cambios.cambios.size() - 1).libro().getEjemplaresDisponibles());
+
+        assertNotNull(ga.otorgarPrestamo("U1", "L1", "2025-01-01", "2025-01-15"));
+        assertFalse(ga.validarDisponibilidad("L1"));
+    }
+
+    @Test
+    void siLaEscrituraNoLlegaADiscoSeAnulaElPrestamo() {
+        InMemoryLibroRepository libros = new InMemoryLibroRepository();
+        libros.save(new Libro("L1", "Rayuela", "Cortázar", 1));
+        PrestamosQueFallan prestamos = new PrestamosQueFallan();
+        prestamos.fallos.set(1);
+        GestorAlmacenamiento ga = new GestorAlmacenamiento(libros, prestamos);
+        Anotador cambios = new Anotador();
+        ga.setCambios(cambios);
+
+        UncheckedIOException e = assertThrows(UncheckedIOException.class,
+                () -> ga.otorgarPrestamo("U1", "L1", "2025-01-01", "2025-01-15"));
+        assertEquals(0, e.getSuppressed().length, "la anulación se hizo durable");
+        assertTrue(ga.validarDisponibilidad("L1"));
+        assertEquals(1, libros.findByCodigo("L1").getEjemplaresDisponibles());
+        Prestamo anulado = prestamos.findAll().iterator().next();
+        assertEquals(PrestamoEstado.DEVUELTO, anulado.getEstado());
+        assertTrue(ga.buscarPrestamos("U1", null, PrestamoEstado.ACTIVO, null, 10).isEmpty());
+        // La réplica recibe el alta y después su anulación, con el ejemplar devuelto
+        List<String> ops = cambios.cambios.stream().map(Cambio::op).toList();
+        assertEquals(List.of("PRESTAMO", "PRESTAMO", "ANULACION", "ANULACION"), ops);
+        Cambio ultimo = cambios.cambios.get(3);
+        assertEquals(1, ultimo.libro().getEjemplaresDisponibles());
+        assertEquals(PrestamoEstado.DEVUELTO, cambios.cambios.get(2).prestamo().getEstado());
+
+        assertNotNull(ga.otorgarPrestamo("U1", "L1", "2025-01-01", "2025-01-15"));
+        assertFalse(ga.validarDisponibilidad("L1"));
+    }
+}
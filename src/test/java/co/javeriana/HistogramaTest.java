@@ -0,0 +1,77 @@
+package co.javeriana;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Cubetas y cotas de error de los percentiles de {@link Histograma}. */
+class HistogramaTest {
+    private static final double ERROR_MAX = 1.0 / 32;
+
+    @Test
+    void cadaValorCaeEnUnaCubetaQueLoAcota() {
+        long[] valores = {0, 1, 31, 32, 33, 63, 64, 65, 1000, 1023, 1024, 1_000_000, 999_999_999,
+                1L << 40, (1L << 40) - 1, (1L << 40) + 1, Long.MAX_VALUE / 3, Long.MAX_VALUE - 1, Long.MAX_VALUE};
+        for (long v : valores) {
+            int i = Histograma.indice(v);
+            assertTrue(i >= 0 && i < (64 - 5) * 32, "índice " + i + " para " + v);
+            assertTrue(Histograma.techo(i) >= v, "techo por debajo de " + v);
+            if (i > 0) assertTrue(Histograma.techo(i - 1) < v, "la cubeta anterior ya contiene " + v);
+            assertTrue(Histograma.techo(i) - v <= v * ERROR_MAX, "error relativo excesivo para " + v);
+        }
+    }
+
+    @Test
+    void losValoresPequenosSonExactos() {
+        Histograma h = new Histograma();
+        for (int v = 0; v < 32; v++) h.registrar(v);
+        assertEquals(0, h.percentil(0.0));
+        assertEquals(15, h.percentil(0.5));
+        assertEquals(31, h.percentil(1.0));
+        assertEquals(32, h.count());
+        assertEquals(31 * 32 / 2, h.sumaNanos());
+    }
+
+    @Test
+    void percentilesDentroDeLaCotaDeError() {
+        Random rnd = new Random(7);
+        int n = 200_000;
+        long[] muestra = new long[n];
+        Histograma h = new Histograma();
+        for (int i = 0; i < n; i++) {
+            // Latencias log-uniformes entre 1 µs y 10 s
+            muestra[i] = (long) Math.pow(10, 3 + rnd.nextDouble() * 7);
+            h.registrar(muestra[i]);
+        }
+        Arrays.sort(muestra);
+        double[] ps = {0.5, 0.9, 0.99, 0.999, 0.9999};
+        long[] r = h.percentiles(ps);
+        for (int k = 0; k < ps.length; k++) {
+            long exacto = muestra[(int) Math.ceil(ps[k] * n) - 1];
+            assertTrue(r[k] >= exacto, "p" + ps[k] + ": " + r[k] + " < " + exacto);
+            assertTrue(r[k] <= exacto + exacto * ERROR_MAX, "p" + ps[k] + ": " + r[k] + " lejos de " + exacto);
+        }
+        assertEquals(muestra[n - 1], h.percentil(1.0));
+        assertEquals(muestra[n - 1], h.maxNanos());
+    }
+
+    @Test
+    void vacioYNegativos() {
+        Histograma h = new Histograma();
+        assertArrayEquals(new long[]{0, 0}, h.percentiles(0.5, 0.99));
+        h.registrar(-5);
+        assertEquals(0, h.percentil(0.99));
+        assertEquals(0, h.maxNanos());
+    }
+
+    @Test
+    void nuncaSuperaElMaximoRegistrado() {
+        Histograma h = new Histograma();
+        h.registrar(1_000_001);
+        // La cubeta de 1 000 001 llega más arriba, pero el máximo real acota el resultado
+        assertEquals(1_000_001, h.percentil(0.5));
+    }
+}
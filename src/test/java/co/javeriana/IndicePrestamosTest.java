@@ -0,0 +1,137 @@
+package co.javeriana;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Consultas de los repositorios de préstamos resueltas con {@link IndicePrestamos} frente a un
+ * recorrido completo de `findAll`, tras altas, cambios en sitio, renovaciones y devoluciones.
+ */
+class IndicePrestamosTest {
+    private static final String[] FECHAS = {"2025-01-01", "2025-01-10", "2025-01-15", "2025-02-01", "2025-03-01", "2026-01-01"};
+
+    @TempDir
+    Path dir;
+
+    /** El mismo repositorio con las consultas por defecto de la interfaz, que recorren `findAll`. */
+    private static PrestamoRepository recorrido(PrestamoRepository repo) {
+        return new PrestamoRepository() {
+            @Override
+            public Prestamo findById(String id) {
+                return repo.findById(id);
+            }
+
+            @Override
+            public void save(Prestamo p) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Collection<Prestamo> findAll() {
+                return repo.findAll();
+            }
+        };
+    }
+
+    private static List<String> ids(List<Prestamo> prestamos) {
+        List<String> r = new ArrayList<>();
+        for (Prestamo p : prestamos) r.add(p.getId());
+        r.sort(null);
+        return r;
+    }
+
+    private static void assertMismasConsultas(PrestamoRepository repo, String cuando) {
+        PrestamoRepository esperado = recorrido(repo);
+        for (int u = 0; u < 10; u++) {
+            String usuario = "U" + u;
+            assertEquals(ids(esperado.findByUsuario(usuario)), ids(repo.findByUsuario(usuario)), cuando + ": " + usuario);
+        }
+        for (int l = 0; l < 10; l++) {
+            String libro = "L" + l;
+            assertEquals(ids(esperado.findByLibro(libro)), ids(repo.findByLibro(libro)), cuando + ": " + libro);
+        }
+        for (PrestamoEstado estado : PrestamoEstado.values()) {
+            assertEquals(ids(esperado.findByEstado(estado)), ids(repo.findByEstado(estado)), cuando + ": " + estado);
+        }
+        for (String fecha : FECHAS) {
+            assertEquals(ids(esperado.findVencenAntesDe(fecha)), ids(repo.findVencenAntesDe(fecha)), cuando + ": antes de " + fecha);
+        }
+    }
+
+    /** Altas, cambios en sitio, renovaciones y devoluciones (estas a través del gestor), comprobando tras cada fase. */
+    private static void ejercitar(PrestamoRepository repo) {
+        InMemoryLibroRepository libros = new InMemoryLibroRepository();
+        for (int l = 0; l < 10; l++) libros.save(new Libro("L" + l, "Titulo " + l, "Autor", 100));
+        GestorAlmacenamiento ga = new GestorAlmacenamiento(libros, repo);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            Prestamo p = ga.otorgarPrestamo("U" + i % 5, "L" + i % 6, "2025-01-01", FECHAS[1 + i % 3]);
+            ids.add(p.getId());
+        }
+        assertMismasConsultas(repo, "altas");
+        assertEquals(60, repo.findByEstado(PrestamoEstado.ACTIVO).size());
+
+        // Cambio en sitio: el objeto guardado se modifica antes de volver a guardarlo
+        for (int i = 0; i < 60; i += 4) {
+            Prestamo p = repo.findById(ids.get(i));
+            p.setUsuarioId("U9");
+            p.setLibroCodigo("L9");
+            p.setFechaFin("2025-01-01");
+            repo.save(p);
+        }
+        assertMismasConsultas(repo, "en sitio");
+        assertEquals(15, repo.findByUsuario("U9").size());
+        assertTrue(repo.findVencenAntesDe("2025-01-01").isEmpty());
+
+        for (int i = 1; i < 60; i += 3) assertTrue(ga.registrarRenovacion(ids.get(i), FECHAS[4]));
+        assertMismasConsultas(repo, "renovaciones");
+
+        for (int i = 2; i < 60; i += 5) assertTrue(ga.registrarDevolucion(ids.get(i)));
+        assertMismasConsultas(repo, "devoluciones");
+
+        // Sustituir la fila por otro objeto con el mismo id
+        Prestamo otro = new Prestamo(ids.get(3), "U8", "L8", "2025-01-01", FECHAS[5], 2, PrestamoEstado.DEVUELTO);
+        repo.save(otro);
+        assertMismasConsultas(repo, "sustitución");
+        assertEquals(List.of(ids.get(3)), ids(repo.findByLibro("L8")));
+        assertEquals(60, repo.findAll().size());
+    }
+
+    @Test
+    void enMemoria() {
+        ejercitar(new InMemoryPrestamoRepository());
+    }
+
+    @Test
+    void enFicheroYAlReabrir() {
+        String ruta = dir.resolve("prestamos.db").toString();
+        FileBasedPrestamoRepository repo = new FileBasedPrestamoRepository(ruta);
+        ejercitar(repo);
+        repo.close();
+        reabrir(() -> new FileBasedPrestamoRepository(ruta));
+    }
+
+    @Test
+    void conWalYAlReabrir() {
+        String ruta = dir.resolve("prestamos.wal").toString();
+        WalPrestamoRepository repo = new WalPrestamoRepository(ruta);
+        ejercitar(repo);
+        repo.close();
+        reabrir(() -> new WalPrestamoRepository(ruta));
+    }
+
+    private static void reabrir(Supplier<PrestamoRepository> abrir) {
+        PrestamoRepository repo = abrir.get();
+        assertEquals(60, repo.findAll().size());
+        assertMismasConsultas(repo, "reabierto");
+        assertEquals(15, repo.findByUsuario("U9").size());
+    }
+}
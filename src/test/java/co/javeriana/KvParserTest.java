@@ -0,0 +1,116 @@
+package co.javeriana;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link KvParser} (y {@link Utils}, que ahora se apoya en él) frente a la implementación
+ * original de `Utils.parseKeyValues`/`extractTs` con `split`, copiada aquí como referencia.
+ */
+class KvParserTest {
+
+    private static Map<String, String> parseKeyValuesOriginal(String carga) {
+        Map<String, String> map = new HashMap<>();
+        if (carga == null) return map;
+        String[] parts = carga.split(";");
+        for (int i = 1; i < parts.length; i++) {
+            String part = parts[i];
+            int eq = part.indexOf('=');
+            if (eq > 0) {
+                String k = part.substring(0, eq).trim();
+                String v = part.substring(eq + 1).trim();
+                map.put(k, v);
+            }
+        }
+        return map;
+    }
+
+    private static Long extractTsOriginal(String carga) {
+        String ts = parseKeyValuesOriginal(carga).get("ts");
+        if (ts == null) return null;
+        try {
+            return Long.parseLong(ts);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static final List<String> CARGAS = List.of(
+            "PRESTAMO;usuarioId=U1;libroCodigo=L1;inicio=2025-01-01;fin=2025-01-15",
+            "DEVOLUCION;prestamoId=101;ts=17",
+            "RENOVACION;prestamoId=102;nuevaFecha=2025-10-22;ts=-3",
+            "  PRESTAMO ; usuarioId = U1 ;libroCodigo=\tL1\t; ts = 8 ",
+            "OP;a=1;a=2;b=;=sinClave;sinIgual;;c==x;d=1=2",
+            "OP;ts=abc",
+            "OP;ts=+12",
+            "OP;ts=99999999999999999999",
+            "OP;ts=",
+            "OP;",
+            "OP",
+            "",
+            ";a=1",
+            "a=1;b=2",
+            "ENQUEUE;type=Devolucion;carga=DEVOLUCION",
+            "OK;motivo=Año ñ €;site=A",
+            "ERROR;motivo=GA_NoDisponible;;;");
+
+    @Test
+    void mismosParesQueLaImplementacionOriginal() {
+        for (String c : CARGAS) {
+            assertEquals(parseKeyValuesOriginal(c), Utils.parseKeyValues(c), c);
+
+            KvParser kv = KvParser.local().parse(c);
+            Map<String, String> pares = new HashMap<>();
+            for (int i = 0; i < kv.size(); i++) pares.put(kv.clave(i), kv.valor(i));
+            assertEquals(parseKeyValuesOriginal(c), pares, c);
+            for (Map.Entry<String, String> e : pares.entrySet()) {
+                assertEquals(e.getValue(), kv.get(e.getKey()), c);
+                assertTrue(kv.valorEs(e.getKey(), e.getValue()), c);
+            }
+        }
+        assertEquals(Map.of(), Utils.parseKeyValues(null));
+    }
+
+    @Test
+    void mismaMarcaQueLaImplementacionOriginal() {
+        for (String c : CARGAS) {
+            assertEquals(extractTsOriginal(c), Utils.extractTs(c), c);
+        }
+    }
+
+    @Test
+    void operacionEsElPrimerSegmentoSinEspacios() {
+        for (String c : CARGAS) {
+            String[] partes = c.split(";");
+            String op = partes.length == 0 ? "" : partes[0].trim();
+            assertEquals(op, KvParser.local().parse(c).op(), c);
+        }
+        assertTrue(KvParser.local().parse(" PRESTAMO ;x=1").opEs("PRESTAMO"));
+    }
+
+    @Test
+    void conOperacionOpcionalElPrimerParCuenta() {
+        KvParser kv = KvParser.local().parse("site=A;event=failover", true);
+        assertEquals("", kv.op());
+        assertEquals("A", kv.get("site"));
+        assertEquals("failover", kv.get("event"));
+        assertEquals("PRESTAMO", KvParser.local().parse("PRESTAMO;x=1", true).op());
+    }
+
+    @Test
+    void numerosSinAsignarYUltimoTsValido() {
+        KvParser kv = KvParser.local().parse("OP;n=42;m=-7;x=4a;ts=5;ts=zz");
+        assertEquals(42, kv.getLong("n", 0));
+        assertEquals(-7, kv.getLong("m", 0));
+        assertEquals(-1, kv.getLong("x", -1));
+        assertEquals(-1, kv.getLong("falta", -1));
+        // Diferencia documentada: un ts repetido e inválido no anula el válido anterior
+        assertEquals(5, kv.ts());
+        assertEquals(Mensaje.SIN_TS, KvParser.local().parse("OP;a=1").ts());
+    }
+}
@@ -0,0 +1,147 @@
+package co.javeriana;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Slots de {@link MappedLibroRepository}: ida y vuelta, reapertura, importación única del JSON y códigos que no caben. */
+class MappedLibroRepositoryTest {
+    @TempDir
+    Path dir;
+
+    private String ruta() {
+        return dir.resolve("libros.db").toString();
+    }
+
+    private static void assertMismoLibro(Libro esperado, Libro real) {
+        assertNotNull(real, esperado.getCodigo());
+        assertEquals(esperado.getCodigo(), real.getCodigo());
+        assertEquals(esperado.getTitulo(), real.getTitulo(), esperado.getCodigo());
+        assertEquals(esperado.getAutor(), real.getAutor(), esperado.getCodigo());
+        assertEquals(esperado.getEjemplaresDisponibles(), real.getEjemplaresDisponibles(), esperado.getCodigo());
+    }
+
+    @Test
+    void cadaLibroVuelveDeSuSlotTambienTrasReabrir() throws IOException {
+        // Más libros que la capacidad inicial (se amplía el mapeo) y títulos más largos que un registro
+        String largo = "Cien años de soledad ".repeat(20);
+        Map<String, Libro> esperados = new HashMap<>();
+        try (MappedLibroRepository repo = new MappedLibroRepository(ruta())) {
+            for (int i = 0; i < 1500; i++) {
+                Libro l = new Libro("L" + i, i % 3 == 0 ? largo + i : "Titulo " + i, i % 5 == 0 ? null : "Autor ñ " + i, i % 9);
+                repo.save(l);
+                esperados.put(l.getCodigo(), l);
+            }
+            Libro vacio = new Libro("Ñ-€", "", "", 0);
+            repo.save(vacio);
+            esperados.put(vacio.getCodigo(), vacio);
+
+            // El contador se actualiza in situ; título y autor solo si cambian
+            long meta = Files.size(dir.resolve("libros.db.meta"));
+            Libro l7 = new Libro("L7", "Titulo 7", "Autor ñ 7", 42);
+            repo.save(l7);
+            esperados.put("L7", l7);
+            assertEquals(meta, Files.size(dir.resolve("libros.db.meta")));
+            Libro l8 = new Libro("L8", "Otro título", null, 1);
+            repo.save(l8);
+            esperados.put("L8", l8);
+
+            assertEquals(esperados.size(), repo.size());
+            for (Libro l : esperados.values()) assertMismoLibro(l, repo.findByCodigo(l.getCodigo()));
+            assertEquals(42, repo.ejemplaresDisponibles("L7"));
+            assertEquals(-1, repo.ejemplaresDisponibles("no-existe"));
+            assertNull(repo.findByCodigo("no-existe"));
+        }
+        assertEquals(0, (Files.size(dir.resolve("libros.db.slots")) - MappedLibroRepository.HEADER_SIZE)
+                % MappedLibroRepository.RECORD_SIZE);
+
+        try (MappedLibroRepository repo = new MappedLibroRepository(ruta())) {
+            assertEquals(esperados.size(), repo.size());
+            assertEquals(esperados.size(), repo.findAll().size());
+            for (Libro l : esperados.values()) assertMismoLibro(l, repo.findByCodigo(l.getCodigo()));
+            // Y se puede seguir ampliando tras reabrir
+            repo.save(new Libro("nuevo", "T", "A", 3));
+            assertEquals(3, repo.ejemplaresDisponibles("nuevo"));
+        }
+    }
+
+    @Test
+    void elJsonSeImportaUnaSolaVez() throws IOException {
+        FileBasedLibroRepository json = new FileBasedLibroRepository(ruta());
+        json.save(new Libro("L1", "Rayuela", "Cortázar", 3));
+        json.save(new Libro("L2", "Ficciones", "Borges", 1));
+        json.close();
+
+        try (MappedLibroRepository repo = new MappedLibroRepository(ruta())) {
+            assertEquals(2, repo.size());
+            assertMismoLibro(new Libro("L1", "Rayuela", "Cortázar", 3), repo.findByCodigo("L1"));
+            repo.save(new Libro("L1", "Rayuela", "Cortázar", 0));
+        }
+
+        // Cambios posteriores en el JSON no se vuelven a importar: mandan los slots
+        json = new FileBasedLibroRepository(ruta());
+        json.save(new Libro("L3", "Pedro Páramo", "Rulfo", 2));
+        json.close();
+        try (MappedLibroRepository repo = new MappedLibroRepository(ruta())) {
+            assertEquals(2, repo.size());
+            assertNull(repo.findByCodigo("L3"));
+            assertEquals(0, repo.ejemplaresDisponibles("L1"));
+        }
+    }
+
+    @Test
+    void unCodigoQueNoCabeEnElSlotSeRechaza() throws IOException {
+        String justo = "x".repeat(MappedLibroRepository.MAX_CODIGO);
+        try (MappedLibroRepository repo = new MappedLibroRepository(ruta())) {
+            repo.save(new Libro(justo, "T", "A", 1));
+            assertEquals(1, repo.ejemplaresDisponibles(justo));
+
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                    () -> repo.save(new Libro(justo + "y", "T", "A", 1)));
+            assertEquals("Código de libro demasiado largo para un slot: " + justo + "y", e.getMessage());
+            // Se cuentan bytes UTF-8, no caracteres
+            String multibyte = "ñ".repeat(MappedLibroRepository.MAX_CODIGO / 2 + 1);
+            assertThrows(IllegalArgumentException.class, () -> repo.save(new Libro(multibyte, "T", "A", 1)));
+            assertEquals(1, repo.size());
+        }
+        try (MappedLibroRepository repo = new MappedLibroRepository(ruta())) {
+            assertEquals(1, repo.size());
+            assertEquals(1, repo.ejemplaresDisponibles(justo));
+        }
+    }
+
+    @Test
+    void laImportacionOmiteLosCodigosQueNoCaben() throws IOException {
+        FileBasedLibroRepository json = new FileBasedLibroRepository(ruta());
+        json.save(new Libro("L1", "Rayuela", "Cortázar", 3));
+        json.save(new Libro("z".repeat(MappedLibroRepository.MAX_CODIGO + 1), "T", "A", 1));
+        json.save(new Libro("L2", "Ficciones", "Borges", 1));
+        json.close();
+
+        try (MappedLibroRepository repo = new MappedLibroRepository(ruta())) {
+            assertEquals(2, repo.size());
+            assertEquals(3, repo.ejemplaresDisponibles("L1"));
+            assertEquals(1, repo.ejemplaresDisponibles("L2"));
+        }
+    }
+
+    @Test
+    void unFicheroDeSlotsAjenoNoSeAbre() throws IOException {
+        Files.write(dir.resolve("libros.db.slots"), new byte[MappedLibroRepository.HEADER_SIZE * 2]);
+        assertThrows(UncheckedIOException.class, () -> new MappedLibroRepository(ruta()));
+        Files.writeString(dir.resolve("otro.db.slots"), "x".repeat(10), StandardCharsets.UTF_8);
+        // Más corto que la cabecera: se trata como nuevo
+        try (MappedLibroRepository repo = new MappedLibroRepository(dir.resolve("otro.db").toString())) {
+            assertEquals(0, repo.size());
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package co.javeriana;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Ida y vuelta del formato binario de {@link MensajeCodec} y su equivalencia con el de texto. */
+class MensajeCodecTest {
+
+    private static Mensaje idaYVuelta(Mensaje m) {
+        byte[] raw = MensajeCodec.encode(m);
+        assertTrue(MensajeCodec.esBinario(raw));
+        return MensajeCodec.leer(raw);
+    }
+
+    private static void assertMismoMensaje(Mensaje esperado, Mensaje real) {
+        assertEquals(esperado.getOp(), real.getOp());
+        assertEquals(esperado.getTimestamp(), real.getTimestamp());
+        assertEquals(esperado.size(), real.size());
+        for (int i = 0; i < esperado.size(); i++) {
+            assertEquals(esperado.clave(i), real.clave(i));
+            assertEquals(esperado.valor(i), real.valor(i));
+        }
+    }
+
+    @Test
+    void operacionYClavesConocidas() {
+        Mensaje m = new Mensaje("PRESTAMO").con("usuarioId", "U1").con("libroCodigo", "L1")
+                .con("inicio", "2025-01-01").con("fin", "2025-01-15").conTs(42);
+        assertMismoMensaje(m, idaYVuelta(m));
+        // op y claves con tag: un byte cada una
+        assertEquals(2 + 1 + 1 + 1 + 4 * 1 + 3 + 3 + 11 + 11, MensajeCodec.encode(m).length);
+    }
+
+    @Test
+    void operacionYClavesLiteralesSinMarca() {
+        Mensaje m = new Mensaje("CONFIRMADO").con("type", "Renovacion").con("prestamoId", "p3-17")
+                .con("otraClave", "valor");
+        Mensaje r = idaYVuelta(m);
+        assertMismoMensaje(m, r);
+        assertEquals(Mensaje.SIN_TS, r.getTimestamp());
+    }
+
+    @Test
+    void marcasLimite() {
+        for (long ts : new long[]{0, 1, 127, 128, 16_383, 16_384, 1L << 40, Long.MAX_VALUE - 1}) {
+            Mensaje m = new Mensaje("OK").conTs(ts);
+            assertEquals(ts, idaYVuelta(m).getTimestamp(), "ts=" + ts);
+        }
+    }
+
+    @Test
+    void valoresNoAsciiYLargosOcupanExactamenteLoCalculado() {
+        String largo = "x".repeat(300);
+        Mensaje m = new Mensaje("ERROR").con("motivo", "Año ñ € 📚").con("carga", largo)
+                .con("claveé", "").conTs(7);
+        byte[] raw = MensajeCodec.encode(m);
+        assertMismoMensaje(m, MensajeCodec.leer(raw));
+
+        ByteBuffer b = ByteBuffer.allocate(raw.length + 64);
+        MensajeCodec.encode(m, b);
+        assertEquals(raw.length, b.position());
+    }
+
+    @Test
+    void surrogateSinParejaViajaComoInterrogacion() {
+        Mensaje m = new Mensaje("OK").con("motivo", "a\ud800b");
+        byte[] raw = MensajeCodec.encode(m);
+        assertEquals("a?b", MensajeCodec.leer(raw).get("motivo"));
+    }
+
+    @Test
+    void textoYBinarioSonEquivalentes() {
+        Mensaje m = Mensaje.deTexto("DEVOLUCION;prestamoId=101;site=A;ts=9");
+        Mensaje deTexto = MensajeCodec.leer(MensajeCodec.escribir(m, false));
+        Mensaje deBinario = MensajeCodec.leer(MensajeCodec.escribir(m, true));
+        assertMismoMensaje(deTexto, deBinario);
+        assertEquals("DEVOLUCION;prestamoId=101;site=A;ts=9", deBinario.aTexto());
+    }
+
+    @Test
+    void nullYCadenaVaciaSonDistintos() {
+        Mensaje m = new Mensaje("OK").con("motivo", null).con("carga", "");
+        Mensaje r = idaYVuelta(m);
+        assertMismoMensaje(m, r);
+        assertNull(r.valor(0));
+        assertEquals("", r.valor(1));
+        assertEquals(MensajeCodec.encode(m).length, MensajeCodec.longitud(m));
+    }
+
+    @Test
+    void laVersionAnteriorSeSigueLeyendo() {
+        // v1: longitudes sin sumar 1; "motivo" con tag 7 y valor literal "x"
+        byte[] v1 = {MensajeCodec.MAGIC, 1, 5, 0, 1, 7, 1, 'x'};
+        Mensaje r = MensajeCodec.leer(v1);
+        assertEquals("OK", r.getOp());
+        assertEquals("x", r.get("motivo"));
+    }
+
+    @Test
+    void longitudFueraDelFrameSeRechaza() {
+        byte[] raw = MensajeCodec.encode(new Mensaje("OK").con("motivo", "abc"));
+        // Último campo: tag, longitud + 1 (4) y 3 bytes; se declara una cadena más larga que el frame
+        raw[raw.length - 4] = 100;
+        assertThrows(MensajeCodec.FormatoInvalidoException.class, () -> MensajeCodec.leer(raw));
+
+        // Longitud enorme: no puede acabar siendo negativa al convertirla a int
+        ByteBuffer b = ByteBuffer.allocate(32);
+        b.put(MensajeCodec.MAGIC).put(MensajeCodec.VERSION).put((byte) 5).put((byte) 0).put((byte) 1).put((byte) 7);
+        MensajeCodec.putVarint(b, (1L << 32) + 1);
+        byte[] enorme = Arrays.copyOf(b.array(), b.position());
+        assertThrows(MensajeCodec.FormatoInvalidoException.class, () -> MensajeCodec.leer(enorme));
+    }
+
+    @Test
+    void frameTruncadoOBasuraSeRechazaConErrorDeFormato() {
+        byte[] raw = MensajeCodec.encode(new Mensaje("PRESTAMO").con("usuarioId", "U1").con("otra", "Año")
+                .conTs(300));
+        for (int n = 2; n < raw.length; n++) {
+            byte[] prefijo = Arrays.copyOf(raw, n);
+            assertThrows(MensajeCodec.FormatoInvalidoException.class, () -> MensajeCodec.leer(prefijo), "prefijo de " + n);
+        }
+        // Basura tras la marca: o se decodifica algo, o se rechaza con el error del codec
+        Random rnd = new Random(3);
+        for (int i = 0; i < 20_000; i++) {
+            byte[] basura = new byte[2 + rnd.nextInt(24)];
+            rnd.nextBytes(basura);
+            basura[0] = MensajeCodec.MAGIC;
+            basura[1] = MensajeCodec.VERSION;
+            try {
+                MensajeCodec.leer(basura);
+            } catch (MensajeCodec.FormatoInvalidoException esperado) {
+                // bien
+            }
+        }
+    }
+
+    @Test
+    void bufferPequenoYVersionDesconocida() {
+        Mensaje m = new Mensaje("PRESTAMO").con("usuarioId", "U1");
+        assertThrows(java.nio.BufferOverflowException.class, () -> MensajeCodec.encode(m, ByteBuffer.allocate(4)));
+
+        byte[] raw = MensajeCodec.encode(m);
+        raw[1] = 9;
+        assertThrows(MensajeCodec.FormatoInvalidoException.class, () -> MensajeCodec.leer(raw));
+    }
+}
@@ -0,0 +1,334 @@
+package co.javeriana;
+
+import com.google.gson.Gson;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Flujo de cambios entre primaria y réplica: {@link GestorAlmacenamientoConReplica},
+ * {@link RegistroCambios}, {@link ReplicaManager} y `aplicarLote`/`exportar` del gestor.
+ */
+class ReplicacionTest {
+    private static final int LIBROS = 8;
+    private static final Gson GSON = new Gson();
+
+    @TempDir
+    Path dir;
+
+    private final List<ReplicaManager> abiertos = new ArrayList<>();
+
+    @BeforeAll
+    static void sinDetectorDeFallos() {
+        System.setProperty("latidoMs", "0");
+    }
+
+    @AfterEach
+    void cerrar() {
+        for (ReplicaManager rm : abiertos) rm.getActivo().shutdown();
+        System.clearProperty("replicaModo");
+        System.clearProperty("replicaEsperaSyncMs");
+    }
+
+    /** Gestor que anota los cambios que le llegan para aplicar y puede hacerlo lentamente. */
+    private static class Destino extends GestorAlmacenamiento {
+        final LibroRepository libros;
+        final PrestamoRepository prestamos;
+        final List<Cambio> aplicados = new CopyOnWriteArrayList<>();
+        volatile long retrasoMs;
+
+        Destino(LibroRepository libros, PrestamoRepository prestamos, String sitio) {
+            super(libros, prestamos, sitio);
+            this.libros = libros;
+            this.prestamos = prestamos;
+        }
+
+        @Override
+        public int aplicarLote(List<Cambio> lote) {
+            if (retrasoMs > 0) {
+                try {
+                    Thread.sleep(retrasoMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            aplicados.addAll(lote);
+            return super.aplicarLote(lote);
+        }
+    }
+
+    private static Destino enMemoria(String sitio) {
+        return new Destino(new InMemoryLibroRepository(), new InMemoryPrestamoRepository(), sitio);
+    }
+
+    private static Destino enFichero(Path d, String sitio) {
+        return new Destino(new FileBasedLibroRepository(d.resolve("libros.db").toString()),
+                new FileBasedPrestamoRepository(d.resolve("prestamos.db").toString()), sitio);
+    }
+
+    private static void poblar(LibroRepository libros) {
+        for (int i = 0; i < LIBROS; i++) libros.save(new Libro("L" + i, "Titulo " + i, "Autor", 1000));
+    }
+
+    private ReplicaManager abrir(Destino primaria, Destino replica, String nombre) {
+        ReplicaManager rm = new ReplicaManager(primaria, replica, dir.resolve("primaria"), dir.resolve("replica"), nombre);
+        abiertos.add(rm);
+        return rm;
+    }
+
+    /** Filas de un gestor por clave, como JSON: dos gestores iguales dan mapas iguales. */
+    private static Map<String, String> estado(Destino g) {
+        Map<String, String> r = new TreeMap<>();
+        for (Libro l : g.libros.findAll()) r.put("libro " + l.getCodigo(), GSON.toJson(l));
+        for (Prestamo p : g.prestamos.findAll()) r.put("prestamo " + p.getId(), GSON.toJson(p));
+        return r;
+    }
+
+    /** Préstamos, renovaciones y devoluciones mezclados; devuelve los ids otorgados. */
+    private static List<String> operar(Almacenamiento g, String usuario, int n) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Prestamo p = g.otorgarPrestamo(usuario, "L" + i % LIBROS, "2025-01-01", "2025-01-15");
+            assertNotNull(p);
+            ids.add(p.getId());
+            if (i % 3 == 0) assertTrue(g.registrarRenovacion(p.getId(), "2025-01-29"));
+            if (i % 2 == 0) assertTrue(g.registrarDevolucion(p.getId()));
+        }
+        return ids;
+    }
+
+    /** Secuencias de todas las líneas del registro de cambios de un directorio. */
+    private static List<Long> secuencias(Path d, String nombre) throws IOException {
+        List<Long> r = new ArrayList<>();
+        try (RegistroCambios registro = new RegistroCambios(d.resolve("cambios-" + nombre + ".log"))) {
+            registro.leerDesde(0, c -> r.add(c.seq()));
+        }
+        return r;
+    }
+
+    private static long gauge(String nombre, String flujo) {
+        String prefijo = nombre + "{";
+        for (String linea : Metricas.exponer().split("\n")) {
+            if (linea.startsWith(prefijo) && linea.contains("flujo=\"" + flujo + "\"")) {
+                return Long.parseLong(linea.substring(linea.lastIndexOf(' ') + 1));
+            }
+        }
+        throw new AssertionError(nombre + " sin serie para " + flujo);
+    }
+
+    private static String leer(Path p) {
+        try {
+            return Files.exists(p) ? Files.readString(p, StandardCharsets.UTF_8).trim() : "";
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    private static void esperarHasta(BooleanSupplier condicion, String que) throws InterruptedException {
+        long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condicion.getAsBoolean()) {
+            if (System.nanoTime() > limite) fail("no se cumplió a tiempo: " + que);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void laReplicaQuedaIgualQueLaPrimariaConLosMismosIds() throws Exception {
+        Destino primaria = enMemoria("primaria");
+        Destino replica = enMemoria("replica");
+        poblar(primaria.libros);
+        GestorAlmacenamientoConReplica g = abrir(primaria, replica, "iguales").getActivo();
+        assertTrue(g.esperarReplicacion(5000), "foto inicial");
+
+        ExecutorService ex = Executors.newFixedThreadPool(4);
+        List<Future<List<String>>> fs = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            String usuario = "U" + t;
+            fs.add(ex.submit(() -> operar(g, usuario, 60)));
+        }
+        Set<String> ids = new HashSet<>();
+        for (Future<List<String>> f : fs) ids.addAll(f.get(30, TimeUnit.SECONDS));
+        ex.shutdown();
+
+        assertTrue(g.esperarReplicacion(5000));
+        assertEquals(0, g.lagOperaciones());
+        assertEquals(estado(primaria), estado(replica));
+        for (String id : ids) assertNotNull(replica.prestamos.findById(id), id);
+        // La foto inicial llega sin secuencia; el resto, en orden y sin huecos
+        List<Long> seqs = new ArrayList<>();
+        for (Cambio c : replica.aplicados) if (c.seq() > 0) seqs.add(c.seq());
+        assertEquals(g.ultimoCambioPublicado(), seqs.size());
+        for (int i = 0; i < seqs.size(); i++) assertEquals(i + 1, seqs.get(i));
+    }
+
+    @Test
+    void alReiniciarSoloSeReaplicaLaColaDelRegistro() throws Exception {
+        Path dp = dir.resolve("primaria"), dr = dir.resolve("replica");
+        Files.createDirectories(dp);
+        Files.createDirectories(dr);
+        Destino primaria = enFichero(dp, "primaria");
+        poblar(primaria.libros);
+        ReplicaManager rm = abrir(primaria, enFichero(dr, "replica"), "reinicio");
+        operar(rm.getActivo(), "U1", 20);
+        assertTrue(rm.getActivo().esperarReplicacion(5000));
+        long checkpoint = rm.getActivo().ultimoCambioPublicado();
+        Path offset = dr.resolve("cambios-reinicio.offset");
+        esperarHasta(() -> leer(offset).equals(Long.toString(checkpoint)), "checkpoint " + checkpoint);
+        rm.getActivo().shutdown();
+        abiertos.clear();
+
+        // La réplica cae: la primaria sigue anotando en su registro
+        Destino caida = enFichero(dr, "replica");
+        caida.setDisponible(false);
+        rm = abrir(enFichero(dp, "primaria"), caida, "reinicio");
+        operar(rm.getActivo(), "U2", 10);
+        long ultimo = rm.getActivo().ultimoCambioPublicado();
+        assertTrue(ultimo > checkpoint);
+        assertTrue(caida.aplicados.isEmpty());
+        rm.getActivo().shutdown();
+        abiertos.clear();
+
+        // Al volver, la réplica aplica solo lo posterior a su checkpoint, sin foto
+        primaria = enFichero(dp, "primaria");
+        Destino replica = enFichero(dr, "replica");
+        GestorAlmacenamientoConReplica g = abrir(primaria, replica, "reinicio").getActivo();
+        assertTrue(g.esperarReplicacion(5000));
+        assertEquals(ultimo, replica.ultimoCambioAplicado());
+        assertEquals(ultimo - checkpoint, replica.aplicados.size());
+        for (Cambio c : replica.aplicados) {
+            assertTrue(c.seq() > checkpoint && c.seq() <= ultimo, "seq " + c.seq());
+        }
+        assertEquals(estado(primaria), estado(replica));
+    }
+
+    @Test
+    void unaUltimaLineaTruncadaSeDescarta() throws Exception {
+        Path log = dir.resolve("cambios-x.log");
+        List<CompletableFuture<Void>> escrituras = new ArrayList<>();
+        try (RegistroCambios r = new RegistroCambios(log)) {
+            for (int i = 1; i <= 3; i++) {
+                escrituras.add(r.anotar(Cambio.de("PRESTAMO", new Prestamo("P" + i, "U1", "L1",
+                        "2025-01-01", "2025-01-15", 0, PrestamoEstado.ACTIVO)).conSeq(i)));
+            }
+            for (CompletableFuture<Void> f : escrituras) CommitPipeline.await(f);
+        }
+        // Caída a mitad de la cuarta línea
+        Files.writeString(log, "{\"seq\":4,\"op\":\"PRES", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        try (RegistroCambios r = new RegistroCambios(log)) {
+            assertEquals(1, r.primerSeq());
+            assertEquals(3, r.ultimoSeq());
+            CommitPipeline.await(r.anotar(Cambio.de("DEVOLUCION", new Prestamo("P1", "U1", "L1",
+                    "2025-01-01", "2025-01-15", 0, PrestamoEstado.DEVUELTO)).conSeq(4)));
+        }
+        try (RegistroCambios r = new RegistroCambios(log)) {
+            assertEquals(4, r.ultimoSeq());
+            List<Cambio> leidos = new ArrayList<>();
+            r.leerDesde(0, leidos::add);
+            assertEquals(List.of(1L, 2L, 3L, 4L), leidos.stream().map(Cambio::seq).toList());
+            assertEquals(PrestamoEstado.DEVUELTO, leidos.get(3).prestamo().getEstado());
+            List<Long> cola = new ArrayList<>();
+            r.leerDesde(2, c -> cola.add(c.seq()));
+            assertEquals(List.of(3L, 4L), cola);
+        }
+    }
+
+    @Test
+    void failoverYFailbackSinCambiosPerdidosNiRepetidos() throws Exception {
+        Destino primaria = enMemoria("primaria");
+        Destino replica = enMemoria("replica");
+        poblar(primaria.libros);
+        ReplicaManager rm = abrir(primaria, replica, "failover");
+        GestorAlmacenamientoConReplica g = rm.getActivo();
+        List<String> ids = new ArrayList<>(operar(g, "U1", 30));
+
+        rm.conmutarAReplica();
+        assertFalse(rm.primariaActiva());
+        assertFalse(primaria.latido());
+        ids.addAll(operar(g, "U2", 30));
+        // Los préstamos creados en la réplica no están en la primaria cercada
+        assertNull(primaria.prestamos.findById(ids.get(ids.size() - 1)));
+
+        rm.recuperarPrimaria();
+        esperarHasta(rm::primariaActiva, "failback");
+        ids.addAll(operar(g, "U3", 30));
+        assertTrue(g.esperarReplicacion(5000));
+        rm.getActivo().shutdown();
+        abiertos.clear();
+
+        assertEquals(estado(primaria), estado(replica));
+        for (String id : ids) assertNotNull(primaria.prestamos.findById(id), id);
+        assertEquals(ids.size(), new HashSet<>(ids).size());
+        // Cada libro descuenta exactamente sus préstamos activos en los dos gestores
+        for (int i = 0; i < LIBROS; i++) {
+            String codigo = "L" + i;
+            long activos = primaria.prestamos.findAll().stream()
+                    .filter(p -> codigo.equals(p.getLibroCodigo()) && p.getEstado() == PrestamoEstado.ACTIVO).count();
+            assertEquals(1000 - activos, primaria.libros.findByCodigo(codigo).getEjemplaresDisponibles(), codigo);
+        }
+        // Entre los dos registros, cada secuencia aparece una sola vez y sin huecos
+        List<Long> todas = new ArrayList<>(secuencias(dir.resolve("primaria"), "failover"));
+        List<Long> deLaReplica = secuencias(dir.resolve("replica"), "failover");
+        assertFalse(deLaReplica.isEmpty());
+        todas.addAll(deLaReplica);
+        Collections.sort(todas);
+        assertEquals(g.ultimoCambioPublicado(), todas.size());
+        for (int i = 0; i < todas.size(); i++) assertEquals(i + 1, todas.get(i));
+    }
+
+    @Test
+    void syncSeDegradaAAsincronoSiSeAgotaElPresupuesto() throws Exception {
+        System.setProperty("replicaModo", "SYNC");
+        System.setProperty("replicaEsperaSyncMs", "50");
+        Destino primaria = enMemoria("primaria");
+        Destino replica = enMemoria("replica");
+        poblar(primaria.libros);
+        GestorAlmacenamientoConReplica g = abrir(primaria, replica, "sync").getActivo();
+        assertTrue(g.esperarReplicacion(5000));
+
+        // Con la réplica al día, SYNC espera a que aplique cada cambio
+        Prestamo p = g.otorgarPrestamo("U1", "L1", "2025-01-01", "2025-01-15");
+        assertNotNull(replica.prestamos.findById(p.getId()));
+        assertEquals(0, gauge("biblioteca_replica_degradada", "sync"));
+
+        replica.retrasoMs = 2000;
+        long t0 = System.nanoTime();
+        Prestamo lento = g.otorgarPrestamo("U1", "L2", "2025-01-01", "2025-01-15");
+        long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+        assertNotNull(lento);
+        assertTrue(ms < 1500, "la operación esperó " + ms + " ms");
+        assertEquals(1, gauge("biblioteca_replica_degradada", "sync"));
+        assertEquals(1, gauge("biblioteca_replica_degradaciones", "sync"));
+
+        // Degradada ya no espera; al vaciarse la cola vuelve a SYNC
+        replica.retrasoMs = 0;
+        assertTrue(g.registrarDevolucion(lento.getId()));
+        assertTrue(g.esperarReplicacion(10_000));
+        esperarHasta(() -> gauge("biblioteca_replica_degradada", "sync") == 0, "restablecer SYNC");
+        assertEquals(1, gauge("biblioteca_replica_degradaciones", "sync"));
+        assertEquals(estado(primaria), estado(replica));
+    }
+}
@@ -0,0 +1,107 @@
+package co.javeriana;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Cascadas entre niveles, desborde y redondeo de {@link RuedaTemporizadores}. */
+class RuedaTemporizadoresTest {
+    private static final long BLOQUE_1 = RuedaTemporizadores.RANURAS;
+    private static final long BLOQUE_3 = BLOQUE_1 * BLOQUE_1 * BLOQUE_1;
+    private static final long BLOQUE_TOTAL = 1L << (6 * RuedaTemporizadores.NIVELES);
+
+    @Test
+    void cadaTemporizadorVenceEnSuTickExactoTrasLasCascadas() {
+        // Justo antes de un cambio de bloque de nivel 3: hay cascadas de todos los niveles
+        long inicio = BLOQUE_3 - 100;
+        long fin = inicio + 3 * BLOQUE_3;
+        RuedaTemporizadores<Long> rueda = new RuedaTemporizadores<>(1, inicio);
+        Random rnd = new Random(11);
+        Map<String, Long> esperado = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            // Mezcla de distancias: cada rango cae en un nivel distinto
+            long rango = new long[]{BLOQUE_1, BLOQUE_1 * BLOQUE_1, BLOQUE_3, 2 * BLOQUE_3}[i % 4];
+            long vence = inicio + (long) (rnd.nextDouble() * rango);
+            rueda.programar("t" + i, vence, vence);
+            esperado.put("t" + i, Math.max(vence, inicio + 1));
+        }
+        // Algunos se cancelan y otros se reprograman antes de empezar
+        for (int i = 0; i < 3000; i += 7) {
+            assertTrue(rueda.cancelar("t" + i));
+            esperado.remove("t" + i);
+        }
+        for (int i = 3; i < 3000; i += 11) {
+            if (!esperado.containsKey("t" + i)) continue;
+            long vence = inicio + 1 + rnd.nextInt((int) BLOQUE_3);
+            rueda.programar("t" + i, vence, vence);
+            esperado.put("t" + i, vence);
+        }
+        assertEquals(esperado.size(), rueda.size());
+
+        Map<String, Long> vencidos = new HashMap<>();
+        for (long ahora = inicio + 1; ahora <= fin && rueda.size() > 0; ahora++) {
+            final long t = ahora;
+            rueda.avanzar(ahora, (id, v) -> assertNull(vencidos.put(id, t), "vence dos veces: " + id));
+        }
+        assertEquals(esperado, vencidos);
+        assertEquals(0, rueda.size());
+    }
+
+    @Test
+    void loQueNoCabeEnLaRuedaEsperaEnElDesbordeYVenceATiempo() {
+        long inicio = BLOQUE_TOTAL - 10;
+        RuedaTemporizadores<String> rueda = new RuedaTemporizadores<>(1, inicio);
+        rueda.programar("antes", BLOQUE_TOTAL - 2, "a");
+        rueda.programar("desborde", BLOQUE_TOTAL + 5, "d");
+        rueda.programar("lejano", 3 * BLOQUE_TOTAL, "l");
+        rueda.programar("cancelado", BLOQUE_TOTAL + 6, "c");
+        assertTrue(rueda.cancelar("cancelado"));
+
+        List<String> orden = new ArrayList<>();
+        List<Long> cuando = new ArrayList<>();
+        for (long ahora = inicio + 1; ahora <= BLOQUE_TOTAL + 20; ahora++) {
+            final long t = ahora;
+            rueda.avanzar(ahora, (id, v) -> {
+                orden.add(id);
+                cuando.add(t);
+            });
+        }
+        assertEquals(List.of("antes", "desborde"), orden);
+        assertEquals(List.of(BLOQUE_TOTAL - 2, BLOQUE_TOTAL + 5), cuando);
+        assertEquals(1, rueda.size());
+        assertEquals("l", rueda.get("lejano"));
+    }
+
+    @Test
+    void nuncaVenceAntesDeTiempoConTicksAnchos() {
+        RuedaTemporizadores<String> rueda = new RuedaTemporizadores<>(1000, 0);
+        rueda.programar("p", 1500, "x");
+        assertEquals(1000, rueda.msHastaProximoTick(0));
+        assertEquals(0, rueda.avanzar(1999, (id, v) -> fail("vence antes de tiempo")));
+        assertEquals(1, rueda.avanzar(2000, (id, v) -> assertEquals("p", id)));
+        assertEquals(Long.MAX_VALUE, rueda.msHastaProximoTick(2000));
+    }
+
+    @Test
+    void loYaVencidoSaleEnElSiguienteTickYReprogramarSustituye() {
+        RuedaTemporizadores<String> rueda = new RuedaTemporizadores<>(10, 1000);
+        rueda.programar("pasado", 0, "p");
+        rueda.programar("r", 5000, "viejo");
+        rueda.programar("r", 1020, "nuevo");
+        assertEquals(2, rueda.size());
+        assertFalse(rueda.cancelar("inexistente"));
+
+        Map<String, String> vencidos = new HashMap<>();
+        assertEquals(1, rueda.avanzar(1010, vencidos::put));
+        assertEquals(Map.of("pasado", "p"), vencidos);
+        assertEquals(1, rueda.avanzar(1020, vencidos::put));
+        assertEquals("nuevo", vencidos.get("r"));
+        assertEquals(0, rueda.avanzar(6000, vencidos::put));
+    }
+}
@@ -0,0 +1,110 @@
+package co.javeriana;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** {@link StreamingJsonLoader} por las dos rutas (secuencial y troceada en paralelo) frente a una carga con Gson. */
+class StreamingJsonLoaderTest {
+    private static final Gson GSON = new Gson();
+    private static final String[] RAROS = {"{", "}", ",", ":", "\"", "\\", "\\\"", "{\"a\":1},", "ñ€", "[", "]"};
+
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    void umbralPorDefecto() {
+        System.clearProperty("parallelLoadThreshold");
+    }
+
+    private static Map<String, String> comoJson(Map<String, Libro> m) {
+        Map<String, String> r = new TreeMap<>();
+        for (Map.Entry<String, Libro> e : m.entrySet()) r.put(e.getKey(), GSON.toJson(e.getValue()));
+        return r;
+    }
+
+    /** Carga el fichero por las dos rutas y comprueba que ambas coinciden con Gson; devuelve las entradas. */
+    private int cargarYComparar(Path f) throws IOException {
+        Map<String, Libro> esperado = GSON.fromJson(Files.readString(f, StandardCharsets.UTF_8),
+                new TypeToken<Map<String, Libro>>() { }.getType());
+        if (esperado == null) esperado = Map.of();
+        for (String umbral : new String[]{"1", Long.toString(Long.MAX_VALUE)}) {
+            System.setProperty("parallelLoadThreshold", umbral);
+            assertEquals(comoJson(esperado), comoJson(StreamingJsonLoader.load(f.toFile(), Libro.class)), "umbral " + umbral);
+        }
+        return esperado.size();
+    }
+
+    private static Map<String, Libro> conCaracteresRaros(int n) {
+        Map<String, Libro> m = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++) {
+            String raro = RAROS[i % RAROS.length];
+            m.put("L" + i + raro, new Libro("L" + i + raro, "Título " + raro + " " + i, raro + "Autor" + raro, i % 7));
+        }
+        return m;
+    }
+
+    @Test
+    void clavesYValoresConDelimitadoresDentroDeLasCadenas() throws IOException {
+        Path f = dir.resolve("raros.db");
+        Files.writeString(f, GSON.toJson(conCaracteresRaros(200)), StandardCharsets.UTF_8);
+        assertEquals(200, cargarYComparar(f));
+    }
+
+    @Test
+    void camposAnidadosDesconocidosYEspacios() throws IOException {
+        Path f = dir.resolve("anidados.db");
+        Files.writeString(f, """
+                 {
+                  "a{,}" : {"codigo":"a{,}","extra":{"x":[1,{"y":"}]"}],"z":{}},"titulo":"t:1"},
+                  "b\\"}" :{"codigo":"b","ejemplaresDisponibles":3, "lista":[[],[{}]]} ,
+                  "c":{}
+                }
+                """, StandardCharsets.UTF_8);
+        assertEquals(3, cargarYComparar(f));
+    }
+
+    @Test
+    void objetoVacioYFicheroVacio() throws IOException {
+        Path vacio = dir.resolve("vacio.db");
+        Files.writeString(vacio, "{}", StandardCharsets.UTF_8);
+        assertEquals(0, cargarYComparar(vacio));
+
+        // Como Gson: un fichero vacío o solo con espacios no tiene entradas
+        for (String contenido : new String[]{"", " \n"}) {
+            Path sinNada = dir.resolve("sin-nada.db");
+            Files.writeString(sinNada, contenido, StandardCharsets.UTF_8);
+            System.setProperty("parallelLoadThreshold", "0");
+            assertTrue(StreamingJsonLoader.load(sinNada.toFile(), Libro.class).isEmpty());
+        }
+    }
+
+    @Test
+    void variosTrozosEnParalelo() throws IOException {
+        // Más de un trozo de 4 MB: las fronteras caen en comas de primer nivel
+        Path f = dir.resolve("grande.db");
+        Files.writeString(f, GSON.toJson(conCaracteresRaros(120_000)), StandardCharsets.UTF_8);
+        assertTrue(Files.size(f) > 8L * 1024 * 1024, "tamaño " + Files.size(f));
+        assertEquals(120_000, cargarYComparar(f));
+    }
+
+    @Test
+    void unDocumentoIncompletoSeRechaza() throws IOException {
+        Path f = dir.resolve("roto.db");
+        Files.writeString(f, "{\"a\":{\"codigo\":\"a}\"}", StandardCharsets.UTF_8);
+        System.setProperty("parallelLoadThreshold", "1");
+        assertThrows(RuntimeException.class, () -> StreamingJsonLoader.load(f.toFile(), Libro.class));
+    }
+}
@@ -0,0 +1,105 @@
+package co.javeriana;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Recuperación del {@link WalStore} tras una caída: snapshot + `.wal.old` + `.wal`. */
+class WalStoreTest {
+    @TempDir
+    Path dir;
+
+    private final CommitPipeline pipeline = new CommitPipeline(CommitPipeline.SyncPolicy.ALWAYS, 10);
+
+    @BeforeAll
+    static void sinCheckpointsPeriodicos() {
+        System.setProperty("walCheckpointMs", "600000");
+    }
+
+    @AfterEach
+    void cerrar() {
+        pipeline.close();
+    }
+
+    private WalStore<Libro> abrir() {
+        return new WalStore<>(dir.resolve("libros.db").toString(), Libro.class, Libro::getCodigo, pipeline);
+    }
+
+    @Test
+    void reproduceElLogSinCerrarElAlmacen() {
+        WalStore<Libro> antes = abrir();
+        antes.put(new Libro("L1", "El Quijote", "Cervantes", 2));
+        antes.put(new Libro("L2", "1984", "Orwell", 1));
+        antes.put(new Libro("L1", "El Quijote", "Cervantes", 1));
+        antes.stage(new Libro("L3", "Rayuela", "Cortázar", 5)).await();
+        // Caída: no se llama a close(), así que no hay checkpoint y todo está solo en el log
+        assertFalse(Files.exists(dir.resolve("libros.db")));
+
+        WalStore<Libro> despues = abrir();
+        assertEquals(3, despues.values().size());
+        assertEquals(1, despues.get("L1").getEjemplaresDisponibles());
+        assertEquals("Orwell", despues.get("L2").getAutor());
+        assertEquals(5, despues.get("L3").getEjemplaresDisponibles());
+        despues.close();
+    }
+
+    @Test
+    void ignoraElUltimoRegistroTruncado() throws IOException {
+        WalStore<Libro> antes = abrir();
+        antes.put(new Libro("L1", "El Quijote", "Cervantes", 2));
+        Files.writeString(dir.resolve("libros.db.wal"), "{\"codigo\":\"L2\",\"tit",
+                StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        WalStore<Libro> despues = abrir();
+        assertEquals(1, despues.values().size());
+        assertEquals(2, despues.get("L1").getEjemplaresDisponibles());
+        assertNull(despues.get("L2"));
+
+        // El fragmento se recorta al reabrir: lo escrito después sigue siendo legible
+        despues.put(new Libro("L3", "Rayuela", "Cortázar", 4));
+        WalStore<Libro> otraVez = abrir();
+        assertEquals(2, otraVez.values().size());
+        assertEquals(4, otraVez.get("L3").getEjemplaresDisponibles());
+        assertNull(otraVez.get("L2"));
+        otraVez.close();
+    }
+
+    @Test
+    void caidaDuranteUnCheckpointReproduceLogRotadoYActual() throws IOException {
+        WalStore<Libro> inicial = abrir();
+        inicial.put(new Libro("L1", "El Quijote", "Cervantes", 3));
+        inicial.close();
+        assertTrue(Files.exists(dir.resolve("libros.db")));
+
+        // Estado a medias de un checkpoint: el log rotado aún no está en el snapshot
+        Files.writeString(dir.resolve("libros.db.wal.old"),
+                "{\"codigo\":\"L1\",\"titulo\":\"El Quijote\",\"autor\":\"Cervantes\",\"ejemplaresDisponibles\":2}\n"
+                        + "{\"codigo\":\"L2\",\"titulo\":\"1984\",\"autor\":\"Orwell\",\"ejemplaresDisponibles\":1}\n",
+                StandardCharsets.UTF_8);
+        Files.writeString(dir.resolve("libros.db.wal"),
+                "{\"codigo\":\"L1\",\"titulo\":\"El Quijote\",\"autor\":\"Cervantes\",\"ejemplaresDisponibles\":1}\n",
+                StandardCharsets.UTF_8);
+
+        WalStore<Libro> despues = abrir();
+        assertEquals(1, despues.get("L1").getEjemplaresDisponibles());
+        assertEquals(1, despues.get("L2").getEjemplaresDisponibles());
+
+        // El checkpoint siguiente absorbe ambos logs en el snapshot
+        despues.checkpoint();
+        assertFalse(Files.exists(dir.resolve("libros.db.wal.old")));
+        despues.close();
+        WalStore<Libro> reabierto = abrir();
+        assertEquals(2, reabierto.values().size());
+        assertEquals(1, reabierto.get("L1").getEjemplaresDisponibles());
+        reabierto.close();
+    }
+}